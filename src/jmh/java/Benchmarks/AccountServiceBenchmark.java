@@ -0,0 +1,56 @@
+package Benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import DAO.AccountDAO;
+import DAO.AccountDirectoryDAO;
+import Model.Account;
+import Service.AccountService;
+
+/**
+ * Measures registering accounts through AccountService, both against the database directly and with the in-memory
+ * account directory the controller uses. Every call registers a new username, so each one reaches the insert.
+ *
+ *   java -jar target/benchmarks.jar AccountServiceBenchmark -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AccountServiceBenchmark {
+    private final AtomicLong usernames = new AtomicLong();
+    private AccountService databaseService;
+    private AccountService directoryService;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BenchmarkData.resetWithMessages(1);
+        databaseService = new AccountService(new AccountDAO());
+        directoryService = new AccountService(new AccountDirectoryDAO());
+    }
+
+    @Benchmark
+    public Account addAccountDatabase() {
+        return databaseService.addAccount(new Account("user" + usernames.incrementAndGet(), "password"));
+    }
+
+    @Benchmark
+    public Account addAccountDirectory() {
+        return directoryService.addAccount(new Account("user" + usernames.incrementAndGet(), "password"));
+    }
+}
@@ -0,0 +1,47 @@
+package Benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import DAO.MessageDAO;
+import Model.Message;
+import Util.ConnectionUtil;
+
+/**
+ * Puts the local database into a known state before a benchmark trial.
+ *
+ * Benchmarks use the same ./h2/db database as the application and the tests, and reset it first, so anything stored
+ * there is lost.
+ */
+final class BenchmarkData {
+    /**
+     * The account created by SocialMedia.sql, used as the poster of every seeded message.
+     */
+    static final int ACCOUNT_ID = 1;
+
+    private static final int INSERT_BATCH = 1000;
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Resets the database and fills the message table until it holds messageCount rows.
+     */
+    static void resetWithMessages(int messageCount) {
+        ConnectionUtil.resetTestDatabase();
+        MessageDAO messageDAO = new MessageDAO();
+        // SocialMedia.sql already inserts one message
+        int remaining = messageCount - 1;
+        while (remaining > 0) {
+            int size = Math.min(remaining, INSERT_BATCH);
+            List<Message> batch = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                batch.add(new Message(ACCOUNT_ID, "benchmark message " + (remaining - i), 1669947792L + i));
+            }
+            if (messageDAO.insertMessages(batch) == null) {
+                throw new IllegalStateException("could not seed the message table");
+            }
+            remaining -= size;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package Benchmarks;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import Controller.SocialMediaController;
+import io.javalin.Javalin;
+
+/**
+ * Measures full HTTP round trips through the app built by SocialMediaController.startAPI(), from a java.net.http
+ * client in the same JVM over loopback. The server listens on a free port, so a running instance on 8080 is not
+ * disturbed, but the database is still reset.
+ *
+ *   java -jar target/benchmarks.jar HttpRoundTripBenchmark -prof gc
+ *
+ * Run with -t to add concurrent clients.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HttpRoundTripBenchmark {
+    @Param({"100", "1000"})
+    public int tableSize;
+
+    private Javalin app;
+    private HttpClient client;
+    private String baseUrl;
+    private HttpRequest getAllMessages;
+    private HttpRequest postMessage;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BenchmarkData.resetWithMessages(tableSize);
+        app = new SocialMediaController().startAPI().start(0);
+        baseUrl = "http://localhost:" + app.port();
+        client = HttpClient.newHttpClient();
+        getAllMessages = HttpRequest.newBuilder(URI.create(baseUrl + "/messages")).build();
+        postMessage = HttpRequest.newBuilder(URI.create(baseUrl + "/messages"))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString("{\"posted_by\":" + BenchmarkData.ACCOUNT_ID
+                        + ",\"message_text\":\"a typical message body of a few dozen characters\""
+                        + ",\"time_posted_epoch\":1669947792}"))
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        app.stop();
+    }
+
+    @Benchmark
+    public byte[] getMessageById() throws IOException, InterruptedException {
+        int id = ThreadLocalRandom.current().nextInt(tableSize) + 1;
+        HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "/messages/" + id)).build();
+        return send(request);
+    }
+
+    @Benchmark
+    public byte[] getAllMessages() throws IOException, InterruptedException {
+        return send(getAllMessages);
+    }
+
+    @Benchmark
+    public byte[] postMessage() throws IOException, InterruptedException {
+        return send(postMessage);
+    }
+
+    private byte[] send(HttpRequest request) throws IOException, InterruptedException {
+        HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+        if (response.statusCode() != 200) {
+            throw new IllegalStateException(request.uri() + " returned " + response.statusCode());
+        }
+        return response.body();
+    }
+}
@@ -0,0 +1,85 @@
+package Benchmarks;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import Model.Message;
+import Util.JacksonJsonMapper;
+
+/**
+ * Compares the per-request cost of the old controller code, which built a new ObjectMapper for every request and
+ * serialized to a String that Javalin then encoded again, with the shared readers and writers in JacksonJsonMapper.
+ *
+ * Average time and sampled latency percentiles are reported. Run with the gc profiler to see allocation per operation:
+ *   java -jar target/benchmarks.jar JsonSerializationBenchmark -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonSerializationBenchmark {
+    private Message message;
+    private byte[] messageJson;
+    private List<Message> messages;
+
+    @Setup
+    public void setUp() {
+        message = new Message(42, 7, "a typical message body of a few dozen characters", 1669947792L);
+        messageJson = JacksonJsonMapper.toBytes(JacksonJsonMapper.MESSAGE_WRITER, message);
+        messages = new ArrayList<>();
+        for (int i = 1; i <= 100; i++) {
+            messages.add(new Message(i, i % 10, "message number " + i, 1669947792L + i));
+        }
+    }
+
+    @Benchmark
+    public byte[] writeMessagePerRequestMapper() throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        return mapper.writeValueAsString(message).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] writeMessageSharedWriter() {
+        return JacksonJsonMapper.toBytes(JacksonJsonMapper.MESSAGE_WRITER, message);
+    }
+
+    @Benchmark
+    public Message readMessagePerRequestMapper() throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        return mapper.readValue(new String(messageJson, StandardCharsets.UTF_8), Message.class);
+    }
+
+    @Benchmark
+    public Message readMessageSharedReader() throws IOException {
+        return JacksonJsonMapper.MESSAGE_READER.readValue(messageJson);
+    }
+
+    @Benchmark
+    public byte[] writeMessageListPerRequestMapper() throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        return mapper.writeValueAsString(messages).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] writeMessageListSharedWriter() {
+        return JacksonJsonMapper.toBytes(JacksonJsonMapper.MESSAGE_LIST_WRITER, messages);
+    }
+}
@@ -0,0 +1,183 @@
+package Benchmarks;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import Controller.SocialMediaController;
+import io.javalin.Javalin;
+
+/**
+ * A closed-loop load test comparing the server on platform threads and on virtual threads.
+ *
+ * For each thread mode and each concurrency level, the app is started on a free port and that many simulated clients
+ * each send one request, wait for the response, and immediately send the next, for a fixed time. The report gives
+ * throughput, error count and latency percentiles per run. JMH is not used here because it drives load from a fixed
+ * number of threads, while the point is to hold tens of thousands of connections open at once.
+ *
+ *   mvn -P benchmark package -DskipTests
+ *   java -cp target/benchmarks.jar Benchmarks.LoadTest
+ *
+ * Options are system properties:
+ *   load.concurrency  comma separated client counts, default 1000,10000,50000
+ *   load.seconds      measured seconds per run, default 20, after a warm-up of a quarter of that
+ *   load.path         request path, default /accounts/1/messages?limit=20, which always reaches the database
+ *   load.messages     rows seeded into the message table, default 1000
+ *
+ * Every simulated client holds its own connection, so the higher levels need far more file descriptors and local
+ * ports than most machines allow by default: raise ulimit -n and net.ipv4.ip_local_port_range, or drive the server
+ * from several machines. Virtual threads need Java 21; on older JVMs both modes run on platform threads.
+ */
+public class LoadTest {
+    public static void main(String[] args) throws Exception {
+        int[] levels = Arrays.stream(System.getProperty("load.concurrency", "1000,10000,50000").split(","))
+                .mapToInt(level -> Integer.parseInt(level.trim()))
+                .toArray();
+        int seconds = Integer.getInteger("load.seconds", 20);
+        String path = System.getProperty("load.path", "/accounts/1/messages?limit=20");
+
+        BenchmarkData.resetWithMessages(Integer.getInteger("load.messages", 1000));
+        System.out.printf("%-9s %8s %12s %8s %9s %9s %9s%n",
+                "threads", "clients", "req/s", "errors", "p50 ms", "p99 ms", "max ms");
+        for (boolean virtualThreads : new boolean[]{false, true}) {
+            for (int level : levels) {
+                Javalin app = new SocialMediaController().startAPI(virtualThreads).start(0);
+                try {
+                    Result result = run(URI.create("http://localhost:" + app.port() + path), level, seconds);
+                    System.out.printf("%-9s %8d %12.0f %8d %9.2f %9.2f %9.2f%n",
+                            virtualThreads ? "virtual" : "platform", level, result.throughput(), result.errors,
+                            result.percentileMillis(50), result.percentileMillis(99), result.percentileMillis(100));
+                } finally {
+                    app.stop();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drives the server with the given number of concurrent clients: warms up for a quarter of the run, then
+     * measures for the given number of seconds.
+     */
+    private static Result run(URI uri, int clients, int seconds) throws InterruptedException {
+        ExecutorService clientExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            HttpClient client = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_1_1)
+                    .connectTimeout(Duration.ofSeconds(30))
+                    .executor(clientExecutor)
+                    .build();
+            HttpRequest request = HttpRequest.newBuilder(uri).timeout(Duration.ofSeconds(60)).build();
+
+            Client[] running = new Client[clients];
+            long warmUpEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(Math.max(1, seconds / 4));
+            long end = warmUpEnd + TimeUnit.SECONDS.toNanos(seconds);
+            LongAdder errors = new LongAdder();
+            CompletableFuture<?>[] done = new CompletableFuture<?>[clients];
+            for (int i = 0; i < clients; i++) {
+                running[i] = new Client(client, request, warmUpEnd, end, errors);
+                done[i] = running[i].start();
+            }
+            CompletableFuture.allOf(done).join();
+
+            int total = 0;
+            for (Client c : running) {
+                total += c.count;
+            }
+            long[] latencies = new long[total];
+            int offset = 0;
+            for (Client c : running) {
+                System.arraycopy(c.latencies, 0, latencies, offset, c.count);
+                offset += c.count;
+            }
+            Arrays.sort(latencies);
+            return new Result(latencies, errors.sum(), seconds);
+        } finally {
+            clientExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * One simulated client. Its requests are strictly sequential, so it records latencies without synchronization.
+     */
+    private static final class Client {
+        private final HttpClient client;
+        private final HttpRequest request;
+        private final long warmUpEnd;
+        private final long end;
+        private final LongAdder errors;
+        private final CompletableFuture<Void> finished = new CompletableFuture<>();
+        long[] latencies = new long[64];
+        int count;
+
+        Client(HttpClient client, HttpRequest request, long warmUpEnd, long end, LongAdder errors) {
+            this.client = client;
+            this.request = request;
+            this.warmUpEnd = warmUpEnd;
+            this.end = end;
+            this.errors = errors;
+        }
+
+        CompletableFuture<Void> start() {
+            sendNext();
+            return finished;
+        }
+
+        private void sendNext() {
+            long start = System.nanoTime();
+            if (start >= end) {
+                finished.complete(null);
+                return;
+            }
+            client.sendAsync(request, HttpResponse.BodyHandlers.discarding()).whenComplete((response, failure) -> {
+                long finish = System.nanoTime();
+                if (start >= warmUpEnd && finish < end) {
+                    if (failure != null || response.statusCode() != 200) {
+                        errors.increment();
+                    } else {
+                        record(finish - start);
+                    }
+                }
+                sendNext();
+            });
+        }
+
+        private void record(long nanos) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = nanos;
+        }
+    }
+
+    private static final class Result {
+        private final long[] sortedLatencies;
+        private final long errors;
+        private final int seconds;
+
+        Result(long[] sortedLatencies, long errors, int seconds) {
+            this.sortedLatencies = sortedLatencies;
+            this.errors = errors;
+            this.seconds = seconds;
+        }
+
+        double throughput() {
+            return (double) sortedLatencies.length / seconds;
+        }
+
+        double percentileMillis(double percentile) {
+            if (sortedLatencies.length == 0) {
+                return Double.NaN;
+            }
+            int index = (int) Math.ceil(percentile / 100 * sortedLatencies.length) - 1;
+            return sortedLatencies[Math.max(0, index)] / 1_000_000.0;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package Benchmarks;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import DAO.MessageDAO;
+import DAO.MessageRepositories;
+import DAO.MessageRepository;
+import Model.Message;
+
+/**
+ * Measures each message storage engine: MessageDAO against the H2 database, bypassing the cache that the service
+ * normally puts in front of it, InMemoryMessageRepository with its write-ahead log, and MappedLogMessageRepository.
+ *
+ * Throughput and sampled latency (with p50/p90/p99 percentiles) are both reported; add -prof gc for allocation:
+ *   java -jar target/benchmarks.jar MessageDAOBenchmark -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageDAOBenchmark {
+    @Param({"100", "1000", "10000"})
+    public int tableSize;
+
+    @Param({MessageRepositories.H2, MessageRepositories.MEMORY, MessageRepositories.MAPPED})
+    public String engine;
+
+    private MessageRepository messageDAO;
+    private Message newMessage;
+
+    /**
+     * Runs once per table size and engine, so inserts from insertMessage accumulate within a trial. They grow the table by a
+     * small fraction compared with the largest sizes and are cleared before the next one.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        BenchmarkData.resetWithMessages(tableSize);
+        messageDAO = MessageRepositories.H2.equals(engine) ? new MessageDAO() : MessageRepositories.create(engine);
+        newMessage = new Message(BenchmarkData.ACCOUNT_ID, "a typical message body of a few dozen characters",
+                1669947792L);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        messageDAO.close();
+    }
+
+    @Benchmark
+    public Message retrieveMessageById() {
+        return messageDAO.retrieveMessageById(ThreadLocalRandom.current().nextInt(tableSize) + 1);
+    }
+
+    @Benchmark
+    public List<Message> retrieveAllMessages() {
+        return messageDAO.retrieveAllMessages();
+    }
+
+    @Benchmark
+    public Message insertMessage() {
+        return messageDAO.insertMessage(newMessage);
+    }
+}
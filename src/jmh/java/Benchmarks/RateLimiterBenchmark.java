@@ -0,0 +1,51 @@
+package Benchmarks;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import Util.RateLimiter;
+
+/**
+ * Cost of one rate limiter check, with keys drawn at random from a population of the given size, so that large
+ * populations keep evicting idle buckets and adding new ones. Run with -t to see contention on the stripes and the
+ * shared bucket, for example:
+ *   java -jar target/benchmarks.jar RateLimiterBenchmark -p keys=10000000 -t 8 -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(1)
+public class RateLimiterBenchmark {
+    @Param({"1000", "1000000", "10000000"})
+    public int keys;
+
+    private RateLimiter limiter;
+
+    @Setup
+    public void setUp() {
+        // generous enough that nothing is refused, so every check takes the admitting path
+        limiter = new RateLimiter(1000, 1000, 1 << 20, new RateLimiter.Bucket(100_000_000, 100_000_000),
+                System::nanoTime);
+    }
+
+    @Benchmark
+    public long acquire() {
+        return limiter.acquire(ThreadLocalRandom.current().nextInt(keys));
+    }
+}
@@ -0,0 +1,90 @@
+package Benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import Model.Message;
+import Util.CompressedPayloadCache;
+import Util.JacksonJsonMapper;
+import Util.ResponseCompression;
+
+/**
+ * CPU per request and bytes on the wire for a full message list, sent as identity, gzip or deflate.
+ *
+ * serializeAndCompress is what every request cost before list bodies were cached: serialize the list, then compress
+ * it. cachedPayload is what a request costs once the body for the current version is in the CompressedPayloadCache.
+ * The body sizes are printed when each trial starts, for example:
+ *   java -jar target/benchmarks.jar ResponseCompressionBenchmark -p messages=1000 -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseCompressionBenchmark {
+    private static final String[] WORDS = {"the", "message", "board", "posted", "today", "javalin", "account",
+            "hello", "world", "timeline", "profile", "weekend", "coffee", "release", "meeting", "review"};
+
+    @Param({"100", "1000", "10000"})
+    public int messages;
+
+    @Param({"identity", "gzip", "deflate"})
+    public String encoding;
+
+    private final ResponseCompression compression = new ResponseCompression();
+    private final CompressedPayloadCache payloadCache = new CompressedPayloadCache(Long.MAX_VALUE);
+    private ResponseCompression.Encoding negotiated;
+    private List<Message> list;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        list = new ArrayList<>(messages);
+        for (int i = 1; i <= messages; i++) {
+            StringBuilder text = new StringBuilder();
+            int words = 4 + random.nextInt(20);
+            for (int w = 0; w < words; w++) {
+                text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            text.append(random.nextInt(100000));
+            list.add(new Message(i, 1 + random.nextInt(50), text.toString(), 1669947792L + i * 37L));
+        }
+        negotiated = ResponseCompression.negotiate(encoding);
+
+        CompressedPayloadCache.Payload payload = serializeAndCompress();
+        payloadCache.put("list", payload);
+        System.out.printf("%n%d messages as %s: %d bytes of JSON, %d bytes on the wire (%.1f%%)%n", messages,
+                encoding, payload.getUncompressedLength(), payload.getBody().length,
+                100.0 * payload.getBody().length / payload.getUncompressedLength());
+    }
+
+    @Benchmark
+    public CompressedPayloadCache.Payload serializeAndCompress() {
+        byte[] json = JacksonJsonMapper.toBytes(JacksonJsonMapper.MESSAGE_LIST_WRITER, list);
+        if (negotiated == null) {
+            return new CompressedPayloadCache.Payload(json, null, json.length);
+        }
+        return new CompressedPayloadCache.Payload(compression.compress(json, negotiated),
+                negotiated.getHeaderValue(), json.length);
+    }
+
+    @Benchmark
+    public CompressedPayloadCache.Payload cachedPayload() {
+        return payloadCache.get("list");
+    }
+}
@@ -1,27 +1,166 @@
 package Controller;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import DAO.AccountDAO;
+import DAO.AccountDirectoryDAO;
+import DAO.CachingMessageDAO;
+import DAO.InMemoryMessageRepository;
+import DAO.MappedLogMessageRepository;
+import DAO.MessageCache;
+import DAO.MessageDAO;
+import DAO.MessageSearchIndex;
+import DAO.MessageRepositories;
+import DAO.MessageRepository;
+import DAO.MessageRowHandler;
+import DAO.TimelineIndex;
 
 import Model.Account;
 import Service.AccountService;
 
+import Model.BatchResult;
 import Model.Message;
 import Service.MessageService;
 
+import Util.CompressedPayloadCache;
+import Util.ConnectionPool;
+import Util.ConnectionUtil;
+import Util.DatabaseExecutor;
+import Util.JacksonJsonMapper;
+import Util.Metrics;
+import Util.RateLimiter;
+import Util.ResponseCompression;
+import Util.SessionTokens;
+
 import io.javalin.Javalin;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.util.VirtualThreads;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import io.javalin.http.ContentType;
 import io.javalin.http.Context;
+import io.javalin.http.Handler;
+import io.javalin.http.HandlerType;
+import io.javalin.http.UnauthorizedResponse;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 
 public class SocialMediaController {
+    /**
+     * Page size used when a client asks for a page without giving a limit.
+     */
+    private static final int DEFAULT_PAGE_SIZE = 100;
+    /**
+     * Largest page a client may ask for, so that one request cannot pull the whole table into memory.
+     */
+    private static final int MAX_PAGE_SIZE = Integer.getInteger("messages.page.maxLimit", 1000);
+    /**
+     * Response header carrying the cursor for the next page. It is absent on the last page.
+     */
+    private static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+    /**
+     * Most messages accepted by one POST /messages/batch request.
+     */
+    private static final int MAX_BATCH_SIZE = Integer.getInteger("messages.batch.maxSize", 1000);
+    /**
+     * Prefer header value (RFC 7240) with which a client asks POST /messages to queue the message and answer 202.
+     */
+    private static final String RESPOND_ASYNC = "respond-async";
+    /**
+     * Whether startAPI() runs handlers on virtual threads. Set with -Dserver.virtualThreads=true or Main's
+     * --virtual-threads flag.
+     */
+    private static final boolean VIRTUAL_THREADS = Boolean.getBoolean("server.virtualThreads");
+    /**
+     * Most platform threads Jetty may use, the same default Javalin uses for its own pool.
+     */
+    private static final int MAX_SERVER_THREADS = Integer.getInteger("server.maxThreads", 250);
+    /**
+     * Response header of POST /login carrying the session token, see SessionTokens.
+     */
+    private static final String SESSION_TOKEN_HEADER = "X-Session-Token";
+    /**
+     * Request attribute holding the account_id of a verified session token.
+     */
+    private static final String AUTHENTICATED_ACCOUNT = "authenticatedAccountId";
+    /**
+     * Page size of GET /messages/search when the client gives no limit.
+     */
+    private static final int DEFAULT_SEARCH_PAGE_SIZE = 20;
+    /**
+     * Deepest a client may page into search results; every page ranks all the hits before it.
+     */
+    private static final int MAX_SEARCH_OFFSET = Integer.getInteger("messages.search.maxOffset", 10000);
+    /**
+     * Seconds a client is asked to wait, in the Retry-After header, when a request is shed because the database
+     * executor is saturated.
+     */
+    private static final String RETRY_AFTER_SECONDS = String.valueOf(Integer.getInteger("db.executor.retryAfterSeconds", 1));
+    /**
+     * Seeds the hash of IPv6 addresses into rate-limit keys, see addressKey.
+     */
+    private static final long ADDRESS_HASH_SEED = new SecureRandom().nextLong();
+
     private final AccountService accountService;
     private final MessageService messageService;
+    private final DatabaseExecutor databaseExecutor;
+    private final Metrics metrics = new Metrics();
+    private final ResponseCompression compression = new ResponseCompression();
+    private final CompressedPayloadCache payloadCache = new CompressedPayloadCache();
+    private final SessionTokens sessionTokens = new SessionTokens();
+    /**
+     * Limit on all message writes together, whoever makes them; configured with ratelimit.global.perSecond and
+     * ratelimit.global.burst.
+     */
+    private final RateLimiter.Bucket writeBudget = RateLimiter.Bucket.fromProperties("global", 10000, 20000);
+    /**
+     * Per-account limits of the write routes, each drawing on writeBudget too; configured with
+     * ratelimit.route.perSecond and ratelimit.route.burst, see rateLimited. A batch costs one permit per message, so
+     * the batch limits count messages and their burst must be at least messages.batch.maxSize.
+     */
+    private final RateLimiter postLimiter = RateLimiter.fromProperties("messages.post", 50, 100, writeBudget);
+    private final RateLimiter batchLimiter = RateLimiter.fromProperties("messages.batch", 1000, 2000, writeBudget);
+    private final RateLimiter patchLimiter = RateLimiter.fromProperties("messages.patch", 20, 50, writeBudget);
+    private final RateLimiter deleteLimiter = RateLimiter.fromProperties("messages.delete", 20, 50, writeBudget);
+    /**
+     * Whether startAPI() rebuilds the search index straight away. Only with the H2 engine: the other engines load
+     * lazily, and reading them at startup would load them before anyone asked.
+     */
+    private final boolean buildSearchIndexAtStartup;
 
+    /**
+     * Both services share one in-memory account directory, so an account registered through AccountService is
+     * immediately visible to the poster check in MessageService.
+     */
     public SocialMediaController(){
-        this.accountService = new AccountService();
-        this.messageService = new MessageService();
+        this(new DatabaseExecutor());
+    }
+
+    /**
+     * Constructor for a SocialMediaController whose handlers run on the given database executor. Messages are kept
+     * by the engine named in the storage.engine system property, see MessageRepositories.
+     * @param databaseExecutor - the executor every service call is handed to.
+     */
+    public SocialMediaController(DatabaseExecutor databaseExecutor){
+        AccountDAO accountDirectory = new AccountDirectoryDAO();
+        MessageRepository messageDAO = MessageRepositories.create();
+        this.accountService = new AccountService(accountDirectory);
+        this.messageService = new MessageService(messageDAO, accountDirectory);
+        this.databaseExecutor = databaseExecutor;
+        this.buildSearchIndexAtStartup = messageDAO instanceof MessageDAO;
+        registerGauges(messageDAO);
     }
     
     /**
@@ -30,50 +169,375 @@ public class SocialMediaController {
      * @return a Javalin app object which defines the behavior of the Javalin controller.
      */
     public Javalin startAPI() {
-        Javalin app = Javalin.create();
+        return startAPI(VIRTUAL_THREADS);
+    }
+
+    /**
+     * Builds the app on a Jetty thread pool of platform threads, or with each request handled on its own virtual
+     * thread. Virtual threads need Java 21 (or 19 and 20 with --enable-preview); on older JVMs a warning is printed
+     * and platform threads are used.
+     *
+     * Either way, service calls run on the bounded database executor, so H2 never sees more concurrent work than its
+     * thread count: with virtual threads any number of requests can be in flight, and the excess wait in the
+     * executor's queue or are shed with 503 instead of piling onto H2.
+     * @param useVirtualThreads - true to run handlers on virtual threads.
+     * @return a Javalin app object which defines the behavior of the Javalin controller.
+     */
+    public Javalin startAPI(boolean useVirtualThreads) {
+        Javalin app = Javalin.create(config -> {
+            config.jsonMapper(JacksonJsonMapper.INSTANCE);
+            config.jetty.server(() -> new Server(serverThreadPool(useVirtualThreads)));
+            // bodies are compressed by sendBody, which can reuse cached compressed lists; Javalin would compress them
+            // again on every request
+            config.compression.none();
+        });
         
-        app.post("/register", this::registerAccountHandler);
-        app.post("/login", this::loginAccountHandler);
-        app.post("/messages", this::submitMessageHandler);
-        app.get("/messages", this::getAllMessagesHandler);
-        app.get("/messages/{message_id}", this::getMessageByIdHandler);
-        app.delete("/messages/{message_id}", this::deleteMessageByIdHandler);
-        app.patch("/messages/{message_id}", this::updateMessageByIdHandler);
-        app.get("/accounts/{account_id}/messages", this::getMessagesByAccountIdHandler);
+        // runs on the server thread before every route; verifying a token is a hash, not a query
+        app.before(this::authenticate);
+        route(app, HandlerType.POST, "/register", this::registerAccountHandler);
+        route(app, HandlerType.POST, "/login", this::loginAccountHandler);
+        route(app, HandlerType.POST, "/messages", this::submitMessageHandler);
+        route(app, HandlerType.POST, "/messages/batch", this::submitMessageBatchHandler);
+        route(app, HandlerType.GET, "/messages", this::getAllMessagesHandler);
+        // before /messages/{message_id}, which would otherwise take "search" for an id
+        route(app, HandlerType.GET, "/messages/search", this::searchMessagesHandler);
+        route(app, HandlerType.GET, "/messages/{message_id}", this::getMessageByIdHandler);
+        route(app, HandlerType.DELETE, "/messages/{message_id}", this::deleteMessageByIdHandler);
+        route(app, HandlerType.PATCH, "/messages/{message_id}", this::updateMessageByIdHandler);
+        route(app, HandlerType.GET, "/accounts/{account_id}/messages", this::getMessagesByAccountIdHandler);
+        // served on the server thread, so metrics stay readable while the database executor is saturated
+        app.get("/metrics", this::metricsHandler);
+        // the server has stopped taking requests by now; let running handlers finish, then flush the write-behind
+        // queue so nothing can be queued after the flush
+        if (buildSearchIndexAtStartup) {
+            messageService.buildSearchIndexInBackground();
+        }
+        app.events(event -> event.serverStopped(() -> {
+            databaseExecutor.shutdown(30, TimeUnit.SECONDS);
+            messageService.close();
+        }));
         return app;
     }
 
+    /**
+     * Checks the session token of a request that sends "Authorization: Bearer token" and remembers its account_id
+     * for the handlers. A request without a token is left alone and handled as before; one with an invalid or
+     * expired token is answered 401.
+     */
+    private void authenticate(Context ctx) {
+        String authorization = ctx.header("Authorization");
+        if (authorization == null || !authorization.regionMatches(true, 0, "Bearer ", 0, 7)) {
+            return;
+        }
+        Integer accountId = sessionTokens.verify(authorization.substring(7).trim());
+        if (accountId == null) {
+            ctx.header("WWW-Authenticate", "Bearer error=\"invalid_token\"");
+            throw new UnauthorizedResponse();
+        }
+        ctx.attribute(AUTHENTICATED_ACCOUNT, accountId);
+    }
+
+    /**
+     * Makes an authenticated request's message belong to its account: a message without posted_by gets the
+     * account's id, and one naming another account is refused with 403.
+     * @return true if the message may be posted.
+     */
+    private static boolean claimPoster(Context ctx, Message message, int accountId) {
+        if (message.getPosted_by() == 0) {
+            message.setPosted_by(accountId);
+        } else if (message.getPosted_by() != accountId) {
+            ctx.status(403);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * An authenticated request may only change its own account's messages, so the update or delete it makes is made
+     * conditional on this poster. Requests without a token may change any message, as before.
+     * @return the account_id of the session token, or MessageRepository.ANY_POSTER.
+     */
+    private static int requiredPoster(Context ctx) {
+        Integer accountId = ctx.attribute(AUTHENTICATED_ACCOUNT);
+        return accountId == null ? MessageRepository.ANY_POSTER : accountId;
+    }
+
+    /**
+     * After a conditional update or delete changed nothing, tells whether that was because the message belongs to
+     * another account. Only this failure path reads the message; the change itself never depends on a read.
+     * @return true if the request has been answered 403.
+     */
+    private boolean forbidden(Context ctx, int messageId, int postedBy) {
+        if (postedBy == MessageRepository.ANY_POSTER) {
+            return false;
+        }
+        Message message = messageService.getMessageById(messageId);
+        if (message != null && message.getPosted_by() != postedBy) {
+            ctx.status(403);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Takes permits from a write route's rate limiter, before any service call. A request over its account's limit
+     * or the limit on all writes is answered 429 with Retry-After, in whole seconds.
+     *
+     * Requests are counted against the account of a verified session token, else against the client's address, see
+     * addressKey. The posted_by a request names is never used: a client could pick a new one for every request, or
+     * spend another account's limit.
+     * @param permits - what the request costs: 1, or the number of messages in a batch.
+     * @return true if the request has been answered 429.
+     */
+    private static boolean rateLimited(Context ctx, RateLimiter limiter, int permits) {
+        Integer accountId = ctx.attribute(AUTHENTICATED_ACCOUNT);
+        long key = accountId != null ? accountId : addressKey(ctx.ip());
+        long waitNanos = limiter.acquire(key, permits);
+        if (waitNanos == 0) {
+            return false;
+        }
+        ctx.status(429);
+        ctx.header("Retry-After", String.valueOf(Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos + 999_999_999))));
+        return true;
+    }
+
+    /**
+     * @return the rate-limit key of a client address, which never equals an account_id. An IPv4 address is its own 32
+     *         bits with bit 32 set, so every address has a key of its own. The 128 bits of an IPv6 address are hashed
+     *         with a 64-bit mix seeded at start-up, so a client cannot work out an address that shares another
+     *         client's key, and bit 63 is set.
+     */
+    private static long addressKey(String ip) {
+        byte[] address;
+        try {
+            // the remote address is always a literal, which is parsed without a lookup
+            address = InetAddress.getByName(ip).getAddress();
+        } catch (UnknownHostException e) {
+            address = ip.getBytes(StandardCharsets.UTF_8);
+        }
+        if (address.length == 4) {
+            return 1L << 32 | ByteBuffer.wrap(address).getInt() & 0xffffffffL;
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(address);
+        long hash = ADDRESS_HASH_SEED;
+        while (bytes.remaining() >= 8) {
+            hash = mix(hash ^ bytes.getLong());
+        }
+        while (bytes.hasRemaining()) {
+            hash = mix(hash ^ bytes.get());
+        }
+        return Long.MIN_VALUE | hash;
+    }
+
+    /**
+     * The 64-bit finalizer of MurmurHash3: every input bit affects every output bit.
+     */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ hash >>> 33;
+    }
+
+    /**
+     * Registers a handler that runs on the database executor, with its own request metrics.
+     */
+    private void route(Javalin app, HandlerType type, String path, Handler handler) {
+        app.addHandler(type, path, onDatabaseExecutor(metrics.route(type.name(), path), handler));
+    }
+
+    /**
+     * Wraps a handler so that it runs on the database executor and the server thread is released while it does.
+     * If the executor's queue is full, the request is answered straight away with 503 and Retry-After. Either way
+     * the request's status and latency are recorded once the handler is done.
+     * @param route - the metrics of the route the handler serves.
+     * @param handler - the handler doing the service calls.
+     * @return a handler that hands the work to the executor.
+     */
+    private Handler onDatabaseExecutor(Metrics.RouteMetrics route, Handler handler) {
+        return ctx -> {
+            long start = System.nanoTime();
+            ctx.future(() -> {
+                try {
+                    return databaseExecutor.submit(() -> {
+                        boolean failed = true;
+                        try {
+                            handler.handle(ctx);
+                            failed = false;
+                        } finally {
+                            // an exception reaches Javalin's exception mapper, which answers 500
+                            route.record(start, failed ? 500 : ctx.statusCode());
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    ctx.status(503);
+                    ctx.header("Retry-After", RETRY_AFTER_SECONDS);
+                    route.record(start, 503);
+                    return CompletableFuture.completedFuture(null);
+                }
+            });
+        };
+    }
+
+    /**
+     * Registers gauges for the connection pool and its statement cache, the message storage engine and the database
+     * executor.
+     */
+    private void registerGauges(MessageRepository messages) {
+        ConnectionPool pool = ConnectionUtil.getPool();
+        metrics.gauge("db_pool_active_connections", "Connections currently checked out.", pool::getActiveCount);
+        metrics.gauge("db_pool_idle_connections", "Open connections waiting in the pool.", pool::getIdleCount);
+        metrics.gauge("db_pool_waiting_threads", "Threads waiting for a connection.", pool::getWaitingCount);
+        metrics.gauge("db_pool_max_connections", "Most connections the pool will open.", pool::getMaxSize);
+        metrics.counter("db_pool_connections_created_total", "Connections opened.", pool::getCreatedCount);
+        metrics.counter("db_pool_connections_evicted_total", "Idle connections closed.", pool::getEvictedCount);
+        metrics.counter("db_pool_acquire_timeouts_total", "Checkouts that timed out.", pool::getTimeoutCount);
+        metrics.counter("db_pool_leaks_total", "Connections held past the leak threshold.", pool::getLeakCount);
+        metrics.counter("db_statement_cache_hits_total", "Statements reused from a connection's cache.",
+                pool::getStatementCacheHitCount);
+        metrics.counter("db_statement_cache_misses_total", "Statements that had to be prepared.",
+                pool::getStatementCacheMissCount);
+
+        if (messages instanceof CachingMessageDAO) {
+            MessageCache cache = ((CachingMessageDAO) messages).getCache();
+            metrics.gauge("message_cache_size", "Messages in the read-through cache.", cache::size);
+            metrics.gauge("message_cache_max_size", "Most messages the cache holds.", cache::getMaximumSize);
+            metrics.counter("message_cache_hits_total", "Lookups answered from the cache.", cache::getHitCount);
+            metrics.counter("message_cache_misses_total", "Lookups that went to the database.", cache::getMissCount);
+            metrics.counter("message_cache_evictions_total", "Messages evicted to make room.",
+                    cache::getEvictionCount);
+            metrics.counter("message_cache_rejections_total", "Messages not admitted to a full cache.",
+                    cache::getRejectionCount);
+        } else if (messages instanceof InMemoryMessageRepository) {
+            InMemoryMessageRepository store = (InMemoryMessageRepository) messages;
+            metrics.gauge("message_store_messages", "Messages held by the in-memory engine.", store::getMessageCount);
+            metrics.gauge("message_store_log_bytes", "Size of the in-memory engine's write-ahead log.",
+                    store::getLogSize);
+        } else if (messages instanceof MappedLogMessageRepository) {
+            MappedLogMessageRepository log = (MappedLogMessageRepository) messages;
+            metrics.gauge("message_log_segments", "Segment files of the mapped message log.", log::getSegmentCount);
+            metrics.gauge("message_log_garbage_bytes", "Segment bytes taken by superseded or deleted messages.",
+                    log::getGarbageBytes);
+            metrics.counter("message_log_compactions_total", "Segments compacted and deleted.",
+                    log::getCompactedSegmentCount);
+        }
+
+        metrics.counter("http_response_bytes_uncompressed_total", "JSON response bytes before compression.",
+                compression::getUncompressedBytes);
+        metrics.counter("http_response_bytes_sent_total", "JSON response bytes sent after compression.",
+                compression::getSentBytes);
+        metrics.counter("http_responses_compressed_total", "JSON responses sent compressed.",
+                compression::getCompressedResponseCount);
+        metrics.gauge("http_payload_cache_entries", "List bodies in the payload cache.", payloadCache::size);
+        metrics.gauge("http_payload_cache_bytes", "Bytes held by the payload cache.", payloadCache::getBytes);
+        metrics.counter("http_payload_cache_hits_total", "List responses sent from the payload cache.",
+                payloadCache::getHitCount);
+        metrics.counter("http_payload_cache_misses_total", "List responses that had to be built.",
+                payloadCache::getMissCount);
+        metrics.counter("http_payload_cache_evictions_total", "Bodies evicted to make room.",
+                payloadCache::getEvictionCount);
+
+        metrics.counter("session_tokens_issued_total", "Session tokens issued on login.",
+                sessionTokens::getIssuedCount);
+        metrics.counter("session_tokens_rejected_total", "Requests refused for a bad or expired token.",
+                sessionTokens::getRejectedCount);
+        registerRateLimiter("messages_post", postLimiter);
+        registerRateLimiter("messages_batch", batchLimiter);
+        registerRateLimiter("messages_patch", patchLimiter);
+        registerRateLimiter("messages_delete", deleteLimiter);
+        metrics.counter("ratelimit_global_rejected_total", "Writes refused by the limit on all writes together.",
+                writeBudget::getRejectedCount);
+
+        MessageSearchIndex searchIndex = messageService.getSearchIndex();
+        metrics.gauge("message_search_documents", "Messages in the search index.", searchIndex::getDocumentCount);
+        metrics.gauge("message_search_deleted_documents", "Replaced or deleted messages still holding postings.",
+                searchIndex::getDeletedDocumentCount);
+        metrics.gauge("message_search_terms", "Distinct terms in the search index.", searchIndex::getTermCount);
+        metrics.gauge("message_search_posting_bytes", "Bytes of encoded posting lists.",
+                searchIndex::getPostingBytes);
+
+        TimelineIndex timelines = messageService.getTimelineIndex();
+        metrics.gauge("message_timeline_accounts", "Accounts with a timeline.", timelines::getAccountCount);
+        metrics.gauge("message_timeline_entries", "Messages across all timelines.", timelines::getEntryCount);
+
+        metrics.gauge("db_executor_threads", "Database worker threads.", databaseExecutor::getThreadCount);
+        metrics.gauge("db_executor_active_tasks", "Tasks running on a database worker.",
+                databaseExecutor::getActiveCount);
+        metrics.gauge("db_executor_queued_tasks", "Tasks waiting for a database worker.",
+                databaseExecutor::getQueuedCount);
+        metrics.counter("db_executor_rejected_total", "Requests shed because the executor was saturated.",
+                databaseExecutor::getRejectedCount);
+    }
+
+    private void registerRateLimiter(String route, RateLimiter limiter) {
+        String prefix = "ratelimit_" + route;
+        metrics.gauge(prefix + "_keys", "Accounts and clients with a bucket that is not full.", limiter::getKeyCount);
+        metrics.counter(prefix + "_allowed_total", "Requests admitted by the rate limiter.", limiter::getAllowedCount);
+        metrics.counter(prefix + "_rejected_total", "Requests answered 429.", limiter::getRejectedCount);
+        metrics.counter(prefix + "_evicted_total", "Idle buckets dropped to make room.", limiter::getEvictedCount);
+        metrics.counter(prefix + "_untracked_total", "Requests let through without a bucket because the table was full.",
+                limiter::getUntrackedCount);
+    }
+
+    /**
+     * Handler to expose every metric in the Prometheus text format.
+     * @param ctx the context object handles information HTTP requests and generates responses within Javalin. It will
+     *            be available to this method automatically thanks to the app.get method.
+     */
+    private void metricsHandler(Context ctx) {
+        ctx.contentType("text/plain; version=0.0.4; charset=utf-8").result(metrics.toPrometheus());
+    }
+
+    /**
+     * @return the thread pool Jetty accepts connections and runs handlers on.
+     */
+    private static QueuedThreadPool serverThreadPool(boolean useVirtualThreads) {
+        QueuedThreadPool threadPool = new QueuedThreadPool(MAX_SERVER_THREADS, 8, 60000);
+        threadPool.setName("JettyServerThreadPool");
+        if (useVirtualThreads) {
+            if (VirtualThreads.areSupported()) {
+                threadPool.setUseVirtualThreads(true);
+            } else {
+                System.err.println("Virtual threads are not available on Java " + Runtime.version().feature()
+                        + "; handlers will run on platform threads");
+            }
+        }
+        return threadPool;
+    }
+
     /**
      * Handler to register a new account.
      * @param ctx the context object handles information HTTP requests and generates responses within Javalin. It will
      *            be available to this method automatically thanks to the app.post method.
-     * @throws JsonProcessingException will be thrown if there is an issue converting JSON into an object.
+     * @throws IOException will be thrown if there is an issue converting JSON into an object.
      */
-    private void registerAccountHandler(Context ctx) throws JsonProcessingException {
-        ObjectMapper mapper = new ObjectMapper();
-        Account account = mapper.readValue(ctx.body(), Account.class);
+    private void registerAccountHandler(Context ctx) throws IOException {
+        Account account = JacksonJsonMapper.ACCOUNT_READER.readValue(ctx.bodyAsBytes());
         Account newAccount = accountService.addAccount(account);
         // Send the registered account as a JSON response
         if(newAccount!=null){
-            ctx.json(mapper.writeValueAsString(newAccount));
+            sendJson(ctx, JacksonJsonMapper.ACCOUNT_WRITER, newAccount);
         }else{
             ctx.status(400);
         }
     }
 
      /**
-     * Handler to retrieve an account if it exists.
+     * Handler to retrieve an account if it exists. A successful login also returns a session token in the
+     * X-Session-Token header; sending it back as "Authorization: Bearer token" lets later requests post and change
+     * messages as that account without the poster being looked up again.
      * @param ctx the context object handles information HTTP requests and generates responses within Javalin. It will
      *            be available to this method automatically thanks to the app.post method.
-     * @throws JsonProcessingException will be thrown if there is an issue converting JSON into an object.
+     * @throws IOException will be thrown if there is an issue converting JSON into an object.
      */
-    private void loginAccountHandler(Context ctx) throws JsonProcessingException {
-        ObjectMapper mapper = new ObjectMapper();
-        Account account = mapper.readValue(ctx.body(), Account.class);
+    private void loginAccountHandler(Context ctx) throws IOException {
+        Account account = JacksonJsonMapper.ACCOUNT_READER.readValue(ctx.bodyAsBytes());
         Account loginAccount = accountService.getAccount(account);
         // Send the registered account as a JSON response
         if(loginAccount!=null){
-            ctx.json(mapper.writeValueAsString(loginAccount));
+            ctx.header(SESSION_TOKEN_HEADER, sessionTokens.issue(loginAccount.getAccount_id()));
+            sendJson(ctx, JacksonJsonMapper.ACCOUNT_WRITER, loginAccount);
         }else{
             ctx.status(401);
         }
@@ -83,28 +547,181 @@ public class SocialMediaController {
      * Handler to submit a new message.
      * @param ctx the context object handles information HTTP requests and generates responses within Javalin. It will
      *            be available to this method automatically thanks to the app.post method.
-     * @throws JsonProcessingException will be thrown if there is an issue converting JSON into an object.
+     * @throws IOException will be thrown if there is an issue converting JSON into an object.
      */
-    private void submitMessageHandler(Context ctx) throws JsonProcessingException {
-        ObjectMapper mapper = new ObjectMapper();
-        Message message = mapper.readValue(ctx.body(), Message.class);
-        Message newMessage = messageService.addMessage(message);
+    private void submitMessageHandler(Context ctx) throws IOException {
+        Message message = JacksonJsonMapper.MESSAGE_READER.readValue(ctx.bodyAsBytes());
+        Integer accountId = ctx.attribute(AUTHENTICATED_ACCOUNT);
+        if (accountId != null && !claimPoster(ctx, message, accountId)) {
+            return;
+        }
+        if (rateLimited(ctx, postLimiter, 1)) {
+            return;
+        }
+        if (prefersAsync(ctx)) {
+            submitMessageAsync(ctx, message, accountId != null);
+            return;
+        }
+        Message newMessage = messageService.addMessage(message, accountId != null);
         // Send the registered account as a JSON response
         if(newMessage!=null){
-            ctx.json(mapper.writeValueAsString(newMessage));
+            sendJson(ctx, JacksonJsonMapper.MESSAGE_WRITER, newMessage);
         }else{
             ctx.status(400);
         }
     }
 
     /**
-     * Handler to retrieve all messages.
+     * Queues a message for the write-behind writer. Responds 202 with the message and its assigned id, 400 if the
+     * message is not valid, or 429 if the queue is full.
+     */
+    private void submitMessageAsync(Context ctx, Message message, boolean posterVerified) {
+        try {
+            Message queuedMessage = messageService.enqueueMessage(message, posterVerified);
+            if (queuedMessage != null) {
+                ctx.status(202);
+                ctx.header("Preference-Applied", RESPOND_ASYNC);
+                sendJson(ctx, JacksonJsonMapper.MESSAGE_WRITER, queuedMessage);
+            } else {
+                ctx.status(400);
+            }
+        } catch (RejectedExecutionException e) {
+            ctx.status(429);
+            ctx.header("Retry-After", "1");
+        }
+    }
+
+    /**
+     * @return true if the client sent Prefer: respond-async.
+     */
+    private static boolean prefersAsync(Context ctx) {
+        String prefer = ctx.header("Prefer");
+        if (prefer == null) {
+            return false;
+        }
+        for (String preference : prefer.split(",")) {
+            if (preference.trim().equalsIgnoreCase(RESPOND_ASYNC)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Handler to submit several messages at once. The body is a JSON array of messages; each is validated like a
+     * single submission and the valid ones are inserted in one transaction. The response lists, for every entry in
+     * order, either the persisted message or the reason it was rejected.
+     * @param ctx the context object handles information HTTP requests and generates responses within Javalin. It will
+     *            be available to this method automatically thanks to the app.post method.
+     * @throws IOException will be thrown if there is an issue converting JSON into an object.
+     */
+    private void submitMessageBatchHandler(Context ctx) throws IOException {
+        List<Message> messages = JacksonJsonMapper.MESSAGE_LIST_READER.readValue(ctx.bodyAsBytes());
+        if (messages == null || messages.size() > MAX_BATCH_SIZE) {
+            ctx.status(400);
+            return;
+        }
+        Integer accountId = ctx.attribute(AUTHENTICATED_ACCOUNT);
+        if (accountId != null) {
+            for (Message message : messages) {
+                if (message != null && !claimPoster(ctx, message, accountId)) {
+                    return;
+                }
+            }
+        }
+        // every message is charged, to the one account all of them must belong to when there is a token
+        if (rateLimited(ctx, batchLimiter, Math.max(1, messages.size()))) {
+            return;
+        }
+        List<BatchResult> results = messageService.addMessages(messages, accountId != null);
+        sendJson(ctx, JacksonJsonMapper.BATCH_RESULT_LIST_WRITER, results);
+    }
+
+    /**
+     * Handler to retrieve all messages. When the after or limit query parameters are given, only one page of
+     * messages is returned and the X-Next-Cursor header holds the value to pass as after for the next page. With
+     * stream=true every message is written to the response as it is read from the database. With order=newest,
+     * since, until or before, one page of the messages posted within the window is returned newest first, as from
+     * getMessagesByAccountIdHandler, read with a range scan on the time_posted_epoch index.
+     *
+     * Every response carries an ETag built from the global write version; a request whose If-None-Match holds the
+     * current tag is answered 304 without reading or serializing any message.
      * @param ctx the context object handles information HTTP requests and generates responses within Javalin. It will
      *            be available to this method automatically thanks to the app.put method.
+     * @throws IOException if a streamed response could not be written.
+     */
+    private void getAllMessagesHandler(Context ctx) throws IOException {
+        // read before the messages, see MessageVersions
+        String etag = variantTag(ctx, messageService.getVersions().globalTag());
+        if (isStreamRequest(ctx)) {
+            if (notModified(ctx, etag)) {
+                return;
+            }
+            streamMessages(ctx, messageService::streamAllMessages);
+            return;
+        }
+        if (isTimelineRequest(ctx)) {
+            TimelineRequest timeline = TimelineRequest.from(ctx);
+            if (timeline == null) {
+                ctx.status(400);
+                return;
+            }
+            if (notModified(ctx, etag)) {
+                return;
+            }
+            sendTimelinePage(ctx, messageService.getMessagesInTimeRange(timeline.since, timeline.until,
+                    timeline.beforeEpoch, timeline.beforeId, timeline.limit + 1), timeline.limit);
+            return;
+        }
+        if (isPageRequest(ctx)) {
+            PageRequest page = PageRequest.from(ctx);
+            if (page == null) {
+                ctx.status(400);
+                return;
+            }
+            if (notModified(ctx, etag)) {
+                return;
+            }
+            sendPage(ctx, messageService.getMessagesPage(page.after, page.limit + 1), page.limit);
+            return;
+        }
+        if (notModified(ctx, etag)) {
+            return;
+        }
+        sendCachedList(ctx, etag, messageService::getAllMessages);
+    }
+
+    /**
+     * Handler to search message text. q holds the words to look for; a message matches if it contains all of them,
+     * ignoring case and punctuation. Matches are ranked best first, limit messages at a time; when there are more,
+     * X-Next-Cursor holds the offset to pass for the next page.
+     * @param ctx the context object handles information HTTP requests and generates responses within Javalin. It will
+     *            be available to this method automatically thanks to the app.get method.
      */
-    private void getAllMessagesHandler(Context ctx) {
-        List<Message> messages = messageService.getAllMessages();
-        ctx.json(messages);
+    private void searchMessagesHandler(Context ctx) {
+        String query = ctx.queryParam("q");
+        int offset;
+        int limit;
+        try {
+            String offsetParam = ctx.queryParam("offset");
+            String limitParam = ctx.queryParam("limit");
+            offset = offsetParam == null ? 0 : Integer.parseInt(offsetParam);
+            limit = limitParam == null ? DEFAULT_SEARCH_PAGE_SIZE : Integer.parseInt(limitParam);
+        } catch (NumberFormatException e) {
+            ctx.status(400);
+            return;
+        }
+        if (query == null || MessageSearchIndex.tokenize(query).isEmpty()
+                || offset < 0 || offset > MAX_SEARCH_OFFSET || limit < 1 || limit > MAX_PAGE_SIZE) {
+            ctx.status(400);
+            return;
+        }
+        List<Message> page = messageService.searchMessages(query, offset, limit + 1);
+        if (page.size() > limit) {
+            page.remove(limit);
+            ctx.header(NEXT_CURSOR_HEADER, String.valueOf(offset + limit));
+        }
+        sendJson(ctx, JacksonJsonMapper.MESSAGE_LIST_WRITER, page);
     }
 
     /**
@@ -112,12 +729,12 @@ public class SocialMediaController {
      * @param ctx the context object handles information HTTP requests and generates responses within Javalin. It will
      *            be available to this method automatically thanks to the app.put method.
      */
-    private void getMessageByIdHandler(Context ctx) throws JsonProcessingException{
+    private void getMessageByIdHandler(Context ctx) {
         int id = Integer.parseInt(ctx.pathParam("message_id"));
         Message message = messageService.getMessageById(id);
         if (message != null) 
         {
-            ctx.json(message);
+            sendJson(ctx, JacksonJsonMapper.MESSAGE_WRITER, message);
         } 
         else 
         {
@@ -134,18 +751,20 @@ public class SocialMediaController {
      * @param ctx the context object handles information HTTP requests and generates responses within Javalin. It will
      *            be available to this method automatically thanks to the app.put method.
      */
-    private void deleteMessageByIdHandler(Context ctx) throws JsonProcessingException{
+    private void deleteMessageByIdHandler(Context ctx) {
         int id = Integer.parseInt(ctx.pathParam("message_id"));
-        Message message = messageService.getMessageById(id);
-        // if the message exists, delete it
-        // then return the message saved in variable in the json
+        if (rateLimited(ctx, deleteLimiter, 1)) {
+            return;
+        }
+        int postedBy = requiredPoster(ctx);
+        // delete the message and get back the row as it was, in one statement
+        Message message = messageService.deleteMessageById(id, postedBy);
         if (message != null)
         {
-            messageService.deleteMessage(message);
             ctx.status(200);
-            ctx.json(message);
+            sendJson(ctx, JacksonJsonMapper.MESSAGE_WRITER, message);
         } 
-        else 
+        else if (!forbidden(ctx, id, postedBy))
         {
             // If the message is not found, set the response status to 200 (OK)
             // Return a 200 status even if the message is not found
@@ -158,22 +777,26 @@ public class SocialMediaController {
      * Handler to update a message identified by Id.
      * @param ctx the context object handles information HTTP requests and generates responses within Javalin. It will
      *            be available to this method automatically thanks to the app.put method.
+     * @throws IOException will be thrown if there is an issue converting JSON into an object.
      */
-    private void updateMessageByIdHandler(Context ctx) throws JsonProcessingException{
-        ObjectMapper mapper = new ObjectMapper();
-        Message message = mapper.readValue(ctx.body(), Message.class);
+    private void updateMessageByIdHandler(Context ctx) throws IOException {
+        Message message = JacksonJsonMapper.MESSAGE_READER.readValue(ctx.bodyAsBytes());
         int id = Integer.parseInt(ctx.pathParam("message_id"));
+        if (rateLimited(ctx, patchLimiter, 1)) {
+            return;
+        }
+        int postedBy = requiredPoster(ctx);
         // update the id first just in case
         // the request body is not guaranteed to contain the actual id (only the param)
         message.setMessage_id(id);
         // Update the message with the new content
-        Message updatedMessage = messageService.updateMessage(message);
+        Message updatedMessage = messageService.updateMessage(message, postedBy);
         if (updatedMessage != null)
         {
             ctx.status(200);
-            ctx.json(updatedMessage);
+            sendJson(ctx, JacksonJsonMapper.MESSAGE_WRITER, updatedMessage);
         } 
-        else 
+        else if (!forbidden(ctx, id, postedBy))
         {
             // 400 if the message is not updated
             ctx.status(400);
@@ -181,20 +804,337 @@ public class SocialMediaController {
     }
 
      /**
-     * Handler to retrieve all messages identified by a user Id.
+     * Handler to retrieve all messages identified by a user Id. Supports the same paging and streaming query
+     * parameters as getAllMessagesHandler, and timeline pages: with order=newest, since, until or before, the
+     * messages are read newest first from the per-account timeline index, see TimelineRequest. Conditional requests
+     * work as in getAllMessagesHandler, with a tag built from the account's write version.
      * @param ctx the context object handles information HTTP requests and generates responses within Javalin. It will
      *            be available to this method automatically thanks to the app.put method.
+     * @throws IOException if a streamed response could not be written.
      */
-    private void getMessagesByAccountIdHandler(Context ctx) throws JsonProcessingException{
+    private void getMessagesByAccountIdHandler(Context ctx) throws IOException {
         int accountId  = Integer.parseInt(ctx.pathParam("account_id"));
-        List<Message> messages = messageService.getMessagesByAccountId(accountId);
-        if (!messages.isEmpty()) {
-            // Send the messages as a Json response
-            ctx.json(messages);
-        } else {
-            // If no messages are found, send an empty JSON response
-            ctx.json(messages);
-            ctx.status(200);
+        String etag = variantTag(ctx, messageService.getVersions().accountTag(accountId));
+        if (isStreamRequest(ctx)) {
+            if (notModified(ctx, etag)) {
+                return;
+            }
+            streamMessages(ctx, handler -> messageService.streamMessagesByAccountId(accountId, handler));
+            return;
+        }
+        if (isTimelineRequest(ctx)) {
+            TimelineRequest timeline = TimelineRequest.from(ctx);
+            if (timeline == null) {
+                ctx.status(400);
+                return;
+            }
+            if (notModified(ctx, etag)) {
+                return;
+            }
+            sendTimelinePage(ctx, messageService.getTimelinePage(accountId, timeline.since, timeline.until,
+                    timeline.beforeEpoch, timeline.beforeId, timeline.limit + 1), timeline.limit);
+            return;
+        }
+        if (isPageRequest(ctx)) {
+            PageRequest page = PageRequest.from(ctx);
+            if (page == null) {
+                ctx.status(400);
+                return;
+            }
+            if (notModified(ctx, etag)) {
+                return;
+            }
+            sendPage(ctx, messageService.getMessagesPageByAccountId(accountId, page.after, page.limit + 1), page.limit);
+            return;
+        }
+        if (notModified(ctx, etag)) {
+            return;
+        }
+        // an account without messages gets an empty JSON array
+        sendCachedList(ctx, etag, () -> messageService.getMessagesByAccountId(accountId));
+    }
+
+    /**
+     * Sets the ETag header and answers 304 with no body if the client's If-None-Match already names that tag.
+     * @param etag the strong tag of the current representation, quotes included.
+     * @return true if the request has been answered.
+     */
+    private boolean notModified(Context ctx, String etag) {
+        ctx.header("ETag", etag);
+        String ifNoneMatch = ctx.header("If-None-Match");
+        if (ifNoneMatch == null || !matchesAny(ifNoneMatch, etag)) {
+            return false;
+        }
+        ctx.status(304);
+        return true;
+    }
+
+    /**
+     * If-None-Match uses the weak comparison (RFC 7232), so a W/ prefix on the client's tags is ignored.
+     * @return true if the header is * or lists the tag.
+     */
+    private static boolean matchesAny(String ifNoneMatch, String etag) {
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the client asked for a single page rather than the whole list.
+     */
+    private static boolean isPageRequest(Context ctx) {
+        return ctx.queryParam("after") != null || ctx.queryParam("limit") != null;
+    }
+
+    /**
+     * Sends one page of messages. The page is expected to have been fetched with one row more than the limit, which
+     * tells us whether a next page exists without a separate count query.
+     * @param page the messages fetched, at most limit + 1 of them.
+     * @param limit the page size the client asked for.
+     */
+    private void sendPage(Context ctx, List<Message> page, int limit) {
+        if (page.size() > limit) {
+            page.remove(limit);
+            ctx.header(NEXT_CURSOR_HEADER, String.valueOf(page.get(limit - 1).getMessage_id()));
+        }
+        sendJson(ctx, JacksonJsonMapper.MESSAGE_LIST_WRITER, page);
+    }
+
+    /**
+     * Serializes a value once, straight to UTF-8 bytes, with one of the shared writers and sends it as the body.
+     * @param writer the pre-built writer for the value's type.
+     */
+    private void sendJson(Context ctx, ObjectWriter writer, Object value) {
+        send(ctx, encode(ctx, JacksonJsonMapper.toBytes(writer, value)));
+    }
+
+    /**
+     * Sends a whole message list, reusing the finished body cached under its ETag when there is one, so each
+     * version of a popular list is read, serialized and compressed once.
+     * @param etag the tag of the list's current version, already specific to the negotiated coding.
+     * @param source reads the list on a cache miss.
+     */
+    private void sendCachedList(Context ctx, String etag, Supplier<List<Message>> source) {
+        CompressedPayloadCache.Payload payload = payloadCache.get(etag);
+        if (payload == null) {
+            payload = encode(ctx, JacksonJsonMapper.toBytes(JacksonJsonMapper.MESSAGE_LIST_WRITER, source.get()));
+            payloadCache.put(etag, payload);
+        }
+        send(ctx, payload);
+    }
+
+    /**
+     * Compresses a JSON body with the coding the client accepts, if it is large enough to be worth it.
+     */
+    private CompressedPayloadCache.Payload encode(Context ctx, byte[] json) {
+        ResponseCompression.Encoding encoding = ResponseCompression.negotiate(ctx.header("Accept-Encoding"));
+        if (encoding == null || !compression.isWorthCompressing(json.length)) {
+            return new CompressedPayloadCache.Payload(json, null, json.length);
+        }
+        return new CompressedPayloadCache.Payload(compression.compress(json, encoding), encoding.getHeaderValue(),
+                json.length);
+    }
+
+    private void send(Context ctx, CompressedPayloadCache.Payload payload) {
+        ctx.header("Vary", "Accept-Encoding");
+        if (payload.getContentEncoding() != null) {
+            ctx.header("Content-Encoding", payload.getContentEncoding());
+        }
+        compression.record(payload.getUncompressedLength(), payload.getBody().length,
+                payload.getContentEncoding() != null);
+        ctx.contentType(ContentType.APPLICATION_JSON).result(payload.getBody());
+    }
+
+    /**
+     * A representation compressed with a different coding is a different sequence of bytes, so it needs its own
+     * strong ETag: the negotiated coding is appended inside the quotes, as Apache httpd does.
+     * @param etag the tag of the uncompressed representation, quotes included.
+     */
+    private static String variantTag(Context ctx, String etag) {
+        ResponseCompression.Encoding encoding = ResponseCompression.negotiate(ctx.header("Accept-Encoding"));
+        if (encoding == null) {
+            return etag;
+        }
+        return etag.substring(0, etag.length() - 1) + "-" + encoding.getHeaderValue() + "\"";
+    }
+
+    /**
+     * The keyset paging parameters of a request: the message id to continue after and the page size.
+     */
+    private static class PageRequest {
+        final int after;
+        final int limit;
+
+        PageRequest(int after, int limit) {
+            this.after = after;
+            this.limit = limit;
+        }
+
+        /**
+         * @return the paging parameters of the request, or null if they are not valid numbers or out of range.
+         */
+        static PageRequest from(Context ctx) {
+            try {
+                String after = ctx.queryParam("after");
+                String limit = ctx.queryParam("limit");
+                int afterId = after == null ? 0 : Integer.parseInt(after);
+                int pageSize = limit == null ? DEFAULT_PAGE_SIZE : Integer.parseInt(limit);
+                if (afterId < 0 || pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+                    return null;
+                }
+                return new PageRequest(afterId, pageSize);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * @return true if the client asked for a timeline page, newest first or by time window.
+     */
+    private static boolean isTimelineRequest(Context ctx) {
+        return "newest".equals(ctx.queryParam("order")) || ctx.queryParam("since") != null
+                || ctx.queryParam("until") != null || ctx.queryParam("before") != null;
+    }
+
+    /**
+     * Sends one timeline page, fetched with one message more than the limit like sendPage. The cursor for the next
+     * page is the epoch and id of the last message sent, as "epoch:id", to be passed back as before.
+     */
+    private void sendTimelinePage(Context ctx, List<Message> page, int limit) {
+        if (page.size() > limit) {
+            page.remove(limit);
+            Message last = page.get(limit - 1);
+            ctx.header(NEXT_CURSOR_HEADER, last.getTime_posted_epoch() + ":" + last.getMessage_id());
+        }
+        sendJson(ctx, JacksonJsonMapper.MESSAGE_LIST_WRITER, page);
+    }
+
+    /**
+     * The parameters of a timeline request: since and until bound time_posted_epoch inclusively, before is the
+     * "epoch:id" cursor from the previous page's X-Next-Cursor header, and limit is the page size.
+     */
+    private static class TimelineRequest {
+        final long since;
+        final long until;
+        final long beforeEpoch;
+        final int beforeId;
+        final int limit;
+
+        TimelineRequest(long since, long until, long beforeEpoch, int beforeId, int limit) {
+            this.since = since;
+            this.until = until;
+            this.beforeEpoch = beforeEpoch;
+            this.beforeId = beforeId;
+            this.limit = limit;
+        }
+
+        /**
+         * @return the timeline parameters of the request, or null if they are malformed or out of range.
+         */
+        static TimelineRequest from(Context ctx) {
+            try {
+                String since = ctx.queryParam("since");
+                String until = ctx.queryParam("until");
+                String before = ctx.queryParam("before");
+                String limit = ctx.queryParam("limit");
+                long sinceEpoch = since == null ? Long.MIN_VALUE : Long.parseLong(since);
+                long untilEpoch = until == null ? Long.MAX_VALUE : Long.parseLong(until);
+                long beforeEpoch = Long.MAX_VALUE;
+                int beforeId = Integer.MAX_VALUE;
+                if (before != null) {
+                    int colon = before.indexOf(':');
+                    if (colon < 0) {
+                        return null;
+                    }
+                    beforeEpoch = Long.parseLong(before.substring(0, colon));
+                    beforeId = Integer.parseInt(before.substring(colon + 1));
+                }
+                int pageSize = limit == null ? DEFAULT_PAGE_SIZE : Integer.parseInt(limit);
+                if (sinceEpoch > untilEpoch || pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+                    return null;
+                }
+                return new TimelineRequest(sinceEpoch, untilEpoch, beforeEpoch, beforeId, pageSize);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * @return true if the client asked for the list to be streamed rather than built in memory.
+     */
+    private static boolean isStreamRequest(Context ctx) {
+        return "true".equals(ctx.queryParam("stream"));
+    }
+
+    /**
+     * Writes a JSON array of messages straight to the response while the query is still running. No Content-Length
+     * is known up front, so Jetty sends the body with chunked transfer encoding.
+     * @param source runs the query, handing each row to the writer.
+     */
+    private void streamMessages(Context ctx, MessageSource source) throws IOException {
+        ctx.contentType(ContentType.APPLICATION_JSON);
+        ctx.header("Vary", "Accept-Encoding");
+        ResponseCompression.Encoding encoding = ResponseCompression.negotiate(ctx.header("Accept-Encoding"));
+        if (encoding == null) {
+            writeMessages(ctx.outputStream(), source);
+            return;
+        }
+        ctx.header("Content-Encoding", encoding.getHeaderValue());
+        // sync flushes keep the early flush of the first row meaningful; closing writes the trailer
+        try (OutputStream out = compression.wrap(ctx.outputStream(), encoding, true)) {
+            writeMessages(out, source);
+        }
+    }
+
+    private static void writeMessages(OutputStream out, MessageSource source) throws IOException {
+        try (JsonGenerator generator = JacksonJsonMapper.getFactory().createGenerator(out)) {
+            generator.writeStartArray();
+            source.writeTo(new StreamingMessageWriter(generator));
+            generator.writeEndArray();
+        }
+    }
+
+    /**
+     * A query that hands its rows to a MessageRowHandler.
+     */
+    @FunctionalInterface
+    private interface MessageSource {
+        void writeTo(MessageRowHandler handler) throws IOException;
+    }
+
+    /**
+     * Writes each row as a JSON object with the same field names Jackson uses for Message. The first row is flushed
+     * immediately so the client starts receiving data without waiting for the generator's buffer to fill.
+     */
+    private static class StreamingMessageWriter implements MessageRowHandler {
+        private final JsonGenerator generator;
+        private boolean flushed;
+
+        StreamingMessageWriter(JsonGenerator generator) {
+            this.generator = generator;
+        }
+
+        @Override
+        public void onRow(int messageId, int postedBy, String messageText, long timePostedEpoch) throws IOException {
+            generator.writeStartObject();
+            generator.writeNumberField("message_id", messageId);
+            generator.writeNumberField("posted_by", postedBy);
+            generator.writeStringField("message_text", messageText);
+            generator.writeNumberField("time_posted_epoch", timePostedEpoch);
+            generator.writeEndObject();
+            if (!flushed) {
+                generator.flush();
+                flushed = true;
+            }
         }
     }
-}
\ No newline at end of file
+}
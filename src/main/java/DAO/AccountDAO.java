@@ -2,33 +2,51 @@ package DAO;
 
 import Model.Account;
 import Util.ConnectionUtil;
+import Util.Metrics;
 
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
 
 public class AccountDAO {
+    /**
+     * Call count and duration of each method, exposed on GET /metrics.
+     */
+    private static final Metrics.QueryMetrics QUERY_INSERT_ACCOUNT = Metrics.query("AccountDAO", "insertAccount");
+    private static final Metrics.QueryMetrics QUERY_RETRIEVE_ACCOUNT = Metrics.query("AccountDAO", "retrieveAccount");
+    private static final Metrics.QueryMetrics QUERY_RETRIEVE_ACCOUNT_BY_USERNAME =
+            Metrics.query("AccountDAO", "retrieveAccountByUsername");
+    private static final Metrics.QueryMetrics QUERY_RETRIEVE_ACCOUNT_BY_ID =
+            Metrics.query("AccountDAO", "retrieveAccountById");
+    private static final Metrics.QueryMetrics QUERY_RETRIEVE_ALL_ACCOUNTS =
+            Metrics.query("AccountDAO", "retrieveAllAccounts");
+
     /**
      * Inserts a new account into the Accounts table.
      * @param account - an Account object
      * @return an Account object if no errors occur
      */
     public Account insertAccount(Account account){
-        Connection connection = ConnectionUtil.getConnection();
-        try {
-            String sql = "INSERT INTO account (username, password) VALUES (?, ?)";
-            PreparedStatement preparedStatement = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+        String sql = "INSERT INTO account (username, password) VALUES (?, ?)";
+        long start = System.nanoTime();
+        try (Connection connection = ConnectionUtil.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
 
             //write preparedStatement's setString method here.
             preparedStatement.setString(1, account.getUsername());
             preparedStatement.setString(2, account.getPassword());
 
             preparedStatement.executeUpdate();
-            ResultSet pkeyResultSet = preparedStatement.getGeneratedKeys();
-            if(pkeyResultSet.next()){
-                int generated_account_id = (int) pkeyResultSet.getLong(1);
-                return new Account(generated_account_id, account.getUsername(), account.getPassword());
+            try (ResultSet pkeyResultSet = preparedStatement.getGeneratedKeys()) {
+                if(pkeyResultSet.next()){
+                    int generated_account_id = (int) pkeyResultSet.getLong(1);
+                    return new Account(generated_account_id, account.getUsername(), account.getPassword());
+                }
             }
         }catch(SQLException e){
             System.out.println(e.getMessage());
+        }finally{
+            QUERY_INSERT_ACCOUNT.recordSince(start);
         }
         return null;
     }
@@ -39,23 +57,26 @@ public class AccountDAO {
      * @return an account identified by username and password.
      */
     public Account retrieveAccount(Account account) {
-        Connection connection = ConnectionUtil.getConnection();
-        try {
-            String sql = "SELECT * FROM account WHERE username = ? AND password = ?";
-            PreparedStatement preparedStatement = connection.prepareStatement(sql);
+        String sql = "SELECT * FROM account WHERE username = ? AND password = ?";
+        long start = System.nanoTime();
+        try (Connection connection = ConnectionUtil.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
     
             preparedStatement.setString(1, account.getUsername());
             preparedStatement.setString(2, account.getPassword());
     
-            ResultSet resultSet = preparedStatement.executeQuery();
-            if (resultSet.next()) {
-                int accountId = resultSet.getInt("account_id");
-                String username = resultSet.getString("username");
-                String password = resultSet.getString("password");
-                return new Account(accountId, username, password);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                if (resultSet.next()) {
+                    int accountId = resultSet.getInt("account_id");
+                    String username = resultSet.getString("username");
+                    String password = resultSet.getString("password");
+                    return new Account(accountId, username, password);
+                }
             }
         } catch (SQLException e) {
             System.out.println(e.getMessage());
+        } finally {
+            QUERY_RETRIEVE_ACCOUNT.recordSince(start);
         }
         return null;
     }
@@ -65,21 +86,24 @@ public class AccountDAO {
      * @return an account identified by username.
      * */
     public Account retrieveAccountByUsername(String username) {
-        Connection connection = ConnectionUtil.getConnection();
-        try {
-            String sql = "SELECT * FROM account WHERE username = ?";
-            PreparedStatement preparedStatement = connection.prepareStatement(sql);
+        String sql = "SELECT * FROM account WHERE username = ?";
+        long start = System.nanoTime();
+        try (Connection connection = ConnectionUtil.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
     
             preparedStatement.setString(1, username);
     
-            ResultSet resultSet = preparedStatement.executeQuery();
-            if (resultSet.next()) {
-                int accountId = resultSet.getInt("account_id");
-                String password = resultSet.getString("password");
-                return new Account(accountId, username, password);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                if (resultSet.next()) {
+                    int accountId = resultSet.getInt("account_id");
+                    String password = resultSet.getString("password");
+                    return new Account(accountId, username, password);
+                }
             }
         } catch (SQLException e) {
             System.out.println(e.getMessage());
+        } finally {
+            QUERY_RETRIEVE_ACCOUNT_BY_USERNAME.recordSince(start);
         }
         return null;
     }
@@ -89,22 +113,49 @@ public class AccountDAO {
      * @return an account identified by ID.
      * */
     public Account retrieveAccountById(int accountId) {
-        Connection connection = ConnectionUtil.getConnection();
-        try {
-            String sql = "SELECT * FROM account WHERE account_id = ?";
-            PreparedStatement preparedStatement = connection.prepareStatement(sql);
+        String sql = "SELECT * FROM account WHERE account_id = ?";
+        long start = System.nanoTime();
+        try (Connection connection = ConnectionUtil.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
     
             preparedStatement.setInt(1, accountId);
     
-            ResultSet resultSet = preparedStatement.executeQuery();
-            if (resultSet.next()) {
-                String username = resultSet.getString("username");
-                String password = resultSet.getString("password");
-                return new Account(accountId, username, password);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                if (resultSet.next()) {
+                    String username = resultSet.getString("username");
+                    String password = resultSet.getString("password");
+                    return new Account(accountId, username, password);
+                }
             }
         } catch (SQLException e) {
             System.out.println(e.getMessage());
+        } finally {
+            QUERY_RETRIEVE_ACCOUNT_BY_ID.recordSince(start);
         }
         return null;
     }
+
+    /**
+     * Retrieves every account from the Accounts table.
+     * @return all accounts.
+     * */
+    public List<Account> retrieveAllAccounts() {
+        List<Account> accounts = new ArrayList<>();
+        String sql = "SELECT * FROM account";
+        long start = System.nanoTime();
+        try (Connection connection = ConnectionUtil.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(sql);
+             ResultSet resultSet = preparedStatement.executeQuery()) {
+            while (resultSet.next()) {
+                accounts.add(new Account(resultSet.getInt("account_id"),
+                        resultSet.getString("username"),
+                        resultSet.getString("password")));
+            }
+        } catch (SQLException e) {
+            System.out.println(e.getMessage());
+        } finally {
+            QUERY_RETRIEVE_ALL_ACCOUNTS.recordSince(start);
+        }
+        return accounts;
+    }
 }
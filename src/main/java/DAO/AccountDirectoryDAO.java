@@ -0,0 +1,91 @@
+package DAO;
+
+import Model.Account;
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An AccountDAO that keeps every account in memory, indexed by account_id and by username.
+ *
+ * Accounts are few and almost never change, yet they are looked up on every registration, login and message post.
+ * The directory loads the Accounts table once when it is created and is kept in sync by insertAccount, so those
+ * lookups are hash lookups instead of database round trips. All account writes must go through this instance (the
+ * controller shares one between AccountService and MessageService) for it to stay accurate.
+ *
+ * Account is mutable, so lookups return copies.
+ */
+public class AccountDirectoryDAO extends AccountDAO {
+    private final ConcurrentHashMap<Integer, Account> byId = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Account> byUsername = new ConcurrentHashMap<>();
+
+    /**
+     * Creates the directory and loads every account from the database.
+     */
+    public AccountDirectoryDAO() {
+        for (Account account : retrieveAllAccounts()) {
+            index(account);
+        }
+    }
+
+    /**
+     * Inserts the account into the database and the directory. Registrations are serialized so that two requests
+     * for the same username cannot both pass the uniqueness check.
+     * @return the stored account, or null if the username is taken or the insert failed.
+     */
+    @Override
+    public synchronized Account insertAccount(Account account) {
+        if (account.getUsername() != null && byUsername.containsKey(account.getUsername())) {
+            return null;
+        }
+        Account inserted = super.insertAccount(account);
+        if (inserted != null) {
+            index(inserted);
+        }
+        return inserted;
+    }
+
+    @Override
+    public Account retrieveAccount(Account account) {
+        if (account.getUsername() == null) {
+            return null;
+        }
+        Account existing = byUsername.get(account.getUsername());
+        if (existing == null || !Objects.equals(existing.getPassword(), account.getPassword())) {
+            return null;
+        }
+        return copy(existing);
+    }
+
+    @Override
+    public Account retrieveAccountByUsername(String username) {
+        if (username == null) {
+            return null;
+        }
+        Account existing = byUsername.get(username);
+        return existing == null ? null : copy(existing);
+    }
+
+    @Override
+    public Account retrieveAccountById(int accountId) {
+        Account existing = byId.get(accountId);
+        return existing == null ? null : copy(existing);
+    }
+
+    /**
+     * @return the number of accounts in the directory.
+     */
+    public int size() {
+        return byId.size();
+    }
+
+    private void index(Account account) {
+        Account stored = copy(account);
+        byId.put(stored.getAccount_id(), stored);
+        byUsername.put(stored.getUsername(), stored);
+    }
+
+    private static Account copy(Account account) {
+        return new Account(account.getAccount_id(), account.getUsername(), account.getPassword());
+    }
+}
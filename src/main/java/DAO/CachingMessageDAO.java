@@ -0,0 +1,131 @@
+package DAO;
+
+import Model.Message;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A MessageDAO with a read-through MessageCache in front of retrieveMessageById. Single-message reads are served from
+ * memory when possible.
+ *
+ * Writes go to the database first and then update the cache: inserted messages are cached, updated and removed
+ * messages are invalidated so the next read sees what the database holds.
+ *
+ * The cache size and time to live can be set with the system properties cache.message.maxSize and
+ * cache.message.ttlMillis.
+ */
+public class CachingMessageDAO extends MessageDAO {
+    private final MessageCache cache;
+
+    /**
+     * Creates a caching DAO sized from the system properties.
+     */
+    public CachingMessageDAO() {
+        this(new MessageCache(Integer.getInteger("cache.message.maxSize", 10000),
+                Long.getLong("cache.message.ttlMillis", 60000)));
+    }
+
+    public CachingMessageDAO(MessageCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * @return the cache, for reading its hit, miss and eviction counters.
+     */
+    public MessageCache getCache() {
+        return cache;
+    }
+
+    @Override
+    public Message insertMessage(Message message) {
+        Message inserted = super.insertMessage(message);
+        if (inserted != null) {
+            cache.put(inserted);
+        }
+        return inserted;
+    }
+
+    @Override
+    public Message retrieveMessageById(int messageId) {
+        Message cached = cache.get(messageId);
+        if (cached != null) {
+            return cached;
+        }
+        long stamp = cache.loadStamp(messageId);
+        Message message = super.retrieveMessageById(messageId);
+        if (message != null) {
+            cache.putIfNotInvalidated(message, stamp);
+        }
+        return message;
+    }
+
+    /**
+     * Answers what it can from the cache and fetches the rest with one query, caching what it fetched.
+     */
+    @Override
+    public List<Message> retrieveMessagesByIds(int[] messageIds) {
+        Message[] found = new Message[messageIds.length];
+        int[] missing = new int[messageIds.length];
+        int missingCount = 0;
+        for (int i = 0; i < messageIds.length; i++) {
+            found[i] = cache.get(messageIds[i]);
+            if (found[i] == null) {
+                missing[missingCount++] = messageIds[i];
+            }
+        }
+        if (missingCount > 0) {
+            Map<Integer, Long> stamps = new HashMap<>(missingCount * 2);
+            for (int i = 0; i < missingCount; i++) {
+                stamps.put(missing[i], cache.loadStamp(missing[i]));
+            }
+            Map<Integer, Message> loaded = new HashMap<>(missingCount * 2);
+            for (Message message : super.retrieveMessagesByIds(Arrays.copyOf(missing, missingCount))) {
+                cache.putIfNotInvalidated(message, stamps.get(message.getMessage_id()));
+                loaded.put(message.getMessage_id(), message);
+            }
+            for (int i = 0; i < messageIds.length; i++) {
+                if (found[i] == null) {
+                    found[i] = loaded.get(messageIds[i]);
+                }
+            }
+        }
+        List<Message> messages = new ArrayList<>(messageIds.length);
+        for (Message message : found) {
+            if (message != null) {
+                messages.add(message);
+            }
+        }
+        return messages;
+    }
+
+    @Override
+    public Message deleteMessageById(int messageId, int postedBy) {
+        try {
+            return super.deleteMessageById(messageId, postedBy);
+        } finally {
+            cache.invalidate(messageId);
+        }
+    }
+
+    @Override
+    public void updateMessage(Message message) {
+        try {
+            super.updateMessage(message);
+        } finally {
+            cache.invalidate(message.getMessage_id());
+        }
+    }
+
+    @Override
+    public Message updateMessageText(int messageId, int postedBy, String messageText) {
+        try {
+            return super.updateMessageText(messageId, postedBy, messageText);
+        } finally {
+            cache.invalidate(messageId);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package DAO;
+
+import Model.Message;
+
+/**
+ * Key of the time_posted_epoch index of the memory and mapped engines: (time_posted_epoch, message_id). The
+ * message_id makes keys unique when two messages are posted at the same time, and breaks ties the same way the pages
+ * of retrieveMessagesInTimeRange do.
+ */
+final class EpochKey implements Comparable<EpochKey> {
+    final long timePostedEpoch;
+    final int messageId;
+
+    EpochKey(long timePostedEpoch, int messageId) {
+        this.timePostedEpoch = timePostedEpoch;
+        this.messageId = messageId;
+    }
+
+    static EpochKey of(Message message) {
+        return new EpochKey(message.getTime_posted_epoch(), message.getMessage_id());
+    }
+
+    /**
+     * @return the lowest key a window starting at since can hold.
+     */
+    static EpochKey lowest(long since) {
+        return new EpochKey(since, Integer.MIN_VALUE);
+    }
+
+    /**
+     * @return the highest key a window ending at until can hold when the page continues after (beforeEpoch,
+     * beforeId); the position of the previous page itself is left out.
+     */
+    static EpochKey highest(long until, long beforeEpoch, int beforeId) {
+        if (beforeEpoch > until) {
+            return new EpochKey(until, Integer.MAX_VALUE);
+        }
+        return beforeId == Integer.MIN_VALUE ? new EpochKey(beforeEpoch - 1, Integer.MAX_VALUE)
+                : new EpochKey(beforeEpoch, beforeId - 1);
+    }
+
+    @Override
+    public int compareTo(EpochKey other) {
+        int byTime = Long.compare(timePostedEpoch, other.timePostedEpoch);
+        return byTime != 0 ? byTime : Integer.compare(messageId, other.messageId);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof EpochKey && compareTo((EpochKey) other) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(timePostedEpoch) * 31 + messageId;
+    }
+}
@@ -0,0 +1,106 @@
+package DAO;
+
+import Model.Message;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A MessageRepository that hands every call to another one. Decorators that keep an index of the messages extend it
+ * and override only the writes they need to observe.
+ */
+public abstract class ForwardingMessageRepository implements MessageRepository {
+    protected final MessageRepository delegate;
+
+    protected ForwardingMessageRepository(MessageRepository delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * @return the repository this one wraps.
+     */
+    public MessageRepository getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public Message insertMessage(Message message) {
+        return delegate.insertMessage(message);
+    }
+
+    @Override
+    public List<Message> insertMessages(List<Message> messages) {
+        return delegate.insertMessages(messages);
+    }
+
+    @Override
+    public boolean insertMessagesWithIds(List<Message> messages) {
+        return delegate.insertMessagesWithIds(messages);
+    }
+
+    @Override
+    public int reserveMessageIds(int count) {
+        return delegate.reserveMessageIds(count);
+    }
+
+    @Override
+    public List<Message> retrieveAllMessages() {
+        return delegate.retrieveAllMessages();
+    }
+
+    @Override
+    public Message retrieveMessageById(int messageId) {
+        return delegate.retrieveMessageById(messageId);
+    }
+
+    @Override
+    public List<Message> retrieveMessagesByIds(int[] messageIds) {
+        return delegate.retrieveMessagesByIds(messageIds);
+    }
+
+    @Override
+    public Message deleteMessageById(int messageId, int postedBy) {
+        return delegate.deleteMessageById(messageId, postedBy);
+    }
+
+    @Override
+    public Message updateMessageText(int messageId, int postedBy, String messageText) {
+        return delegate.updateMessageText(messageId, postedBy, messageText);
+    }
+
+    @Override
+    public List<Message> retrieveMessagesByAccountId(int accountId) {
+        return delegate.retrieveMessagesByAccountId(accountId);
+    }
+
+    @Override
+    public List<Message> retrieveMessagesAfter(int afterId, int limit) {
+        return delegate.retrieveMessagesAfter(afterId, limit);
+    }
+
+    @Override
+    public List<Message> retrieveMessagesByAccountIdAfter(int accountId, int afterId, int limit) {
+        return delegate.retrieveMessagesByAccountIdAfter(accountId, afterId, limit);
+    }
+
+    @Override
+    public List<Message> retrieveMessagesInTimeRange(long since, long until, long beforeEpoch, int beforeId,
+                                                     int limit) {
+        return delegate.retrieveMessagesInTimeRange(since, until, beforeEpoch, beforeId, limit);
+    }
+
+    @Override
+    public void streamAllMessages(MessageRowHandler handler) throws IOException {
+        delegate.streamAllMessages(handler);
+    }
+
+    @Override
+    public void streamMessagesByAccountId(int accountId, MessageRowHandler handler) throws IOException {
+        delegate.streamMessagesByAccountId(accountId, handler);
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+}
@@ -0,0 +1,935 @@
+package DAO;
+
+import Model.Message;
+import Util.Metrics;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * A MessageRepository that keeps every message in memory and makes changes durable with an append-only write-ahead
+ * log.
+ *
+ * Messages are held in ConcurrentSkipListMaps: the primary index by message_id, two secondary indexes that keep
+ * each account's messages together, one by (posted_by, time_posted_epoch, message_id) in the order they were posted
+ * and one by (posted_by, message_id) for the pages in message_id order, and one by (time_posted_epoch, message_id)
+ * for the time windows. Reads never take a lock: a lookup is a skip-list search and a copy, and a page is a walk
+ * over a sub-map.
+ *
+ * Writes are serialized by one lock. Each one is appended to the log, and only once the append has succeeded is it
+ * applied to the maps, so the log always holds everything a reader can have seen. A batch is one append. By default
+ * the log is written to the operating system without waiting for the disk, which survives the process dying but not
+ * the machine; set storage.wal.fsync=true to force every append to disk. The maps are updated one after the other,
+ * so for a moment a reader may see a new message by id but not yet under its account.
+ *
+ * The log is read when the repository is created, so no request waits for the replay. If it does not exist yet, the
+ * repository starts from the messages the seed repository (the H2 table, by default) holds at that moment. Each
+ * record is framed with its length and a CRC32, so a record cut short by a crash is detected and dropped. When the
+ * log holds records for messages that no longer exist, or a damaged tail, it is rewritten as a snapshot of the
+ * current messages before new records are added.
+ *
+ * While running, the log is compacted in the background once it holds storage.wal.compactAfterDeadRecords records
+ * that no longer describe a live message, and at least as many as there are live messages. The snapshot is written
+ * without holding up writes; records appended meanwhile are copied onto the end of it before it replaces the log.
+ *
+ * The poster of a message is not checked here; MessageService checks it before inserting.
+ */
+public class InMemoryMessageRepository implements MessageRepository {
+    /**
+     * Call count and duration of each method, exposed on GET /metrics.
+     */
+    private static final Metrics.QueryMetrics QUERY_INSERT_MESSAGE =
+            Metrics.query("InMemoryMessageRepository", "insertMessage");
+    private static final Metrics.QueryMetrics QUERY_INSERT_MESSAGES =
+            Metrics.query("InMemoryMessageRepository", "insertMessages");
+    private static final Metrics.QueryMetrics QUERY_INSERT_MESSAGES_WITH_IDS =
+            Metrics.query("InMemoryMessageRepository", "insertMessagesWithIds");
+    private static final Metrics.QueryMetrics QUERY_RESERVE_MESSAGE_IDS =
+            Metrics.query("InMemoryMessageRepository", "reserveMessageIds");
+    private static final Metrics.QueryMetrics QUERY_RETRIEVE_ALL_MESSAGES =
+            Metrics.query("InMemoryMessageRepository", "retrieveAllMessages");
+    private static final Metrics.QueryMetrics QUERY_RETRIEVE_MESSAGE_BY_ID =
+            Metrics.query("InMemoryMessageRepository", "retrieveMessageById");
+    private static final Metrics.QueryMetrics QUERY_DELETE_MESSAGE_BY_ID =
+            Metrics.query("InMemoryMessageRepository", "deleteMessageById");
+    private static final Metrics.QueryMetrics QUERY_UPDATE_MESSAGE_TEXT =
+            Metrics.query("InMemoryMessageRepository", "updateMessageText");
+    private static final Metrics.QueryMetrics QUERY_RETRIEVE_MESSAGES_BY_ACCOUNT_ID =
+            Metrics.query("InMemoryMessageRepository", "retrieveMessagesByAccountId");
+    private static final Metrics.QueryMetrics QUERY_RETRIEVE_MESSAGES_AFTER =
+            Metrics.query("InMemoryMessageRepository", "retrieveMessagesAfter");
+    private static final Metrics.QueryMetrics QUERY_RETRIEVE_MESSAGES_BY_ACCOUNT_ID_AFTER =
+            Metrics.query("InMemoryMessageRepository", "retrieveMessagesByAccountIdAfter");
+    private static final Metrics.QueryMetrics QUERY_RETRIEVE_MESSAGES_IN_TIME_RANGE =
+            Metrics.query("InMemoryMessageRepository", "retrieveMessagesInTimeRange");
+    private static final Metrics.QueryMetrics QUERY_STREAM_ALL_MESSAGES =
+            Metrics.query("InMemoryMessageRepository", "streamAllMessages");
+    private static final Metrics.QueryMetrics QUERY_STREAM_MESSAGES_BY_ACCOUNT_ID =
+            Metrics.query("InMemoryMessageRepository", "streamMessagesByAccountId");
+
+    /**
+     * Log record types. An insert carries the whole message, an update the id and new text, a delete the id, and a
+     * reservation the next id insertMessage may generate.
+     */
+    private static final byte INSERT = 1;
+    private static final byte UPDATE_TEXT = 2;
+    private static final byte DELETE = 3;
+    private static final byte RESERVE = 4;
+    /**
+     * Longest record payload accepted when reading the log. Anything longer is treated as a damaged record.
+     */
+    private static final int MAX_RECORD_SIZE = 64 * 1024;
+    /**
+     * Longest message_text accepted, the width of the message_text column.
+     */
+    private static final int MAX_TEXT_LENGTH = 255;
+
+    private final ConcurrentSkipListMap<Integer, Message> byId = new ConcurrentSkipListMap<>();
+    /**
+     * The secondary index by (posted_by, time_posted_epoch, message_id).
+     */
+    private final ConcurrentSkipListMap<AccountKey, Message> byAccount = new ConcurrentSkipListMap<>();
+    /**
+     * The secondary index in message_id order, keyed by accountIdKey(posted_by, message_id).
+     */
+    private final ConcurrentSkipListMap<Long, Message> byAccountId = new ConcurrentSkipListMap<>();
+    /**
+     * The secondary index by (time_posted_epoch, message_id), across all accounts.
+     */
+    private final ConcurrentSkipListMap<EpochKey, Message> byTime = new ConcurrentSkipListMap<>();
+
+    private final Path logPath;
+    private final boolean fsync;
+    private final MessageRepository seed;
+    private final long compactAfterDeadRecords;
+
+    /**
+     * Serializes writes, and guards everything below it.
+     */
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private boolean closed;
+    private FileChannel log;
+    private volatile long logSize;
+    /**
+     * How many records the log holds, live or not.
+     */
+    private long logRecords;
+    /**
+     * Records waiting to be appended by the current write, and how many there are.
+     */
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream(4096);
+    private int pendingRecords;
+    private final CRC32 crc = new CRC32();
+    /**
+     * Set while a compaction is scheduled or running. While its snapshot is being written, every record appended to
+     * the log is also kept in sinceSnapshot, to be copied onto the end of the snapshot.
+     */
+    private boolean compacting;
+    private ByteArrayOutputStream sinceSnapshot;
+    private int sinceSnapshotRecords;
+    /**
+     * The next id insertMessage will generate.
+     */
+    private int nextId = 1;
+
+    /**
+     * Creates a repository logging to the given file, starting from the H2 message table if the file does not exist,
+     * and forcing appends to disk if the storage.wal.fsync system property is true.
+     */
+    public InMemoryMessageRepository(Path logPath) {
+        this(logPath, Boolean.getBoolean("storage.wal.fsync"), new MessageDAO());
+    }
+
+    /**
+     * @param logPath - the write-ahead log.
+     * @param fsync - whether every append waits for the disk.
+     * @param seed - where the first messages come from when the log does not exist yet.
+     */
+    public InMemoryMessageRepository(Path logPath, boolean fsync, MessageRepository seed) {
+        this(logPath, fsync, seed, Long.getLong("storage.wal.compactAfterDeadRecords", 100000L));
+    }
+
+    /**
+     * Creates the repository and reads its log.
+     * @param compactAfterDeadRecords - how many dead records the log may hold before it is compacted in the
+     *                                  background, or 0 to only compact when the repository is created.
+     * @throws UncheckedIOException if the log cannot be read or written.
+     */
+    public InMemoryMessageRepository(Path logPath, boolean fsync, MessageRepository seed,
+                                     long compactAfterDeadRecords) {
+        this.logPath = logPath;
+        this.fsync = fsync;
+        this.seed = seed;
+        this.compactAfterDeadRecords = compactAfterDeadRecords;
+        load();
+    }
+
+    public Message insertMessage(Message message) {
+        long start = System.nanoTime();
+        writeLock.lock();
+        try {
+            if (!isStorable(message)) {
+                return null;
+            }
+            Message inserted = new Message(nextId, message.getPosted_by(), message.getMessage_text(),
+                    message.getTime_posted_epoch());
+            appendInsert(inserted);
+            if (!commit()) {
+                return null;
+            }
+            nextId++;
+            put(inserted);
+            return copy(inserted);
+        } finally {
+            writeLock.unlock();
+            QUERY_INSERT_MESSAGE.recordSince(start);
+        }
+    }
+
+    public List<Message> insertMessages(List<Message> messages) {
+        long start = System.nanoTime();
+        writeLock.lock();
+        try {
+            List<Message> inserted = new ArrayList<>(messages.size());
+            int id = nextId;
+            for (Message message : messages) {
+                if (!isStorable(message)) {
+                    discardPending();
+                    return null;
+                }
+                Message withId = new Message(id++, message.getPosted_by(), message.getMessage_text(),
+                        message.getTime_posted_epoch());
+                appendInsert(withId);
+                inserted.add(withId);
+            }
+            if (!commit()) {
+                return null;
+            }
+            nextId = id;
+            List<Message> result = new ArrayList<>(inserted.size());
+            for (Message message : inserted) {
+                put(message);
+                result.add(copy(message));
+            }
+            return result;
+        } finally {
+            writeLock.unlock();
+            QUERY_INSERT_MESSAGES.recordSince(start);
+        }
+    }
+
+    public boolean insertMessagesWithIds(List<Message> messages) {
+        long start = System.nanoTime();
+        writeLock.lock();
+        try {
+            Set<Integer> ids = new HashSet<>();
+            List<Message> inserted = new ArrayList<>(messages.size());
+            for (Message message : messages) {
+                // like the primary key, refuse an id that is already taken, even within the batch
+                if (!isStorable(message) || byId.containsKey(message.getMessage_id())
+                        || !ids.add(message.getMessage_id())) {
+                    discardPending();
+                    return false;
+                }
+                Message withId = copy(message);
+                appendInsert(withId);
+                inserted.add(withId);
+            }
+            if (!commit()) {
+                return false;
+            }
+            for (Message message : inserted) {
+                put(message);
+                nextId = Math.max(nextId, message.getMessage_id() + 1);
+            }
+            return true;
+        } finally {
+            writeLock.unlock();
+            QUERY_INSERT_MESSAGES_WITH_IDS.recordSince(start);
+        }
+    }
+
+    public int reserveMessageIds(int count) {
+        long start = System.nanoTime();
+        writeLock.lock();
+        try {
+            if (count < 1) {
+                return -1;
+            }
+            int first = nextId;
+            appendReserve(first + count);
+            if (!commit()) {
+                return -1;
+            }
+            nextId = first + count;
+            return first;
+        } finally {
+            writeLock.unlock();
+            QUERY_RESERVE_MESSAGE_IDS.recordSince(start);
+        }
+    }
+
+    public List<Message> retrieveAllMessages() {
+        long start = System.nanoTime();
+        try {
+            return copies(byId.values());
+        } finally {
+            QUERY_RETRIEVE_ALL_MESSAGES.recordSince(start);
+        }
+    }
+
+    public Message retrieveMessageById(int messageId) {
+        long start = System.nanoTime();
+        try {
+            Message message = byId.get(messageId);
+            return message == null ? null : copy(message);
+        } finally {
+            QUERY_RETRIEVE_MESSAGE_BY_ID.recordSince(start);
+        }
+    }
+
+    public Message deleteMessageById(int messageId, int postedBy) {
+        long start = System.nanoTime();
+        writeLock.lock();
+        try {
+            Message existing = byId.get(messageId);
+            if (existing == null || postedBy != ANY_POSTER && existing.getPosted_by() != postedBy) {
+                return null;
+            }
+            appendDelete(messageId);
+            if (!commit()) {
+                return null;
+            }
+            remove(existing);
+            return copy(existing);
+        } finally {
+            writeLock.unlock();
+            QUERY_DELETE_MESSAGE_BY_ID.recordSince(start);
+        }
+    }
+
+    public Message updateMessageText(int messageId, int postedBy, String messageText) {
+        long start = System.nanoTime();
+        writeLock.lock();
+        try {
+            Message existing = byId.get(messageId);
+            if (existing == null || postedBy != ANY_POSTER && existing.getPosted_by() != postedBy
+                    || messageText == null || messageText.length() > MAX_TEXT_LENGTH) {
+                return null;
+            }
+            Message updated = new Message(messageId, existing.getPosted_by(), messageText,
+                    existing.getTime_posted_epoch());
+            appendUpdateText(messageId, messageText);
+            if (!commit()) {
+                return null;
+            }
+            put(updated);
+            return copy(updated);
+        } finally {
+            writeLock.unlock();
+            QUERY_UPDATE_MESSAGE_TEXT.recordSince(start);
+        }
+    }
+
+    public List<Message> retrieveMessagesByAccountId(int accountId) {
+        long start = System.nanoTime();
+        try {
+            return copies(postedBy(accountId, 0).values());
+        } finally {
+            QUERY_RETRIEVE_MESSAGES_BY_ACCOUNT_ID.recordSince(start);
+        }
+    }
+
+    public List<Message> retrieveMessagesAfter(int afterId, int limit) {
+        long start = System.nanoTime();
+        try {
+            List<Message> page = new ArrayList<>(Math.min(limit, 1024));
+            for (Message message : byId.tailMap(afterId, false).values()) {
+                if (page.size() >= limit) {
+                    break;
+                }
+                page.add(copy(message));
+            }
+            return page;
+        } finally {
+            QUERY_RETRIEVE_MESSAGES_AFTER.recordSince(start);
+        }
+    }
+
+    /**
+     * A walk over the secondary index from just after afterId, so the cost grows with the page, not with the number of
+     * messages the account has posted.
+     */
+    public List<Message> retrieveMessagesByAccountIdAfter(int accountId, int afterId, int limit) {
+        long start = System.nanoTime();
+        try {
+            List<Message> page = new ArrayList<>(Math.min(limit, 1024));
+            for (Message message : postedBy(accountId, afterId).values()) {
+                if (page.size() >= limit) {
+                    break;
+                }
+                page.add(copy(message));
+            }
+            return page;
+        } finally {
+            QUERY_RETRIEVE_MESSAGES_BY_ACCOUNT_ID_AFTER.recordSince(start);
+        }
+    }
+
+    /**
+     * A walk down the (time_posted_epoch, message_id) index from the newest message the page may hold, so the cost
+     * grows with the page, not with the number of messages or the width of the window.
+     */
+    public List<Message> retrieveMessagesInTimeRange(long since, long until, long beforeEpoch, int beforeId,
+                                                     int limit) {
+        long start = System.nanoTime();
+        try {
+            List<Message> page = new ArrayList<>(Math.min(limit, 1024));
+            EpochKey lowest = EpochKey.lowest(since);
+            EpochKey highest = EpochKey.highest(until, beforeEpoch, beforeId);
+            if (lowest.compareTo(highest) > 0) {
+                return page;
+            }
+            for (Message message : byTime.subMap(lowest, true, highest, true).descendingMap().values()) {
+                if (page.size() >= limit) {
+                    break;
+                }
+                page.add(copy(message));
+            }
+            return page;
+        } finally {
+            QUERY_RETRIEVE_MESSAGES_IN_TIME_RANGE.recordSince(start);
+        }
+    }
+
+    public void streamAllMessages(MessageRowHandler handler) throws IOException {
+        long start = System.nanoTime();
+        try {
+            for (Message message : byId.values()) {
+                handler.onRow(message.getMessage_id(), message.getPosted_by(), message.getMessage_text(),
+                        message.getTime_posted_epoch());
+            }
+        } finally {
+            QUERY_STREAM_ALL_MESSAGES.recordSince(start);
+        }
+    }
+
+    public void streamMessagesByAccountId(int accountId, MessageRowHandler handler) throws IOException {
+        long start = System.nanoTime();
+        try {
+            for (Message message : postedBy(accountId, 0).values()) {
+                handler.onRow(message.getMessage_id(), message.getPosted_by(), message.getMessage_text(),
+                        message.getTime_posted_epoch());
+            }
+        } finally {
+            QUERY_STREAM_MESSAGES_BY_ACCOUNT_ID.recordSince(start);
+        }
+    }
+
+    /**
+     * Closes the log. Messages can still be read afterwards, but every write fails.
+     */
+    @Override
+    public void close() {
+        writeLock.lock();
+        try {
+            closed = true;
+            if (log != null) {
+                log.force(true);
+                log.close();
+                log = null;
+            }
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Rewrites the log as a snapshot of the current messages, followed by whatever was written while the snapshot was
+     * being made. Writes carry on meanwhile; they only wait for the copy of the maps and for the final swap.
+     * @return true if the log was rewritten, false if it is closed, a compaction is already running, or it failed.
+     */
+    public boolean compact() {
+        List<Message> messages;
+        int next;
+        writeLock.lock();
+        try {
+            if (closed || sinceSnapshot != null) {
+                return false;
+            }
+            messages = new ArrayList<>(byId.values());
+            next = nextId;
+            sinceSnapshot = new ByteArrayOutputStream(4096);
+            sinceSnapshotRecords = 0;
+        } finally {
+            writeLock.unlock();
+        }
+        Path snapshot = snapshotPath();
+        try {
+            writeSnapshotFile(snapshot, messages, next);
+            writeLock.lock();
+            try {
+                if (closed) {
+                    Files.deleteIfExists(snapshot);
+                    return false;
+                }
+                try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND)) {
+                    ByteBuffer buffer = ByteBuffer.wrap(sinceSnapshot.toByteArray());
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    channel.force(true);
+                }
+                log.close();
+                log = null;
+                Files.move(snapshot, logPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                openLog(Files.size(logPath));
+                logRecords = messages.size() + 1 + sinceSnapshotRecords;
+                return true;
+            } finally {
+                sinceSnapshot = null;
+                writeLock.unlock();
+            }
+        } catch (IOException e) {
+            System.out.println("Could not compact the message log " + logPath + ": " + e.getMessage());
+            writeLock.lock();
+            try {
+                sinceSnapshot = null;
+                Files.deleteIfExists(snapshot);
+                // the old log is still in place if the swap did not happen
+                if (log == null && !closed) {
+                    openLog(logSize);
+                }
+            } catch (IOException reopenFailure) {
+                System.out.println(reopenFailure.getMessage());
+                closed = true;
+            } finally {
+                writeLock.unlock();
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return how many messages are held.
+     */
+    public int getMessageCount() {
+        return byId.size();
+    }
+
+    /**
+     * @return how many records the log holds, including those for messages since changed or deleted.
+     */
+    public long getLogRecordCount() {
+        writeLock.lock();
+        try {
+            return logRecords;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * @return the size of the write-ahead log in bytes.
+     */
+    public long getLogSize() {
+        return logSize;
+    }
+
+    public Path getLogPath() {
+        return logPath;
+    }
+
+    /**
+     * @return the messages posted by the account with an id greater than afterId, in message_id order.
+     */
+    private ConcurrentNavigableMap<Long, Message> postedBy(int accountId, int afterId) {
+        return byAccountId.subMap(accountIdKey(accountId, afterId), false,
+                accountIdKey(accountId, Integer.MAX_VALUE), true);
+    }
+
+    /**
+     * Orders by posted_by, then message_id. Message ids are never negative, so the id fits the low 32 bits as is.
+     */
+    private static long accountIdKey(int postedBy, int messageId) {
+        return (long) postedBy << 32 | messageId & 0xffffffffL;
+    }
+
+    private void put(Message message) {
+        byId.put(message.getMessage_id(), message);
+        byAccount.put(AccountKey.of(message), message);
+        byAccountId.put(accountIdKey(message.getPosted_by(), message.getMessage_id()), message);
+        byTime.put(EpochKey.of(message), message);
+    }
+
+    private void remove(Message message) {
+        byId.remove(message.getMessage_id());
+        byAccount.remove(AccountKey.of(message));
+        byAccountId.remove(accountIdKey(message.getPosted_by(), message.getMessage_id()));
+        byTime.remove(EpochKey.of(message));
+    }
+
+    /**
+     * The same checks the message table's columns make.
+     */
+    private static boolean isStorable(Message message) {
+        return message != null && message.getMessage_text() != null
+                && message.getMessage_text().length() <= MAX_TEXT_LENGTH;
+    }
+
+    private static Message copy(Message message) {
+        return new Message(message.getMessage_id(), message.getPosted_by(), message.getMessage_text(),
+                message.getTime_posted_epoch());
+    }
+
+    private static List<Message> copies(Collection<Message> messages) {
+        List<Message> result = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            result.add(copy(message));
+        }
+        return result;
+    }
+
+    /**
+     * Reads the log, or seeds the maps and writes the first snapshot if there is no log yet. Runs once, from the
+     * constructor.
+     */
+    private void load() {
+        writeLock.lock();
+        try {
+            if (Files.exists(logPath)) {
+                Replay replay = replay();
+                long size = Files.size(logPath);
+                if (replay.validBytes < size) {
+                    System.out.println("Dropping " + (size - replay.validBytes)
+                            + " bytes of damaged records at the end of " + logPath);
+                }
+                // every live message needs one record; anything beyond that is history a snapshot can drop
+                if (replay.validBytes < size || replay.records > byId.size() + 1) {
+                    writeSnapshot();
+                } else {
+                    openLog(size);
+                    logRecords = replay.records;
+                }
+            } else {
+                for (Message message : seed.retrieveAllMessages()) {
+                    put(copy(message));
+                    nextId = Math.max(nextId, message.getMessage_id() + 1);
+                }
+                writeSnapshot();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not load the message log " + logPath, e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Applies every intact record in the log to the maps.
+     * @return how many records were applied, and how many bytes of the log they take up.
+     */
+    private Replay replay() throws IOException {
+        Replay replay = new Replay();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(logPath)))) {
+            while (true) {
+                int length = in.readInt();
+                if (length <= 0 || length > MAX_RECORD_SIZE) {
+                    break;
+                }
+                int checksum = in.readInt();
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                apply(new DataInputStream(new ByteArrayInputStream(payload)));
+                replay.records++;
+                replay.validBytes += 8 + length;
+            }
+        } catch (EOFException e) {
+            // the end of the log, or a record cut short; either way everything before it has been applied
+        }
+        return replay;
+    }
+
+    private void apply(DataInputStream record) throws IOException {
+        byte type = record.readByte();
+        if (type == INSERT) {
+            Message message = new Message(record.readInt(), record.readInt(), record.readUTF(), record.readLong());
+            put(message);
+            nextId = Math.max(nextId, message.getMessage_id() + 1);
+        } else if (type == UPDATE_TEXT) {
+            int messageId = record.readInt();
+            String messageText = record.readUTF();
+            Message existing = byId.get(messageId);
+            if (existing != null) {
+                put(new Message(messageId, existing.getPosted_by(), messageText, existing.getTime_posted_epoch()));
+            }
+        } else if (type == DELETE) {
+            Message existing = byId.get(record.readInt());
+            if (existing != null) {
+                remove(existing);
+            }
+        } else if (type == RESERVE) {
+            nextId = Math.max(nextId, record.readInt());
+        } else {
+            throw new IOException("Unknown record type " + type + " in " + logPath);
+        }
+    }
+
+    /**
+     * Replaces the log with one insert record per message and a reservation of the next id, written to a temporary
+     * file that is moved over the log once it is on disk.
+     */
+    private void writeSnapshot() throws IOException {
+        if (log != null) {
+            log.close();
+            log = null;
+        }
+        Path snapshot = snapshotPath();
+        writeSnapshotFile(snapshot, byId.values(), nextId);
+        Files.move(snapshot, logPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        openLog(Files.size(logPath));
+        logRecords = byId.size() + 1;
+    }
+
+    private Path snapshotPath() {
+        return logPath.resolveSibling(logPath.getFileName() + ".tmp");
+    }
+
+    /**
+     * Writes one insert record per message and a reservation of the next id to the file, and forces it to disk. Uses
+     * none of the state guarded by writeLock, so a background compaction can run it while writes carry on.
+     */
+    private static void writeSnapshotFile(Path snapshot, Collection<Message> messages, int next) throws IOException {
+        Path parent = snapshot.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        CRC32 checksum = new CRC32();
+        ByteArrayOutputStream record = new ByteArrayOutputStream(512);
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            BufferedOutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024);
+            for (Message message : messages) {
+                frame(record, checksum, insertRecord(message));
+                record.writeTo(out);
+                record.reset();
+            }
+            frame(record, checksum, reserveRecord(next));
+            record.writeTo(out);
+            out.flush();
+            channel.force(true);
+        }
+    }
+
+    private void openLog(long size) throws IOException {
+        logSize = size;
+        if (closed) {
+            return;
+        }
+        log = FileChannel.open(logPath, StandardOpenOption.WRITE);
+        log.position(size);
+    }
+
+    /**
+     * Appends the pending records to the log. If the append fails, the log is cut back to where it was, so a
+     * partly written record cannot hide the records written after it.
+     * @return true if the records are in the log.
+     */
+    private boolean commit() {
+        try {
+            if (closed || log == null) {
+                System.out.println("The message log " + logPath + " is closed");
+                return false;
+            }
+            long start = logSize;
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(pending.toByteArray());
+                while (buffer.hasRemaining()) {
+                    log.write(buffer);
+                }
+                if (fsync) {
+                    log.force(false);
+                }
+                logSize = log.position();
+                logRecords += pendingRecords;
+                if (sinceSnapshot != null) {
+                    pending.writeTo(sinceSnapshot);
+                    sinceSnapshotRecords += pendingRecords;
+                } else {
+                    scheduleCompaction();
+                }
+                return true;
+            } catch (IOException e) {
+                System.out.println(e.getMessage());
+                try {
+                    log.truncate(start);
+                    log.position(start);
+                } catch (IOException truncateFailure) {
+                    // the tail cannot be trusted any more; refuse writes until the log is reopened
+                    System.out.println(truncateFailure.getMessage());
+                    closed = true;
+                }
+                return false;
+            }
+        } finally {
+            discardPending();
+        }
+    }
+
+    private void discardPending() {
+        pending.reset();
+        pendingRecords = 0;
+    }
+
+    /**
+     * Starts a background compaction if enough of the log is dead records and none is running. Called with writeLock
+     * held.
+     */
+    private void scheduleCompaction() {
+        long dead = logRecords - byId.size() - 1;
+        if (compacting || closed || compactAfterDeadRecords <= 0 || dead < compactAfterDeadRecords
+                || dead < byId.size()) {
+            return;
+        }
+        compacting = true;
+        Thread compactor = new Thread(() -> {
+            try {
+                compact();
+            } finally {
+                writeLock.lock();
+                try {
+                    compacting = false;
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+        }, "message-log-compaction");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    private void appendInsert(Message message) {
+        frame(insertRecord(message));
+    }
+
+    private static byte[] insertRecord(Message message) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 + message.getMessage_text().length());
+        DataOutputStream record = new DataOutputStream(bytes);
+        try {
+            record.writeByte(INSERT);
+            record.writeInt(message.getMessage_id());
+            record.writeInt(message.getPosted_by());
+            record.writeUTF(message.getMessage_text());
+            record.writeLong(message.getTime_posted_epoch());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private void appendUpdateText(int messageId, String messageText) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + messageText.length());
+        DataOutputStream record = new DataOutputStream(bytes);
+        try {
+            record.writeByte(UPDATE_TEXT);
+            record.writeInt(messageId);
+            record.writeUTF(messageText);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        frame(bytes.toByteArray());
+    }
+
+    private void appendDelete(int messageId) {
+        frame(ByteBuffer.allocate(5).put(DELETE).putInt(messageId).array());
+    }
+
+    private void appendReserve(int next) {
+        frame(reserveRecord(next));
+    }
+
+    private static byte[] reserveRecord(int next) {
+        return ByteBuffer.allocate(5).put(RESERVE).putInt(next).array();
+    }
+
+    /**
+     * Adds a record to the pending writes, preceded by its length and CRC32.
+     */
+    private void frame(byte[] payload) {
+        frame(pending, crc, payload);
+        pendingRecords++;
+    }
+
+    private static void frame(ByteArrayOutputStream out, CRC32 checksum, byte[] payload) {
+        checksum.reset();
+        checksum.update(payload);
+        out.writeBytes(ByteBuffer.allocate(8).putInt(payload.length).putInt((int) checksum.getValue()).array());
+        out.writeBytes(payload);
+    }
+
+    private static final class Replay {
+        long records;
+        long validBytes;
+    }
+
+    /**
+     * Key of the secondary index in posting order. The message_id makes keys unique when an account posts twice at
+     * the same time.
+     */
+    private static final class AccountKey implements Comparable<AccountKey> {
+        final int postedBy;
+        final long timePostedEpoch;
+        final int messageId;
+
+        AccountKey(int postedBy, long timePostedEpoch, int messageId) {
+            this.postedBy = postedBy;
+            this.timePostedEpoch = timePostedEpoch;
+            this.messageId = messageId;
+        }
+
+        static AccountKey of(Message message) {
+            return new AccountKey(message.getPosted_by(), message.getTime_posted_epoch(), message.getMessage_id());
+        }
+
+        @Override
+        public int compareTo(AccountKey other) {
+            int byAccount = Integer.compare(postedBy, other.postedBy);
+            if (byAccount != 0) {
+                return byAccount;
+            }
+            int byTime = Long.compare(timePostedEpoch, other.timePostedEpoch);
+            return byTime != 0 ? byTime : Integer.compare(messageId, other.messageId);
+        }
+    }
+}
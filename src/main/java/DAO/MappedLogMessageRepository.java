@@ -0,0 +1,1042 @@
+package DAO;
+
+import Model.Message;
+import Util.Metrics;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * A MessageRepository that stores messages in an append-only log of fixed-size, memory-mapped segment files.
+ *
+ * Every change is one record appended to the newest segment: an insert or an update writes the whole message, a
+ * delete writes a tombstone carrying only the id, and reserveMessageIds writes the next id left to generate. A batch
+ * is one record, so it is either replayed whole or not at all. Each record is framed with its length and a CRC32;
+ * when a record does not fit in what is left of the segment, the segment is sealed and a new one is started.
+ *
+ * An index in memory maps each message_id to the segment and offset of its newest version; a second index keeps
+ * (posted_by, message_id) pairs for the per-account queries, and a third (time_posted_epoch, message_id) pairs for
+ * the time windows. Reads take no lock: a lookup finds the offset and decodes
+ * the message straight out of the mapped segment, with no read call and no buffer in between. Writes are serialized
+ * by one lock. Appends go to the page cache, which survives the process dying but not the machine; set
+ * storage.segments.fsync=true to force every append to disk.
+ *
+ * An update or delete leaves the older version behind as garbage. A background thread compacts any sealed segment
+ * whose garbage has reached a share of its size: the live messages in it, and the tombstones still needed to hide
+ * messages in older segments, are appended again and the segment file is deleted. Readers holding the old position
+ * notice the segment is gone and look the message up again. Each reader pins the segment it decodes from, and a
+ * compacted segment is unmapped as soon as the last reader lets go of it, rather than whenever the garbage collector
+ * gets round to its buffer.
+ *
+ * On first use the segments are scanned in order to rebuild the index; a record cut short by a crash ends the scan
+ * of its segment. If there are no segments yet, the repository starts from the messages the seed repository (the H2
+ * table, by default) holds at that moment. As with InMemoryMessageRepository, the poster of a message is not checked
+ * here.
+ */
+public class MappedLogMessageRepository implements MessageRepository {
+    /**
+     * Call count and duration of each method, exposed on GET /metrics.
+     */
+    private static final Metrics.QueryMetrics QUERY_INSERT_MESSAGE =
+            Metrics.query("MappedLogMessageRepository", "insertMessage");
+    private static final Metrics.QueryMetrics QUERY_INSERT_MESSAGES =
+            Metrics.query("MappedLogMessageRepository", "insertMessages");
+    private static final Metrics.QueryMetrics QUERY_INSERT_MESSAGES_WITH_IDS =
+            Metrics.query("MappedLogMessageRepository", "insertMessagesWithIds");
+    private static final Metrics.QueryMetrics QUERY_RESERVE_MESSAGE_IDS =
+            Metrics.query("MappedLogMessageRepository", "reserveMessageIds");
+    private static final Metrics.QueryMetrics QUERY_RETRIEVE_ALL_MESSAGES =
+            Metrics.query("MappedLogMessageRepository", "retrieveAllMessages");
+    private static final Metrics.QueryMetrics QUERY_RETRIEVE_MESSAGE_BY_ID =
+            Metrics.query("MappedLogMessageRepository", "retrieveMessageById");
+    private static final Metrics.QueryMetrics QUERY_DELETE_MESSAGE_BY_ID =
+            Metrics.query("MappedLogMessageRepository", "deleteMessageById");
+    private static final Metrics.QueryMetrics QUERY_UPDATE_MESSAGE_TEXT =
+            Metrics.query("MappedLogMessageRepository", "updateMessageText");
+    private static final Metrics.QueryMetrics QUERY_RETRIEVE_MESSAGES_BY_ACCOUNT_ID =
+            Metrics.query("MappedLogMessageRepository", "retrieveMessagesByAccountId");
+    private static final Metrics.QueryMetrics QUERY_RETRIEVE_MESSAGES_AFTER =
+            Metrics.query("MappedLogMessageRepository", "retrieveMessagesAfter");
+    private static final Metrics.QueryMetrics QUERY_RETRIEVE_MESSAGES_BY_ACCOUNT_ID_AFTER =
+            Metrics.query("MappedLogMessageRepository", "retrieveMessagesByAccountIdAfter");
+    private static final Metrics.QueryMetrics QUERY_RETRIEVE_MESSAGES_IN_TIME_RANGE =
+            Metrics.query("MappedLogMessageRepository", "retrieveMessagesInTimeRange");
+    private static final Metrics.QueryMetrics QUERY_STREAM_ALL_MESSAGES =
+            Metrics.query("MappedLogMessageRepository", "streamAllMessages");
+    private static final Metrics.QueryMetrics QUERY_STREAM_MESSAGES_BY_ACCOUNT_ID =
+            Metrics.query("MappedLogMessageRepository", "streamMessagesByAccountId");
+
+    /**
+     * Record types. A PUT record holds a count followed by that many messages; DELETE and RESERVE hold one int.
+     */
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final byte RESERVE = 3;
+    /**
+     * Every record starts with the length of what follows the header, then its CRC32.
+     */
+    private static final int FRAME_HEADER = 8;
+    /**
+     * A message in a PUT record: message_id, posted_by, time_posted_epoch and the length of the UTF-8 text, then the
+     * text.
+     */
+    private static final int ENTRY_HEADER = 18;
+    /**
+     * Type byte and count in front of the messages of a PUT record.
+     */
+    private static final int PUT_HEADER = 5;
+    private static final int MAX_TEXT_LENGTH = 255;
+    /**
+     * Size of the PUT records written when compacting or seeding, which are split to stay under it.
+     */
+    private static final int COPY_RECORD_SIZE = 64 * 1024;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    /**
+     * message_id to the position of its newest version, as segment number << 32 | offset of the message.
+     */
+    private final ConcurrentSkipListMap<Integer, Long> index = new ConcurrentSkipListMap<>();
+    /**
+     * posted_by << 32 | message_id of every message, so an account's messages sort together in message_id order.
+     */
+    private final ConcurrentSkipListSet<Long> byAccount = new ConcurrentSkipListSet<>();
+    /**
+     * (time_posted_epoch, message_id) of every message, for the time windows.
+     */
+    private final ConcurrentSkipListSet<EpochKey> byTime = new ConcurrentSkipListSet<>();
+    private final Map<Integer, Segment> segments = new ConcurrentHashMap<>();
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int compactThresholdPercent;
+    private final long compactIntervalMillis;
+    private final boolean fsync;
+    private final MessageRepository seed;
+
+    /**
+     * Serializes writes and compaction, and guards everything below it.
+     */
+    private final Object writeLock = new Object();
+    private volatile boolean loaded;
+    private boolean closed;
+    private Segment active;
+    private int nextId = 1;
+    private volatile long compactedSegments;
+    private final AtomicLong unmappedSegments = new AtomicLong();
+    private ScheduledExecutorService compactor;
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Creates a repository keeping its segments in the given directory, configured by the storage.segments.sizeBytes,
+     * storage.segments.compactThresholdPercent, storage.segments.compactIntervalMillis and storage.segments.fsync
+     * system properties, and starting from the H2 message table if the directory holds no segments.
+     */
+    public MappedLogMessageRepository(Path directory) {
+        this(directory,
+                Integer.getInteger("storage.segments.sizeBytes", 8 * 1024 * 1024),
+                Integer.getInteger("storage.segments.compactThresholdPercent", 50),
+                Long.getLong("storage.segments.compactIntervalMillis", 1000L),
+                Boolean.getBoolean("storage.segments.fsync"),
+                new MessageDAO());
+    }
+
+    /**
+     * @param directory - where the segment files are kept.
+     * @param segmentSize - the size of each segment file in bytes. A batch larger than one segment cannot be stored.
+     * @param compactThresholdPercent - the share of a sealed segment that must be garbage before it is compacted.
+     * @param compactIntervalMillis - how often the compactor looks for segments to compact, or 0 to only compact when
+     *                              compact() is called.
+     * @param fsync - whether every append waits for the disk.
+     * @param seed - where the first messages come from when there are no segments yet.
+     */
+    public MappedLogMessageRepository(Path directory, int segmentSize, int compactThresholdPercent,
+                                      long compactIntervalMillis, boolean fsync, MessageRepository seed) {
+        if (segmentSize < 4096 || compactThresholdPercent < 1 || compactThresholdPercent > 100
+                || compactIntervalMillis < 0) {
+            throw new IllegalArgumentException("segmentSize must be at least 4096 and compactThresholdPercent between "
+                    + "1 and 100");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.compactThresholdPercent = compactThresholdPercent;
+        this.compactIntervalMillis = compactIntervalMillis;
+        this.fsync = fsync;
+        this.seed = seed;
+    }
+
+    public Message insertMessage(Message message) {
+        long start = System.nanoTime();
+        ensureLoaded();
+        try {
+            synchronized (writeLock) {
+                if (!isStorable(message)) {
+                    return null;
+                }
+                Message inserted = new Message(nextId, message.getPosted_by(), message.getMessage_text(),
+                        message.getTime_posted_epoch());
+                if (!appendPuts(Collections.singletonList(inserted))) {
+                    return null;
+                }
+                nextId++;
+                return inserted;
+            }
+        } finally {
+            QUERY_INSERT_MESSAGE.recordSince(start);
+        }
+    }
+
+    public List<Message> insertMessages(List<Message> messages) {
+        long start = System.nanoTime();
+        ensureLoaded();
+        try {
+            synchronized (writeLock) {
+                List<Message> inserted = new ArrayList<>(messages.size());
+                int id = nextId;
+                for (Message message : messages) {
+                    if (!isStorable(message)) {
+                        return null;
+                    }
+                    inserted.add(new Message(id++, message.getPosted_by(), message.getMessage_text(),
+                            message.getTime_posted_epoch()));
+                }
+                if (!inserted.isEmpty() && !appendPuts(inserted)) {
+                    return null;
+                }
+                nextId = id;
+                return inserted;
+            }
+        } finally {
+            QUERY_INSERT_MESSAGES.recordSince(start);
+        }
+    }
+
+    public boolean insertMessagesWithIds(List<Message> messages) {
+        long start = System.nanoTime();
+        ensureLoaded();
+        try {
+            synchronized (writeLock) {
+                Set<Integer> ids = new HashSet<>();
+                List<Message> inserted = new ArrayList<>(messages.size());
+                for (Message message : messages) {
+                    // like the primary key, refuse an id that is already taken, even within the batch
+                    if (!isStorable(message) || index.containsKey(message.getMessage_id())
+                            || !ids.add(message.getMessage_id())) {
+                        return false;
+                    }
+                    inserted.add(message);
+                }
+                if (!inserted.isEmpty() && !appendPuts(inserted)) {
+                    return false;
+                }
+                for (Message message : inserted) {
+                    nextId = Math.max(nextId, message.getMessage_id() + 1);
+                }
+                return true;
+            }
+        } finally {
+            QUERY_INSERT_MESSAGES_WITH_IDS.recordSince(start);
+        }
+    }
+
+    public int reserveMessageIds(int count) {
+        long start = System.nanoTime();
+        ensureLoaded();
+        try {
+            synchronized (writeLock) {
+                if (count < 1 || !appendInt(RESERVE, nextId + count)) {
+                    return -1;
+                }
+                int first = nextId;
+                nextId += count;
+                return first;
+            }
+        } finally {
+            QUERY_RESERVE_MESSAGE_IDS.recordSince(start);
+        }
+    }
+
+    public List<Message> retrieveAllMessages() {
+        long start = System.nanoTime();
+        try {
+            ensureLoaded();
+            List<Message> messages = new ArrayList<>(index.size());
+            for (Map.Entry<Integer, Long> entry : index.entrySet()) {
+                addIfPresent(messages, entry);
+            }
+            return messages;
+        } finally {
+            QUERY_RETRIEVE_ALL_MESSAGES.recordSince(start);
+        }
+    }
+
+    public Message retrieveMessageById(int messageId) {
+        long start = System.nanoTime();
+        try {
+            ensureLoaded();
+            return read(messageId);
+        } finally {
+            QUERY_RETRIEVE_MESSAGE_BY_ID.recordSince(start);
+        }
+    }
+
+    public Message deleteMessageById(int messageId, int postedBy) {
+        long start = System.nanoTime();
+        ensureLoaded();
+        try {
+            synchronized (writeLock) {
+                Message existing = read(messageId);
+                if (existing == null || postedBy != ANY_POSTER && existing.getPosted_by() != postedBy
+                        || !appendInt(DELETE, messageId)) {
+                    return null;
+                }
+                remove(messageId);
+                return existing;
+            }
+        } finally {
+            QUERY_DELETE_MESSAGE_BY_ID.recordSince(start);
+        }
+    }
+
+    public Message updateMessageText(int messageId, int postedBy, String messageText) {
+        long start = System.nanoTime();
+        ensureLoaded();
+        try {
+            synchronized (writeLock) {
+                Message existing = read(messageId);
+                if (existing == null || postedBy != ANY_POSTER && existing.getPosted_by() != postedBy
+                        || messageText == null || messageText.length() > MAX_TEXT_LENGTH) {
+                    return null;
+                }
+                Message updated = new Message(messageId, existing.getPosted_by(), messageText,
+                        existing.getTime_posted_epoch());
+                return appendPuts(Collections.singletonList(updated)) ? updated : null;
+            }
+        } finally {
+            QUERY_UPDATE_MESSAGE_TEXT.recordSince(start);
+        }
+    }
+
+    public List<Message> retrieveMessagesByAccountId(int accountId) {
+        long start = System.nanoTime();
+        try {
+            ensureLoaded();
+            return postedBy(accountId, 0, Integer.MAX_VALUE);
+        } finally {
+            QUERY_RETRIEVE_MESSAGES_BY_ACCOUNT_ID.recordSince(start);
+        }
+    }
+
+    public List<Message> retrieveMessagesAfter(int afterId, int limit) {
+        long start = System.nanoTime();
+        try {
+            ensureLoaded();
+            List<Message> page = new ArrayList<>(Math.min(limit, 1024));
+            for (Map.Entry<Integer, Long> entry : index.tailMap(afterId, false).entrySet()) {
+                if (page.size() >= limit) {
+                    break;
+                }
+                addIfPresent(page, entry);
+            }
+            return page;
+        } finally {
+            QUERY_RETRIEVE_MESSAGES_AFTER.recordSince(start);
+        }
+    }
+
+    public List<Message> retrieveMessagesByAccountIdAfter(int accountId, int afterId, int limit) {
+        long start = System.nanoTime();
+        try {
+            ensureLoaded();
+            return postedBy(accountId, afterId, limit);
+        } finally {
+            QUERY_RETRIEVE_MESSAGES_BY_ACCOUNT_ID_AFTER.recordSince(start);
+        }
+    }
+
+    /**
+     * A walk down the (time_posted_epoch, message_id) index from the newest message the page may hold, decoding only
+     * the messages that end up on the page.
+     */
+    public List<Message> retrieveMessagesInTimeRange(long since, long until, long beforeEpoch, int beforeId,
+                                                     int limit) {
+        long start = System.nanoTime();
+        try {
+            ensureLoaded();
+            List<Message> page = new ArrayList<>(Math.min(limit, 1024));
+            EpochKey lowest = EpochKey.lowest(since);
+            EpochKey highest = EpochKey.highest(until, beforeEpoch, beforeId);
+            if (lowest.compareTo(highest) > 0) {
+                return page;
+            }
+            for (EpochKey key : byTime.subSet(lowest, true, highest, true).descendingSet()) {
+                if (page.size() >= limit) {
+                    break;
+                }
+                addIfPresent(page, key.messageId);
+            }
+            return page;
+        } finally {
+            QUERY_RETRIEVE_MESSAGES_IN_TIME_RANGE.recordSince(start);
+        }
+    }
+
+    public void streamAllMessages(MessageRowHandler handler) throws IOException {
+        long start = System.nanoTime();
+        try {
+            ensureLoaded();
+            for (Map.Entry<Integer, Long> entry : index.entrySet()) {
+                Message message = read(entry);
+                if (message != null) {
+                    handler.onRow(message.getMessage_id(), message.getPosted_by(), message.getMessage_text(),
+                            message.getTime_posted_epoch());
+                }
+            }
+        } finally {
+            QUERY_STREAM_ALL_MESSAGES.recordSince(start);
+        }
+    }
+
+    public void streamMessagesByAccountId(int accountId, MessageRowHandler handler) throws IOException {
+        long start = System.nanoTime();
+        try {
+            ensureLoaded();
+            for (Long key : byAccount.subSet(accountKey(accountId, 0), true, accountKey(accountId, -1), true)) {
+                stream((int) (long) key, handler);
+            }
+        } finally {
+            QUERY_STREAM_MESSAGES_BY_ACCOUNT_ID.recordSince(start);
+        }
+    }
+
+    /**
+     * Compacts every sealed segment whose garbage has reached the threshold. The background compactor calls this
+     * periodically; it holds the write lock while it copies, which for a segment of a few megabytes takes
+     * milliseconds.
+     * @return how many segments were compacted and deleted.
+     */
+    public int compact() {
+        ensureLoaded();
+        synchronized (writeLock) {
+            int compacted = 0;
+            List<Integer> numbers = new ArrayList<>(segments.keySet());
+            Collections.sort(numbers);
+            for (Integer number : numbers) {
+                Segment segment = segments.get(number);
+                if (closed || segment == active) {
+                    break;
+                }
+                long garbage = segment.position - segment.liveBytes;
+                if (garbage * 100 < (long) compactThresholdPercent * segment.capacity) {
+                    continue;
+                }
+                if (!copyLiveRecords(segment, number.equals(numbers.get(0)))) {
+                    break;
+                }
+                segments.remove(number);
+                segment.retire();
+                try {
+                    Files.deleteIfExists(segment.path);
+                } catch (IOException e) {
+                    System.out.println(e.getMessage());
+                }
+                compacted++;
+                compactedSegments++;
+            }
+            return compacted;
+        }
+    }
+
+    /**
+     * Stops the compactor and forces the segments to disk. Messages can still be read afterwards, but every write
+     * fails.
+     */
+    @Override
+    public void close() {
+        ScheduledExecutorService stopping;
+        synchronized (writeLock) {
+            closed = true;
+            stopping = compactor;
+            compactor = null;
+            for (Segment segment : segments.values()) {
+                segment.buffer.force();
+            }
+        }
+        if (stopping != null) {
+            stopping.shutdownNow();
+        }
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * @return bytes of the segments taken by records that have been superseded or deleted.
+     */
+    public long getGarbageBytes() {
+        long garbage = 0;
+        for (Segment segment : segments.values()) {
+            garbage += segment.position - segment.liveBytes;
+        }
+        return garbage;
+    }
+
+    public long getCompactedSegmentCount() {
+        return compactedSegments;
+    }
+
+    /**
+     * @return how many compacted segments have had their mapping released.
+     */
+    public long getUnmappedSegmentCount() {
+        return unmappedSegments.get();
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Decodes the newest version of a message from its segment.
+     * @return the message, or null if there is none with that id.
+     */
+    private Message read(int messageId) {
+        while (true) {
+            Long location = index.get(messageId);
+            if (location == null) {
+                return null;
+            }
+            Segment segment = segments.get(segmentOf(location));
+            if (segment != null && segment.pin()) {
+                try {
+                    return segment.decode(offsetOf(location));
+                } finally {
+                    segment.unpin();
+                }
+            }
+            // the segment was compacted after the lookup, and the index already points to the copy
+        }
+    }
+
+    /**
+     * Decodes a message found while walking the index, without looking it up again unless it has just been moved.
+     */
+    private Message read(Map.Entry<Integer, Long> entry) {
+        Segment segment = segments.get(segmentOf(entry.getValue()));
+        if (segment == null || !segment.pin()) {
+            return read(entry.getKey());
+        }
+        try {
+            return segment.decode(offsetOf(entry.getValue()));
+        } finally {
+            segment.unpin();
+        }
+    }
+
+    private void addIfPresent(List<Message> messages, int messageId) {
+        Message message = read(messageId);
+        if (message != null) {
+            messages.add(message);
+        }
+    }
+
+    private void addIfPresent(List<Message> messages, Map.Entry<Integer, Long> entry) {
+        Message message = read(entry);
+        if (message != null) {
+            messages.add(message);
+        }
+    }
+
+    private void stream(int messageId, MessageRowHandler handler) throws IOException {
+        Message message = read(messageId);
+        if (message != null) {
+            handler.onRow(message.getMessage_id(), message.getPosted_by(), message.getMessage_text(),
+                    message.getTime_posted_epoch());
+        }
+    }
+
+    private List<Message> postedBy(int accountId, int afterId, int limit) {
+        List<Message> messages = new ArrayList<>();
+        for (Long key : byAccount.subSet(accountKey(accountId, afterId), false, accountKey(accountId, -1), true)) {
+            if (messages.size() >= limit) {
+                break;
+            }
+            addIfPresent(messages, (int) (long) key);
+        }
+        return messages;
+    }
+
+    private static long accountKey(int postedBy, int messageId) {
+        return ((long) postedBy << 32) | (messageId & 0xFFFFFFFFL);
+    }
+
+    private static long location(int segment, int offset) {
+        return ((long) segment << 32) | offset;
+    }
+
+    private static int segmentOf(long location) {
+        return (int) (location >>> 32);
+    }
+
+    private static int offsetOf(long location) {
+        return (int) location;
+    }
+
+    private static boolean isStorable(Message message) {
+        return message != null && message.getMessage_text() != null
+                && message.getMessage_text().length() <= MAX_TEXT_LENGTH;
+    }
+
+    /**
+     * Points the index at a message's new position, and counts the position it replaces as garbage.
+     */
+    private void put(int messageId, int postedBy, long timePostedEpoch, long location, int size) {
+        Long previous = index.put(messageId, location);
+        if (previous != null) {
+            Segment segment = release(previous);
+            // a replayed insert may reuse the id of a message posted at another time
+            if (segment != null && segment.timePosted(offsetOf(previous)) != timePostedEpoch) {
+                byTime.remove(new EpochKey(segment.timePosted(offsetOf(previous)), messageId));
+            }
+        }
+        byAccount.add(accountKey(postedBy, messageId));
+        byTime.add(new EpochKey(timePostedEpoch, messageId));
+        segments.get(segmentOf(location)).liveBytes += size;
+    }
+
+    private void remove(int messageId) {
+        Long previous = index.remove(messageId);
+        if (previous != null) {
+            Segment segment = release(previous);
+            if (segment != null) {
+                byAccount.remove(accountKey(segment.postedBy(offsetOf(previous)), messageId));
+                byTime.remove(new EpochKey(segment.timePosted(offsetOf(previous)), messageId));
+            }
+        }
+    }
+
+    private Segment release(long location) {
+        Segment segment = segments.get(segmentOf(location));
+        if (segment != null) {
+            segment.liveBytes -= segment.entrySize(offsetOf(location));
+        }
+        return segment;
+    }
+
+    /**
+     * Appends one PUT record holding the messages, then indexes them.
+     * @return false if the record could not be written, in which case nothing was indexed.
+     */
+    private boolean appendPuts(List<Message> messages) {
+        byte[][] texts = new byte[messages.size()][];
+        int size = PUT_HEADER;
+        for (int i = 0; i < texts.length; i++) {
+            texts[i] = messages.get(i).getMessage_text().getBytes(StandardCharsets.UTF_8);
+            size += ENTRY_HEADER + texts[i].length;
+        }
+        ByteBuffer record = ByteBuffer.allocate(size);
+        record.put(PUT).putInt(messages.size());
+        for (int i = 0; i < texts.length; i++) {
+            Message message = messages.get(i);
+            record.putInt(message.getMessage_id()).putInt(message.getPosted_by())
+                    .putLong(message.getTime_posted_epoch()).putShort((short) texts[i].length).put(texts[i]);
+        }
+        long location = append(record);
+        if (location < 0) {
+            return false;
+        }
+        long entry = location + PUT_HEADER;
+        for (int i = 0; i < texts.length; i++) {
+            Message message = messages.get(i);
+            put(message.getMessage_id(), message.getPosted_by(), message.getTime_posted_epoch(), entry, ENTRY_HEADER + texts[i].length);
+            entry += ENTRY_HEADER + texts[i].length;
+        }
+        return true;
+    }
+
+    private boolean appendInt(byte type, int value) {
+        return append(ByteBuffer.allocate(5).put(type).putInt(value)) >= 0;
+    }
+
+    /**
+     * Frames the record and writes it to the active segment, starting a new segment if it does not fit. The length
+     * is written last, so a record cut short by a crash still reads as the end of the segment.
+     * @param record - the record, with its position at its end.
+     * @return the position of the record's first byte after the frame header, or -1 if it could not be written.
+     */
+    private long append(ByteBuffer record) {
+        record.flip();
+        int length = record.remaining();
+        if (closed) {
+            System.out.println("The message log in " + directory + " is closed");
+            return -1;
+        }
+        // leave room for a zero length after the record, which marks the end of the segment
+        if (FRAME_HEADER + length + 4 > segmentSize) {
+            System.out.println("A record of " + length + " bytes does not fit in a segment of " + segmentSize);
+            return -1;
+        }
+        try {
+            if (active == null || active.position + FRAME_HEADER + length + 4 > active.capacity) {
+                startSegment(active == null ? 1 : active.number + 1);
+            }
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            return -1;
+        }
+        crc.reset();
+        crc.update(record.duplicate());
+        int offset = active.position;
+        ByteBuffer out = active.buffer.duplicate();
+        out.position(offset + FRAME_HEADER);
+        out.put(record);
+        out.putInt(offset + 4, (int) crc.getValue());
+        out.putInt(offset, length);
+        if (fsync) {
+            active.buffer.force();
+        }
+        active.position = offset + FRAME_HEADER + length;
+        return location(active.number, offset + FRAME_HEADER);
+    }
+
+    private void startSegment(int number) throws IOException {
+        Path path = directory.resolve(String.format("%s%010d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+        Segment segment = new Segment(number, path, buffer, unmappedSegments);
+        segments.put(number, segment);
+        active = segment;
+    }
+
+    /**
+     * Appends the messages in the segment that the index still points to, and the tombstones that may still hide a
+     * message in an older segment, so the segment can be deleted.
+     * @param oldest - whether no older segment exists, in which case tombstones have nothing left to hide.
+     * @return false if an append failed; the segment must then be kept.
+     */
+    private boolean copyLiveRecords(Segment segment, boolean oldest) {
+        List<Message> live = new ArrayList<>();
+        int liveSize = PUT_HEADER;
+        int offset = 0;
+        while (offset < segment.position) {
+            int length = segment.buffer.getInt(offset);
+            int record = offset + FRAME_HEADER;
+            byte type = segment.buffer.get(record);
+            if (type == PUT) {
+                int count = segment.buffer.getInt(record + 1);
+                int entry = record + PUT_HEADER;
+                for (int i = 0; i < count; i++) {
+                    int messageId = segment.buffer.getInt(entry);
+                    Long current = index.get(messageId);
+                    if (current != null && current == location(segment.number, entry)) {
+                        if (liveSize + segment.entrySize(entry) > COPY_RECORD_SIZE) {
+                            if (!appendPuts(live)) {
+                                return false;
+                            }
+                            live.clear();
+                            liveSize = PUT_HEADER;
+                        }
+                        live.add(segment.decode(entry));
+                        liveSize += segment.entrySize(entry);
+                    }
+                    entry += segment.entrySize(entry);
+                }
+            } else if (type == DELETE && !oldest) {
+                int messageId = segment.buffer.getInt(record + 1);
+                if (!index.containsKey(messageId) && !appendInt(DELETE, messageId)) {
+                    return false;
+                }
+            }
+            offset = record + length;
+        }
+        if (!live.isEmpty() && !appendPuts(live)) {
+            return false;
+        }
+        // the segment may hold the only reservation of ids still handed out by the write-behind queue
+        return appendInt(RESERVE, nextId);
+    }
+
+    /**
+     * Scans the segments, or seeds the first one if there are none, and starts the compactor. Runs once, on the
+     * first call to any method.
+     */
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        synchronized (writeLock) {
+            if (loaded) {
+                return;
+            }
+            try {
+                Files.createDirectories(directory);
+                List<Path> paths = new ArrayList<>();
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+                        SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+                    files.forEach(paths::add);
+                }
+                Collections.sort(paths);
+                if (paths.isEmpty()) {
+                    seed();
+                } else {
+                    for (Path path : paths) {
+                        replay(path);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not load the message log in " + directory, e);
+            }
+            if (compactIntervalMillis > 0 && !closed) {
+                compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "message-log-compactor");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                compactor.scheduleWithFixedDelay(this::compactQuietly, compactIntervalMillis, compactIntervalMillis,
+                        TimeUnit.MILLISECONDS);
+            }
+            loaded = true;
+        }
+    }
+
+    private void compactQuietly() {
+        try {
+            compact();
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void seed() throws IOException {
+        List<Message> batch = new ArrayList<>();
+        int batchSize = PUT_HEADER;
+        for (Message message : seed.retrieveAllMessages()) {
+            int size = ENTRY_HEADER + message.getMessage_text().getBytes(StandardCharsets.UTF_8).length;
+            if (batchSize + size > COPY_RECORD_SIZE) {
+                seedBatch(batch);
+                batch.clear();
+                batchSize = PUT_HEADER;
+            }
+            batch.add(message);
+            batchSize += size;
+            nextId = Math.max(nextId, message.getMessage_id() + 1);
+        }
+        seedBatch(batch);
+        if (!appendInt(RESERVE, nextId)) {
+            throw new IOException("Could not seed the message log in " + directory);
+        }
+    }
+
+    private void seedBatch(List<Message> batch) throws IOException {
+        if (!batch.isEmpty() && !appendPuts(batch)) {
+            throw new IOException("Could not seed the message log in " + directory);
+        }
+    }
+
+    /**
+     * Maps a segment and applies its intact records. The last segment becomes the active one; anything after its
+     * last intact record is cleared so new records can follow it.
+     */
+    private void replay(Path path) throws IOException {
+        String name = path.getFileName().toString();
+        int number = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        }
+        Segment segment = new Segment(number, path, buffer, unmappedSegments);
+        segments.put(number, segment);
+        active = segment;
+
+        int offset = 0;
+        while (offset + FRAME_HEADER <= segment.capacity) {
+            int length = buffer.getInt(offset);
+            if (length <= 0 || offset + FRAME_HEADER + length > segment.capacity) {
+                break;
+            }
+            ByteBuffer record = buffer.duplicate();
+            record.position(offset + FRAME_HEADER).limit(offset + FRAME_HEADER + length);
+            crc.reset();
+            crc.update(record);
+            if ((int) crc.getValue() != buffer.getInt(offset + 4)) {
+                break;
+            }
+            apply(segment, offset + FRAME_HEADER);
+            offset += FRAME_HEADER + length;
+        }
+        segment.position = offset;
+        if (offset + 4 <= segment.capacity && buffer.getInt(offset) != 0) {
+            System.out.println("Dropping damaged records at offset " + offset + " of " + path);
+            for (int i = offset; i < segment.capacity; i++) {
+                buffer.put(i, (byte) 0);
+            }
+        }
+    }
+
+    private void apply(Segment segment, int record) {
+        byte type = segment.buffer.get(record);
+        if (type == PUT) {
+            int count = segment.buffer.getInt(record + 1);
+            int entry = record + PUT_HEADER;
+            for (int i = 0; i < count; i++) {
+                int messageId = segment.buffer.getInt(entry);
+                put(messageId, segment.postedBy(entry), segment.timePosted(entry), location(segment.number, entry),
+                        segment.entrySize(entry));
+                nextId = Math.max(nextId, messageId + 1);
+                entry += segment.entrySize(entry);
+            }
+        } else if (type == DELETE) {
+            remove(segment.buffer.getInt(record + 1));
+        } else if (type == RESERVE) {
+            nextId = Math.max(nextId, segment.buffer.getInt(record + 1));
+        }
+    }
+
+    /**
+     * The JDK's sun.misc.Unsafe.invokeCleaner, which releases a mapping at once. Null if this JVM does not offer it, in which
+     * case a retired segment's mapping is left to the garbage collector.
+     */
+    private static final MethodHandle INVOKE_CLEANER = findInvokeCleaner();
+
+    private static MethodHandle findInvokeCleaner() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(theUnsafe.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            System.out.println("Compacted segments will be unmapped by the garbage collector: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * One mapped segment file. Readers only use absolute gets on the buffer, so they can share it with the writer.
+     *
+     * The segments map holds one reference and each reader decoding from the buffer holds another. Compaction drops
+     * the map's reference with retire(), and whoever drops the last one unmaps the buffer; after that pin() fails, so
+     * no reader can touch the released memory.
+     */
+    private static final class Segment {
+        final int number;
+        final Path path;
+        final MappedByteBuffer buffer;
+        final int capacity;
+        private final AtomicInteger references = new AtomicInteger(1);
+        private final AtomicLong unmapped;
+        /**
+         * Where the next record goes. Written under the write lock.
+         */
+        volatile int position;
+        /**
+         * Bytes of messages the index points to. Written under the write lock.
+         */
+        volatile long liveBytes;
+
+        /**
+         * @param unmapped - counts the segments whose mapping has been released.
+         */
+        Segment(int number, Path path, MappedByteBuffer buffer, AtomicLong unmapped) {
+            this.number = number;
+            this.path = path;
+            this.buffer = buffer;
+            this.capacity = buffer.capacity();
+            this.unmapped = unmapped;
+        }
+
+        int postedBy(int entry) {
+            return buffer.getInt(entry + 4);
+        }
+
+        long timePosted(int entry) {
+            return buffer.getLong(entry + 8);
+        }
+
+        int entrySize(int entry) {
+            return ENTRY_HEADER + (buffer.getShort(entry + 16) & 0xFFFF);
+        }
+
+        /**
+         * @return false if the segment has been retired and unmapped, and must not be read.
+         */
+        boolean pin() {
+            while (true) {
+                int count = references.get();
+                if (count == 0) {
+                    return false;
+                }
+                if (references.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void unpin() {
+            if (references.decrementAndGet() == 0) {
+                unmap();
+            }
+        }
+
+        /**
+         * Called once, when the segment has been removed from the segments map.
+         */
+        void retire() {
+            unpin();
+        }
+
+        private void unmap() {
+            if (INVOKE_CLEANER == null) {
+                return;
+            }
+            try {
+                INVOKE_CLEANER.invokeExact((ByteBuffer) buffer);
+                unmapped.incrementAndGet();
+            } catch (Throwable e) {
+                System.out.println("Could not unmap " + path + ": " + e.getMessage());
+            }
+        }
+
+        Message decode(int entry) {
+            int textLength = buffer.getShort(entry + 16) & 0xFFFF;
+            ByteBuffer source = buffer.duplicate();
+            source.position(entry + ENTRY_HEADER).limit(entry + ENTRY_HEADER + textLength);
+            byte[] text = new byte[textLength];
+            source.get(text);
+            return new Message(buffer.getInt(entry), buffer.getInt(entry + 4),
+                    new String(text, StandardCharsets.UTF_8), buffer.getLong(entry + 8));
+        }
+    }
+}
@@ -0,0 +1,351 @@
+package DAO;
+
+import Model.Message;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded, concurrent cache of messages keyed by message_id.
+ *
+ * Every lookup is recorded in a small count-min sketch that estimates how often each id has been asked for recently.
+ * When the cache is full, a few of the oldest entries are examined and the least frequently used one is the eviction
+ * victim; a new entry is only admitted if it has been asked for more often than that victim. This keeps hot messages
+ * resident even when a scan touches many cold ones (the TinyLFU policy).
+ *
+ * Entries expire after a fixed time to live. Messages are copied on the way in and out, because Message is mutable
+ * and callers are free to change the objects they get back.
+ */
+public class MessageCache {
+    /**
+     * How many of the oldest entries are compared when picking an eviction victim.
+     */
+    private static final int EVICTION_SAMPLE = 4;
+    /**
+     * How many invalidation counters the ids are spread over. A power of two.
+     */
+    private static final int STAMP_STRIPES = 1024;
+
+    private final ConcurrentHashMap<Integer, Entry> entries;
+    /**
+     * Entries in roughly the order they were admitted. Eviction candidates are taken from the head; survivors go back
+     * to the tail. May hold entries that have since been invalidated, which are skipped and purged.
+     */
+    private final ConcurrentLinkedQueue<Entry> admissionOrder = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final FrequencySketch sketch;
+    private final int maximumSize;
+    private final long ttlNanos;
+    /**
+     * Invalidation counters, one per stripe of ids. Invalidating an id increments its stripe's counter before the
+     * entry is removed. A read-through load only keeps its result if its stripe's counter did not move while it was
+     * reading, so a load that raced with a write cannot put a stale row back, and a write only holds back the loads
+     * of ids that share its stripe.
+     */
+    private final AtomicLongArray invalidations = new AtomicLongArray(STAMP_STRIPES);
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    /**
+     * @param maximumSize the most messages the cache holds.
+     * @param ttlMillis how long a message stays cached after it was stored.
+     */
+    public MessageCache(int maximumSize, long ttlMillis) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("maximumSize must be at least 1");
+        }
+        this.maximumSize = maximumSize;
+        this.ttlNanos = ttlMillis * 1_000_000L;
+        this.entries = new ConcurrentHashMap<>(Math.min(maximumSize, 1 << 16));
+        this.sketch = new FrequencySketch(maximumSize);
+    }
+
+    /**
+     * @return a copy of the cached message, or null on a miss.
+     */
+    public Message get(int messageId) {
+        sketch.increment(messageId);
+        Entry entry = entries.get(messageId);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        if (System.nanoTime() - entry.storedAt > ttlNanos) {
+            entries.remove(messageId, entry);
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return copy(entry.message);
+    }
+
+    /**
+     * @return a token to pass to putIfNotInvalidated once the row with this id has been loaded.
+     */
+    public long loadStamp(int messageId) {
+        return invalidations.get(stripe(messageId));
+    }
+
+    /**
+     * Stores a message loaded from the database, unless its id was invalidated since stamp was taken. The stamp is
+     * checked again after the put: an invalidation that lands between the first check and the put has already run
+     * its remove, so the entry it would have removed is taken out here instead.
+     */
+    public void putIfNotInvalidated(Message message, long stamp) {
+        int stripe = stripe(message.getMessage_id());
+        if (invalidations.get(stripe) != stamp) {
+            return;
+        }
+        put(message);
+        if (invalidations.get(stripe) != stamp) {
+            entries.remove(message.getMessage_id());
+        }
+    }
+
+    /**
+     * Stores a message, evicting the least frequently used of the oldest entries if the cache is full.
+     */
+    public void put(Message message) {
+        int messageId = message.getMessage_id();
+        Entry existing = entries.get(messageId);
+        if (existing != null) {
+            existing.update(copy(message));
+            return;
+        }
+        if (entries.size() >= maximumSize && !makeRoomFor(messageId)) {
+            rejections.increment();
+            return;
+        }
+        Entry entry = new Entry(messageId, copy(message));
+        existing = entries.putIfAbsent(messageId, entry);
+        if (existing != null) {
+            existing.update(entry.message);
+            return;
+        }
+        admissionOrder.offer(entry);
+        if (queued.incrementAndGet() > 2 * maximumSize) {
+            purgeInvalidated();
+        }
+    }
+
+    /**
+     * Removes a message so the next lookup goes to the database.
+     */
+    public void invalidate(int messageId) {
+        invalidations.incrementAndGet(stripe(messageId));
+        entries.remove(messageId);
+    }
+
+    /**
+     * Removes every message.
+     */
+    public void invalidateAll() {
+        for (int i = 0; i < STAMP_STRIPES; i++) {
+            invalidations.incrementAndGet(i);
+        }
+        entries.clear();
+        admissionOrder.clear();
+        queued.set(0);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return how many messages were not cached because they were used less often than the entry they would replace.
+     */
+    public long getRejectionCount() {
+        return rejections.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "MessageCache{" +
+                "size=" + size() +
+                ", hits=" + getHitCount() +
+                ", misses=" + getMissCount() +
+                ", evictions=" + getEvictionCount() +
+                '}';
+    }
+
+    /**
+     * Picks the least frequently used of the oldest few entries and evicts it, if the candidate is used more often.
+     * @return true if there is room for the candidate.
+     */
+    private boolean makeRoomFor(int candidateId) {
+        Entry victim = null;
+        int victimFrequency = Integer.MAX_VALUE;
+        Entry[] sampled = new Entry[EVICTION_SAMPLE];
+        int sampledCount = 0;
+        while (sampledCount < EVICTION_SAMPLE) {
+            Entry entry = admissionOrder.poll();
+            if (entry == null) {
+                break;
+            }
+            queued.decrementAndGet();
+            if (!isLive(entry)) {
+                continue;
+            }
+            sampled[sampledCount++] = entry;
+            int frequency = sketch.frequency(entry.key);
+            if (frequency < victimFrequency) {
+                victim = entry;
+                victimFrequency = frequency;
+            }
+        }
+        for (int i = 0; i < sampledCount; i++) {
+            if (sampled[i] != victim) {
+                requeue(sampled[i]);
+            }
+        }
+        if (victim == null) {
+            return true;
+        }
+        if (sketch.frequency(candidateId) <= victimFrequency) {
+            requeue(victim);
+            return false;
+        }
+        if (entries.remove(victim.key, victim)) {
+            evictions.increment();
+        }
+        return true;
+    }
+
+    private static int stripe(int messageId) {
+        int hash = messageId * 0x9E3779B9;
+        return (hash ^ hash >>> 16) & (STAMP_STRIPES - 1);
+    }
+
+    private void requeue(Entry entry) {
+        admissionOrder.offer(entry);
+        queued.incrementAndGet();
+    }
+
+    /**
+     * @return true if the entry is still the one stored for its key.
+     */
+    private boolean isLive(Entry entry) {
+        return entries.get(entry.key) == entry;
+    }
+
+    /**
+     * Drops queue entries whose message has been invalidated. Only runs once the queue has grown to twice the cache
+     * size, so its cost is spread over many writes.
+     */
+    private void purgeInvalidated() {
+        for (Iterator<Entry> iterator = admissionOrder.iterator(); iterator.hasNext(); ) {
+            if (!isLive(iterator.next())) {
+                iterator.remove();
+                queued.decrementAndGet();
+            }
+        }
+    }
+
+    private static Message copy(Message message) {
+        return new Message(message.getMessage_id(), message.getPosted_by(), message.getMessage_text(),
+                message.getTime_posted_epoch());
+    }
+
+    private static final class Entry {
+        final int key;
+        volatile Message message;
+        volatile long storedAt;
+
+        Entry(int key, Message message) {
+            this.key = key;
+            this.message = message;
+            this.storedAt = System.nanoTime();
+        }
+
+        void update(Message message) {
+            this.message = message;
+            this.storedAt = System.nanoTime();
+        }
+    }
+
+    /**
+     * A count-min sketch of 4-bit counters estimating how often each key was looked up. All counters are halved
+     * once the number of increments reaches ten times the cache size, so old popularity fades. Updates are not
+     * synchronized; a lost increment under contention only makes the estimate slightly lower.
+     */
+    static final class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+
+        private final byte[][] table;
+        private final int[] seeds = new int[DEPTH];
+        private final int mask;
+        private final int resetAfter;
+        private int additions;
+
+        FrequencySketch(int maximumSize) {
+            int width = Integer.highestOneBit(Math.max(16, Math.min(maximumSize, 1 << 22)) - 1) << 1;
+            this.table = new byte[DEPTH][width];
+            this.mask = width - 1;
+            this.resetAfter = 10 * Math.max(maximumSize, 16);
+            for (int i = 0; i < DEPTH; i++) {
+                seeds[i] = ThreadLocalRandom.current().nextInt() | 1;
+            }
+        }
+
+        void increment(int key) {
+            for (int i = 0; i < DEPTH; i++) {
+                int index = index(key, i);
+                if (table[i][index] < MAX_COUNT) {
+                    table[i][index]++;
+                }
+            }
+            if (++additions >= resetAfter) {
+                reset();
+            }
+        }
+
+        int frequency(int key) {
+            int min = MAX_COUNT;
+            for (int i = 0; i < DEPTH; i++) {
+                min = Math.min(min, table[i][index(key, i)]);
+            }
+            return min;
+        }
+
+        private int index(int key, int row) {
+            int hash = key * seeds[row];
+            hash ^= hash >>> 16;
+            return hash & mask;
+        }
+
+        private void reset() {
+            additions = 0;
+            for (byte[] row : table) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = (byte) (row[i] >> 1);
+                }
+            }
+        }
+    }
+}
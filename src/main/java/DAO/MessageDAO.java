@@ -2,22 +2,91 @@ package DAO;
 
 import Model.Message;
 import Util.ConnectionUtil;
+import Util.Metrics;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.List;
 
 import java.sql.*;
 
-public class MessageDAO {
+/**
+ * The MessageRepository kept in the H2 message table.
+ */
+public class MessageDAO implements MessageRepository {
+    /**
+     * Call count and duration of each method, exposed on GET /metrics.
+     */
+    private static final Metrics.QueryMetrics QUERY_INSERT_MESSAGE = Metrics.query("MessageDAO", "insertMessage");
+    private static final Metrics.QueryMetrics QUERY_INSERT_MESSAGES = Metrics.query("MessageDAO", "insertMessages");
+    private static final Metrics.QueryMetrics QUERY_INSERT_MESSAGES_WITH_IDS =
+            Metrics.query("MessageDAO", "insertMessagesWithIds");
+    private static final Metrics.QueryMetrics QUERY_RESERVE_MESSAGE_IDS =
+            Metrics.query("MessageDAO", "reserveMessageIds");
+    private static final Metrics.QueryMetrics QUERY_RETRIEVE_ALL_MESSAGES =
+            Metrics.query("MessageDAO", "retrieveAllMessages");
+    private static final Metrics.QueryMetrics QUERY_RETRIEVE_MESSAGE_BY_ID =
+            Metrics.query("MessageDAO", "retrieveMessageById");
+    private static final Metrics.QueryMetrics QUERY_RETRIEVE_MESSAGES_BY_IDS =
+            Metrics.query("MessageDAO", "retrieveMessagesByIds");
+    private static final Metrics.QueryMetrics QUERY_DELETE_MESSAGE_BY_ID =
+            Metrics.query("MessageDAO", "deleteMessageById");
+    private static final Metrics.QueryMetrics QUERY_UPDATE_MESSAGE = Metrics.query("MessageDAO", "updateMessage");
+    private static final Metrics.QueryMetrics QUERY_UPDATE_MESSAGE_TEXT =
+            Metrics.query("MessageDAO", "updateMessageText");
+    private static final Metrics.QueryMetrics QUERY_RETRIEVE_MESSAGES_BY_ACCOUNT_ID =
+            Metrics.query("MessageDAO", "retrieveMessagesByAccountId");
+    private static final Metrics.QueryMetrics QUERY_RETRIEVE_MESSAGES_AFTER =
+            Metrics.query("MessageDAO", "retrieveMessagesAfter");
+    private static final Metrics.QueryMetrics QUERY_RETRIEVE_MESSAGES_BY_ACCOUNT_ID_AFTER =
+            Metrics.query("MessageDAO", "retrieveMessagesByAccountIdAfter");
+    private static final Metrics.QueryMetrics QUERY_RETRIEVE_MESSAGES_IN_TIME_RANGE =
+            Metrics.query("MessageDAO", "retrieveMessagesInTimeRange");
+    private static final Metrics.QueryMetrics QUERY_STREAM_ALL_MESSAGES =
+            Metrics.query("MessageDAO", "streamAllMessages");
+    private static final Metrics.QueryMetrics QUERY_STREAM_MESSAGES_BY_ACCOUNT_ID =
+            Metrics.query("MessageDAO", "streamMessagesByAccountId");
+
+    /**
+     * Rows fetched per round trip when streaming, which bounds the memory a streaming query holds at once. Embedded
+     * H2 only honours it in lazy query execution, which the streaming methods switch on for their connection.
+     */
+    private static final int STREAM_FETCH_SIZE = 500;
+
+    /**
+     * A stream keeps its pooled connection, and a database cursor, for as long as the client takes to read the
+     * response. So that slow clients cannot take the whole pool, at most db.stream.maxConcurrent streams run at once
+     * (half the pool by default); a stream that cannot start within db.stream.acquireTimeoutMillis fails, and one that
+     * is still running after db.stream.timeoutMillis is cut off.
+     */
+    private static final Semaphore STREAM_PERMITS = new Semaphore(Integer.getInteger("db.stream.maxConcurrent",
+            Math.max(1, Integer.getInteger("db.pool.maxSize", 10) / 2)));
+    private static final long STREAM_ACQUIRE_TIMEOUT_MILLIS = Long.getLong("db.stream.acquireTimeoutMillis", 5000L);
+    private static final long STREAM_TIMEOUT_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(Long.getLong("db.stream.timeoutMillis", 60000L));
+
+    /**
+     * Guards message_id generation. Inserts that let the database generate the id share the read lock; reserving a
+     * block of ids moves the identity counter and takes the write lock, so no generated id can land inside a block
+     * between reading the counter and moving it. This relies on every insert in the process going through MessageDAO.
+     */
+    private static final ReentrantReadWriteLock ID_LOCK = new ReentrantReadWriteLock();
+
     /**
      * Inserts a new message into the Messages table.
      * @param message - a Message object
      * @return a message object if no errors occur
      */
     public Message insertMessage(Message message){
-        Connection connection = ConnectionUtil.getConnection();
-        try {
-            String sql = "INSERT INTO message (posted_by, message_text, time_posted_epoch) VALUES (?, ?, ?)";
-            PreparedStatement preparedStatement = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+        String sql = "INSERT INTO message (posted_by, message_text, time_posted_epoch) VALUES (?, ?, ?)";
+        long start = System.nanoTime();
+        ID_LOCK.readLock().lock();
+        try (Connection connection = ConnectionUtil.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
 
             //write preparedStatement's setString method here.
             preparedStatement.setInt(1, message.getPosted_by());
@@ -25,29 +94,164 @@ public class MessageDAO {
             preparedStatement.setLong(3, message.getTime_posted_epoch());
 
             preparedStatement.executeUpdate();
-            ResultSet pkeyResultSet = preparedStatement.getGeneratedKeys();
-            if(pkeyResultSet.next()){
-                int generated_message_id = (int) pkeyResultSet.getLong(1);
-                return new Message(generated_message_id, message.getPosted_by(), message.getMessage_text(), message.getTime_posted_epoch());
+            try (ResultSet pkeyResultSet = preparedStatement.getGeneratedKeys()) {
+                if(pkeyResultSet.next()){
+                    int generated_message_id = (int) pkeyResultSet.getLong(1);
+                    return new Message(generated_message_id, message.getPosted_by(), message.getMessage_text(), message.getTime_posted_epoch());
+                }
+            }
+        }catch(SQLException e){
+            System.out.println(e.getMessage());
+        }finally{
+            QUERY_INSERT_MESSAGE.recordSince(start);
+            ID_LOCK.readLock().unlock();
+        }
+        return null;
+    }
+
+    /**
+     * Inserts several messages with one JDBC batch in a single transaction.
+     * @param messages - the messages to insert, none of which have an id yet.
+     * @return the inserted messages with their generated ids, in the same order, or null if the batch failed, in
+     *         which case nothing was inserted.
+     */
+    public List<Message> insertMessages(List<Message> messages){
+        if (messages.isEmpty()) {
+            return new ArrayList<>();
+        }
+        String sql = "INSERT INTO message (posted_by, message_text, time_posted_epoch) VALUES (?, ?, ?)";
+        long start = System.nanoTime();
+        ID_LOCK.readLock().lock();
+        try (Connection connection = ConnectionUtil.getConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement preparedStatement = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+                for (Message message : messages) {
+                    preparedStatement.setInt(1, message.getPosted_by());
+                    preparedStatement.setString(2, message.getMessage_text());
+                    preparedStatement.setLong(3, message.getTime_posted_epoch());
+                    preparedStatement.addBatch();
+                }
+                preparedStatement.executeBatch();
+
+                List<Message> inserted = new ArrayList<>(messages.size());
+                try (ResultSet pkeyResultSet = preparedStatement.getGeneratedKeys()) {
+                    for (Message message : messages) {
+                        if (!pkeyResultSet.next()) {
+                            throw new SQLException("Missing generated key for batch insert");
+                        }
+                        inserted.add(new Message((int) pkeyResultSet.getLong(1), message.getPosted_by(),
+                                message.getMessage_text(), message.getTime_posted_epoch()));
+                    }
+                }
+                connection.commit();
+                return inserted;
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
             }
         }catch(SQLException e){
             System.out.println(e.getMessage());
+        }finally{
+            QUERY_INSERT_MESSAGES.recordSince(start);
+            ID_LOCK.readLock().unlock();
         }
         return null;
     }
 
+    /**
+     * Inserts messages whose ids were taken from a block returned by reserveMessageIds, as one JDBC batch in a single
+     * transaction.
+     * @param messages - messages that already carry their message_id.
+     * @return true if every message was inserted, false if the batch failed and nothing was inserted.
+     */
+    public boolean insertMessagesWithIds(List<Message> messages){
+        if (messages.isEmpty()) {
+            return true;
+        }
+        String sql = "INSERT INTO message (message_id, posted_by, message_text, time_posted_epoch) VALUES (?, ?, ?, ?)";
+        long start = System.nanoTime();
+        try (Connection connection = ConnectionUtil.getConnection()) {
+            connection.setAutoCommit(false);
+            try (PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
+                for (Message message : messages) {
+                    preparedStatement.setInt(1, message.getMessage_id());
+                    preparedStatement.setInt(2, message.getPosted_by());
+                    preparedStatement.setString(3, message.getMessage_text());
+                    preparedStatement.setLong(4, message.getTime_posted_epoch());
+                    preparedStatement.addBatch();
+                }
+                preparedStatement.executeBatch();
+                connection.commit();
+                return true;
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        }catch(SQLException e){
+            System.out.println(e.getMessage());
+        }finally{
+            QUERY_INSERT_MESSAGES_WITH_IDS.recordSince(start);
+        }
+        return false;
+    }
+
+    /**
+     * Reserves a block of consecutive message ids that the database will never generate itself, by moving the
+     * message_id identity counter past the block.
+     *
+     * Moving the counter is DDL, which H2 commits on its own; it runs on a connection of its own with nothing else in
+     * its transaction. ID_LOCK only orders it against the inserts of this process. The default file database can
+     * only be opened by one process at a time; a server database shared by several instances would need the
+     * reservation serialized in the database instead.
+     * @param count - how many ids to reserve.
+     * @return the first id of the block, or -1 if the block could not be reserved.
+     */
+    public int reserveMessageIds(int count){
+        String baseSql = "SELECT IDENTITY_BASE FROM INFORMATION_SCHEMA.COLUMNS "
+                + "WHERE TABLE_NAME = 'MESSAGE' AND COLUMN_NAME = 'MESSAGE_ID'";
+        long start = System.nanoTime();
+        ID_LOCK.writeLock().lock();
+        try (Connection connection = ConnectionUtil.getConnection();
+             Statement statement = connection.createStatement()) {
+            int first;
+            try (ResultSet rs = statement.executeQuery(baseSql)) {
+                if (!rs.next()) {
+                    return -1;
+                }
+                first = rs.getInt(1);
+            }
+            // ids inserted explicitly do not move the counter, so never hand out anything at or below the current max
+            try (ResultSet rs = statement.executeQuery("SELECT COALESCE(MAX(message_id), 0) FROM message")) {
+                rs.next();
+                first = Math.max(first, rs.getInt(1) + 1);
+            }
+            statement.execute("ALTER TABLE message ALTER COLUMN message_id RESTART WITH " + ((long) first + count));
+            return first;
+        }catch(SQLException e){
+            System.out.println(e.getMessage());
+        }finally{
+            QUERY_RESERVE_MESSAGE_IDS.recordSince(start);
+            ID_LOCK.writeLock().unlock();
+        }
+        return -1;
+    }
+
     /**
      * Retrieves all messages from the Message table.
      * @return all Messages.
      */
     public List<Message> retrieveAllMessages(){
-        Connection connection = ConnectionUtil.getConnection();
         List<Message> messages = new ArrayList<>();
-        try {
-            //Write SQL logic here
-            String sql = "SELECT * FROM message";
-            PreparedStatement preparedStatement = connection.prepareStatement(sql);
-            ResultSet rs = preparedStatement.executeQuery();
+        //Write SQL logic here
+        String sql = "SELECT * FROM message";
+        long start = System.nanoTime();
+        try (Connection connection = ConnectionUtil.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(sql);
+             ResultSet rs = preparedStatement.executeQuery()) {
             while(rs.next()){
                 Message message = new Message(rs.getInt("message_id"),
                         rs.getInt("posted_by"),
@@ -57,6 +261,8 @@ public class MessageDAO {
             }
         }catch(SQLException e){
             System.out.println(e.getMessage());
+        }finally{
+            QUERY_RETRIEVE_ALL_MESSAGES.recordSince(start);
         }
         return messages;
     }
@@ -66,40 +272,109 @@ public class MessageDAO {
      * @return an account identified by username.
      * */
     public Message retrieveMessageById(int messageId) {
-        Connection connection = ConnectionUtil.getConnection();
-        try {
-            String sql = "SELECT * FROM message WHERE message_id = ?";
-            PreparedStatement preparedStatement = connection.prepareStatement(sql);
+        String sql = "SELECT * FROM message WHERE message_id = ?";
+        long start = System.nanoTime();
+        try (Connection connection = ConnectionUtil.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
     
             preparedStatement.setInt(1, messageId);
     
-            ResultSet resultSet = preparedStatement.executeQuery();
-            if (resultSet.next()) {
-                int postedBy = resultSet.getInt("posted_by");
-                String messageText = resultSet.getString("message_text");
-                Long timePosted = resultSet.getLong("time_posted_epoch");
-                return new Message(messageId, postedBy, messageText, timePosted);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                if (resultSet.next()) {
+                    int postedBy = resultSet.getInt("posted_by");
+                    String messageText = resultSet.getString("message_text");
+                    Long timePosted = resultSet.getLong("time_posted_epoch");
+                    return new Message(messageId, postedBy, messageText, timePosted);
+                }
             }
         } catch (SQLException e) {
             System.out.println(e.getMessage());
+        } finally {
+            QUERY_RETRIEVE_MESSAGE_BY_ID.recordSince(start);
         }
         return null;
     }
 
+    /**
+     * Retrieves several messages with one query, matching message_id against an array parameter so the statement is
+     * the same whatever the number of ids.
+     * @param messageIds - the ids to look up.
+     * @return the messages that exist, in the order their ids were given.
+     */
+    public List<Message> retrieveMessagesByIds(int[] messageIds) {
+        List<Message> messages = new ArrayList<>(messageIds.length);
+        if (messageIds.length == 0) {
+            return messages;
+        }
+        String sql = "SELECT * FROM message WHERE message_id = ANY(?)";
+        long start = System.nanoTime();
+        try (Connection connection = ConnectionUtil.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
+            Integer[] ids = new Integer[messageIds.length];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = messageIds[i];
+            }
+            preparedStatement.setArray(1, connection.createArrayOf("INTEGER", ids));
+
+            Map<Integer, Message> byId = new HashMap<>(messageIds.length * 2);
+            try (ResultSet resultSet = preparedStatement.executeQuery()) {
+                while (resultSet.next()) {
+                    Message message = mapMessage(resultSet);
+                    byId.put(message.getMessage_id(), message);
+                }
+            }
+            for (int messageId : messageIds) {
+                Message message = byId.get(messageId);
+                if (message != null) {
+                    messages.add(message);
+                }
+            }
+        } catch (SQLException e) {
+            System.out.println(e.getMessage());
+        } finally {
+            QUERY_RETRIEVE_MESSAGES_BY_IDS.recordSince(start);
+        }
+        return messages;
+    }
+
     /**
      * Deletes a message from the Message table
      * @return nothing.
      * */
     public void removeMessage(Message message) {
-        Connection connection = ConnectionUtil.getConnection();
-        try {
-            String sql = "DELETE * FROM message WHERE message_id = ?";
-            PreparedStatement preparedStatement = connection.prepareStatement(sql);
-            preparedStatement.setInt(1, message.getMessage_id());
-            preparedStatement.executeQuery();
+        deleteMessageById(message.getMessage_id());
+    }
+
+    /**
+     * Deletes a message and returns the row as it was before the delete, in a single statement. Selecting from the
+     * OLD TABLE of the DELETE means there is no separate read that another request could race with; the poster check,
+     * when there is one, is part of the same WHERE clause.
+     * @param messageId - the id of the message to delete.
+     * @param postedBy - the account the message must belong to, or ANY_POSTER.
+     * @return the deleted message, or null if there was no message with that id posted by that account.
+     */
+    public Message deleteMessageById(int messageId, int postedBy) {
+        String sql = "SELECT message_id, posted_by, message_text, time_posted_epoch "
+                + "FROM OLD TABLE (DELETE FROM message WHERE message_id = ?"
+                + (postedBy == ANY_POSTER ? ")" : " AND posted_by = ?)");
+        long start = System.nanoTime();
+        try (Connection connection = ConnectionUtil.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
+            preparedStatement.setInt(1, messageId);
+            if (postedBy != ANY_POSTER) {
+                preparedStatement.setInt(2, postedBy);
+            }
+            try (ResultSet rs = preparedStatement.executeQuery()) {
+                if (rs.next()) {
+                    return mapMessage(rs);
+                }
+            }
         } catch (SQLException e) {
             System.out.println(e.getMessage());
+        } finally {
+            QUERY_DELETE_MESSAGE_BY_ID.recordSince(start);
         }
+        return null;
     }
 
     /**
@@ -109,18 +384,53 @@ public class MessageDAO {
      */
 
     public void updateMessage(Message message) {
-        Connection connection = ConnectionUtil.getConnection();
-        try{
-            String sql = "UPDATE message SET posted_by = ?, message_text = ?, time_posted_epoch = ? WHERE message_id = ?";
-            PreparedStatement preparedStatement = connection.prepareStatement(sql);       
+        String sql = "UPDATE message SET posted_by = ?, message_text = ?, time_posted_epoch = ? WHERE message_id = ?";
+        long start = System.nanoTime();
+        try (Connection connection = ConnectionUtil.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
             preparedStatement.setInt(1, message.getPosted_by());
             preparedStatement.setString(2, message.getMessage_text());
             preparedStatement.setLong(3, message.getTime_posted_epoch());
             preparedStatement.setInt(4, message.getMessage_id());
-            preparedStatement.executeQuery();
+            preparedStatement.executeUpdate();
+        } catch (SQLException e) {
+            System.out.println(e.getMessage());
+        } finally {
+            QUERY_UPDATE_MESSAGE.recordSince(start);
+        }
+    }
+
+    /**
+     * Changes the text of a message and returns the updated row, in a single statement. Only message_text is
+     * written; selecting from the FINAL TABLE of the UPDATE returns the row as it is after the change.
+     * @param messageId - the id of the message to update.
+     * @param postedBy - the account the message must belong to, or ANY_POSTER.
+     * @param messageText - the new text.
+     * @return the updated message, or null if there was no message with that id posted by that account.
+     */
+    public Message updateMessageText(int messageId, int postedBy, String messageText) {
+        String sql = "SELECT message_id, posted_by, message_text, time_posted_epoch "
+                + "FROM FINAL TABLE (UPDATE message SET message_text = ? WHERE message_id = ?"
+                + (postedBy == ANY_POSTER ? ")" : " AND posted_by = ?)");
+        long start = System.nanoTime();
+        try (Connection connection = ConnectionUtil.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
+            preparedStatement.setString(1, messageText);
+            preparedStatement.setInt(2, messageId);
+            if (postedBy != ANY_POSTER) {
+                preparedStatement.setInt(3, postedBy);
+            }
+            try (ResultSet rs = preparedStatement.executeQuery()) {
+                if (rs.next()) {
+                    return mapMessage(rs);
+                }
+            }
         } catch (SQLException e) {
             System.out.println(e.getMessage());
+        } finally {
+            QUERY_UPDATE_MESSAGE_TEXT.recordSince(start);
         }
+        return null;
     }
 
     /**
@@ -128,24 +438,240 @@ public class MessageDAO {
      * @return all Messages.
      */
     public List<Message> retrieveMessagesByAccountId(int accountId){
-        Connection connection = ConnectionUtil.getConnection();
         List<Message> messages = new ArrayList<>();
-        try {
-            //Write SQL logic here
-            String sql = "SELECT * FROM message WHERE posted_by = ?";
-            PreparedStatement preparedStatement = connection.prepareStatement(sql);
+        //Write SQL logic here
+        String sql = "SELECT * FROM message WHERE posted_by = ?";
+        long start = System.nanoTime();
+        try (Connection connection = ConnectionUtil.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
             preparedStatement.setInt(1, accountId);
-            ResultSet rs = preparedStatement.executeQuery();
-            while(rs.next()){
-                Message message = new Message(rs.getInt("message_id"),
-                        rs.getInt("posted_by"),
-                        rs.getString("message_text"),
-                        rs.getLong("time_posted_epoch"));
-                        messages.add(message);
+            try (ResultSet rs = preparedStatement.executeQuery()) {
+                while(rs.next()){
+                    Message message = new Message(rs.getInt("message_id"),
+                            rs.getInt("posted_by"),
+                            rs.getString("message_text"),
+                            rs.getLong("time_posted_epoch"));
+                            messages.add(message);
+                }
+            }
+        }catch(SQLException e){
+            System.out.println(e.getMessage());
+        }finally{
+            QUERY_RETRIEVE_MESSAGES_BY_ACCOUNT_ID.recordSince(start);
+        }
+        return messages;
+    }
+
+    /**
+     * Retrieves one page of messages with a message_id greater than afterId, in message_id order. This is a range
+     * scan on the primary key, so the cost depends on the page size and not on the size of the table.
+     * @param afterId - the last message_id of the previous page, or 0 for the first page.
+     * @param limit - the maximum number of messages to return.
+     * @return up to limit messages.
+     */
+    public List<Message> retrieveMessagesAfter(int afterId, int limit){
+        List<Message> messages = new ArrayList<>(limit);
+        String sql = "SELECT * FROM message WHERE message_id > ? ORDER BY message_id LIMIT ?";
+        long start = System.nanoTime();
+        try (Connection connection = ConnectionUtil.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
+            preparedStatement.setInt(1, afterId);
+            preparedStatement.setInt(2, limit);
+            try (ResultSet rs = preparedStatement.executeQuery()) {
+                while(rs.next()){
+                    messages.add(mapMessage(rs));
+                }
+            }
+        }catch(SQLException e){
+            System.out.println(e.getMessage());
+        }finally{
+            QUERY_RETRIEVE_MESSAGES_AFTER.recordSince(start);
+        }
+        return messages;
+    }
+
+    /**
+     * Retrieves one page of messages posted by an account with a message_id greater than afterId, in message_id order.
+     * @param accountId - the account that posted the messages.
+     * @param afterId - the last message_id of the previous page, or 0 for the first page.
+     * @param limit - the maximum number of messages to return.
+     * @return up to limit messages.
+     */
+    public List<Message> retrieveMessagesByAccountIdAfter(int accountId, int afterId, int limit){
+        List<Message> messages = new ArrayList<>(limit);
+        String sql = "SELECT * FROM message WHERE posted_by = ? AND message_id > ? ORDER BY message_id LIMIT ?";
+        long start = System.nanoTime();
+        try (Connection connection = ConnectionUtil.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
+            preparedStatement.setInt(1, accountId);
+            preparedStatement.setInt(2, afterId);
+            preparedStatement.setInt(3, limit);
+            try (ResultSet rs = preparedStatement.executeQuery()) {
+                while(rs.next()){
+                    messages.add(mapMessage(rs));
+                }
             }
         }catch(SQLException e){
             System.out.println(e.getMessage());
+        }finally{
+            QUERY_RETRIEVE_MESSAGES_BY_ACCOUNT_ID_AFTER.recordSince(start);
         }
         return messages;
     }
-}
\ No newline at end of file
+
+    /**
+     * Retrieves one page of the messages posted within a time window, newest first. This is a range scan on the
+     * time_posted_epoch index, bounded above by the page cursor as well as by until, so the cost depends on the
+     * messages in the window and not on the size of the table.
+     * @param since - the earliest time_posted_epoch to include.
+     * @param until - the latest time_posted_epoch to include.
+     * @param beforeEpoch - the time_posted_epoch of the last message of the previous page, Long.MAX_VALUE for the
+     *                    first page.
+     * @param beforeId - the message_id of the last message of the previous page, Integer.MAX_VALUE for the first page.
+     * @param limit - the maximum number of messages to return.
+     * @return up to limit messages, newest first.
+     */
+    public List<Message> retrieveMessagesInTimeRange(long since, long until, long beforeEpoch, int beforeId,
+                                                     int limit){
+        List<Message> messages = new ArrayList<>(limit);
+        // messages at beforeEpoch itself are only those with a smaller message_id
+        String sql = "SELECT * FROM message WHERE time_posted_epoch BETWEEN ? AND ? "
+                + "AND (time_posted_epoch < ? OR message_id < ?) "
+                + "ORDER BY time_posted_epoch DESC, message_id DESC LIMIT ?";
+        long start = System.nanoTime();
+        try (Connection connection = ConnectionUtil.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
+            preparedStatement.setLong(1, since);
+            preparedStatement.setLong(2, Math.min(until, beforeEpoch));
+            preparedStatement.setLong(3, beforeEpoch);
+            preparedStatement.setInt(4, beforeId);
+            preparedStatement.setInt(5, limit);
+            try (ResultSet rs = preparedStatement.executeQuery()) {
+                while(rs.next()){
+                    messages.add(mapMessage(rs));
+                }
+            }
+        }catch(SQLException e){
+            System.out.println(e.getMessage());
+        }finally{
+            QUERY_RETRIEVE_MESSAGES_IN_TIME_RANGE.recordSince(start);
+        }
+        return messages;
+    }
+
+    /**
+     * Walks every row of the Message table in message_id order and hands each one to the handler as it is read, so
+     * the number of rows held in memory stays constant regardless of the size of the table.
+     * @param handler - receives each row.
+     * @throws IOException if the handler fails, for example because the client went away, or the stream could not
+     *         start or ran too long (see STREAM_PERMITS).
+     */
+    public void streamAllMessages(MessageRowHandler handler) throws IOException {
+        String sql = "SELECT * FROM message ORDER BY message_id";
+        long start = System.nanoTime();
+        acquireStreamPermit();
+        try (Connection connection = ConnectionUtil.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
+            setLazyQueryExecution(connection, true);
+            try {
+                preparedStatement.setFetchSize(STREAM_FETCH_SIZE);
+                try (ResultSet rs = preparedStatement.executeQuery()) {
+                    streamRows(rs, handler, start);
+                }
+            } finally {
+                setLazyQueryExecution(connection, false);
+            }
+        }catch(SQLException e){
+            System.out.println(e.getMessage());
+        }finally{
+            STREAM_PERMITS.release();
+            QUERY_STREAM_ALL_MESSAGES.recordSince(start);
+        }
+    }
+
+    /**
+     * Walks every message posted by an account in message_id order and hands each one to the handler as it is read.
+     * @param accountId - the account that posted the messages.
+     * @param handler - receives each row.
+     * @throws IOException if the handler fails, for example because the client went away, or the stream could not
+     *         start or ran too long (see STREAM_PERMITS).
+     */
+    public void streamMessagesByAccountId(int accountId, MessageRowHandler handler) throws IOException {
+        String sql = "SELECT * FROM message WHERE posted_by = ? ORDER BY message_id";
+        long start = System.nanoTime();
+        acquireStreamPermit();
+        try (Connection connection = ConnectionUtil.getConnection();
+             PreparedStatement preparedStatement = connection.prepareStatement(sql)) {
+            setLazyQueryExecution(connection, true);
+            try {
+                preparedStatement.setInt(1, accountId);
+                preparedStatement.setFetchSize(STREAM_FETCH_SIZE);
+                try (ResultSet rs = preparedStatement.executeQuery()) {
+                    streamRows(rs, handler, start);
+                }
+            } finally {
+                setLazyQueryExecution(connection, false);
+            }
+        }catch(SQLException e){
+            System.out.println(e.getMessage());
+        }finally{
+            STREAM_PERMITS.release();
+            QUERY_STREAM_MESSAGES_BY_ACCOUNT_ID.recordSince(start);
+        }
+    }
+
+    /**
+     * Waits for one of the streams allowed to run at once.
+     * @throws IOException if none became free in time, or the wait was interrupted.
+     */
+    private static void acquireStreamPermit() throws IOException {
+        try {
+            if (!STREAM_PERMITS.tryAcquire(STREAM_ACQUIRE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Too many messages are being streamed already");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting to stream messages", e);
+        }
+    }
+
+    /**
+     * Switches lazy query execution on or off for the session, so that H2 produces a result set's rows as they are
+     * fetched instead of materializing all of them first. It is switched off again before the connection goes back to
+     * the pool.
+     */
+    private static void setLazyQueryExecution(Connection connection, boolean lazy) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("SET LAZY_QUERY_EXECUTION " + (lazy ? "TRUE" : "FALSE"));
+        }
+    }
+
+    /**
+     * @param start - when the stream began, from System.nanoTime().
+     * @throws IOException if the handler fails, or the stream has run for longer than db.stream.timeoutMillis.
+     */
+    private static void streamRows(ResultSet rs, MessageRowHandler handler, long start)
+            throws SQLException, IOException {
+        int messageId = rs.findColumn("message_id");
+        int postedBy = rs.findColumn("posted_by");
+        int messageText = rs.findColumn("message_text");
+        int timePosted = rs.findColumn("time_posted_epoch");
+        while(rs.next()){
+            if (System.nanoTime() - start > STREAM_TIMEOUT_NANOS) {
+                throw new IOException("Streaming messages took longer than "
+                        + TimeUnit.NANOSECONDS.toMillis(STREAM_TIMEOUT_NANOS) + " ms");
+            }
+            handler.onRow(rs.getInt(messageId), rs.getInt(postedBy), rs.getString(messageText), rs.getLong(timePosted));
+        }
+    }
+
+    /**
+     * Builds a Message from the current row of a ResultSet.
+     */
+    private static Message mapMessage(ResultSet rs) throws SQLException {
+        return new Message(rs.getInt("message_id"),
+                rs.getInt("posted_by"),
+                rs.getString("message_text"),
+                rs.getLong("time_posted_epoch"));
+    }
+}
@@ -0,0 +1,43 @@
+package DAO;
+
+import Util.ConnectionUtil;
+
+/**
+ * Chooses the message storage engine from the storage.engine system property:
+ *   h2      the H2 message table behind a read-through cache (the default)
+ *   memory  InMemoryMessageRepository, logging to ConnectionUtil.getMessageLogPath()
+ *   mapped  MappedLogMessageRepository, with its segments in ConnectionUtil.getMessageSegmentDirectory()
+ */
+public final class MessageRepositories {
+    public static final String H2 = "h2";
+    public static final String MEMORY = "memory";
+    public static final String MAPPED = "mapped";
+
+    private MessageRepositories() {
+    }
+
+    /**
+     * @return a repository for the engine named by the storage.engine system property.
+     */
+    public static MessageRepository create() {
+        return create(System.getProperty("storage.engine", H2));
+    }
+
+    /**
+     * @param engine - h2, memory or mapped.
+     * @return a repository for the named engine.
+     * @throws IllegalArgumentException if the engine is not known.
+     */
+    public static MessageRepository create(String engine) {
+        if (H2.equals(engine)) {
+            return new CachingMessageDAO();
+        }
+        if (MEMORY.equals(engine)) {
+            return new InMemoryMessageRepository(ConnectionUtil.getMessageLogPath());
+        }
+        if (MAPPED.equals(engine)) {
+            return new MappedLogMessageRepository(ConnectionUtil.getMessageSegmentDirectory());
+        }
+        throw new IllegalArgumentException("Unknown storage.engine " + engine + ", expected h2, memory or mapped");
+    }
+}
@@ -0,0 +1,186 @@
+package DAO;
+
+import Model.Message;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Storage for messages, as used by MessageService and the write-behind queue.
+ *
+ * MessageDAO keeps messages in the H2 message table; InMemoryMessageRepository keeps them in memory and makes them
+ * durable with a write-ahead log. MessageRepositories picks one from the storage.engine system property.
+ *
+ * Every Message returned is a copy the caller may modify. The paging and streaming methods return messages in
+ * message_id order; retrieveMessagesInTimeRange returns them newest first.
+ */
+public interface MessageRepository extends AutoCloseable {
+    /**
+     * Passed as postedBy to deleteMessageById and updateMessageText to change a message whoever posted it.
+     */
+    int ANY_POSTER = 0;
+
+    /**
+     * Inserts a new message.
+     * @param message - a Message object without an id.
+     * @return the message with its generated id, or null if it could not be stored.
+     */
+    Message insertMessage(Message message);
+
+    /**
+     * Inserts several messages at once; either all of them are stored or none are.
+     * @param messages - the messages to insert, none of which have an id yet.
+     * @return the inserted messages with their generated ids, in the same order, or null if nothing was inserted.
+     */
+    List<Message> insertMessages(List<Message> messages);
+
+    /**
+     * Inserts messages whose ids were taken from a block returned by reserveMessageIds; either all of them are
+     * stored or none are.
+     * @param messages - messages that already carry their message_id.
+     * @return true if every message was inserted, false if nothing was inserted.
+     */
+    boolean insertMessagesWithIds(List<Message> messages);
+
+    /**
+     * Reserves a block of consecutive message ids that insertMessage and insertMessages will never generate.
+     * @param count - how many ids to reserve.
+     * @return the first id of the block, or -1 if the block could not be reserved.
+     */
+    int reserveMessageIds(int count);
+
+    /**
+     * @return every message.
+     */
+    List<Message> retrieveAllMessages();
+
+    /**
+     * @return the message with the given id, or null if there is none.
+     */
+    Message retrieveMessageById(int messageId);
+
+    /**
+     * Retrieves several messages by id, such as the ids of one timeline page. By default this is one lookup per id;
+     * the H2 engine fetches them all with one query.
+     * @return the messages that exist, in the order their ids were given.
+     */
+    default List<Message> retrieveMessagesByIds(int[] messageIds) {
+        List<Message> messages = new ArrayList<>(messageIds.length);
+        for (int messageId : messageIds) {
+            Message message = retrieveMessageById(messageId);
+            if (message != null) {
+                messages.add(message);
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Deletes a message.
+     * @return the deleted message, or null if there was no message with that id.
+     */
+    default Message deleteMessageById(int messageId) {
+        return deleteMessageById(messageId, ANY_POSTER);
+    }
+
+    /**
+     * Deletes a message if it was posted by the given account. The check and the delete are one atomic step.
+     * @param postedBy - the account the message must belong to, or ANY_POSTER.
+     * @return the deleted message, or null if there was no message with that id posted by that account.
+     */
+    Message deleteMessageById(int messageId, int postedBy);
+
+    /**
+     * Changes the text of a message, leaving its other fields alone.
+     * @return the updated message, or null if there was no message with that id.
+     */
+    default Message updateMessageText(int messageId, String messageText) {
+        return updateMessageText(messageId, ANY_POSTER, messageText);
+    }
+
+    /**
+     * Changes the text of a message if it was posted by the given account. The check and the update are one atomic
+     * step.
+     * @param postedBy - the account the message must belong to, or ANY_POSTER.
+     * @return the updated message, or null if there was no message with that id posted by that account.
+     */
+    Message updateMessageText(int messageId, int postedBy, String messageText);
+
+    /**
+     * @return every message posted by the account.
+     */
+    List<Message> retrieveMessagesByAccountId(int accountId);
+
+    /**
+     * Retrieves one page of messages with a message_id greater than afterId.
+     * @param afterId - the last message_id of the previous page, or 0 for the first page.
+     * @param limit - the maximum number of messages to return.
+     * @return up to limit messages.
+     */
+    List<Message> retrieveMessagesAfter(int afterId, int limit);
+
+    /**
+     * Retrieves one page of messages posted by an account with a message_id greater than afterId.
+     * @param accountId - the account that posted the messages.
+     * @param afterId - the last message_id of the previous page, or 0 for the first page.
+     * @param limit - the maximum number of messages to return.
+     * @return up to limit messages.
+     */
+    List<Message> retrieveMessagesByAccountIdAfter(int accountId, int afterId, int limit);
+
+    /**
+     * Retrieves one page of the messages posted within a time window, newest first: by time_posted_epoch descending,
+     * then message_id descending. A page continues after the (beforeEpoch, beforeId) position of the last message of
+     * the previous page.
+     *
+     * By default every message is read and the window is picked out of them. Every engine overrides it: the H2
+     * engine with a range scan on the time_posted_epoch index, the memory and mapped engines with a walk down their
+     * (time_posted_epoch, message_id) index.
+     * @param since - the earliest time_posted_epoch to include.
+     * @param until - the latest time_posted_epoch to include.
+     * @param beforeEpoch - the time_posted_epoch of the last message of the previous page, Long.MAX_VALUE for the
+     *                    first page.
+     * @param beforeId - the message_id of the last message of the previous page, Integer.MAX_VALUE for the first page.
+     * @param limit - the maximum number of messages to return.
+     * @return up to limit messages, newest first.
+     */
+    default List<Message> retrieveMessagesInTimeRange(long since, long until, long beforeEpoch, int beforeId,
+                                                      int limit) {
+        List<Message> messages = new ArrayList<>();
+        try {
+            streamAllMessages((messageId, postedBy, messageText, timePostedEpoch) -> {
+                if (timePostedEpoch >= since && timePostedEpoch <= until && (timePostedEpoch < beforeEpoch
+                        || timePostedEpoch == beforeEpoch && messageId < beforeId)) {
+                    messages.add(new Message(messageId, postedBy, messageText, timePostedEpoch));
+                }
+            });
+        } catch (IOException e) {
+            // the handler never throws
+            throw new IllegalStateException(e);
+        }
+        messages.sort(Comparator.comparingLong(Message::getTime_posted_epoch)
+                .thenComparingInt(Message::getMessage_id).reversed());
+        return messages.size() > limit ? new ArrayList<>(messages.subList(0, limit)) : messages;
+    }
+
+    /**
+     * Hands every message to the handler, one at a time, without building a list of them.
+     * @throws IOException if the handler fails, for example because the client went away.
+     */
+    void streamAllMessages(MessageRowHandler handler) throws IOException;
+
+    /**
+     * Hands every message posted by an account to the handler, one at a time.
+     * @throws IOException if the handler fails, for example because the client went away.
+     */
+    void streamMessagesByAccountId(int accountId, MessageRowHandler handler) throws IOException;
+
+    /**
+     * Releases whatever the repository holds open. Nothing by default.
+     */
+    @Override
+    default void close() {
+    }
+}
@@ -0,0 +1,16 @@
+package DAO;
+
+import java.io.IOException;
+
+/**
+ * Receives the columns of each message row as a query walks its ResultSet, so that callers can process a result of
+ * any size without building a Message object or a list for it.
+ */
+@FunctionalInterface
+public interface MessageRowHandler {
+    /**
+     * Called once per row, in result order.
+     * @throws IOException if the row could not be written; this stops the query.
+     */
+    void onRow(int messageId, int postedBy, String messageText, long timePostedEpoch) throws IOException;
+}
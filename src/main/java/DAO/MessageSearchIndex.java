@@ -0,0 +1,487 @@
+package DAO;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * An inverted index over message_text: for every term, the documents containing it and how often.
+ *
+ * Each indexed version of a message is a document with its own number, handed out in increasing order, so posting
+ * lists only ever grow at the end. A rebuild numbers documents in message_id order; afterwards new messages are
+ * numbered in the order they are written. Editing a message deletes its document and indexes the new text as a new
+ * one, and deleting it only marks its document deleted; queries skip deleted documents. Deleted documents keep their
+ * postings until the next rebuild, see getDeletedDocumentCount.
+ *
+ * A posting list is a byte array of variable-length integers: the gap from the previous document number, then the
+ * term's frequency in the document. Short gaps, which is nearly all of them, take one byte. Every BLOCK_SIZE postings
+ * a skip entry records where the next block starts, so an intersection can jump over long lists instead of decoding
+ * them.
+ *
+ * Queries are conjunctive: a message matches if its text contains every query term. Matches are ranked by BM25 and,
+ * among equal scores, newest message_id first. One writer at a time changes the index; queries run concurrently
+ * with each other under a read lock.
+ */
+public class MessageSearchIndex {
+    /**
+     * Postings per skip block.
+     */
+    static final int BLOCK_SIZE = 128;
+    /**
+     * Longer runs of letters and digits are not indexed; they are rarely searched for and bloat the vocabulary.
+     */
+    private static final int MAX_TERM_LENGTH = 32;
+    private static final int NO_MORE_DOCS = Integer.MAX_VALUE;
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final HashMap<String, Postings> terms = new HashMap<>();
+    /**
+     * Document number to message_id, and to the number of terms in the document.
+     */
+    private int[] documentMessages = new int[1024];
+    private short[] documentLengths = new short[1024];
+    private final BitSet deleted = new BitSet();
+    /**
+     * message_id to document number + 1, 0 when the message is not indexed.
+     */
+    private int[] messageDocuments = new int[1024];
+    private int documentCount;
+    private int liveDocumentCount;
+    private long liveTermCount;
+    private long postingBytes;
+
+    /**
+     * A ranked match.
+     */
+    public static class Hit {
+        private final int messageId;
+        private final double score;
+
+        Hit(int messageId, double score) {
+            this.messageId = messageId;
+            this.score = score;
+        }
+
+        public int getMessageId() {
+            return messageId;
+        }
+
+        public double getScore() {
+            return score;
+        }
+    }
+
+    /**
+     * Splits text into lower-case runs of letters and digits, at most MAX_TERM_LENGTH characters long.
+     */
+    public static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null) {
+            return tokens;
+        }
+        StringBuilder token = new StringBuilder();
+        boolean tooLong = false;
+        for (int i = 0; i <= text.length(); ) {
+            int codePoint = i < text.length() ? text.codePointAt(i) : ' ';
+            if (Character.isLetterOrDigit(codePoint)) {
+                if (token.length() < MAX_TERM_LENGTH) {
+                    token.appendCodePoint(Character.toLowerCase(codePoint));
+                } else {
+                    tooLong = true;
+                }
+            } else {
+                if (token.length() > 0 && !tooLong) {
+                    tokens.add(token.toString());
+                }
+                token.setLength(0);
+                tooLong = false;
+            }
+            i += Character.charCount(codePoint);
+        }
+        return tokens;
+    }
+
+    /**
+     * Indexes a message, replacing what was indexed for it before.
+     */
+    public void add(int messageId, String text) {
+        Map<String, Integer> frequencies = termFrequencies(tokenize(text));
+        lock.writeLock().lock();
+        try {
+            indexLocked(messageId, frequencies);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a message from the index, if it is there.
+     */
+    public void remove(int messageId) {
+        lock.writeLock().lock();
+        try {
+            removeLocked(messageId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void indexLocked(int messageId, Map<String, Integer> frequencies) {
+        removeLocked(messageId);
+        int document = newDocument(messageId, frequencies);
+        for (Map.Entry<String, Integer> term : frequencies.entrySet()) {
+            postingBytes += terms.computeIfAbsent(term.getKey(), key -> new Postings()).append(document, term.getValue());
+        }
+    }
+
+    private void removeLocked(int messageId) {
+        if (messageId >= messageDocuments.length || messageDocuments[messageId] == 0) {
+            return;
+        }
+        int document = messageDocuments[messageId] - 1;
+        messageDocuments[messageId] = 0;
+        deleted.set(document);
+        liveDocumentCount--;
+        liveTermCount -= documentLengths[document];
+    }
+
+    private int newDocument(int messageId, Map<String, Integer> frequencies) {
+        int document = documentCount++;
+        if (document == documentMessages.length) {
+            documentMessages = Arrays.copyOf(documentMessages, document * 2);
+            documentLengths = Arrays.copyOf(documentLengths, document * 2);
+        }
+        if (messageId >= messageDocuments.length) {
+            messageDocuments = Arrays.copyOf(messageDocuments, Math.max(messageId + 1, messageDocuments.length * 2));
+        }
+        int length = 0;
+        for (int frequency : frequencies.values()) {
+            length += frequency;
+        }
+        documentMessages[document] = messageId;
+        documentLengths[document] = (short) Math.min(length, Short.MAX_VALUE);
+        messageDocuments[messageId] = document + 1;
+        liveDocumentCount++;
+        liveTermCount += documentLengths[document];
+        return document;
+    }
+
+    private static Map<String, Integer> termFrequencies(List<String> tokens) {
+        Map<String, Integer> frequencies = new HashMap<>();
+        for (String token : tokens) {
+            frequencies.merge(token, 1, Integer::sum);
+        }
+        return frequencies;
+    }
+
+    /**
+     * Indexes many messages at once, tokenizing them in parallel. The messages are numbered in the order given, so
+     * they should be in message_id order. Meant for rebuilding an empty index.
+     * @param messageIds - the ids of the messages.
+     * @param texts - their texts, at the same positions.
+     * @param count - how many entries of the arrays to index.
+     */
+    public void addAll(int[] messageIds, String[] texts, int count) {
+        int chunks = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), count / 1024));
+        int chunkSize = (count + chunks - 1) / chunks;
+        List<List<Map<String, Integer>>> tokenized = IntStream.range(0, chunks).parallel()
+                .mapToObj(chunk -> {
+                    int end = Math.min(count, (chunk + 1) * chunkSize);
+                    List<Map<String, Integer>> documents = new ArrayList<>(Math.max(0, end - chunk * chunkSize));
+                    for (int i = chunk * chunkSize; i < end; i++) {
+                        documents.add(termFrequencies(tokenize(texts[i])));
+                    }
+                    return documents;
+                })
+                .collect(Collectors.toList());
+        lock.writeLock().lock();
+        try {
+            int i = 0;
+            for (List<Map<String, Integer>> chunk : tokenized) {
+                for (Map<String, Integer> frequencies : chunk) {
+                    indexLocked(messageIds[i++], frequencies);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the messages containing every term of the query, best first.
+     * @param query - free text, tokenized like message_text.
+     * @param offset - how many of the best hits to skip.
+     * @param limit - the most hits to return.
+     * @return up to limit hits.
+     */
+    public List<Hit> search(String query, int offset, int limit) {
+        List<String> queryTerms = new ArrayList<>(termFrequencies(tokenize(query)).keySet());
+        if (queryTerms.isEmpty() || limit < 1) {
+            return new ArrayList<>();
+        }
+        int wanted = offset + limit;
+        lock.readLock().lock();
+        try {
+            PostingsCursor[] cursors = new PostingsCursor[queryTerms.size()];
+            double[] idf = new double[cursors.length];
+            for (int i = 0; i < cursors.length; i++) {
+                Postings postings = terms.get(queryTerms.get(i));
+                if (postings == null) {
+                    return new ArrayList<>();
+                }
+                cursors[i] = postings.cursor();
+                // postings of deleted documents are still counted; close enough between rebuilds
+                idf[i] = Math.log(1 + (liveDocumentCount - postings.count + 0.5) / (postings.count + 0.5));
+            }
+            // drive the intersection from the rarest term
+            Integer[] order = new Integer[cursors.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Integer.compare(cursors[a].postings.count, cursors[b].postings.count));
+            double averageLength = liveDocumentCount == 0 ? 1 : Math.max(1, (double) liveTermCount / liveDocumentCount);
+
+            // the worst of the best hits so far is at the head
+            PriorityQueue<Hit> best = new PriorityQueue<>(wanted + 1, MessageSearchIndex::compareHits);
+            PostingsCursor lead = cursors[order[0]];
+            int document = lead.next();
+            while (document != NO_MORE_DOCS) {
+                int candidate = document;
+                for (int i = 1; i < order.length && candidate == document; i++) {
+                    int found = cursors[order[i]].advance(document);
+                    if (found != document) {
+                        candidate = found;
+                    }
+                }
+                if (candidate == NO_MORE_DOCS) {
+                    break;
+                }
+                if (candidate != document) {
+                    document = lead.advance(candidate);
+                    continue;
+                }
+                if (!deleted.get(document)) {
+                    double lengthNorm = K1 * (1 - B + B * documentLengths[document] / averageLength);
+                    double score = 0;
+                    for (int i = 0; i < cursors.length; i++) {
+                        int frequency = cursors[i].frequency;
+                        score += idf[i] * frequency * (K1 + 1) / (frequency + lengthNorm);
+                    }
+                    Hit hit = new Hit(documentMessages[document], score);
+                    if (best.size() < wanted) {
+                        best.add(hit);
+                    } else if (compareHits(hit, best.peek()) > 0) {
+                        best.poll();
+                        best.add(hit);
+                    }
+                }
+                document = lead.next();
+            }
+
+            Hit[] ranked = best.toArray(new Hit[0]);
+            Arrays.sort(ranked, (a, b) -> compareHits(b, a));
+            List<Hit> page = new ArrayList<>(limit);
+            for (int i = offset; i < ranked.length; i++) {
+                page.add(ranked[i]);
+            }
+            return page;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Orders hits from worst to best: by score, then by message_id so newer messages win ties.
+     */
+    private static int compareHits(Hit a, Hit b) {
+        int byScore = Double.compare(a.score, b.score);
+        return byScore != 0 ? byScore : Integer.compare(a.messageId, b.messageId);
+    }
+
+    /**
+     * @return the number of messages in the index.
+     */
+    public int getDocumentCount() {
+        lock.readLock().lock();
+        try {
+            return liveDocumentCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of documents deleted or replaced since the index was built, whose postings are still held.
+     */
+    public int getDeletedDocumentCount() {
+        lock.readLock().lock();
+        try {
+            return documentCount - liveDocumentCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of distinct terms.
+     */
+    public int getTermCount() {
+        lock.readLock().lock();
+        try {
+            return terms.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the bytes taken by the encoded posting lists.
+     */
+    public long getPostingBytes() {
+        lock.readLock().lock();
+        try {
+            return postingBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * One term's posting list. Appended to under the write lock, read under the read lock.
+     */
+    private static class Postings {
+        private byte[] data = new byte[8];
+        private int length;
+        private int count;
+        private int lastDocument = -1;
+        /**
+         * For every block, the document number before its first posting and the offset of that posting in data.
+         */
+        private int[] skipDocuments = new int[1];
+        private int[] skipOffsets = new int[1];
+
+        Postings() {
+            skipDocuments[0] = -1;
+        }
+
+        /**
+         * @return the number of bytes the posting took.
+         */
+        int append(int document, int frequency) {
+            int start = length;
+            if (count > 0 && count % BLOCK_SIZE == 0) {
+                int block = count / BLOCK_SIZE;
+                if (block == skipDocuments.length) {
+                    skipDocuments = Arrays.copyOf(skipDocuments, block * 2);
+                    skipOffsets = Arrays.copyOf(skipOffsets, block * 2);
+                }
+                skipDocuments[block] = lastDocument;
+                skipOffsets[block] = length;
+            }
+            if (length + 10 > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + 10));
+            }
+            writeVarint(document - lastDocument);
+            writeVarint(frequency);
+            lastDocument = document;
+            count++;
+            return length - start;
+        }
+
+        private void writeVarint(int value) {
+            while ((value & ~0x7F) != 0) {
+                data[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            data[length++] = (byte) value;
+        }
+
+        PostingsCursor cursor() {
+            return new PostingsCursor(this);
+        }
+    }
+
+    /**
+     * Walks one posting list forwards.
+     */
+    private static class PostingsCursor {
+        final Postings postings;
+        private int position;
+        private int index;
+        int document = -1;
+        int frequency;
+
+        PostingsCursor(Postings postings) {
+            this.postings = postings;
+        }
+
+        /**
+         * @return the next document, or NO_MORE_DOCS.
+         */
+        int next() {
+            if (index == postings.count) {
+                document = NO_MORE_DOCS;
+                return document;
+            }
+            document += readVarint();
+            frequency = readVarint();
+            index++;
+            return document;
+        }
+
+        /**
+         * @return the first document at or after target, or NO_MORE_DOCS.
+         */
+        int advance(int target) {
+            if (document >= target) {
+                return document;
+            }
+            // the last block whose preceding document is before target holds target, if any block does
+            int currentBlock = index / BLOCK_SIZE;
+            int blocks = (postings.count + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            int low = currentBlock + 1;
+            int high = blocks - 1;
+            int block = -1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (postings.skipDocuments[middle] < target) {
+                    block = middle;
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            if (block > 0) {
+                index = block * BLOCK_SIZE;
+                position = postings.skipOffsets[block];
+                document = postings.skipDocuments[block];
+            }
+            while (next() < target) {
+                // keep decoding within the block
+            }
+            return document;
+        }
+
+        private int readVarint() {
+            byte[] data = postings.data;
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[position++];
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+    }
+}
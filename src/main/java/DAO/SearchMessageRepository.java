@@ -0,0 +1,220 @@
+package DAO;
+
+import Model.Message;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Wraps a storage engine and keeps a MessageSearchIndex of its messages' text.
+ *
+ * The index is rebuilt from the engine by build(), which reads every message once and tokenizes them in parallel,
+ * BUILD_BATCH messages at a time. It runs at most once; the first search starts it if nobody has. Writes made through
+ * this repository are applied to the index as they happen. While the rebuild is reading, they are held back and
+ * applied once it has finished, since the rebuild may or may not have seen them and each one carries the message's
+ * final text; before the rebuild starts they are not needed, as it will read them from the engine. A rebuild that
+ * fails leaves an empty index, and the next search tries again.
+ *
+ * Changes reach the index in the order the engine made them. An update or delete holds its message's stripe lock
+ * from the engine call until its change has been handed to the index, so two writes to one message cannot swap
+ * places. An insert only learns its id from the engine, so it cannot take the lock first; instead, an insert whose
+ * message has already been updated or deleted by the time it reaches the index is dropped, as the later change
+ * supersedes it.
+ */
+public class SearchMessageRepository extends ForwardingMessageRepository {
+    private static final int BUILD_BATCH = 65536;
+    /**
+     * How many locks message ids are spread over. A power of two.
+     */
+    private static final int STRIPES = 256;
+    /**
+     * How many recently updated or deleted ids are remembered for inserts that have yet to reach the index. An insert
+     * reaches the index moments after its commit, so this only has to cover the writes made in that moment.
+     */
+    private static final int RECENT_CHANGES = 4096;
+
+    private enum State { EMPTY, BUILDING, READY }
+
+    private volatile MessageSearchIndex index = new MessageSearchIndex();
+    private final Object[] stripes = new Object[STRIPES];
+    /**
+     * Guarded by this.
+     */
+    private State state = State.EMPTY;
+    private final List<Runnable> heldBack = new ArrayList<>();
+    private CompletableFuture<Void> built = new CompletableFuture<>();
+    private final Map<Integer, Boolean> recentlyChanged = new LinkedHashMap<Integer, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Boolean> eldest) {
+            return size() > RECENT_CHANGES;
+        }
+    };
+
+    public SearchMessageRepository(MessageRepository delegate) {
+        super(delegate);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    /**
+     * @return the index, for reading its sizes.
+     */
+    public MessageSearchIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Rebuilds the index from the engine, unless that has been done or started already.
+     * @return a future completed once the index is ready, or completed exceptionally if the rebuild failed.
+     */
+    public CompletableFuture<Void> build() {
+        CompletableFuture<Void> building;
+        MessageSearchIndex index;
+        synchronized (this) {
+            if (state != State.EMPTY) {
+                return built;
+            }
+            state = State.BUILDING;
+            building = built;
+            index = this.index;
+        }
+        try {
+            int[] ids = new int[BUILD_BATCH];
+            String[] texts = new String[BUILD_BATCH];
+            int[] count = {0};
+            delegate.streamAllMessages((messageId, postedBy, messageText, timePostedEpoch) -> {
+                ids[count[0]] = messageId;
+                texts[count[0]] = messageText;
+                if (++count[0] == BUILD_BATCH) {
+                    index.addAll(ids, texts, count[0]);
+                    count[0] = 0;
+                }
+            });
+            index.addAll(ids, texts, count[0]);
+        } catch (IOException | RuntimeException e) {
+            // a partial index would miss messages and keep ones deleted since, so start over on the next search
+            System.out.println("Search index rebuild failed: " + e.getMessage());
+            synchronized (this) {
+                heldBack.clear();
+                this.index = new MessageSearchIndex();
+                built = new CompletableFuture<>();
+                state = State.EMPTY;
+            }
+            building.completeExceptionally(e);
+            return building;
+        }
+        synchronized (this) {
+            heldBack.forEach(Runnable::run);
+            heldBack.clear();
+            state = State.READY;
+        }
+        building.complete(null);
+        return building;
+    }
+
+    /**
+     * Searches message_text and reads the matching messages.
+     * @param query - free text; every term must occur in a matching message.
+     * @param offset - how many of the best matches to skip.
+     * @param limit - the most messages to return.
+     * @return the matching messages, best first.
+     */
+    public List<Message> search(String query, int offset, int limit) {
+        build().join();
+        List<MessageSearchIndex.Hit> hits = index.search(query, offset, limit);
+        int[] messageIds = new int[hits.size()];
+        for (int i = 0; i < messageIds.length; i++) {
+            messageIds[i] = hits.get(i).getMessageId();
+        }
+        return delegate.retrieveMessagesByIds(messageIds);
+    }
+
+    /**
+     * Applies a write to the index now, holds it back until the rebuild finishes, or drops it if no rebuild has
+     * started yet.
+     */
+    private synchronized void apply(Runnable change) {
+        if (state == State.READY) {
+            change.run();
+        } else if (state == State.BUILDING) {
+            heldBack.add(change);
+        }
+    }
+
+    /**
+     * Indexes a newly inserted message, unless an update or delete of it has got to the index first. Recorded
+     * whatever the state, since a rebuild may start between the two.
+     */
+    private synchronized void indexInserted(Message message) {
+        if (recentlyChanged.remove(message.getMessage_id()) == null) {
+            apply(() -> index.add(message.getMessage_id(), message.getMessage_text()));
+        }
+    }
+
+    /**
+     * Applies an update or delete, and remembers it for an insert of the same message that may still be on its way.
+     */
+    private synchronized void indexChanged(int messageId, Runnable change) {
+        recentlyChanged.put(messageId, Boolean.TRUE);
+        apply(change);
+    }
+
+    private Object stripe(int messageId) {
+        int hash = messageId * 0x9E3779B9;
+        return stripes[(hash ^ hash >>> 16) & (STRIPES - 1)];
+    }
+
+    @Override
+    public Message insertMessage(Message message) {
+        Message inserted = delegate.insertMessage(message);
+        if (inserted != null) {
+            indexInserted(inserted);
+        }
+        return inserted;
+    }
+
+    @Override
+    public List<Message> insertMessages(List<Message> messages) {
+        List<Message> inserted = delegate.insertMessages(messages);
+        if (inserted != null) {
+            inserted.forEach(this::indexInserted);
+        }
+        return inserted;
+    }
+
+    @Override
+    public boolean insertMessagesWithIds(List<Message> messages) {
+        boolean inserted = delegate.insertMessagesWithIds(messages);
+        if (inserted) {
+            messages.forEach(this::indexInserted);
+        }
+        return inserted;
+    }
+
+    @Override
+    public Message updateMessageText(int messageId, int postedBy, String messageText) {
+        synchronized (stripe(messageId)) {
+            Message updated = delegate.updateMessageText(messageId, postedBy, messageText);
+            if (updated != null) {
+                indexChanged(messageId, () -> index.add(messageId, updated.getMessage_text()));
+            }
+            return updated;
+        }
+    }
+
+    @Override
+    public Message deleteMessageById(int messageId, int postedBy) {
+        synchronized (stripe(messageId)) {
+            Message deleted = delegate.deleteMessageById(messageId, postedBy);
+            if (deleted != null) {
+                indexChanged(messageId, () -> index.remove(messageId));
+            }
+            return deleted;
+        }
+    }
+}
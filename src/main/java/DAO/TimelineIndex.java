@@ -0,0 +1,161 @@
+package DAO;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-account timelines: for each posted_by, the ids of the account's messages in (time_posted_epoch, message_id)
+ * order, kept in two parallel primitive arrays. A page of a profile is a binary search and a slice of those arrays,
+ * with no per-message objects until the page is hydrated.
+ *
+ * add and remove are idempotent, so the same message may be added by an initial load and by the write that stored it.
+ * Each timeline is guarded by its own monitor; different accounts never contend.
+ */
+public class TimelineIndex {
+    private static final int INITIAL_CAPACITY = 8;
+
+    private final ConcurrentHashMap<Integer, Timeline> timelines = new ConcurrentHashMap<>();
+    private final AtomicLong entryCount = new AtomicLong();
+
+    /**
+     * Adds a message to its poster's timeline, unless it is already there.
+     */
+    public void add(int postedBy, long timePostedEpoch, int messageId) {
+        if (timelines.computeIfAbsent(postedBy, key -> new Timeline()).add(timePostedEpoch, messageId)) {
+            entryCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Removes a message from its poster's timeline, if it is there. Empty timelines are kept, since an account that
+     * posted once is likely to post again.
+     */
+    public void remove(int postedBy, long timePostedEpoch, int messageId) {
+        Timeline timeline = timelines.get(postedBy);
+        if (timeline != null && timeline.remove(timePostedEpoch, messageId)) {
+            entryCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Slices one page of an account's timeline, newest first.
+     * @param accountId - the account that posted the messages.
+     * @param since - the earliest time_posted_epoch to include.
+     * @param until - the latest time_posted_epoch to include.
+     * @param beforeEpoch - together with beforeId, the position of the last message of the previous page; only
+     *                      messages strictly older than it are returned. Long.MAX_VALUE for the first page.
+     * @param beforeId - the message_id of the last message of the previous page, Integer.MAX_VALUE for the first page.
+     * @param limit - the maximum number of ids to return.
+     * @return up to limit message ids, newest first.
+     */
+    public int[] newestFirst(int accountId, long since, long until, long beforeEpoch, int beforeId, int limit) {
+        Timeline timeline = timelines.get(accountId);
+        if (timeline == null) {
+            return new int[0];
+        }
+        return timeline.newestFirst(since, until, beforeEpoch, beforeId, limit);
+    }
+
+    /**
+     * @return the number of accounts with a timeline.
+     */
+    public int getAccountCount() {
+        return timelines.size();
+    }
+
+    /**
+     * @return the number of messages across every timeline.
+     */
+    public long getEntryCount() {
+        return entryCount.get();
+    }
+
+    /**
+     * One account's messages, sorted by epoch and then id. Grows by doubling like an ArrayList.
+     */
+    private static class Timeline {
+        private long[] epochs = new long[INITIAL_CAPACITY];
+        private int[] ids = new int[INITIAL_CAPACITY];
+        private int size;
+
+        synchronized boolean add(long epoch, int id) {
+            int position = lowerBound(epoch, id);
+            if (position < size && epochs[position] == epoch && ids[position] == id) {
+                return false;
+            }
+            if (size == ids.length) {
+                epochs = Arrays.copyOf(epochs, size * 2);
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            // messages almost always arrive newest last, so this usually moves nothing
+            System.arraycopy(epochs, position, epochs, position + 1, size - position);
+            System.arraycopy(ids, position, ids, position + 1, size - position);
+            epochs[position] = epoch;
+            ids[position] = id;
+            size++;
+            return true;
+        }
+
+        synchronized boolean remove(long epoch, int id) {
+            int position = lowerBound(epoch, id);
+            if (position == size || epochs[position] != epoch || ids[position] != id) {
+                return false;
+            }
+            System.arraycopy(epochs, position + 1, epochs, position, size - position - 1);
+            System.arraycopy(ids, position + 1, ids, position, size - position - 1);
+            size--;
+            return true;
+        }
+
+        synchronized int[] newestFirst(long since, long until, long beforeEpoch, int beforeId, int limit) {
+            int from = lowerBound(since, Integer.MIN_VALUE);
+            int to = Math.min(lowerBound(beforeEpoch, beforeId), upperBound(until, Integer.MAX_VALUE));
+            int count = Math.max(0, Math.min(limit, to - from));
+            int[] page = new int[count];
+            for (int i = 0; i < count; i++) {
+                page[i] = ids[to - 1 - i];
+            }
+            return page;
+        }
+
+        /**
+         * @return the first position whose entry is not less than (epoch, id).
+         */
+        private int lowerBound(long epoch, int id) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (compare(middle, epoch, id) < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * @return the first position whose entry is greater than (epoch, id).
+         */
+        private int upperBound(long epoch, int id) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (compare(middle, epoch, id) <= 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        private int compare(int position, long epoch, int id) {
+            int byEpoch = Long.compare(epochs[position], epoch);
+            return byEpoch != 0 ? byEpoch : Integer.compare(ids[position], id);
+        }
+    }
+}
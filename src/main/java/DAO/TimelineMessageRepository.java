@@ -0,0 +1,170 @@
+package DAO;
+
+import Model.Message;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Wraps a storage engine and keeps a TimelineIndex of its messages, so an account's messages can be read newest
+ * first and by time window as a slice of the index plus one batch lookup.
+ *
+ * The index is built from the engine on the first timeline read. Inserts and deletes made through this repository,
+ * including the write-behind queue's, are applied to the index once it is built. While the build is reading they are
+ * held back and applied after it, in the order they were made, so a message deleted during the build cannot be put
+ * back by a build that read it just before. Before the build starts they are not needed, as it reads them from the
+ * engine. A build that fails leaves an empty index, and the next timeline read tries again. Updates only change the
+ * text and leave timelines alone.
+ *
+ * An insert only learns its id from the engine, so its change can reach the index after a delete of the same
+ * message that followed it. Recently deleted ids are remembered, and an insert of one of them is dropped.
+ */
+public class TimelineMessageRepository extends ForwardingMessageRepository {
+    /**
+     * How many recently deleted ids are remembered for inserts that have yet to reach the index.
+     */
+    private static final int RECENT_DELETES = 4096;
+
+    private enum State { EMPTY, BUILDING, READY }
+
+    private volatile TimelineIndex index = new TimelineIndex();
+    /**
+     * Guarded by this.
+     */
+    private State state = State.EMPTY;
+    private final List<Runnable> heldBack = new ArrayList<>();
+    private CompletableFuture<Void> built = new CompletableFuture<>();
+    private final Map<Integer, Boolean> recentlyDeleted = new LinkedHashMap<Integer, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Boolean> eldest) {
+            return size() > RECENT_DELETES;
+        }
+    };
+
+    public TimelineMessageRepository(MessageRepository delegate) {
+        super(delegate);
+    }
+
+    /**
+     * @return the timelines, for reading their account and entry counts.
+     */
+    public TimelineIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Reads one page of an account's timeline, newest first. See TimelineIndex.newestFirst for the parameters.
+     * Ids whose message has disappeared between slicing and hydrating are skipped, so a page can come back short.
+     * @return up to limit messages, newest first.
+     */
+    public List<Message> retrieveTimeline(int accountId, long since, long until, long beforeEpoch, int beforeId,
+                                          int limit) {
+        build().join();
+        return delegate.retrieveMessagesByIds(index.newestFirst(accountId, since, until, beforeEpoch, beforeId, limit));
+    }
+
+    /**
+     * Builds the index from every message in the engine, unless that has been done or started already.
+     * @return a future completed once the index is ready, or completed exceptionally if the build failed.
+     */
+    public CompletableFuture<Void> build() {
+        CompletableFuture<Void> building;
+        TimelineIndex index;
+        synchronized (this) {
+            if (state != State.EMPTY) {
+                return built;
+            }
+            state = State.BUILDING;
+            building = built;
+            index = this.index;
+        }
+        try {
+            delegate.streamAllMessages((messageId, postedBy, messageText, timePostedEpoch) ->
+                    index.add(postedBy, timePostedEpoch, messageId));
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Timeline index build failed: " + e.getMessage());
+            synchronized (this) {
+                heldBack.clear();
+                this.index = new TimelineIndex();
+                built = new CompletableFuture<>();
+                state = State.EMPTY;
+            }
+            building.completeExceptionally(e);
+            return building;
+        }
+        synchronized (this) {
+            heldBack.forEach(Runnable::run);
+            heldBack.clear();
+            state = State.READY;
+        }
+        building.complete(null);
+        return building;
+    }
+
+    /**
+     * Applies a write to the index now, holds it back until the build finishes, or drops it if no build has started
+     * yet.
+     */
+    private synchronized void apply(Runnable change) {
+        if (state == State.READY) {
+            change.run();
+        } else if (state == State.BUILDING) {
+            heldBack.add(change);
+        }
+    }
+
+    /**
+     * Adds a newly inserted message, unless it has been deleted already. Recorded whatever the state, since a build
+     * may start between the two.
+     */
+    private synchronized void add(Message message) {
+        if (recentlyDeleted.remove(message.getMessage_id()) == null) {
+            apply(() -> index.add(message.getPosted_by(), message.getTime_posted_epoch(), message.getMessage_id()));
+        }
+    }
+
+    private synchronized void remove(Message message) {
+        recentlyDeleted.put(message.getMessage_id(), Boolean.TRUE);
+        apply(() -> index.remove(message.getPosted_by(), message.getTime_posted_epoch(), message.getMessage_id()));
+    }
+
+    @Override
+    public Message insertMessage(Message message) {
+        Message inserted = delegate.insertMessage(message);
+        if (inserted != null) {
+            add(inserted);
+        }
+        return inserted;
+    }
+
+    @Override
+    public List<Message> insertMessages(List<Message> messages) {
+        List<Message> inserted = delegate.insertMessages(messages);
+        if (inserted != null) {
+            inserted.forEach(this::add);
+        }
+        return inserted;
+    }
+
+    @Override
+    public boolean insertMessagesWithIds(List<Message> messages) {
+        boolean inserted = delegate.insertMessagesWithIds(messages);
+        if (inserted) {
+            messages.forEach(this::add);
+        }
+        return inserted;
+    }
+
+    @Override
+    public Message deleteMessageById(int messageId, int postedBy) {
+        Message deleted = delegate.deleteMessageById(messageId, postedBy);
+        if (deleted != null) {
+            remove(deleted);
+        }
+        return deleted;
+    }
+}
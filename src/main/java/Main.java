@@ -1,6 +1,8 @@
 import Controller.SocialMediaController;
 import io.javalin.Javalin;
 
+import java.util.Arrays;
+
 /**
  * This class is provided with a main method to allow you to manually run and test your application. This class will not
  * affect your program in any way and you may write whatever code you like here.
@@ -8,7 +10,11 @@ import io.javalin.Javalin;
 public class Main {
     public static void main(String[] args) {
         SocialMediaController controller = new SocialMediaController();
-        Javalin app = controller.startAPI();
+        boolean virtualThreads = Arrays.asList(args).contains("--virtual-threads")
+                || Boolean.getBoolean("server.virtualThreads");
+        Javalin app = controller.startAPI(virtualThreads);
         app.start(8080);
+        // stopping the app flushes any messages still queued for write-behind
+        Runtime.getRuntime().addShutdownHook(new Thread(app::stop));
     }
 }
@@ -0,0 +1,70 @@
+package Model;
+
+/**
+ * This is a class that models the outcome of one entry of a batch message submission. Exactly one of message and
+ * error is set.
+ */
+public class BatchResult {
+    /**
+     * The position of the entry in the submitted array, starting at 0.
+     */
+    public int index;
+    /**
+     * The persisted message, including its generated message_id, if the entry was accepted.
+     */
+    public Message message;
+    /**
+     * Why the entry was rejected, if it was.
+     */
+    public String error;
+
+    public BatchResult(){
+    }
+
+    public BatchResult(int index, Message message, String error) {
+        this.index = index;
+        this.message = message;
+        this.error = error;
+    }
+
+    public static BatchResult accepted(int index, Message message) {
+        return new BatchResult(index, message, null);
+    }
+
+    public static BatchResult rejected(int index, String error) {
+        return new BatchResult(index, null, error);
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public void setIndex(int index) {
+        this.index = index;
+    }
+
+    public Message getMessage() {
+        return message;
+    }
+
+    public void setMessage(Message message) {
+        this.message = message;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+
+    @Override
+    public String toString() {
+        return "BatchResult{" +
+                "index=" + index +
+                ", message=" + message +
+                ", error='" + error + '\'' +
+                '}';
+    }
+}
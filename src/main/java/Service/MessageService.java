@@ -2,19 +2,45 @@ package Service;
 
 import Model.Message;
 import Model.Account;
-import DAO.MessageDAO;
+import Model.BatchResult;
 import DAO.AccountDAO;
+import DAO.MessageRepositories;
+import DAO.MessageRepository;
+import DAO.MessageRowHandler;
+import DAO.MessageSearchIndex;
+import DAO.SearchMessageRepository;
+import DAO.TimelineIndex;
+import DAO.TimelineMessageRepository;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class MessageService {
-    private MessageDAO messageDAO;
+    private MessageRepository messageDAO;
+    private TimelineMessageRepository timelines;
+    private SearchMessageRepository search;
+    private AccountDAO accountDAO;
+    private final MessageVersions versions = new MessageVersions();
+    /**
+     * Created on the first asynchronous submission, so services that never use it do not start a writer thread.
+     */
+    private volatile MessageWriteBehindQueue writeBehindQueue;
+    /**
+     * Synchronous inserts hold the read lock from deciding who numbers their messages until they are committed, and
+     * creating the write-behind queue takes the write lock, so no insert can be numbered by the repository after the
+     * queue's first block has been reserved.
+     */
+    private final ReentrantReadWriteLock insertLock = new ReentrantReadWriteLock();
 
     /**
-     * no-args constructor for creating a new MessageService with a new MessageDAO.
-     * There is no need to change this constructor.
+     * no-args constructor for creating a new MessageService with the storage engine chosen by the storage.engine
+     * system property, see MessageRepositories. With the default H2 engine, single-message lookups go through a
+     * read-through cache, see CachingMessageDAO.
      */
     public MessageService(){
-        messageDAO = new MessageDAO();
+        this(MessageRepositories.create(), new AccountDAO());
     }
 
     /**
@@ -22,8 +48,23 @@ public class MessageService {
      * This is used for when a mock MessageDAO that exhibits mock behavior is used in the test cases.
      * This would allow the testing of MessageService independently of MessageDAO.
      */
-    public MessageService(MessageDAO messageDAO){
-        this.messageDAO = messageDAO;
+    public MessageService(MessageRepository messageDAO){
+        this(messageDAO, new AccountDAO());
+    }
+
+    /**
+     * Constructor for a MessageService when both DAOs are provided. The AccountDAO is used to check that the
+     * poster of a new message exists; passing the same AccountDirectoryDAO the AccountService uses makes that check
+     * an in-memory lookup.
+     *
+     * The repository is wrapped in a SearchMessageRepository and a TimelineMessageRepository, so every write,
+     * including the write-behind queue's, keeps the search index and the per-account timelines up to date.
+     */
+    public MessageService(MessageRepository messageDAO, AccountDAO accountDAO){
+        this.search = new SearchMessageRepository(messageDAO);
+        this.timelines = new TimelineMessageRepository(search);
+        this.messageDAO = timelines;
+        this.accountDAO = accountDAO;
     }
 
     /**
@@ -34,21 +75,182 @@ public class MessageService {
      * @return Message if the persisted message was successful
      */
     public Message addMessage(Message message) {
-        AccountDAO accountDAO = new AccountDAO();
-        // Check if the message is blank or is the right length
-        if (message.getMessage_text().trim().isEmpty() || message.getMessage_text().length() > 255) 
+        return addMessage(message, false);
+    }
+
+    /**
+     * Like addMessage, but when posterVerified is true the poster is known to exist, for example because the
+     * request carried a valid session token for that account, and the account lookup is skipped.
+     */
+    public Message addMessage(Message message, boolean posterVerified) {
+        if (validateNewMessage(message, posterVerified) != null)
+        {
+            return null;
+        }
+        // If all checks pass, insert the message
+        insertLock.readLock().lock();
+        try {
+            if (writeBehindQueue == null) {
+                return recordWrite(messageDAO.insertMessage(message));
+            }
+            List<Message> inserted = writeBehindQueue.insertNow(Collections.singletonList(message));
+            return inserted == null ? null : recordWrite(inserted.get(0));
+        } finally {
+            insertLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Bumps the version counters for a message that was just written, if it was.
+     * @return the message, for chaining.
+     */
+    private Message recordWrite(Message message) {
+        if (message != null) {
+            versions.messageWritten(message.getPosted_by());
+        }
+        return message;
+    }
+
+    /**
+     * @return the version counters bumped by every write, for building ETags.
+     */
+    public MessageVersions getVersions() {
+        return versions;
+    }
+
+    /**
+     * Validates a message like addMessage, then hands it to the write-behind queue instead of inserting it. The
+     * message gets its id immediately but only becomes visible to reads once the queue has written it.
+     * @param message - a Message object.
+     * @return the message with its assigned id, or null if the message is not valid.
+     * @throws java.util.concurrent.RejectedExecutionException if the queue is full.
+     */
+    public Message enqueueMessage(Message message) {
+        return enqueueMessage(message, false);
+    }
+
+    /**
+     * Like enqueueMessage, skipping the account lookup when posterVerified is true, see addMessage.
+     */
+    public Message enqueueMessage(Message message, boolean posterVerified) {
+        if (validateNewMessage(message, posterVerified) != null)
         {
             return null;
         }
+        return getWriteBehindQueue().submit(message);
+    }
+
+    /**
+     * @return the write-behind queue, creating it on first use.
+     */
+    public synchronized MessageWriteBehindQueue getWriteBehindQueue() {
+        if (writeBehindQueue == null) {
+            insertLock.writeLock().lock();
+            try {
+                writeBehindQueue = new MessageWriteBehindQueue(messageDAO, batch -> batch.forEach(this::recordWrite));
+            } finally {
+                insertLock.writeLock().unlock();
+            }
+        }
+        return writeBehindQueue;
+    }
+
+    /**
+     * Writes out every message still waiting in the write-behind queue and stops its writer thread, then closes the
+     * message repository.
+     * @throws InterruptedException if interrupted while waiting for the queue to drain.
+     */
+    public void close() throws InterruptedException {
+        MessageWriteBehindQueue queue;
+        synchronized (this) {
+            queue = writeBehindQueue;
+        }
+        if (queue != null) {
+            queue.close();
+        }
+        messageDAO.close();
+    }
+
+    /**
+     * Use the MessageDAO to persist several messages at once. Each message is checked with the same rules as
+     * addMessage; the valid ones are inserted together in one batch and transaction.
+     * @param messages - Message objects without ids.
+     * @return one result per submitted message, in order, holding either the persisted message or the reason it
+     *         was rejected.
+     */
+    public List<BatchResult> addMessages(List<Message> messages) {
+        return addMessages(messages, false);
+    }
+
+    /**
+     * Like addMessages, skipping the account lookups when posterVerified is true, see addMessage.
+     */
+    public List<BatchResult> addMessages(List<Message> messages, boolean posterVerified) {
+        List<BatchResult> results = new ArrayList<>(messages.size());
+        List<Message> valid = new ArrayList<>(messages.size());
+        List<Integer> validIndexes = new ArrayList<>(messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            Message message = messages.get(i);
+            String error = validateNewMessage(message, posterVerified);
+            if (error != null) {
+                results.add(BatchResult.rejected(i, error));
+            } else {
+                results.add(null);
+                valid.add(message);
+                validIndexes.add(i);
+            }
+        }
+
+        List<Message> inserted;
+        insertLock.readLock().lock();
+        try {
+            inserted = writeBehindQueue == null ? messageDAO.insertMessages(valid)
+                    : writeBehindQueue.insertNow(valid);
+        } finally {
+            insertLock.readLock().unlock();
+        }
+        if (inserted != null) {
+            inserted.forEach(this::recordWrite);
+        }
+        for (int i = 0; i < validIndexes.size(); i++) {
+            int index = validIndexes.get(i);
+            if (inserted != null) {
+                results.set(index, BatchResult.accepted(index, inserted.get(i)));
+            } else {
+                results.set(index, BatchResult.rejected(index, "message could not be saved"));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Checks a new message against the rules for posting:
+     * the message text is not blank, is at most 255 characters, and posted_by refers to a real user.
+     * @param posterVerified - true if posted_by is already known to exist and need not be looked up.
+     * @return null if the message is valid, otherwise a short description of the problem.
+     */
+    private String validateNewMessage(Message message, boolean posterVerified) {
+        // Check if the message is blank or is the right length
+        if (message == null || message.getMessage_text() == null || message.getMessage_text().trim().isEmpty())
+        {
+            return "message_text must not be blank";
+        }
+        if (message.getMessage_text().length() > 255)
+        {
+            return "message_text must be at most 255 characters";
+        }
 
+        if (posterVerified)
+        {
+            return null;
+        }
         // Check if an Account with that posted_by id exists
         Account existingAccount = accountDAO.retrieveAccountById(message.getPosted_by());
         if (existingAccount == null) 
         {
-            return null;
+            return "posted_by does not refer to an existing account";
         }
-        // If all checks pass, insert the message
-        return messageDAO.insertMessage(message);
+        return null;
     }
 
     /**
@@ -72,37 +274,56 @@ public class MessageService {
      * @return nothing
      */
     public void deleteMessage(Message message) {
-        messageDAO.removeMessage(message);
+        recordWrite(messageDAO.deleteMessageById(message.getMessage_id()));
+    }
+
+    /**
+     * Uses the messageDAO to remove a message identified by its Id, reading and deleting the row in one statement.
+     * @return the deleted message, or null if no message had that id.
+     */
+    public Message deleteMessageById(int messageId) {
+        return deleteMessageById(messageId, MessageRepository.ANY_POSTER);
+    }
+
+    /**
+     * Uses the messageDAO to remove a message if it was posted by the given account, checking the poster in the same
+     * statement as the delete.
+     * @param postedBy the account the message must belong to, or MessageRepository.ANY_POSTER.
+     * @return the deleted message, or null if no message with that id was posted by that account.
+     */
+    public Message deleteMessageById(int messageId, int postedBy) {
+        return recordWrite(messageDAO.deleteMessageById(messageId, postedBy));
     }
 
     /**
-     * Uses the messageDAO to update a nessage identified by its Id.
-     * @return message - A message object
+     * Uses the messageDAO to update the text of a nessage identified by its Id. The text is checked first, then
+     * the row is updated and read back in one statement.
+     * @return message - the updated message, or null if the text is not valid or no message had that id.
      */
     public Message updateMessage(Message message)
     {
-        // get the message that matches the id of the message param
-        Message databaseMessage = this.getMessageById(message.getMessage_id());
-
-        // if the message doesn't exist return null
-        if(databaseMessage == null)
-        {
-            return null;
-        }
+        return updateMessage(message, MessageRepository.ANY_POSTER);
+    }
 
+    /**
+     * Like updateMessage, but only changes the message if it was posted by the given account, checking the poster in
+     * the same statement as the update.
+     * @param postedBy the account the message must belong to, or MessageRepository.ANY_POSTER.
+     * @return message - the updated message, or null if the text is not valid or no message with that id was posted
+     *         by that account.
+     */
+    public Message updateMessage(Message message, int postedBy)
+    {
         // Check if the message is blank or is the right length
-        if (message.getMessage_text().trim().isEmpty() || message.getMessage_text().length() > 255) 
+        if (message.getMessage_text() == null || message.getMessage_text().trim().isEmpty()
+                || message.getMessage_text().length() > 255)
         {
             return null;
         }
 
-        // if the message is valid then update the text of the database message
-        databaseMessage.setMessage_text(message.getMessage_text());
-        // input the updated message into the database
-        messageDAO.updateMessage(databaseMessage);
-
-        // return the updated message
-        return databaseMessage;
+        // update only the text; the DAO returns null if the message doesn't exist
+        return recordWrite(messageDAO.updateMessageText(message.getMessage_id(), postedBy,
+                message.getMessage_text()));
     }
 
     /**
@@ -112,4 +333,126 @@ public class MessageService {
     public List<Message> getMessagesByAccountId(int accountId) {
         return messageDAO.retrieveMessagesByAccountId(accountId);
     }
-}
\ No newline at end of file
+
+    /**
+     * Uses the messageDAO to retrieve one page of messages, ordered by message id. The page stops before any message
+     * the write-behind queue has numbered but not written yet, see MessageWriteBehindQueue.
+     * @param afterId the message id to continue after, 0 for the first page.
+     * @param limit the maximum number of messages on the page.
+     * @return a list of message objects.
+     */
+    public List<Message> getMessagesPage(int afterId, int limit) {
+        int firstUnwritten = firstUnwrittenId();
+        return stopAt(firstUnwritten, messageDAO.retrieveMessagesAfter(afterId, limit));
+    }
+
+    /**
+     * Uses the messageDAO to retrieve one page of messages posted by a user, ordered by message id, stopping like
+     * getMessagesPage.
+     * @param accountId the user who posted the messages.
+     * @param afterId the message id to continue after, 0 for the first page.
+     * @param limit the maximum number of messages on the page.
+     * @return a list of message objects.
+     */
+    public List<Message> getMessagesPageByAccountId(int accountId, int afterId, int limit) {
+        int firstUnwritten = firstUnwrittenId();
+        return stopAt(firstUnwritten, messageDAO.retrieveMessagesByAccountIdAfter(accountId, afterId, limit));
+    }
+
+    /**
+     * @return the id keyset pages must stop before: the first message the write-behind queue has numbered but not
+     *         written yet. A client continuing after a later id would never be shown that message once it is written.
+     */
+    private int firstUnwrittenId() {
+        MessageWriteBehindQueue queue = writeBehindQueue;
+        return queue == null ? Integer.MAX_VALUE : queue.getFirstUnwrittenId();
+    }
+
+    /**
+     * Cuts a page, in message_id order, before the first message at or past firstUnwritten. The page then comes back
+     * short, like the last page, and the client continues from the same place later.
+     */
+    private static List<Message> stopAt(int firstUnwritten, List<Message> page) {
+        for (int i = 0; i < page.size(); i++) {
+            if (page.get(i).getMessage_id() >= firstUnwritten) {
+                return new ArrayList<>(page.subList(0, i));
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Reads one page of a user's timeline, newest first, from the per-account timeline index.
+     * @param accountId the user who posted the messages.
+     * @param since the earliest time_posted_epoch to include.
+     * @param until the latest time_posted_epoch to include.
+     * @param beforeEpoch the time_posted_epoch of the last message of the previous page, Long.MAX_VALUE for the
+     *                    first page.
+     * @param beforeId the message id of the last message of the previous page, Integer.MAX_VALUE for the first page.
+     * @param limit the maximum number of messages on the page.
+     * @return a list of message objects, newest first.
+     */
+    public List<Message> getTimelinePage(int accountId, long since, long until, long beforeEpoch, int beforeId,
+                                         int limit) {
+        return timelines.retrieveTimeline(accountId, since, until, beforeEpoch, beforeId, limit);
+    }
+
+    /**
+     * Uses the messageDAO to retrieve one page of the messages posted by anyone within a time window, newest first.
+     * The parameters are those of getTimelinePage.
+     * @return a list of message objects, newest first.
+     */
+    public List<Message> getMessagesInTimeRange(long since, long until, long beforeEpoch, int beforeId, int limit) {
+        return messageDAO.retrieveMessagesInTimeRange(since, until, beforeEpoch, beforeId, limit);
+    }
+
+    /**
+     * Uses the search index to find messages whose text contains every term of the query, best match first.
+     * @param query the words to look for.
+     * @param offset how many of the best matches to skip.
+     * @param limit the maximum number of messages on the page.
+     * @return a list of message objects.
+     */
+    public List<Message> searchMessages(String query, int offset, int limit) {
+        return search.search(query, offset, limit);
+    }
+
+    /**
+     * Starts rebuilding the search index on a background thread, so it is ready before the first search.
+     */
+    public void buildSearchIndexInBackground() {
+        Thread builder = new Thread(search::build, "search-index-build");
+        builder.setDaemon(true);
+        builder.start();
+    }
+
+    /**
+     * @return the search index, for reading its sizes.
+     */
+    public MessageSearchIndex getSearchIndex() {
+        return search.getIndex();
+    }
+
+    /**
+     * @return the per-account timelines, for reading their sizes.
+     */
+    public TimelineIndex getTimelineIndex() {
+        return timelines.getIndex();
+    }
+
+    /**
+     * Uses the messageDAO to hand every message to the handler, one row at a time.
+     * @throws IOException if the handler could not write a row.
+     */
+    public void streamAllMessages(MessageRowHandler handler) throws IOException {
+        messageDAO.streamAllMessages(handler);
+    }
+
+    /**
+     * Uses the messageDAO to hand every message posted by a user to the handler, one row at a time.
+     * @throws IOException if the handler could not write a row.
+     */
+    public void streamMessagesByAccountId(int accountId, MessageRowHandler handler) throws IOException {
+        messageDAO.streamMessagesByAccountId(accountId, handler);
+    }
+}
@@ -0,0 +1,59 @@
+package Service;
+
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Version counters for the message lists, from which the list endpoints build their ETags.
+ *
+ * Every successful insert, update or delete bumps the global version and sets the poster's account version to it,
+ * so both only ever grow and an account's version changes exactly when one of its messages does. A write is
+ * recorded after it has become visible to reads, and a handler reads the version before it reads the messages: a
+ * response can therefore carry an older version than its body, which only costs the client one extra fetch, but
+ * never a newer one, which would let it keep a stale list.
+ *
+ * The counters live in memory and start again at 0 when the process restarts, so every tag also carries a random
+ * boot id; a tag from an earlier run never matches.
+ */
+public class MessageVersions {
+    private final String bootId = Long.toHexString(new SecureRandom().nextLong() & Long.MAX_VALUE);
+    private final AtomicLong global = new AtomicLong();
+    private final ConcurrentHashMap<Integer, Long> byAccount = new ConcurrentHashMap<>();
+
+    /**
+     * Records a write to one of the account's messages.
+     */
+    public void messageWritten(int postedBy) {
+        long version = global.incrementAndGet();
+        byAccount.merge(postedBy, version, Math::max);
+    }
+
+    /**
+     * @return the number of writes recorded since the process started.
+     */
+    public long getGlobalVersion() {
+        return global.get();
+    }
+
+    /**
+     * @return the global version of the account's latest write, or 0 if it has none since the process started.
+     */
+    public long getAccountVersion(int accountId) {
+        return byAccount.getOrDefault(accountId, 0L);
+    }
+
+    /**
+     * @return a strong ETag for the list of every message, quotes included.
+     */
+    public String globalTag() {
+        return "\"" + bootId + "-" + global.get() + "\"";
+    }
+
+    /**
+     * @return a strong ETag for the list of the account's messages, quotes included.
+     */
+    public String accountTag(int accountId) {
+        return "\"" + bootId + "-" + accountId + "-" + getAccountVersion(accountId) + "\"";
+    }
+}
@@ -0,0 +1,466 @@
+package Service;
+
+import Model.Message;
+import DAO.MessageRepository;
+import Util.JacksonJsonMapper;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Accepts already-validated messages, gives each one its final message_id straight away and writes them to the
+ * database in the background.
+ *
+ * Ids come from a block reserved up front with MessageRepository.reserveMessageIds, so the caller can be told the id
+ * before the row exists. A single writer thread takes messages off a bounded queue and inserts them in group commits:
+ * it waits for the first message, then keeps collecting until it has batchSize messages or lingerMillis have passed,
+ * and commits them all in one transaction. Under load that turns one commit per message into one commit per batch.
+ *
+ * Until its batch is committed a message is not visible to reads. Messages are committed in id order, but an id
+ * taken from a block can still be committed after a larger one inserted some other way, and a client paging by
+ * message_id past that larger id would never see it. So once the queue exists, synchronous inserts take their ids
+ * from the same blocks through insertNow, and getFirstUnwrittenId tells the keyset pages where to stop until the
+ * messages before them are written; see MessageService.getMessagesPage. That only covers this process: another
+ * instance sharing the database allocates its own blocks. When the queue is full, submit throws
+ * RejectedExecutionException rather than blocking the caller. close() stops accepting messages and writes out
+ * everything still queued. Each committed batch is handed to the onWritten callback, after it has become visible.
+ *
+ * The caller has already been told its message was accepted, so a batch that cannot be committed is not dropped: it
+ * is retried a few times with a growing pause, then written one message at a time so that one bad row does not take
+ * the others down with it. A message that still cannot be written is appended as a line of JSON to the dead-letter
+ * file, to be replayed by hand, and counted.
+ */
+public class MessageWriteBehindQueue implements AutoCloseable {
+    private final MessageRepository messageDAO;
+    private final ArrayBlockingQueue<Message> queue;
+    private final int batchSize;
+    private final long lingerNanos;
+    private final int idBlockSize;
+    private final Consumer<List<Message>> onWritten;
+    private final int retries;
+    private final long retryBackoffMillis;
+    private final Path deadLetterPath;
+    private final Thread writer;
+
+    /**
+     * Next id to hand out and the first id past the current block. Guarded by this.
+     */
+    private int nextId;
+    private int blockEnd;
+    private volatile boolean closed;
+    /**
+     * Ids handed out whose messages are neither committed nor given up on yet.
+     */
+    private final ConcurrentSkipListSet<Integer> unwritten = new ConcurrentSkipListSet<>();
+
+    /**
+     * Messages handed to submit, and messages the writer has finished with (committed or failed). flush() waits for
+     * the second to catch up with the first. Guarded by progress.
+     */
+    private final Object progress = new Object();
+    private long submitted;
+    private long processed;
+
+    private final LongAdder written = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder lost = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+
+    /**
+     * Creates a queue sized by the messages.writeBehind.capacity, messages.writeBehind.batchSize,
+     * messages.writeBehind.lingerMillis and messages.writeBehind.idBlockSize system properties. Failed batches are
+     * handled as set by messages.writeBehind.retries, messages.writeBehind.retryBackoffMillis and
+     * messages.writeBehind.deadLetterPath.
+     */
+    public MessageWriteBehindQueue(MessageRepository messageDAO) {
+        this(messageDAO, batch -> { });
+    }
+
+    /**
+     * Creates a queue sized by the system properties that calls onWritten with every batch it commits.
+     */
+    public MessageWriteBehindQueue(MessageRepository messageDAO, Consumer<List<Message>> onWritten) {
+        this(messageDAO,
+                Integer.getInteger("messages.writeBehind.capacity", 10000),
+                Integer.getInteger("messages.writeBehind.batchSize", 500),
+                Long.getLong("messages.writeBehind.lingerMillis", 5L),
+                Integer.getInteger("messages.writeBehind.idBlockSize", 1000),
+                onWritten);
+    }
+
+    /**
+     * @param capacity the most messages waiting to be written before submit rejects new ones.
+     * @param batchSize the most messages written in one transaction.
+     * @param lingerMillis how long the writer waits for more messages to fill a batch.
+     * @param idBlockSize how many ids are reserved from the database at a time.
+     */
+    public MessageWriteBehindQueue(MessageRepository messageDAO, int capacity, int batchSize, long lingerMillis,
+                                   int idBlockSize) {
+        this(messageDAO, capacity, batchSize, lingerMillis, idBlockSize, batch -> { });
+    }
+
+    /**
+     * @param onWritten called on the writer thread with every batch once it has been committed.
+     */
+    public MessageWriteBehindQueue(MessageRepository messageDAO, int capacity, int batchSize, long lingerMillis,
+                                   int idBlockSize, Consumer<List<Message>> onWritten) {
+        this(messageDAO, capacity, batchSize, lingerMillis, idBlockSize, onWritten,
+                Integer.getInteger("messages.writeBehind.retries", 3),
+                Long.getLong("messages.writeBehind.retryBackoffMillis", 100L),
+                Paths.get(System.getProperty("messages.writeBehind.deadLetterPath",
+                        "./h2/write-behind-dead-letter.jsonl")));
+    }
+
+    /**
+     * @param retries how many more times a failed batch is tried before its messages are written one at a time.
+     * @param retryBackoffMillis the pause before the first retry; each later retry waits that much longer again.
+     * @param deadLetterPath the file messages that could not be written are appended to.
+     */
+    public MessageWriteBehindQueue(MessageRepository messageDAO, int capacity, int batchSize, long lingerMillis,
+                                   int idBlockSize, Consumer<List<Message>> onWritten, int retries,
+                                   long retryBackoffMillis, Path deadLetterPath) {
+        if (capacity < 1 || batchSize < 1 || lingerMillis < 0 || idBlockSize < 1) {
+            throw new IllegalArgumentException("capacity, batchSize and idBlockSize must be positive");
+        }
+        if (retries < 0 || retryBackoffMillis < 0) {
+            throw new IllegalArgumentException("retries and retryBackoffMillis must not be negative");
+        }
+        this.messageDAO = messageDAO;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.batchSize = batchSize;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        this.idBlockSize = idBlockSize;
+        this.onWritten = onWritten;
+        this.retries = retries;
+        this.retryBackoffMillis = retryBackoffMillis;
+        this.deadLetterPath = deadLetterPath;
+        this.writer = new Thread(this::runWriter, "message-write-behind");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Assigns the message its id and queues it for writing.
+     * @param message - a message that has already been validated.
+     * @return a copy of the message carrying its assigned id.
+     * @throws RejectedExecutionException if the queue is full or has been closed.
+     * @throws IllegalStateException if no ids could be reserved from the database.
+     */
+    public synchronized Message submit(Message message) {
+        if (closed) {
+            rejected.increment();
+            throw new RejectedExecutionException("write-behind queue is closed");
+        }
+        // only this method adds to the queue, and it is synchronized, so the offer below cannot fail
+        if (queue.remainingCapacity() == 0) {
+            rejected.increment();
+            throw new RejectedExecutionException("write-behind queue is full");
+        }
+        Message queued = new Message(takeId(), message.getPosted_by(), message.getMessage_text(),
+                message.getTime_posted_epoch());
+        synchronized (progress) {
+            submitted++;
+        }
+        queue.offer(queued);
+        return new Message(queued.getMessage_id(), queued.getPosted_by(), queued.getMessage_text(),
+                queued.getTime_posted_epoch());
+    }
+
+    /**
+     * Inserts the messages right away, in one transaction, with ids taken from the same blocks as submit's, so that
+     * they are not numbered ahead of the messages still queued. They do not wait for the queue.
+     * @param messages - messages that have already been validated.
+     * @return copies of the messages carrying their ids, or null if nothing was inserted; the ids are then not used.
+     * @throws IllegalStateException if no ids could be reserved from the database.
+     */
+    public List<Message> insertNow(List<Message> messages) {
+        List<Message> withIds = new ArrayList<>(messages.size());
+        try {
+            synchronized (this) {
+                for (Message message : messages) {
+                    withIds.add(new Message(takeId(), message.getPosted_by(), message.getMessage_text(),
+                            message.getTime_posted_epoch()));
+                }
+            }
+            return insert(withIds) ? withIds : null;
+        } finally {
+            finished(withIds);
+        }
+    }
+
+    /**
+     * @return the lowest id handed out whose message has not been committed or given up on yet, or
+     *         Integer.MAX_VALUE if there is none. Every id below it that will ever be committed by this process
+     *         already has been; read it before the page it limits.
+     */
+    public int getFirstUnwrittenId() {
+        Integer first = unwritten.ceiling(Integer.MIN_VALUE);
+        return first == null ? Integer.MAX_VALUE : first;
+    }
+
+    /**
+     * Waits until every message submitted before this call has been written or has failed.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void flush() throws InterruptedException {
+        synchronized (progress) {
+            long target = submitted;
+            while (processed < target) {
+                progress.wait();
+            }
+        }
+    }
+
+    /**
+     * Stops accepting messages and waits for the writer to write out everything still queued.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        synchronized (this) {
+            closed = true;
+        }
+        writer.join();
+    }
+
+    /**
+     * @return how many messages are waiting to be written.
+     */
+    public int getQueuedCount() {
+        return queue.size();
+    }
+
+    public int getCapacity() {
+        return queue.size() + queue.remainingCapacity();
+    }
+
+    public long getWrittenCount() {
+        return written.sum();
+    }
+
+    /**
+     * @return how many messages could not be written to the database, whether or not they reached the dead-letter
+     *         file.
+     */
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    /**
+     * @return how many failed messages could not be appended to the dead-letter file either, and survive only in the
+     *         error log.
+     */
+    public long getLostCount() {
+        return lost.sum();
+    }
+
+    /**
+     * @return how many times a failed batch was tried again.
+     */
+    public long getRetryCount() {
+        return retried.sum();
+    }
+
+    public Path getDeadLetterPath() {
+        return deadLetterPath;
+    }
+
+    /**
+     * @return how many submissions were turned away because the queue was full or closed.
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public long getBatchCount() {
+        return batches.sum();
+    }
+
+    /**
+     * Hands out the next id, reserving a new block when the current one is used up, and records it as unwritten.
+     * Called holding this.
+     */
+    private int takeId() {
+        if (nextId == blockEnd) {
+            int first = messageDAO.reserveMessageIds(idBlockSize);
+            if (first < 0) {
+                throw new IllegalStateException("could not reserve message ids");
+            }
+            nextId = first;
+            blockEnd = first + idBlockSize;
+        }
+        unwritten.add(nextId);
+        return nextId++;
+    }
+
+    /**
+     * Drops the messages from the unwritten ids, once they have been committed or given up on.
+     */
+    private void finished(List<Message> messages) {
+        for (Message message : messages) {
+            unwritten.remove(message.getMessage_id());
+        }
+    }
+
+    private void runWriter() {
+        List<Message> batch = new ArrayList<>(batchSize);
+        while (true) {
+            try {
+                Message first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (closed && queue.isEmpty()) {
+                        return;
+                    }
+                    continue;
+                }
+                batch.add(first);
+                fillBatch(batch);
+            } catch (InterruptedException e) {
+                // keep draining; close() is the only way to stop the writer
+                queue.drainTo(batch, batchSize - batch.size());
+            }
+            if (!batch.isEmpty()) {
+                writeBatch(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Adds queued messages to the batch until it is full or the linger time has passed.
+     */
+    private void fillBatch(List<Message> batch) throws InterruptedException {
+        long deadline = System.nanoTime() + lingerNanos;
+        while (batch.size() < batchSize) {
+            queue.drainTo(batch, batchSize - batch.size());
+            if (batch.size() >= batchSize || closed) {
+                return;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return;
+            }
+            Message next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+        }
+    }
+
+    /**
+     * Commits the batch, retrying it and then falling back to one message at a time, and dead-letters whatever is
+     * left.
+     */
+    private void writeBatch(List<Message> batch) {
+        if (insertWithRetries(batch)) {
+            committed(batch);
+        } else {
+            System.err.println("Write-behind batch of " + batch.size() + " messages starting at id "
+                    + batch.get(0).getMessage_id() + " could not be written; writing its messages one at a time");
+            List<Message> inserted = new ArrayList<>(batch.size());
+            List<Message> unwritable = new ArrayList<>();
+            for (Message message : batch) {
+                if (insert(Collections.singletonList(message))) {
+                    inserted.add(message);
+                } else {
+                    unwritable.add(message);
+                }
+            }
+            if (!inserted.isEmpty()) {
+                committed(inserted);
+            }
+            if (!unwritable.isEmpty()) {
+                deadLetter(unwritable);
+            }
+        }
+        finished(batch);
+        synchronized (progress) {
+            processed += batch.size();
+            progress.notifyAll();
+        }
+    }
+
+    private boolean insertWithRetries(List<Message> batch) {
+        for (int attempt = 0; ; attempt++) {
+            if (insert(batch)) {
+                return true;
+            }
+            if (attempt == retries) {
+                return false;
+            }
+            retried.increment();
+            try {
+                Thread.sleep(retryBackoffMillis * (attempt + 1));
+            } catch (InterruptedException e) {
+                // close() does not interrupt the writer, so stop waiting but keep the interrupt for runWriter
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    private boolean insert(List<Message> messages) {
+        try {
+            return messageDAO.insertMessagesWithIds(messages);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private void committed(List<Message> messages) {
+        written.add(messages.size());
+        batches.increment();
+        try {
+            onWritten.accept(messages);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Appends the messages to the dead-letter file, one JSON object per line, and forces them to disk. If even that
+     * fails they are printed to the error log, the last place they can be recovered from.
+     */
+    private void deadLetter(List<Message> messages) {
+        failed.add(messages.size());
+        StringBuilder lines = new StringBuilder();
+        for (Message message : messages) {
+            lines.append(new String(JacksonJsonMapper.toBytes(JacksonJsonMapper.MESSAGE_WRITER, message),
+                    StandardCharsets.UTF_8)).append('\n');
+        }
+        try {
+            Path parent = deadLetterPath.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            try (Writer writer = Files.newBufferedWriter(deadLetterPath, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE,
+                    StandardOpenOption.SYNC)) {
+                writer.write(lines.toString());
+            }
+            System.err.println(messages.size() + " write-behind messages could not be written and were appended to "
+                    + deadLetterPath);
+        } catch (IOException e) {
+            lost.add(messages.size());
+            System.err.println("Write-behind messages could not be written or dead-lettered (" + e.getMessage()
+                    + "):\n" + lines);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package Util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Finished response bodies of list endpoints, keyed by their ETag, so a popular list is serialized and compressed
+ * once per version instead of once per request.
+ *
+ * Because an ETag changes whenever the list does, entries never need invalidating; superseded versions simply stop
+ * being asked for and fall out of the least recently used end. The cache is bounded by the total size of the bodies
+ * it holds, http.compression.cacheMaxBytes (16 MB by default); a body larger than a quarter of that is not cached.
+ */
+public class CompressedPayloadCache {
+    /**
+     * A body ready to send, the Content-Encoding it was compressed with (null if it was not) and its size before
+     * compression.
+     */
+    public static class Payload {
+        private final byte[] body;
+        private final String contentEncoding;
+        private final int uncompressedLength;
+
+        public Payload(byte[] body, String contentEncoding, int uncompressedLength) {
+            this.body = body;
+            this.contentEncoding = contentEncoding;
+            this.uncompressedLength = uncompressedLength;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        public String getContentEncoding() {
+            return contentEncoding;
+        }
+
+        public int getUncompressedLength() {
+            return uncompressedLength;
+        }
+    }
+
+    private final long maxBytes;
+    /**
+     * Access-ordered, so iteration starts at the least recently used entry. Guarded by this.
+     */
+    private final LinkedHashMap<String, Payload> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Creates a cache sized from the system properties.
+     */
+    public CompressedPayloadCache() {
+        this(Long.getLong("http.compression.cacheMaxBytes", 16L * 1024 * 1024));
+    }
+
+    public CompressedPayloadCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the cached payload, or null on a miss.
+     */
+    public synchronized Payload get(String etag) {
+        Payload payload = entries.get(etag);
+        if (payload == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return payload;
+    }
+
+    /**
+     * Caches a payload, evicting the least recently used ones until it fits.
+     */
+    public synchronized void put(String etag, Payload payload) {
+        int length = payload.getBody().length;
+        if (length > maxBytes / 4) {
+            return;
+        }
+        Payload previous = entries.put(etag, payload);
+        if (previous != null) {
+            bytes -= previous.getBody().length;
+        }
+        bytes += length;
+        Iterator<Map.Entry<String, Payload>> eldest = entries.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= eldest.next().getValue().getBody().length;
+            eldest.remove();
+            evictions.increment();
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+}
@@ -0,0 +1,647 @@
+package Util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.sql.DataSource;
+
+/**
+ * A bounded pool of JDBC connections. At most maxSize physical connections are checked out at once; callers that
+ * arrive when the pool is exhausted wait up to acquireTimeoutMillis and then fail with an SQLTimeoutException.
+ *
+ * Connections handed out are proxies: calling close() returns the physical connection to the pool instead of closing
+ * it, so DAO methods should always close what they borrow (try-with-resources is the simplest way to do that).
+ *
+ * A background housekeeper closes connections that have been idle longer than idleTimeoutMillis and reports
+ * connections that have been checked out longer than leakThresholdMillis, along with the call site that borrowed them.
+ * Finding the call site walks the stack on every checkout, so it is only done when leak detection is enabled.
+ *
+ * Each physical connection can keep the statements prepared on it, keyed by SQL text, so that the fixed queries the
+ * DAOs run over and over are parsed and planned once per connection instead of once per call. Only
+ * prepareStatement(sql) and prepareStatement(sql, autoGeneratedKeys) are cached. Closing a cached statement clears its
+ * parameters and batch and keeps it for the next borrower; the least recently used statements are closed once a
+ * connection holds more than statementCacheSize of them. Each borrower gets a proxy of its own, which stops working
+ * once it is closed, so a proxy kept past close() cannot run the statement for whoever uses it next.
+ */
+public class ConnectionPool {
+    private final DataSource dataSource;
+    private final int maxSize;
+    private final int minIdle;
+    private final long acquireTimeoutMillis;
+    private final long idleTimeoutMillis;
+    private final long leakThresholdMillis;
+    private final int statementCacheSize;
+
+    /**
+     * One permit per connection that may be checked out. Threads waiting on a permit are the "waiting" gauge.
+     */
+    private final Semaphore permits;
+    /**
+     * Returned connections, most recently used first so that the tail is the first to age out.
+     */
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final Set<PooledConnection> active = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService housekeeper;
+
+    private final LongAdder created = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+    private final LongAdder statementHits = new LongAdder();
+    private final LongAdder statementMisses = new LongAdder();
+
+    private volatile boolean closed;
+
+    /**
+     * @param dataSource the source of physical connections.
+     * @param maxSize the maximum number of connections that may be checked out at the same time.
+     * @param minIdle the number of idle connections the housekeeper keeps open regardless of their age.
+     * @param acquireTimeoutMillis how long getConnection() waits for a free connection before giving up.
+     * @param idleTimeoutMillis how long a connection may sit idle before it is closed.
+     * @param leakThresholdMillis how long a connection may be checked out before it is reported as leaked, 0 to disable.
+     */
+    public ConnectionPool(DataSource dataSource, int maxSize, int minIdle, long acquireTimeoutMillis,
+                          long idleTimeoutMillis, long leakThresholdMillis) {
+        this(dataSource, maxSize, minIdle, acquireTimeoutMillis, idleTimeoutMillis, leakThresholdMillis, 0);
+    }
+
+    /**
+     * @param statementCacheSize how many prepared statements each connection keeps for reuse, 0 to disable.
+     * @see #ConnectionPool(DataSource, int, int, long, long, long)
+     */
+    public ConnectionPool(DataSource dataSource, int maxSize, int minIdle, long acquireTimeoutMillis,
+                          long idleTimeoutMillis, long leakThresholdMillis, int statementCacheSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be at least 1");
+        }
+        this.dataSource = dataSource;
+        this.maxSize = maxSize;
+        this.minIdle = Math.min(minIdle, maxSize);
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.leakThresholdMillis = leakThresholdMillis;
+        this.statementCacheSize = Math.max(0, statementCacheSize);
+        this.permits = new Semaphore(maxSize, true);
+
+        long period = Math.max(100, Math.min(idleTimeoutMillis,
+                leakThresholdMillis > 0 ? leakThresholdMillis : Long.MAX_VALUE) / 2);
+        this.housekeeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "connection-pool-housekeeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.housekeeper.scheduleWithFixedDelay(this::houseKeep, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Borrows a connection, waiting up to the acquire timeout if every connection is in use.
+     * @return a connection that goes back to the pool when closed.
+     * @throws SQLTimeoutException if no connection became available in time.
+     * @throws SQLException if a new physical connection could not be opened.
+     */
+    public Connection getConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+        try {
+            if (!permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                timeouts.increment();
+                throw new SQLTimeoutException("Timed out after " + acquireTimeoutMillis
+                        + "ms waiting for a connection (active=" + getActiveCount() + ", waiting="
+                        + getWaitingCount() + ")");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection", e);
+        }
+
+        try {
+            PooledConnection pooled = takeIdle();
+            if (pooled == null) {
+                pooled = new PooledConnection(dataSource.getConnection());
+                created.increment();
+            }
+            Connection connection = pooled.checkOut(leakThresholdMillis > 0 ? callSite() : null);
+            active.add(pooled);
+            return connection;
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes every idle connection and stops the housekeeper. Connections still checked out are closed when they
+     * are returned.
+     */
+    public void close() {
+        closed = true;
+        housekeeper.shutdownNow();
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            pooled.closePhysical();
+        }
+    }
+
+    /**
+     * Closes every idle connection so the next borrower opens a fresh one. Used when the underlying database is
+     * replaced, for example between test runs.
+     */
+    public void evictIdle() {
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            pooled.closePhysical();
+            evicted.increment();
+        }
+    }
+
+    /**
+     * @return the number of connections currently checked out.
+     */
+    public int getActiveCount() {
+        return active.size();
+    }
+
+    /**
+     * @return the number of open connections waiting in the pool.
+     */
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * @return the number of threads currently blocked waiting for a connection.
+     */
+    public int getWaitingCount() {
+        return permits.getQueueLength();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getCreatedCount() {
+        return created.sum();
+    }
+
+    public long getEvictedCount() {
+        return evicted.sum();
+    }
+
+    public long getTimeoutCount() {
+        return timeouts.sum();
+    }
+
+    public long getLeakCount() {
+        return leaks.sum();
+    }
+
+    /**
+     * @return how many prepared statements each connection keeps, 0 if the cache is disabled.
+     */
+    public int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    /**
+     * @return how many prepareStatement calls were answered with a statement already prepared on the connection.
+     */
+    public long getStatementCacheHitCount() {
+        return statementHits.sum();
+    }
+
+    /**
+     * @return how many prepareStatement calls had to prepare a new statement.
+     */
+    public long getStatementCacheMissCount() {
+        return statementMisses.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionPool{" +
+                "active=" + getActiveCount() +
+                ", idle=" + getIdleCount() +
+                ", waiting=" + getWaitingCount() +
+                ", max=" + maxSize +
+                '}';
+    }
+
+    /**
+     * Takes the most recently returned idle connection, discarding any that were closed underneath us.
+     */
+    private PooledConnection takeIdle() {
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            if (pooled.isPhysicalOpen()) {
+                return pooled;
+            }
+            evicted.increment();
+        }
+        return null;
+    }
+
+    private void release(PooledConnection pooled) {
+        active.remove(pooled);
+        try {
+            if (closed || !pooled.resetForReuse()) {
+                pooled.closePhysical();
+            } else {
+                idle.offerFirst(pooled);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void houseKeep() {
+        long now = System.currentTimeMillis();
+        // the tail holds the connections that have been idle the longest
+        while (idle.size() > minIdle) {
+            PooledConnection oldest = idle.peekLast();
+            if (oldest == null || now - oldest.returnedAt < idleTimeoutMillis) {
+                break;
+            }
+            if (idle.removeLastOccurrence(oldest)) {
+                oldest.closePhysical();
+                evicted.increment();
+            }
+        }
+
+        if (leakThresholdMillis > 0) {
+            for (PooledConnection pooled : active) {
+                if (!pooled.leakReported && now - pooled.checkedOutAt > leakThresholdMillis) {
+                    pooled.leakReported = true;
+                    leaks.increment();
+                    System.err.println("Possible connection leak: connection held for " + (now - pooled.checkedOutAt)
+                            + "ms, borrowed at " + pooled.borrowedBy);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the first frame outside of the Util package, which is the DAO method that borrowed the connection.
+     */
+    private static String callSite() {
+        return StackWalker.getInstance().walk(frames -> frames
+                .filter(frame -> !frame.getClassName().startsWith("Util."))
+                .findFirst()
+                .map(Object::toString)
+                .orElse("unknown"));
+    }
+
+    /**
+     * A physical connection together with its pool bookkeeping.
+     */
+    private final class PooledConnection {
+        private final Connection physical;
+        /**
+         * Statements prepared on this connection, least recently used first. Only the thread holding the current
+         * checkout touches it.
+         */
+        private final LinkedHashMap<StatementKey, CachedStatement> statements = new LinkedHashMap<>(16, 0.75f, true);
+        private volatile long checkedOutAt;
+        private volatile long returnedAt;
+        private volatile String borrowedBy;
+        private volatile boolean leakReported;
+
+        PooledConnection(Connection physical) {
+            this.physical = physical;
+        }
+
+        /**
+         * Marks the connection as borrowed and wraps it in a fresh proxy, so that a caller holding on to a proxy from
+         * an earlier checkout cannot touch the connection once someone else has it.
+         */
+        Connection checkOut(String callSite) {
+            checkedOutAt = System.currentTimeMillis();
+            borrowedBy = callSite;
+            leakReported = false;
+            Lease lease = new Lease(this);
+            lease.proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, lease);
+            return lease.proxy;
+        }
+
+        /**
+         * Hands out the cached statement for the key, preparing and caching it first if needed. If the cached one is
+         * still open from an earlier call in the same checkout, a separate uncached statement is prepared instead.
+         */
+        PreparedStatement prepareCached(Lease lease, StatementKey key) throws SQLException {
+            CachedStatement cached = statements.get(key);
+            if (cached != null) {
+                if (cached.use != null) {
+                    statementMisses.increment();
+                    return key.prepare(physical);
+                }
+                statementHits.increment();
+                return cached.lend(lease);
+            }
+            statementMisses.increment();
+            cached = new CachedStatement(this, key, key.prepare(physical));
+            statements.put(key, cached);
+            PreparedStatement proxy = cached.lend(lease);
+            evictStatements();
+            return proxy;
+        }
+
+        /**
+         * Closes the least recently used statements that are not in use until the cache is back within its size.
+         */
+        private void evictStatements() {
+            Iterator<CachedStatement> iterator = statements.values().iterator();
+            while (statements.size() > statementCacheSize && iterator.hasNext()) {
+                CachedStatement eldest = iterator.next();
+                if (eldest.use == null) {
+                    iterator.remove();
+                    eldest.closePhysical();
+                }
+            }
+        }
+
+        /**
+         * Puts the connection back into a clean state.
+         * @return false if the connection is no longer usable and should be discarded.
+         */
+        boolean resetForReuse() {
+            returnedAt = System.currentTimeMillis();
+            borrowedBy = null;
+            try {
+                if (physical.isClosed()) {
+                    return false;
+                }
+                if (!physical.getAutoCommit()) {
+                    physical.rollback();
+                    physical.setAutoCommit(true);
+                }
+                physical.clearWarnings();
+                // statements the borrower left open go back to the cache too
+                for (CachedStatement cached : statements.values().toArray(new CachedStatement[0])) {
+                    if (cached.use != null) {
+                        cached.use = null;
+                        cached.resetForReuse();
+                    }
+                }
+                evictStatements();
+                return true;
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+
+        boolean isPhysicalOpen() {
+            try {
+                return !physical.isClosed();
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+
+        void closePhysical() {
+            // closing the connection closes its statements
+            statements.clear();
+            try {
+                physical.close();
+            } catch (SQLException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * The invocation handler behind a single checkout. close() hands the connection back to the pool exactly once;
+     * every other call is forwarded to the physical connection until then.
+     */
+    private final class Lease implements InvocationHandler {
+        private final PooledConnection pooled;
+        private final AtomicBoolean returned = new AtomicBoolean();
+        /**
+         * The proxy handed to the borrower, returned by getConnection() on the statements it prepares.
+         */
+        private Connection proxy;
+
+        Lease(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (returned.compareAndSet(false, true)) {
+                        release(pooled);
+                    }
+                    return null;
+                case "isClosed":
+                    return returned.get() || pooled.physical.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled" + pooled.physical;
+                default:
+                    break;
+            }
+            if (returned.get()) {
+                throw new SQLException("Connection has already been returned to the pool");
+            }
+            if (statementCacheSize > 0 && "prepareStatement".equals(method.getName())) {
+                StatementKey key = StatementKey.of(method, args);
+                if (key != null) {
+                    return pooled.prepareCached(this, key);
+                }
+            }
+            try {
+                return method.invoke(pooled.physical, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    /**
+     * Identifies a cacheable prepareStatement call: the SQL text and whether generated keys were requested.
+     */
+    private static final class StatementKey {
+        private final String sql;
+        private final int autoGeneratedKeys;
+
+        private StatementKey(String sql, int autoGeneratedKeys) {
+            this.sql = sql;
+            this.autoGeneratedKeys = autoGeneratedKeys;
+        }
+
+        /**
+         * @return the key for a call to prepareStatement(String) or prepareStatement(String, int), or null for any
+         *         other overload.
+         */
+        static StatementKey of(Method method, Object[] args) {
+            Class<?>[] parameterTypes = method.getParameterTypes();
+            if (parameterTypes.length == 1) {
+                return new StatementKey((String) args[0], Statement.NO_GENERATED_KEYS);
+            }
+            if (parameterTypes.length == 2 && parameterTypes[1] == int.class) {
+                return new StatementKey((String) args[0], (Integer) args[1]);
+            }
+            return null;
+        }
+
+        PreparedStatement prepare(Connection physical) throws SQLException {
+            return physical.prepareStatement(sql, autoGeneratedKeys);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof StatementKey)) {
+                return false;
+            }
+            StatementKey other = (StatementKey) o;
+            return autoGeneratedKeys == other.autoGeneratedKeys && sql.equals(other.sql);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(sql, autoGeneratedKeys);
+        }
+    }
+
+    /**
+     * A prepared statement kept on its connection. While a checkout holds it, use is the one proxy handed out for that
+     * hold; close() resets the statement and hands it back to the cache.
+     */
+    private final class CachedStatement {
+        private final PooledConnection pooled;
+        private final StatementKey key;
+        private final PreparedStatement physical;
+        private final int defaultFetchSize;
+        private volatile StatementUse use;
+        private boolean batched;
+
+        CachedStatement(PooledConnection pooled, StatementKey key, PreparedStatement physical) throws SQLException {
+            this.pooled = pooled;
+            this.key = key;
+            this.physical = physical;
+            this.defaultFetchSize = physical.getFetchSize();
+        }
+
+        /**
+         * Hands the statement to a checkout, behind a proxy that only works until it is closed or the checkout ends.
+         */
+        PreparedStatement lend(Lease lease) {
+            use = new StatementUse(this, lease);
+            return use.proxy;
+        }
+
+        /**
+         * Clears what the last user set on the statement. A statement that cannot be reset is dropped from the cache.
+         */
+        private void resetForReuse() {
+            try {
+                physical.clearParameters();
+                if (batched) {
+                    physical.clearBatch();
+                    batched = false;
+                }
+                if (physical.getFetchSize() != defaultFetchSize) {
+                    physical.setFetchSize(defaultFetchSize);
+                }
+                physical.clearWarnings();
+            } catch (SQLException e) {
+                pooled.statements.remove(key);
+                closePhysical();
+            }
+        }
+
+        void closePhysical() {
+            try {
+                physical.close();
+            } catch (SQLException e) {
+                System.out.println(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * The invocation handler behind one proxy of a cached statement. Every call checks that the statement is still
+     * lent to this proxy and that the checkout it was lent to has not returned its connection.
+     */
+    private static final class StatementUse implements InvocationHandler {
+        private final CachedStatement cached;
+        private final Lease lease;
+        private final PreparedStatement proxy;
+
+        StatementUse(CachedStatement cached, Lease lease) {
+            this.cached = cached;
+            this.lease = lease;
+            this.proxy = (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class}, this);
+        }
+
+        private boolean isOpen() {
+            return cached.use == this && !lease.returned.get();
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (cached.use == this) {
+                        cached.use = null;
+                        cached.resetForReuse();
+                    }
+                    return null;
+                case "isClosed":
+                    return !isOpen() || cached.physical.isClosed();
+                case "getConnection":
+                    if (!isOpen()) {
+                        throw new SQLException("Statement is closed");
+                    }
+                    return lease.proxy;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Cached" + cached.physical;
+                case "addBatch":
+                    cached.batched = true;
+                    break;
+                default:
+                    break;
+            }
+            if (!isOpen()) {
+                throw new SQLException("Statement is closed");
+            }
+            try {
+                return method.invoke(cached.physical, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
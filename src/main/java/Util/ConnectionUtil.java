@@ -1,9 +1,17 @@
 package Util;
 
-import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.h2.jdbcx.JdbcDataSource;
 import org.h2.tools.RunScript;
@@ -13,7 +21,19 @@ import org.h2.tools.RunScript;
  * our database. This class utilizes the singleton design pattern. We will be
  * utilizing an in-memory called h2database for the sql demos.
  *
- * DO NOT CHANGE ANYTHING IN THIS CLASS
+ * Connections are borrowed from a bounded ConnectionPool and must be closed by
+ * the caller, which returns them to the pool. The pool can be tuned with the
+ * system properties db.pool.maxSize, db.pool.minIdle, db.pool.acquireTimeoutMillis,
+ * db.pool.idleTimeoutMillis, db.pool.leakThresholdMillis and db.pool.statementCacheSize
+ * (prepared statements kept per connection, 0 to disable). Leak detection is off
+ * unless db.pool.leakThresholdMillis is set, since it records the call site of
+ * every checkout.
+ *
+ * The first time this class is used it applies any pending schema migrations
+ * (see SchemaMigrator), so an existing database is upgraded in place.
+ *
+ * The database is the file ./h2/db unless the db.url system property names
+ * another; the test suite uses a private in-memory database in each JVM.
  */
 public class ConnectionUtil {
 
@@ -21,7 +41,7 @@ public class ConnectionUtil {
 	 * url will represent our connection string. Since this is an in-memory db, we
 	 * will represent a file location to store the data
 	 */
-	private static String url = "jdbc:h2:./h2/db;";
+	private static String url = System.getProperty("db.url", "jdbc:h2:./h2/db;");
 	/**
 	 * Default username for connecting to h2
 	 */
@@ -32,21 +52,63 @@ public class ConnectionUtil {
 	private static String password = "sa";
 
 	/**
-	 * DataSource for pooling. Pooling enables the creation of multiple connections when connections are closed.
+	 * Write-ahead log of the in-memory message engine (storage.engine=memory),
+	 * kept next to the database by default so that a test reset clears both.
+	 */
+	private static Path messageLogPath = Paths.get(System.getProperty("storage.wal.path", "./h2/messages.wal"));
+
+	/**
+	 * Segment files of the memory-mapped message log (storage.engine=mapped),
+	 * also kept next to the database and cleared by a test reset.
 	 */
-	private static JdbcDataSource pool = new JdbcDataSource();
+	private static Path messageSegmentDirectory = Paths.get(System.getProperty("storage.segments.dir",
+			"./h2/message-segments"));
 
 	/**
-	 * static initialization block to establish credentials for DataSoure Pool
+	 * DataSource that opens the physical connections handed out by the pool.
+	 */
+	private static JdbcDataSource dataSource = new JdbcDataSource();
+
+	/**
+	 * Bounded pool of connections. Closing a borrowed connection returns it here.
+	 */
+	private static ConnectionPool pool;
+
+	/**
+	 * Brings the schema up to date at startup and after a test reset.
+	 */
+	private static SchemaMigrator migrator;
+
+	/**
+	 * The statements that recreate the freshly reset database, taken by the
+	 * first resetTestDatabase() call and replayed by the later ones.
+	 */
+	private static List<String> testSnapshot;
+
+	/**
+	 * static initialization block to establish credentials for the DataSource, size the pool and migrate the schema
 	 */
 	static {
-		pool.setURL(url);
-		pool.setUser(username);
-		pool.setPassword(password);
+		dataSource.setURL(url);
+		dataSource.setUser(username);
+		dataSource.setPassword(password);
+		pool = new ConnectionPool(dataSource,
+				Integer.getInteger("db.pool.maxSize", 10),
+				Integer.getInteger("db.pool.minIdle", 1),
+				Long.getLong("db.pool.acquireTimeoutMillis", 5000),
+				Long.getLong("db.pool.idleTimeoutMillis", 60000),
+				Long.getLong("db.pool.leakThresholdMillis", 0),
+				Integer.getInteger("db.pool.statementCacheSize", 64));
+		migrator = new SchemaMigrator(pool);
+		try {
+			migrator.migrate();
+		} catch (SQLException e) {
+			throw new IllegalStateException("Could not migrate the database schema", e);
+		}
 	}
 
 	/**
-	 * @return an active connection to the database
+	 * @return an active connection to the database, which must be closed to return it to the pool
 	 */
 	public static Connection getConnection() {
 		try {
@@ -58,17 +120,94 @@ public class ConnectionUtil {
 		return null;
 	}
 
+	/**
+	 * @return the connection pool, for reading its gauges
+	 */
+	public static ConnectionPool getPool() {
+		return pool;
+	}
+
+	/**
+	 * @return the write-ahead log of the in-memory message engine
+	 */
+	public static Path getMessageLogPath() {
+		return messageLogPath;
+	}
+
+	/**
+	 * @return the directory holding the segment files of the memory-mapped message log
+	 */
+	public static Path getMessageSegmentDirectory() {
+		return messageSegmentDirectory;
+	}
+
 	/**
 	 * For the purpose of testing, we will need to drop and recreate our database
 	 * tables to keep it consistent across all tests. The method will read the sql
 	 * file in resources. This will be performed before every test.
+	 *
+	 * The script recreates the tables without their indexes, so the migration
+	 * history is cleared and the migrations are applied again afterwards. The
+	 * in-memory engine's log and the mapped engine's segments are deleted, so
+	 * the next engine opened starts from the reset table.
+	 *
+	 * Only the first call in a JVM runs the script and the migrations. It then
+	 * takes a snapshot of the result with H2's SCRIPT command, and later calls
+	 * drop everything and replay the snapshot in one batch.
 	 */
-	public static void resetTestDatabase() {
+	public static synchronized void resetTestDatabase() {
 		try {
-			FileReader sqlReader = new FileReader("src/main/resources/SocialMedia.sql");
-			RunScript.execute(getConnection(), sqlReader);
-		} catch (SQLException | FileNotFoundException e) {
+			if (testSnapshot == null) {
+				FileReader sqlReader = new FileReader("src/main/resources/SocialMedia.sql");
+				try (Connection connection = getConnection()) {
+					RunScript.execute(connection, sqlReader);
+					try (Statement statement = connection.createStatement()) {
+						statement.execute("DROP TABLE IF EXISTS schema_version");
+					}
+				} finally {
+					sqlReader.close();
+				}
+				migrator.migrate();
+				testSnapshot = takeSnapshot();
+			} else {
+				try (Connection connection = getConnection();
+					 Statement statement = connection.createStatement()) {
+					statement.addBatch("DROP ALL OBJECTS");
+					for (String sql : testSnapshot) {
+						statement.addBatch(sql);
+					}
+					statement.executeBatch();
+				}
+			}
+			Files.deleteIfExists(messageLogPath);
+			if (Files.isDirectory(messageSegmentDirectory)) {
+				try (DirectoryStream<Path> segments = Files.newDirectoryStream(messageSegmentDirectory)) {
+					for (Path segment : segments) {
+						Files.delete(segment);
+					}
+				}
+			}
+		} catch (SQLException | IOException e) {
 			e.printStackTrace();
 		}
 	}
+
+	/**
+	 * @return the statements that recreate every table, index and row, leaving
+	 *         out the users, which DROP ALL OBJECTS keeps
+	 */
+	private static List<String> takeSnapshot() throws SQLException {
+		List<String> snapshot = new ArrayList<>();
+		try (Connection connection = getConnection();
+			 Statement statement = connection.createStatement();
+			 ResultSet rs = statement.executeQuery("SCRIPT NOPASSWORDS NOSETTINGS")) {
+			while (rs.next()) {
+				String sql = rs.getString(1);
+				if (!sql.startsWith("CREATE USER")) {
+					snapshot.add(sql);
+				}
+			}
+		}
+		return snapshot;
+	}
 }
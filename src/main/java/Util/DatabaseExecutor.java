@@ -0,0 +1,122 @@
+package Util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed-size pool of threads for work that talks to the database, with a bounded queue in front of it.
+ *
+ * HTTP handlers hand their service calls to this executor rather than running them on the server's threads, so a
+ * slow query ties up a database worker instead of a connector thread, and the number of threads here is the one knob
+ * for how much concurrent work H2 sees. When every worker is busy and the queue is full, submit fails immediately
+ * with RejectedExecutionException; the caller is expected to shed the request rather than wait.
+ */
+public class DatabaseExecutor {
+    private final ThreadPoolExecutor executor;
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * A unit of database work. It may throw; the exception completes the returned future.
+     */
+    @FunctionalInterface
+    public interface Task {
+        void run() throws Exception;
+    }
+
+    /**
+     * Creates an executor sized by the db.executor.threads system property (by default the connection pool's
+     * db.pool.maxSize, so every worker can hold a connection) and db.executor.queueSize.
+     */
+    public DatabaseExecutor() {
+        this(Integer.getInteger("db.executor.threads", Integer.getInteger("db.pool.maxSize", 10)),
+                Integer.getInteger("db.executor.queueSize", 1000));
+    }
+
+    /**
+     * @param threads the number of worker threads.
+     * @param queueSize the most tasks waiting for a worker before submissions are rejected.
+     */
+    public DatabaseExecutor(int threads, int queueSize) {
+        if (threads < 1 || queueSize < 1) {
+            throw new IllegalArgumentException("threads and queueSize must be at least 1");
+        }
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), new WorkerThreadFactory(), (task, pool) -> {
+                    rejected.increment();
+                    throw new RejectedExecutionException("database executor is saturated");
+                });
+    }
+
+    /**
+     * Queues a task for a database worker.
+     * @return a future completed when the task has run, exceptionally if it threw.
+     * @throws RejectedExecutionException if the queue is full or the executor has been shut down.
+     */
+    public CompletableFuture<Void> submit(Task task) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * Stops accepting tasks and waits for queued and running ones to finish.
+     * @return true if every task finished within the timeout.
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        executor.shutdown();
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    public int getThreadCount() {
+        return executor.getMaximumPoolSize();
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public int getQueuedCount() {
+        return executor.getQueue().size();
+    }
+
+    public int getQueueCapacity() {
+        return executor.getQueue().size() + executor.getQueue().remainingCapacity();
+    }
+
+    public long getCompletedCount() {
+        return executor.getCompletedTaskCount();
+    }
+
+    /**
+     * @return how many tasks were turned away because the queue was full.
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    private static final class WorkerThreadFactory implements ThreadFactory {
+        private static final AtomicInteger POOL_NUMBER = new AtomicInteger();
+        private final int poolNumber = POOL_NUMBER.incrementAndGet();
+        private final AtomicInteger threadNumber = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "db-worker-" + poolNumber + "-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
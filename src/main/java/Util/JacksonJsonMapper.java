@@ -0,0 +1,165 @@
+package Util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.StreamWriteFeature;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+
+import Model.Account;
+import Model.BatchResult;
+import Model.Message;
+
+/**
+ * The single Jackson configuration used for every request and response body.
+ *
+ * Building an ObjectMapper is expensive and each one keeps its own serializer caches, so this class builds one mapper
+ * and derives immutable, thread-safe ObjectReader and ObjectWriter instances from it for the model types. They are
+ * exercised once when the class loads so the first request does not pay for introspecting Account and Message.
+ *
+ * The instance is registered as Javalin's JsonMapper, so ctx.json(...) and ctx.bodyAsClass(...) use the same
+ * configuration as the readers and writers below.
+ */
+public class JacksonJsonMapper implements io.javalin.json.JsonMapper {
+    /**
+     * Shared mapper. Generators never close the stream they write to; the servlet container owns it.
+     */
+    private static final ObjectMapper MAPPER = JsonMapper.builder()
+            .disable(StreamWriteFeature.AUTO_CLOSE_TARGET)
+            .build();
+
+    public static final ObjectReader ACCOUNT_READER = MAPPER.readerFor(Account.class);
+    public static final ObjectWriter ACCOUNT_WRITER = MAPPER.writerFor(Account.class);
+    public static final ObjectReader MESSAGE_READER = MAPPER.readerFor(Message.class);
+    public static final ObjectWriter MESSAGE_WRITER = MAPPER.writerFor(Message.class);
+    public static final ObjectReader MESSAGE_LIST_READER = MAPPER.readerFor(new TypeReference<List<Message>>(){});
+    public static final ObjectWriter MESSAGE_LIST_WRITER = MAPPER.writerFor(new TypeReference<List<Message>>(){});
+    public static final ObjectWriter BATCH_RESULT_LIST_WRITER = MAPPER.writerFor(new TypeReference<List<BatchResult>>(){});
+
+    public static final JacksonJsonMapper INSTANCE = new JacksonJsonMapper();
+
+    /**
+     * Writers for any other type Javalin asks us to serialize, built once per type.
+     */
+    private final ConcurrentMap<Type, ObjectWriter> writers = new ConcurrentHashMap<>();
+    /**
+     * Readers for any other type Javalin asks us to deserialize, built once per type.
+     */
+    private final ConcurrentMap<Type, ObjectReader> readers = new ConcurrentHashMap<>();
+
+    static {
+        warmUp();
+    }
+
+    private JacksonJsonMapper() {
+    }
+
+    /**
+     * @return the JsonFactory of the shared mapper, for code that writes JSON token by token.
+     */
+    public static JsonFactory getFactory() {
+        return MAPPER.getFactory();
+    }
+
+    /**
+     * Serializes a value straight to UTF-8 bytes, without an intermediate String.
+     * @throws UncheckedIOException if the value cannot be serialized.
+     */
+    public static byte[] toBytes(ObjectWriter writer, Object value) {
+        try {
+            return writer.writeValueAsBytes(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public String toJsonString(Object obj, Type type) {
+        if (obj instanceof String) {
+            return (String) obj;
+        }
+        try {
+            return writerFor(type).writeValueAsString(obj);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public InputStream toJsonStream(Object obj, Type type) {
+        if (obj instanceof String) {
+            return new ByteArrayInputStream(((String) obj).getBytes(StandardCharsets.UTF_8));
+        }
+        return new ByteArrayInputStream(toBytes(writerFor(type), obj));
+    }
+
+    @Override
+    public <T> T fromJsonString(String json, Type targetType) {
+        try {
+            return readerFor(targetType).readValue(json);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public <T> T fromJsonStream(InputStream json, Type targetType) {
+        try {
+            return readerFor(targetType).readValue(json);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private ObjectWriter writerFor(Type type) {
+        if (type == Account.class) {
+            return ACCOUNT_WRITER;
+        }
+        if (type == Message.class) {
+            return MESSAGE_WRITER;
+        }
+        return writers.computeIfAbsent(type, t -> MAPPER.writerFor(javaType(t)));
+    }
+
+    private ObjectReader readerFor(Type type) {
+        if (type == Account.class) {
+            return ACCOUNT_READER;
+        }
+        if (type == Message.class) {
+            return MESSAGE_READER;
+        }
+        return readers.computeIfAbsent(type, t -> MAPPER.readerFor(javaType(t)));
+    }
+
+    private static JavaType javaType(Type type) {
+        return MAPPER.getTypeFactory().constructType(type);
+    }
+
+    /**
+     * Runs every reader and writer once so Jackson builds and caches their (de)serializers at startup.
+     */
+    private static void warmUp() {
+        try {
+            Message message = new Message(1, 1, "warm up", 0L);
+            MESSAGE_READER.readValue(MESSAGE_WRITER.writeValueAsBytes(message));
+            MESSAGE_LIST_READER.readValue(MESSAGE_LIST_WRITER.writeValueAsBytes(List.of(message)));
+            ACCOUNT_READER.readValue(ACCOUNT_WRITER.writeValueAsBytes(new Account(1, "warm up", "warm up")));
+            BATCH_RESULT_LIST_WRITER.writeValueAsBytes(List.of(BatchResult.accepted(0, message)));
+        } catch (IOException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+}
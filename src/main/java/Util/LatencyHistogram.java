@@ -0,0 +1,139 @@
+package Util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of durations in nanoseconds with log-linear buckets, in the style of HdrHistogram.
+ *
+ * Every power of two is split into 16 equal sub-buckets, so a recorded value is known to within about 6% whatever its
+ * magnitude, from nanoseconds up to the cap of about 18 minutes. Recording is one atomic increment on the value's
+ * bucket plus a striped add to the running sum: it takes no lock and allocates nothing.
+ *
+ * Reads walk the buckets while writers may still be recording, so a snapshot can be off by the few values recorded
+ * while it was taken.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /**
+     * Values are capped at 2^40 - 1 nanoseconds, about 18 minutes.
+     */
+    private static final int MAX_EXPONENT = 39;
+    private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+
+    /**
+     * Records one duration.
+     * @param nanos the duration in nanoseconds; negative values count as 0.
+     */
+    public void record(long nanos) {
+        long value = Math.min(Math.max(nanos, 0), MAX_VALUE);
+        counts.incrementAndGet(bucketOf(value));
+        sum.add(value);
+    }
+
+    /**
+     * Records the time elapsed since startNanos, a value from System.nanoTime().
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @return the number of values recorded.
+     */
+    public long getCount() {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * @return the sum of every value recorded, in nanoseconds.
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * @return how many recorded values were at most the given number of nanoseconds. Buckets wholly at or below the
+     *         bound are counted exactly. The bucket that straddles the bound is counted in proportion to the share of
+     *         its range that lies at or below the bound, as if its values were spread evenly, so the result can be off
+     *         by up to that one bucket's count; it is exact when nanos is the highest value of a bucket.
+     */
+    public long getCountAtOrBelow(long nanos) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            long highest = highestValueIn(i);
+            if (highest <= nanos) {
+                total += counts.get(i);
+                continue;
+            }
+            long lowest = lowestValueIn(i);
+            if (lowest <= nanos) {
+                total += Math.round((double) counts.get(i) * (nanos - lowest + 1) / (highest - lowest + 1));
+            }
+            break;
+        }
+        return total;
+    }
+
+    /**
+     * @param percentile between 0 and 100.
+     * @return the highest value in the bucket holding the given percentile, in nanoseconds, or 0 if nothing has been
+     *         recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = getCount();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return highestValueIn(i);
+            }
+        }
+        return MAX_VALUE;
+    }
+
+    /**
+     * Values below 16 get a bucket each. Above that, a value whose highest set bit is e falls in row e - 3, and its
+     * next four bits pick the sub-bucket.
+     */
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long lowestValueIn(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = bucket % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    static long highestValueIn(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = bucket % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return ((long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS)) + width - 1;
+    }
+}
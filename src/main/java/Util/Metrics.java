@@ -0,0 +1,264 @@
+package Util;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Request metrics for one running app, plus the process-wide database query metrics, written out in the Prometheus
+ * text exposition format.
+ *
+ * Instruments are created once, when a route or DAO method is set up, and held by the code they measure, so the hot
+ * path never looks anything up: recording a request or a query is a few striped-counter adds and one lock-free
+ * histogram increment, with no allocation. Gauges and counters kept by other components are read only when the
+ * metrics are written.
+ */
+public class Metrics {
+    /**
+     * Upper bounds, in seconds, of the histogram buckets exposed to Prometheus. The histograms themselves are much
+     * finer; these are only the boundaries reported.
+     */
+    private static final String[] BUCKET_LABELS = {
+            "0.0001", "0.00025", "0.0005", "0.001", "0.0025", "0.005", "0.01", "0.025", "0.05", "0.1", "0.25", "0.5",
+            "1", "2.5", "5", "10"};
+    private static final long[] BUCKET_NANOS = new long[BUCKET_LABELS.length];
+
+    static {
+        for (int i = 0; i < BUCKET_LABELS.length; i++) {
+            BUCKET_NANOS[i] = Math.round(Double.parseDouble(BUCKET_LABELS[i]) * 1e9);
+        }
+    }
+
+    /**
+     * Query timers for every DAO method, shared by all DAO instances in the process.
+     */
+    private static final List<QueryMetrics> QUERIES = new CopyOnWriteArrayList<>();
+
+    private final List<RouteMetrics> routes = new CopyOnWriteArrayList<>();
+    private final List<Gauge> gauges = new CopyOnWriteArrayList<>();
+
+    /**
+     * Creates the query timer for a DAO method. Call once per method and keep the result in a static field.
+     * @param dao - the DAO class name, used as the dao label.
+     * @param method - the method name, used as the method label.
+     */
+    public static QueryMetrics query(String dao, String method) {
+        QueryMetrics query = new QueryMetrics(dao, method);
+        QUERIES.add(query);
+        return query;
+    }
+
+    /**
+     * Creates the request metrics for a route.
+     * @param method - the HTTP method.
+     * @param path - the route's path template, such as /messages/{message_id}.
+     */
+    public RouteMetrics route(String method, String path) {
+        RouteMetrics route = new RouteMetrics(method, path);
+        routes.add(route);
+        return route;
+    }
+
+    /**
+     * Registers a value that is read each time the metrics are written.
+     * @param name - the metric name.
+     * @param help - one line describing the metric.
+     * @param value - supplies the current value.
+     */
+    public void gauge(String name, String help, LongSupplier value) {
+        gauges.add(new Gauge(name, "gauge", help, value));
+    }
+
+    /**
+     * Registers a count kept elsewhere that only ever goes up, read each time the metrics are written.
+     * @param name - the metric name, ending in _total.
+     * @param help - one line describing the metric.
+     * @param value - supplies the current count.
+     */
+    public void counter(String name, String help, LongSupplier value) {
+        gauges.add(new Gauge(name, "counter", help, value));
+    }
+
+    /**
+     * @return every metric in the Prometheus text exposition format, version 0.0.4.
+     */
+    public String toPrometheus() {
+        StringBuilder out = new StringBuilder(4096);
+
+        header(out, "http_requests_total", "counter", "HTTP requests handled, by response status class.");
+        for (RouteMetrics route : routes) {
+            for (int statusClass = 1; statusClass <= 5; statusClass++) {
+                out.append("http_requests_total{");
+                route.labels(out);
+                out.append(",status=\"").append(statusClass).append("xx\"} ")
+                        .append(route.byStatusClass[statusClass].sum()).append('\n');
+            }
+        }
+        header(out, "http_request_errors_total", "counter", "HTTP requests answered with a 5xx status.");
+        for (RouteMetrics route : routes) {
+            out.append("http_request_errors_total{");
+            route.labels(out);
+            out.append("} ").append(route.byStatusClass[5].sum()).append('\n');
+        }
+        header(out, "http_request_duration_seconds", "histogram",
+                "Time from routing a request to its handler finishing, including time queued for a database worker.");
+        for (RouteMetrics route : routes) {
+            histogram(out, "http_request_duration_seconds", route::labels, route.latency);
+        }
+
+        header(out, "db_query_duration_seconds", "histogram", "Time spent in each DAO method.");
+        for (QueryMetrics query : QUERIES) {
+            histogram(out, "db_query_duration_seconds", query::labels, query.latency);
+        }
+
+        for (Gauge gauge : gauges) {
+            header(out, gauge.name, gauge.type, gauge.help);
+            out.append(gauge.name).append(' ').append(gauge.value.getAsLong()).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void histogram(StringBuilder out, String name, Labels labels, LatencyHistogram histogram) {
+        for (int i = 0; i < BUCKET_LABELS.length; i++) {
+            out.append(name).append("_bucket{");
+            labels.appendTo(out);
+            out.append(",le=\"").append(BUCKET_LABELS[i]).append("\"} ")
+                    .append(histogram.getCountAtOrBelow(BUCKET_NANOS[i])).append('\n');
+        }
+        long count = histogram.getCount();
+        out.append(name).append("_bucket{");
+        labels.appendTo(out);
+        out.append(",le=\"+Inf\"} ").append(count).append('\n');
+        out.append(name).append("_sum{");
+        labels.appendTo(out);
+        out.append("} ").append(histogram.getSum() / 1e9).append('\n');
+        out.append(name).append("_count{");
+        labels.appendTo(out);
+        out.append("} ").append(count).append('\n');
+    }
+
+    private static void label(StringBuilder out, String name, String value) {
+        out.append(name).append("=\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                out.append('\\').append(c);
+            } else if (c == '\n') {
+                out.append("\\n");
+            } else {
+                out.append(c);
+            }
+        }
+        out.append('"');
+    }
+
+    @FunctionalInterface
+    private interface Labels {
+        void appendTo(StringBuilder out);
+    }
+
+    /**
+     * Request counts by status class and a latency histogram for one route.
+     */
+    public static final class RouteMetrics {
+        private final String method;
+        private final String path;
+        /**
+         * Indexed by the first digit of the status code; index 0 is unused.
+         */
+        private final LongAdder[] byStatusClass = new LongAdder[6];
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        RouteMetrics(String method, String path) {
+            this.method = method;
+            this.path = path;
+            for (int i = 0; i < byStatusClass.length; i++) {
+                byStatusClass[i] = new LongAdder();
+            }
+        }
+
+        /**
+         * Records one handled request.
+         * @param startNanos - System.nanoTime() when the request was routed.
+         * @param status - the response status code.
+         */
+        public void record(long startNanos, int status) {
+            latency.recordSince(startNanos);
+            int statusClass = status / 100;
+            byStatusClass[statusClass >= 1 && statusClass <= 5 ? statusClass : 5].increment();
+        }
+
+        public long getRequestCount() {
+            long total = 0;
+            for (LongAdder adder : byStatusClass) {
+                total += adder.sum();
+            }
+            return total;
+        }
+
+        public long getErrorCount() {
+            return byStatusClass[5].sum();
+        }
+
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        private void labels(StringBuilder out) {
+            label(out, "method", method);
+            out.append(',');
+            label(out, "route", path);
+        }
+    }
+
+    /**
+     * Call count and duration of one DAO method. The histogram's count is the number of calls.
+     */
+    public static final class QueryMetrics {
+        private final String dao;
+        private final String method;
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        QueryMetrics(String dao, String method) {
+            this.dao = dao;
+            this.method = method;
+        }
+
+        /**
+         * Records one call that started at startNanos, a value from System.nanoTime().
+         */
+        public void recordSince(long startNanos) {
+            latency.recordSince(startNanos);
+        }
+
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        private void labels(StringBuilder out) {
+            label(out, "dao", dao);
+            out.append(',');
+            label(out, "method", method);
+        }
+    }
+
+    private static final class Gauge {
+        final String name;
+        final String type;
+        final String help;
+        final LongSupplier value;
+
+        Gauge(String name, String type, String help, LongSupplier value) {
+            this.name = name;
+            this.type = type;
+            this.help = help;
+            this.value = value;
+        }
+    }
+}
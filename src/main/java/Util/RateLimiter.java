@@ -0,0 +1,315 @@
+package Util;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Token-bucket rate limiter keyed by a long, such as an account_id, with every admitted request also drawn from a
+ * shared Bucket. A key may make perSecond requests a second on average, and burst of them back to back after being
+ * idle. A request may cost several permits, such as one per message of a batch; one costing more than burst is never
+ * admitted.
+ *
+ * Each bucket is kept as a single long, the time at which it will be full again (the "theoretical arrival time" of
+ * the generic cell rate algorithm, which admits exactly what a token bucket refilled continuously would). A request
+ * moves that time one interval later; it is refused if that would put it more than burst intervals ahead of now. So a
+ * check is one clock read and a few arithmetic operations, and a full bucket needs no state at all.
+ *
+ * Keys are spread over STRIPES open-addressing tables of parallel long arrays, each guarded by its own lock, so checks
+ * for different keys rarely contend and no check allocates. A table that fills up is rebuilt without its idle
+ * buckets, those already full again, and grows or shrinks to fit what is left, up to maxKeys across all tables. Since
+ * a bucket only stays out of idle for burst intervals after its last admitted request, and the shared bucket bounds
+ * how many requests are admitted, the tracked keys stay bounded however many distinct keys are seen. Should a table
+ * still be full of busy buckets, a new key is let through on the shared bucket alone and counted as untracked.
+ */
+public class RateLimiter {
+    private static final int STRIPES = 64;
+    private static final int MIN_CAPACITY = 16;
+    /**
+     * Marks an empty slot; no key may take this value.
+     */
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final int maxCapacity;
+    private final Bucket global;
+    private final LongSupplier clock;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    private final LongAdder allowed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+    private final LongAdder untracked = new LongAdder();
+
+    /**
+     * Creates the limiter of one route from the ratelimit.route.perSecond and ratelimit.route.burst system properties,
+     * where route is the given name, sized by ratelimit.maxKeys.
+     * @param route - the name of the route in the property names, such as messages.post.
+     * @param perSecond - the rate used when the property is not set.
+     * @param burst - the burst used when the property is not set.
+     * @param global - the bucket every admitted request is also drawn from.
+     */
+    public static RateLimiter fromProperties(String route, int perSecond, int burst, Bucket global) {
+        return new RateLimiter(Integer.getInteger("ratelimit." + route + ".perSecond", perSecond),
+                Integer.getInteger("ratelimit." + route + ".burst", burst),
+                Integer.getInteger("ratelimit.maxKeys", 1 << 20), global, System::nanoTime);
+    }
+
+    /**
+     * @param perSecond - requests a key may make per second; 0 or less lets every key through, subject to the shared
+     *                  bucket.
+     * @param burst - requests a key may make back to back.
+     * @param maxKeys - most keys tracked at once.
+     * @param global - the bucket every admitted request is also drawn from.
+     * @param clock - supplies the time in nanoseconds, System::nanoTime outside of tests.
+     */
+    public RateLimiter(int perSecond, int burst, int maxKeys, Bucket global, LongSupplier clock) {
+        this.intervalNanos = perSecond > 0 ? 1_000_000_000L / perSecond : 0;
+        this.burstNanos = intervalNanos * Math.max(1, burst);
+        this.maxCapacity = Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, maxKeys / STRIPES)) * 2);
+        this.global = global;
+        this.clock = clock;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Takes one request from the key's bucket and the shared bucket.
+     * @param key - the key, anything but Long.MIN_VALUE.
+     * @return 0 if the request is admitted, otherwise the nanoseconds until it would be.
+     */
+    public long acquire(long key) {
+        return acquire(key, 1);
+    }
+
+    /**
+     * Takes permits from the key's bucket and the shared bucket, all or none of them.
+     * @param key - the key, anything but Long.MIN_VALUE.
+     * @param permits - what the request costs, at least 1.
+     * @return 0 if the request is admitted, otherwise the nanoseconds until it would be.
+     */
+    public long acquire(long key, int permits) {
+        long now = clock.getAsLong();
+        Stripe stripe = null;
+        if (intervalNanos > 0) {
+            stripe = stripes[spread(key) & (STRIPES - 1)];
+            long wait = stripe.acquire(key, now, intervalNanos * permits);
+            if (wait > 0) {
+                rejected.increment();
+                return wait;
+            }
+        }
+        long wait = global.acquire(now, permits);
+        if (wait > 0) {
+            if (stripe != null) {
+                // the key did not get its request, so it should not pay for it
+                stripe.refund(key, intervalNanos * permits);
+            }
+            rejected.increment();
+            return wait;
+        }
+        allowed.increment();
+        return 0;
+    }
+
+    private static int spread(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * @return the requests admitted.
+     */
+    public long getAllowedCount() {
+        return allowed.sum();
+    }
+
+    /**
+     * @return the requests refused, by the key's bucket or the shared one.
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return the idle buckets dropped to make room.
+     */
+    public long getEvictedCount() {
+        return evicted.sum();
+    }
+
+    /**
+     * @return the requests of new keys let through on the shared bucket alone because their table was full.
+     */
+    public long getUntrackedCount() {
+        return untracked.sum();
+    }
+
+    /**
+     * @return the keys with a bucket that is not full, give or take those idle since their table was last rebuilt.
+     */
+    public long getKeyCount() {
+        long count = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                count += stripe.size;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * One table of keys and the times their buckets are full again, with linear probing. It is never more than half
+     * full, so every probe ends at an empty slot.
+     */
+    private final class Stripe {
+        private long[] keys = newKeys(MIN_CAPACITY);
+        private long[] fullAt = new long[MIN_CAPACITY];
+        private int size;
+        /**
+         * Until this time the table is full of busy buckets and not worth rebuilding; by then all of them are idle.
+         */
+        private long fullUntil = Long.MIN_VALUE / 2;
+
+        synchronized long acquire(long key, long now, long cost) {
+            int slot = find(key);
+            long next = (keys[slot] == EMPTY ? now : Math.max(fullAt[slot], now)) + cost;
+            if (next - now > burstNanos) {
+                return next - now - burstNanos;
+            }
+            if (keys[slot] == EMPTY) {
+                if (size + 1 > keys.length / 2 && !makeRoom(now)) {
+                    untracked.increment();
+                    return 0;
+                }
+                slot = find(key);
+                keys[slot] = key;
+                size++;
+            }
+            fullAt[slot] = next;
+            return 0;
+        }
+
+        synchronized void refund(long key, long cost) {
+            int slot = find(key);
+            if (keys[slot] != EMPTY) {
+                fullAt[slot] -= cost;
+            }
+        }
+
+        private int find(long key) {
+            int mask = keys.length - 1;
+            int slot = spread(key) >>> 6 & mask;
+            while (keys[slot] != EMPTY && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        /**
+         * Rebuilds the table without its idle buckets, with room for at least as many keys again as are left.
+         * @return false if the table is at its largest and too few of its buckets are idle to be worth rebuilding.
+         */
+        private boolean makeRoom(long now) {
+            if (now - fullUntil < 0) {
+                return false;
+            }
+            int live = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != EMPTY && fullAt[i] > now) {
+                    live++;
+                }
+            }
+            int capacity = Math.max(MIN_CAPACITY, Math.min(maxCapacity, Integer.highestOneBit(Math.max(1, live) * 4) * 2));
+            if (live + capacity / 8 > capacity / 2) {
+                // rebuilding now would buy only a few slots; wait until the busy buckets have gone idle
+                fullUntil = now + burstNanos;
+                return false;
+            }
+            long[] oldKeys = keys;
+            long[] oldFullAt = fullAt;
+            keys = newKeys(capacity);
+            fullAt = new long[capacity];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY && oldFullAt[i] > now) {
+                    int slot = find(oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    fullAt[slot] = oldFullAt[i];
+                }
+            }
+            evicted.add(size - live);
+            size = live;
+            return true;
+        }
+    }
+
+    private static long[] newKeys(int capacity) {
+        long[] keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        return keys;
+    }
+
+    /**
+     * A single token bucket shared by every caller, such as the limit on all writes together. It is kept in one
+     * AtomicLong the same way a keyed bucket is kept, and updated with compare-and-set, so it takes no lock.
+     */
+    public static class Bucket {
+        private final long intervalNanos;
+        private final long burstNanos;
+        private final AtomicLong fullAt = new AtomicLong(Long.MIN_VALUE / 2);
+        private final LongAdder rejected = new LongAdder();
+
+        /**
+         * Creates a bucket from the ratelimit.name.perSecond and ratelimit.name.burst system properties.
+         * @param name - the name of the bucket in the property names, such as global.
+         * @param perSecond - the rate used when the property is not set.
+         * @param burst - the burst used when the property is not set.
+         */
+        public static Bucket fromProperties(String name, int perSecond, int burst) {
+            return new Bucket(Integer.getInteger("ratelimit." + name + ".perSecond", perSecond),
+                    Integer.getInteger("ratelimit." + name + ".burst", burst));
+        }
+
+        /**
+         * @param perSecond - requests admitted per second; 0 or less admits everything.
+         * @param burst - requests admitted back to back.
+         */
+        public Bucket(int perSecond, int burst) {
+            this.intervalNanos = perSecond > 0 ? 1_000_000_000L / perSecond : 0;
+            this.burstNanos = intervalNanos * Math.max(1, burst);
+        }
+
+        /**
+         * Takes permits from the bucket, all or none of them.
+         * @param now - the time in nanoseconds, from the same clock as every other call.
+         * @param permits - what the request costs, at least 1.
+         * @return 0 if the request is admitted, otherwise the nanoseconds until it would be.
+         */
+        public long acquire(long now, int permits) {
+            if (intervalNanos == 0) {
+                return 0;
+            }
+            while (true) {
+                long current = fullAt.get();
+                long next = Math.max(current, now) + intervalNanos * permits;
+                if (next - now > burstNanos) {
+                    rejected.increment();
+                    return next - now - burstNanos;
+                }
+                if (fullAt.compareAndSet(current, next)) {
+                    return 0;
+                }
+            }
+        }
+
+        /**
+         * @return the requests refused by this bucket.
+         */
+        public long getRejectedCount() {
+            return rejected.sum();
+        }
+    }
+}
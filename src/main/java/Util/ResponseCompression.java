@@ -0,0 +1,179 @@
+package Util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Content-coding negotiation and compression for response bodies, using the gzip and deflate codecs that ship with
+ * the JVM.
+ *
+ * Bodies smaller than http.compression.minBytes (1024 by default) are sent as they are: below roughly one packet,
+ * compression saves nothing on the wire and still costs CPU. http.compression.level sets the deflate level, 1 to 9;
+ * the default of 6 is what gzip itself uses.
+ *
+ * The byte counters compare what was handed to sendBody with what actually went out, for the metrics endpoint.
+ */
+public class ResponseCompression {
+    /**
+     * The content codings we can produce, in order of preference.
+     */
+    public enum Encoding {
+        GZIP("gzip"),
+        DEFLATE("deflate");
+
+        private final String headerValue;
+
+        Encoding(String headerValue) {
+            this.headerValue = headerValue;
+        }
+
+        /**
+         * @return the name used in the Accept-Encoding and Content-Encoding headers.
+         */
+        public String getHeaderValue() {
+            return headerValue;
+        }
+    }
+
+    private final int minBytes;
+    private final int level;
+    private final LongAdder uncompressedBytes = new LongAdder();
+    private final LongAdder sentBytes = new LongAdder();
+    private final LongAdder compressedResponses = new LongAdder();
+
+    /**
+     * Creates a compressor configured from the system properties.
+     */
+    public ResponseCompression() {
+        this(Integer.getInteger("http.compression.minBytes", 1024), Integer.getInteger("http.compression.level", 6));
+    }
+
+    /**
+     * @param minBytes the smallest body worth compressing.
+     * @param level the deflate level, from 1 (fastest) to 9 (smallest).
+     */
+    public ResponseCompression(int minBytes, int level) {
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("level must be between 1 and 9");
+        }
+        this.minBytes = minBytes;
+        this.level = level;
+    }
+
+    /**
+     * Picks the coding to use from an Accept-Encoding header. Codings with q=0 are refused; among the others gzip is
+     * preferred over deflate whatever their q-values, because some clients historically mishandled deflate.
+     * @param acceptEncoding - the header value, or null if the client sent none.
+     * @return the coding to use, or null to send the body as it is.
+     */
+    public static Encoding negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        // null until the coding is named, then whether it was accepted
+        Boolean gzip = null;
+        Boolean deflate = null;
+        boolean wildcard = false;
+        for (String part : acceptEncoding.split(",")) {
+            String[] fields = part.split(";");
+            String coding = fields[0].trim().toLowerCase();
+            boolean accepted = true;
+            for (int i = 1; i < fields.length; i++) {
+                String parameter = fields[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        accepted = Double.parseDouble(parameter.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        accepted = false;
+                    }
+                }
+            }
+            if (coding.equals("gzip") || coding.equals("x-gzip")) {
+                gzip = accepted;
+            } else if (coding.equals("deflate")) {
+                deflate = accepted;
+            } else if (coding.equals("*")) {
+                wildcard = accepted;
+            }
+        }
+        if (gzip != null ? gzip : wildcard) {
+            return Encoding.GZIP;
+        }
+        return (deflate != null ? deflate : wildcard) ? Encoding.DEFLATE : null;
+    }
+
+    /**
+     * @return true if a body of this size should be compressed.
+     */
+    public boolean isWorthCompressing(int length) {
+        return length >= minBytes;
+    }
+
+    /**
+     * Compresses a whole body.
+     */
+    public byte[] compress(byte[] body, Encoding encoding) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, body.length / 4));
+        try (OutputStream compressed = wrap(out, encoding, false)) {
+            compressed.write(body);
+        } catch (IOException e) {
+            // a ByteArrayOutputStream does not throw
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Wraps a response stream so that everything written to it is compressed.
+     * @param syncFlush - true if flush() should push out everything written so far, as streamed responses need.
+     */
+    public OutputStream wrap(OutputStream out, Encoding encoding, boolean syncFlush) throws IOException {
+        if (encoding == Encoding.GZIP) {
+            return new GZIPOutputStream(out, 8192, syncFlush) {
+                {
+                    def.setLevel(level);
+                }
+            };
+        }
+        return new DeflaterOutputStream(out, new Deflater(level), 8192, syncFlush) {
+            @Override
+            public void close() throws IOException {
+                super.close();
+                // a Deflater passed in is not ended by the stream
+                def.end();
+            }
+        };
+    }
+
+    /**
+     * Records one response for the byte counters.
+     * @param uncompressedLength - the size of the body before compression.
+     * @param sentLength - the size actually sent.
+     * @param compressed - whether the body was sent compressed.
+     */
+    public void record(int uncompressedLength, int sentLength, boolean compressed) {
+        uncompressedBytes.add(uncompressedLength);
+        sentBytes.add(sentLength);
+        if (compressed) {
+            compressedResponses.increment();
+        }
+    }
+
+    public long getUncompressedBytes() {
+        return uncompressedBytes.sum();
+    }
+
+    public long getSentBytes() {
+        return sentBytes.sum();
+    }
+
+    public long getCompressedResponseCount() {
+        return compressedResponses.sum();
+    }
+}
@@ -0,0 +1,158 @@
+package Util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.h2.tools.RunScript;
+
+/**
+ * Applies the versioned SQL scripts under db/migration on the classpath to bring a database up to the current
+ * schema, without touching existing data.
+ *
+ * Migrations are forward-only: each script runs once, in version order, and is recorded in the schema_version table
+ * together with a checksum of its contents. Editing a script that has already been applied is an error; schema
+ * changes must be added as a new script with the next version number and listed in MIGRATIONS.
+ */
+public class SchemaMigrator {
+    /**
+     * Every migration, in the order they must be applied. File names follow V{version}__{description}.sql.
+     */
+    static final List<String> MIGRATIONS = List.of(
+            "V1__create_tables.sql",
+            "V2__index_message_posted_by_time.sql",
+            "V3__index_message_time.sql");
+
+    private static final String MIGRATION_PATH = "db/migration/";
+
+    private final ConnectionPool pool;
+
+    public SchemaMigrator(ConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Applies every migration that has not been applied yet.
+     * @return the number of migrations applied.
+     * @throws SQLException if a migration fails; that migration is rolled back and later ones are not attempted.
+     * @throws IllegalStateException if an applied migration's script has changed since it was applied.
+     */
+    public synchronized int migrate() throws SQLException {
+        try (Connection connection = pool.getConnection()) {
+            createVersionTable(connection);
+            Map<Integer, Long> applied = appliedChecksums(connection);
+            int count = 0;
+            for (String fileName : MIGRATIONS) {
+                int version = versionOf(fileName);
+                String script = load(fileName);
+                long checksum = checksum(script);
+                Long appliedChecksum = applied.get(version);
+                if (appliedChecksum != null) {
+                    if (appliedChecksum != checksum) {
+                        throw new IllegalStateException("Migration " + fileName
+                                + " has changed since it was applied; add a new migration instead");
+                    }
+                    continue;
+                }
+                apply(connection, version, fileName, script, checksum);
+                count++;
+            }
+            return count;
+        }
+    }
+
+    /**
+     * @return the highest applied version, or 0 for an empty database.
+     */
+    public int currentVersion() throws SQLException {
+        try (Connection connection = pool.getConnection()) {
+            createVersionTable(connection);
+            try (Statement statement = connection.createStatement();
+                 ResultSet rs = statement.executeQuery("SELECT COALESCE(MAX(version), 0) FROM schema_version")) {
+                rs.next();
+                return rs.getInt(1);
+            }
+        }
+    }
+
+    private static void createVersionTable(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS schema_version ("
+                    + "version int primary key, "
+                    + "description varchar(255), "
+                    + "checksum bigint, "
+                    + "installed_on timestamp default current_timestamp)");
+        }
+    }
+
+    private static Map<Integer, Long> appliedChecksums(Connection connection) throws SQLException {
+        Map<Integer, Long> applied = new HashMap<>();
+        try (Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery("SELECT version, checksum FROM schema_version")) {
+            while (rs.next()) {
+                applied.put(rs.getInt("version"), rs.getLong("checksum"));
+            }
+        }
+        return applied;
+    }
+
+    private static void apply(Connection connection, int version, String fileName, String script, long checksum)
+            throws SQLException {
+        connection.setAutoCommit(false);
+        try {
+            try (Reader reader = new StringReader(script)) {
+                RunScript.execute(connection, reader);
+            }
+            try (PreparedStatement preparedStatement = connection.prepareStatement(
+                    "INSERT INTO schema_version (version, description, checksum) VALUES (?, ?, ?)")) {
+                preparedStatement.setInt(1, version);
+                preparedStatement.setString(2, descriptionOf(fileName));
+                preparedStatement.setLong(3, checksum);
+                preparedStatement.executeUpdate();
+            }
+            connection.commit();
+        } catch (SQLException | IOException e) {
+            connection.rollback();
+            throw new SQLException("Migration " + fileName + " failed: " + e.getMessage(), e);
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    private static String load(String fileName) {
+        InputStream in = SchemaMigrator.class.getClassLoader().getResourceAsStream(MIGRATION_PATH + fileName);
+        if (in == null) {
+            throw new IllegalStateException("Migration " + fileName + " is not on the classpath");
+        }
+        try (InputStream stream = in) {
+            return new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not read migration " + fileName, e);
+        }
+    }
+
+    private static long checksum(String script) {
+        CRC32 crc = new CRC32();
+        crc.update(script.getBytes(StandardCharsets.UTF_8));
+        return crc.getValue();
+    }
+
+    private static int versionOf(String fileName) {
+        return Integer.parseInt(fileName.substring(1, fileName.indexOf("__")));
+    }
+
+    private static String descriptionOf(String fileName) {
+        return fileName.substring(fileName.indexOf("__") + 2, fileName.lastIndexOf('.')).replace('_', ' ');
+    }
+}
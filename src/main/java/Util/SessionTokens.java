@@ -0,0 +1,137 @@
+package Util;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Stateless session tokens: an account_id and an expiry time, signed with HMAC-SHA256. Verifying one is a hash over
+ * twelve bytes, with no database lookup and no server-side session table.
+ *
+ * A token is two base64url parts joined by a dot: the account_id (4 bytes) and the expiry in epoch seconds (8 bytes),
+ * then the signature of those 12 bytes. The key comes from the session.secret system property; without it a random
+ * key is generated, so tokens stop verifying when the process restarts and clients log in again. Tokens live for
+ * session.ttlSeconds, one hour by default.
+ */
+public class SessionTokens {
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int PAYLOAD_BYTES = Integer.BYTES + Long.BYTES;
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final SecretKeySpec key;
+    private final long ttlSeconds;
+    /**
+     * Mac instances are not thread-safe and are costly to look up, so each thread keeps one.
+     */
+    private final ThreadLocal<Mac> macs;
+
+    private final LongAdder issued = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Creates a token issuer configured from the system properties.
+     */
+    public SessionTokens() {
+        this(secretFromProperty(), Long.getLong("session.ttlSeconds", 3600L));
+    }
+
+    /**
+     * @param secret the HMAC key.
+     * @param ttlSeconds how long an issued token stays valid.
+     */
+    public SessionTokens(byte[] secret, long ttlSeconds) {
+        if (secret.length < 16 || ttlSeconds < 1) {
+            throw new IllegalArgumentException("the secret must be at least 16 bytes and ttlSeconds positive");
+        }
+        this.key = new SecretKeySpec(secret.clone(), ALGORITHM);
+        this.ttlSeconds = ttlSeconds;
+        this.macs = ThreadLocal.withInitial(this::newMac);
+    }
+
+    private static byte[] secretFromProperty() {
+        String secret = System.getProperty("session.secret");
+        if (secret != null) {
+            return secret.getBytes(StandardCharsets.UTF_8);
+        }
+        byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        return random;
+    }
+
+    private Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            // HmacSHA256 is required of every Java platform
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Issues a token for an account that has just logged in.
+     * @return the token, for the client to send back as "Authorization: Bearer token".
+     */
+    public String issue(int accountId) {
+        return issue(accountId, System.currentTimeMillis() / 1000 + ttlSeconds);
+    }
+
+    /**
+     * Issues a token with an explicit expiry time.
+     */
+    public String issue(int accountId, long expiresAtEpochSeconds) {
+        byte[] payload = ByteBuffer.allocate(PAYLOAD_BYTES).putInt(accountId).putLong(expiresAtEpochSeconds).array();
+        issued.increment();
+        return ENCODER.encodeToString(payload) + "." + ENCODER.encodeToString(macs.get().doFinal(payload));
+    }
+
+    /**
+     * Checks a token's signature and expiry.
+     * @return the account_id the token was issued to, or null if it is malformed, forged or expired.
+     */
+    public Integer verify(String token) {
+        int dot = token.indexOf('.');
+        if (dot < 0) {
+            rejected.increment();
+            return null;
+        }
+        byte[] payload;
+        byte[] signature;
+        try {
+            payload = DECODER.decode(token.substring(0, dot));
+            signature = DECODER.decode(token.substring(dot + 1));
+        } catch (IllegalArgumentException e) {
+            rejected.increment();
+            return null;
+        }
+        // compared in constant time, so response timing tells an attacker nothing about the right signature
+        if (payload.length != PAYLOAD_BYTES || !MessageDigest.isEqual(macs.get().doFinal(payload), signature)) {
+            rejected.increment();
+            return null;
+        }
+        ByteBuffer fields = ByteBuffer.wrap(payload);
+        int accountId = fields.getInt();
+        if (fields.getLong() <= System.currentTimeMillis() / 1000) {
+            rejected.increment();
+            return null;
+        }
+        return accountId;
+    }
+
+    public long getIssuedCount() {
+        return issued.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+}
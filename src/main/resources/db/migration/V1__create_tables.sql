@@ -0,0 +1,14 @@
+-- Baseline schema. Uses IF NOT EXISTS so that databases created by SocialMedia.sql before migrations existed are
+-- adopted as they are instead of being recreated.
+create table if not exists account (
+    account_id int primary key auto_increment,
+    username varchar(255) unique,
+    password varchar(255)
+);
+create table if not exists message (
+    message_id int primary key auto_increment,
+    posted_by int,
+    message_text varchar(255),
+    time_posted_epoch bigint,
+    foreign key (posted_by) references account(account_id)
+);
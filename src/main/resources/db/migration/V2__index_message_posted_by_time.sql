@@ -0,0 +1,2 @@
+-- Serves per-account timelines: WHERE posted_by = ? [ORDER BY time_posted_epoch]
+create index if not exists idx_message_posted_by_time on message (posted_by, time_posted_epoch);
@@ -0,0 +1,54 @@
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import DAO.AccountDAO;
+import DAO.AccountDirectoryDAO;
+import Model.Account;
+import Util.ConnectionUtil;
+
+public class AccountDirectoryTest {
+    AccountDirectoryDAO directory;
+
+    /**
+     * Before every test, reset the database and load a new directory from it.
+     */
+    @Before
+    public void setUp() {
+        ConnectionUtil.resetTestDatabase();
+        directory = new AccountDirectoryDAO();
+    }
+
+    /**
+     * Accounts already in the database should be found by id, username and credentials.
+     */
+    @Test
+    public void loadsExistingAccounts() {
+        Account expected = new Account(1, "testuser1", "password");
+        Assert.assertEquals(1, directory.size());
+        Assert.assertEquals(expected, directory.retrieveAccountById(1));
+        Assert.assertEquals(expected, directory.retrieveAccountByUsername("testuser1"));
+        Assert.assertEquals(expected, directory.retrieveAccount(new Account("testuser1", "password")));
+        Assert.assertNull(directory.retrieveAccount(new Account("testuser1", "wrong")));
+    }
+
+    /**
+     * An inserted account should be visible in the directory and persisted to the database.
+     */
+    @Test
+    public void insertKeepsDirectoryAndDatabaseInSync() {
+        Account inserted = directory.insertAccount(new Account("user", "password"));
+        Assert.assertNotNull(inserted);
+        Assert.assertEquals(inserted, directory.retrieveAccountById(inserted.getAccount_id()));
+        Assert.assertEquals(inserted, new AccountDAO().retrieveAccountById(inserted.getAccount_id()));
+    }
+
+    /**
+     * Registering a username that is already taken should fail without touching the database.
+     */
+    @Test
+    public void duplicateUsernameIsRejected() {
+        Assert.assertNull(directory.insertAccount(new Account("testuser1", "other")));
+        Assert.assertEquals(1, new AccountDAO().retrieveAllAccounts().size());
+    }
+}
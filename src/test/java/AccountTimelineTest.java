@@ -0,0 +1,151 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import Controller.SocialMediaController;
+import Model.Message;
+import Util.ConnectionUtil;
+import io.javalin.Javalin;
+
+public class AccountTimelineTest {
+    SocialMediaController socialMediaController;
+    HttpClient webClient;
+    ObjectMapper objectMapper;
+    Javalin app;
+    String baseUrl;
+
+    /**
+     * Before every test, reset the database, restart the Javalin app, and post four more messages whose epochs are
+     * not in message_id order. Newest first, account 1's timeline is then 4, 5, 2, 1, 3: messages 2 and 5 share an
+     * epoch and are ordered by id.
+     * @throws InterruptedException
+     */
+    @Before
+    public void setUp() throws InterruptedException, IOException {
+        ConnectionUtil.resetTestDatabase();
+        socialMediaController = new SocialMediaController();
+        app = socialMediaController.startAPI();
+        webClient = HttpClient.newHttpClient();
+        objectMapper = new ObjectMapper();
+        baseUrl = TestServer.start(app);
+        long[] epochs = {1669947800, 1669947790, 1669947810, 1669947800};
+        for (int i = 0; i < epochs.length; i++) {
+            HttpRequest postMessageRequest = HttpRequest.newBuilder()
+                    .uri(URI.create(baseUrl + "/messages"))
+                    .POST(HttpRequest.BodyPublishers.ofString("{" +
+                            "\"posted_by\":1, " +
+                            "\"message_text\": \"message " + (i + 2) + "\", " +
+                            "\"time_posted_epoch\": " + epochs[i] + "}"))
+                    .header("Content-Type", "application/json")
+                    .build();
+            webClient.send(postMessageRequest, HttpResponse.BodyHandlers.ofString());
+        }
+    }
+
+    @After
+    public void tearDown() {
+        app.stop();
+    }
+
+    private HttpResponse<String> get(String query) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/accounts/1/messages?" + query))
+                .build();
+        return webClient.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    private List<Integer> ids(HttpResponse<String> response) throws IOException {
+        List<Integer> ids = new ArrayList<>();
+        for (Message message : objectMapper.readValue(response.body(), new TypeReference<List<Message>>(){})) {
+            ids.add(message.getMessage_id());
+        }
+        return ids;
+    }
+
+    /**
+     * Following X-Next-Cursor through GET localhost:8080/accounts/1/messages?order=newest&limit=2 should visit the
+     * timeline newest first, each message once.
+     *
+     * Expected Response:
+     *  Status Code: 200
+     *  Response Body: pages [4, 5], [2, 1], [3], the last one without a cursor
+     */
+    @Test
+    public void getTimelineNewestFirst() throws IOException, InterruptedException {
+        HttpResponse<String> response = get("order=newest&limit=2");
+        Assert.assertEquals(200, response.statusCode());
+        Assert.assertEquals(List.of(4, 5), ids(response));
+        Assert.assertEquals("1669947800:5", response.headers().firstValue("X-Next-Cursor").orElse(null));
+
+        response = get("order=newest&limit=2&before=1669947800:5");
+        Assert.assertEquals(List.of(2, 1), ids(response));
+        Assert.assertEquals("1669947792:1", response.headers().firstValue("X-Next-Cursor").orElse(null));
+
+        response = get("order=newest&limit=2&before=1669947792:1");
+        Assert.assertEquals(List.of(3), ids(response));
+        Assert.assertFalse(response.headers().firstValue("X-Next-Cursor").isPresent());
+    }
+
+    /**
+     * Sending an http request to GET localhost:8080/accounts/1/messages?since=1669947792&until=1669947800
+     *
+     * Expected Response:
+     *  Status Code: 200
+     *  Response Body: messages 5, 2 and 1, both bounds included
+     */
+    @Test
+    public void getTimelineWindow() throws IOException, InterruptedException {
+        HttpResponse<String> response = get("since=1669947792&until=1669947800");
+        Assert.assertEquals(200, response.statusCode());
+        List<Message> expectedResult = new ArrayList<>();
+        expectedResult.add(new Message(5, 1, "message 5", 1669947800));
+        expectedResult.add(new Message(2, 1, "message 2", 1669947800));
+        expectedResult.add(new Message(1, 1, "test message 1", 1669947792));
+        Assert.assertEquals(expectedResult,
+                objectMapper.readValue(response.body(), new TypeReference<List<Message>>(){}));
+    }
+
+    /**
+     * A deleted message disappears from the timeline.
+     *
+     * Expected Response:
+     *  Status Code: 200
+     *  Response Body: messages 4, 5, 1 and 3
+     */
+    @Test
+    public void deletedMessageLeavesTimeline() throws IOException, InterruptedException {
+        HttpRequest deleteRequest = HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/messages/2"))
+                .DELETE()
+                .build();
+        Assert.assertEquals(200, webClient.send(deleteRequest, HttpResponse.BodyHandlers.ofString()).statusCode());
+
+        HttpResponse<String> response = get("order=newest");
+        Assert.assertEquals(200, response.statusCode());
+        Assert.assertEquals(List.of(4, 5, 1, 3), ids(response));
+    }
+
+    /**
+     * Sending an http request to GET localhost:8080/accounts/1/messages?before=1669947800 or with since after until
+     *
+     * Expected Response:
+     *  Status Code: 400
+     */
+    @Test
+    public void getTimelineInvalidParameters() throws IOException, InterruptedException {
+        Assert.assertEquals(400, get("before=1669947800").statusCode());
+        Assert.assertEquals(400, get("since=1669947800&until=1669947792").statusCode());
+    }
+}
@@ -0,0 +1,106 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import Controller.SocialMediaController;
+import Util.ConnectionUtil;
+import io.javalin.Javalin;
+
+public class ConditionalGetTest {
+    SocialMediaController socialMediaController;
+    HttpClient webClient;
+    Javalin app;
+    String baseUrl;
+
+    /**
+     * Before every test, reset the database, restart the Javalin app, and create a new webClient.
+     * @throws InterruptedException
+     */
+    @Before
+    public void setUp() throws InterruptedException {
+        ConnectionUtil.resetTestDatabase();
+        socialMediaController = new SocialMediaController();
+        app = socialMediaController.startAPI();
+        webClient = HttpClient.newHttpClient();
+        baseUrl = TestServer.start(app);
+    }
+
+    @After
+    public void tearDown() {
+        app.stop();
+    }
+
+    private HttpResponse<String> get(String path, String ifNoneMatch) throws IOException, InterruptedException {
+        HttpRequest.Builder request = HttpRequest.newBuilder().uri(URI.create(baseUrl + path));
+        if (ifNoneMatch != null) {
+            request.header("If-None-Match", ifNoneMatch);
+        }
+        return webClient.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private static String etag(HttpResponse<String> response) {
+        return response.headers().firstValue("ETag").orElse(null);
+    }
+
+    private void postMessage() throws IOException, InterruptedException {
+        HttpRequest postMessageRequest = HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/messages"))
+                .POST(HttpRequest.BodyPublishers.ofString("{" +
+                        "\"posted_by\":1, " +
+                        "\"message_text\": \"hello message\", " +
+                        "\"time_posted_epoch\": 1669947792}"))
+                .header("Content-Type", "application/json")
+                .build();
+        Assert.assertEquals(200, webClient.send(postMessageRequest, HttpResponse.BodyHandlers.ofString()).statusCode());
+    }
+
+    /**
+     * Sending GET localhost:8080/messages again with the ETag it returned
+     *
+     * Expected Response:
+     *  Status Code: 304 with an empty body and the same ETag, then 200 with a new ETag after a message is posted
+     */
+    @Test
+    public void unchangedMessagesAreNotSentAgain() throws IOException, InterruptedException {
+        HttpResponse<String> first = get("/messages", null);
+        Assert.assertEquals(200, first.statusCode());
+        String tag = etag(first);
+        Assert.assertNotNull(tag);
+
+        HttpResponse<String> unchanged = get("/messages", tag);
+        Assert.assertEquals(304, unchanged.statusCode());
+        Assert.assertEquals("", unchanged.body());
+        Assert.assertEquals(tag, etag(unchanged));
+        Assert.assertEquals(304, get("/messages", "\"other\", W/" + tag).statusCode());
+
+        postMessage();
+        HttpResponse<String> changed = get("/messages", tag);
+        Assert.assertEquals(200, changed.statusCode());
+        Assert.assertNotEquals(tag, etag(changed));
+        Assert.assertTrue(changed.body().contains("hello message"));
+    }
+
+    /**
+     * A message posted by account 1 changes the tag of account 1's messages and leaves account 2's alone.
+     *
+     * Expected Response:
+     *  Status Code: 200 for account 1, 304 for account 2
+     */
+    @Test
+    public void accountTagsChangeOnlyForThePoster() throws IOException, InterruptedException {
+        String accountOneTag = etag(get("/accounts/1/messages", null));
+        String accountTwoTag = etag(get("/accounts/2/messages", null));
+        Assert.assertNotEquals(accountOneTag, accountTwoTag);
+
+        postMessage();
+        Assert.assertEquals(200, get("/accounts/1/messages", accountOneTag).statusCode());
+        Assert.assertEquals(304, get("/accounts/2/messages", accountTwoTag).statusCode());
+    }
+}
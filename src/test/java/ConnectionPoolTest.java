@@ -0,0 +1,187 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import Util.ConnectionPool;
+
+public class ConnectionPoolTest {
+    ConnectionPool pool;
+
+    /**
+     * Before every test, create a two-connection pool over a private in-memory database.
+     */
+    @Before
+    public void setUp() {
+        pool = new ConnectionPool(dataSource(), 2, 0, 200, 60000, 0);
+    }
+
+    private static JdbcDataSource dataSource() {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:pooltest;DB_CLOSE_DELAY=-1");
+        dataSource.setUser("sa");
+        dataSource.setPassword("sa");
+        return dataSource;
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+    }
+
+    /**
+     * Closing a borrowed connection should hand the same physical connection back to the next borrower.
+     */
+    @Test
+    public void closedConnectionsAreReused() throws SQLException {
+        Connection first = pool.getConnection();
+        Assert.assertEquals(1, pool.getActiveCount());
+        first.close();
+        Assert.assertTrue(first.isClosed());
+        Assert.assertEquals(0, pool.getActiveCount());
+        Assert.assertEquals(1, pool.getIdleCount());
+
+        Connection second = pool.getConnection();
+        second.close();
+        Assert.assertEquals(1, pool.getCreatedCount());
+    }
+
+    /**
+     * Borrowing beyond maxSize should wait for the acquire timeout and then fail.
+     */
+    @Test
+    public void exhaustedPoolTimesOut() throws SQLException {
+        Connection first = pool.getConnection();
+        Connection second = pool.getConnection();
+        try {
+            pool.getConnection();
+            Assert.fail("expected the pool to be exhausted");
+        } catch (SQLTimeoutException e) {
+            Assert.assertEquals(1, pool.getTimeoutCount());
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    /**
+     * A proxy that has been closed must not be usable, even after its connection was lent to someone else.
+     */
+    @Test
+    public void staleProxyIsRejected() throws SQLException {
+        Connection stale = pool.getConnection();
+        stale.close();
+        Connection current = pool.getConnection();
+        try {
+            stale.createStatement();
+            Assert.fail("expected a returned connection to be unusable");
+        } catch (SQLException e) {
+            Assert.assertFalse(current.isClosed());
+        } finally {
+            current.close();
+        }
+    }
+
+    /**
+     * Preparing the same SQL on later checkouts should reuse the statement prepared the first time, with its
+     * parameters cleared.
+     */
+    @Test
+    public void preparedStatementsAreCached() throws SQLException {
+        ConnectionPool cachingPool = new ConnectionPool(dataSource(), 1, 0, 200, 60000, 0, 8);
+        try {
+            PreparedStatement physical;
+            try (Connection connection = cachingPool.getConnection();
+                 PreparedStatement statement = connection.prepareStatement("SELECT ?")) {
+                statement.setInt(1, 42);
+                try (ResultSet rs = statement.executeQuery()) {
+                    rs.next();
+                    Assert.assertEquals(42, rs.getInt(1));
+                }
+                physical = statement.unwrap(PreparedStatement.class);
+            }
+            try (Connection connection = cachingPool.getConnection();
+                 PreparedStatement statement = connection.prepareStatement("SELECT ?")) {
+                Assert.assertSame(physical, statement.unwrap(PreparedStatement.class));
+                try {
+                    statement.executeQuery();
+                    Assert.fail("expected the parameters of the previous use to be cleared");
+                } catch (SQLException expected) {
+                    // parameter 1 is not set
+                }
+                // the cached statement is still open, so a second prepare of the same SQL gets its own statement
+                try (PreparedStatement second = connection.prepareStatement("SELECT ?")) {
+                    Assert.assertNotSame(physical, second.unwrap(PreparedStatement.class));
+                }
+            }
+            Assert.assertEquals(1, cachingPool.getStatementCacheHitCount());
+            Assert.assertEquals(2, cachingPool.getStatementCacheMissCount());
+        } finally {
+            cachingPool.close();
+        }
+    }
+
+    /**
+     * A cached statement that has been closed must not be usable, even though its physical statement stays open.
+     */
+    @Test
+    public void closedCachedStatementIsRejected() throws SQLException {
+        ConnectionPool cachingPool = new ConnectionPool(dataSource(), 1, 0, 200, 60000, 0, 8);
+        try (Connection connection = cachingPool.getConnection()) {
+            PreparedStatement statement = connection.prepareStatement("SELECT 1");
+            PreparedStatement physical = statement.unwrap(PreparedStatement.class);
+            statement.close();
+            Assert.assertTrue(statement.isClosed());
+            try {
+                statement.executeQuery();
+                Assert.fail("expected a closed statement to be unusable");
+            } catch (SQLException expected) {
+                PreparedStatement reused = connection.prepareStatement("SELECT 1");
+                Assert.assertSame(physical, reused.unwrap(PreparedStatement.class));
+                Assert.assertTrue(statement.isClosed());
+            }
+        } finally {
+            cachingPool.close();
+        }
+    }
+
+    /**
+     * A statement proxy kept after close() must stay unusable once its cached statement is lent to the next borrower
+     * of the connection.
+     */
+    @Test
+    public void staleCachedStatementIsRejectedAfterReuse() throws SQLException {
+        ConnectionPool cachingPool = new ConnectionPool(dataSource(), 1, 0, 200, 60000, 0, 8);
+        try {
+            PreparedStatement stale;
+            try (Connection connection = cachingPool.getConnection()) {
+                stale = connection.prepareStatement("SELECT ?");
+                stale.close();
+            }
+            try (Connection connection = cachingPool.getConnection();
+                 PreparedStatement current = connection.prepareStatement("SELECT ?")) {
+                Assert.assertEquals(1, cachingPool.getStatementCacheHitCount());
+                current.setInt(1, 7);
+                try {
+                    stale.setInt(1, 42);
+                    Assert.fail("expected a closed statement to stay unusable");
+                } catch (SQLException expected) {
+                    Assert.assertTrue(stale.isClosed());
+                }
+                try (ResultSet rs = current.executeQuery()) {
+                    rs.next();
+                    Assert.assertEquals(7, rs.getInt(1));
+                }
+            }
+        } finally {
+            cachingPool.close();
+        }
+    }
+}
@@ -0,0 +1,100 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import Controller.SocialMediaController;
+import Util.ConnectionUtil;
+import Util.DatabaseExecutor;
+import io.javalin.Javalin;
+
+public class DatabaseExecutorTest {
+    DatabaseExecutor databaseExecutor;
+    CountDownLatch release;
+    HttpClient webClient;
+    Javalin app;
+    String baseUrl;
+
+    /**
+     * Before every test, reset the database and start the Javalin app on a database executor with one worker and
+     * room for one queued task.
+     * @throws InterruptedException
+     */
+    @Before
+    public void setUp() throws InterruptedException {
+        ConnectionUtil.resetTestDatabase();
+        databaseExecutor = new DatabaseExecutor(1, 1);
+        release = new CountDownLatch(1);
+        app = new SocialMediaController(databaseExecutor).startAPI();
+        webClient = HttpClient.newHttpClient();
+        baseUrl = TestServer.start(app);
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        app.stop();
+    }
+
+    /**
+     * Occupies the only worker and fills the queue.
+     */
+    private void saturate() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        databaseExecutor.submit(() -> {
+            started.countDown();
+            release.await();
+        });
+        started.await();
+        databaseExecutor.submit(release::await);
+    }
+
+    /**
+     * Sending an http request to GET localhost:8080/messages while the database executor is saturated
+     *
+     * Expected Response:
+     *  Status Code: 503 with a Retry-After header, then 200 once the executor has drained
+     */
+    @Test
+    public void saturatedExecutorShedsRequests() throws IOException, InterruptedException {
+        saturate();
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/messages"))
+                .build();
+        HttpResponse<String> response = webClient.send(request, HttpResponse.BodyHandlers.ofString());
+        Assert.assertEquals(503, response.statusCode());
+        Assert.assertEquals("1", response.headers().firstValue("Retry-After").orElse(null));
+        Assert.assertEquals(1, databaseExecutor.getRejectedCount());
+
+        release.countDown();
+        // the two blocking tasks must be out of the way before the executor has room again
+        while (databaseExecutor.getCompletedCount() < 2) {
+            Thread.sleep(10);
+        }
+        response = webClient.send(request, HttpResponse.BodyHandlers.ofString());
+        Assert.assertEquals(200, response.statusCode());
+    }
+
+    /**
+     * Submitting directly to a saturated executor fails fast instead of blocking.
+     */
+    @Test
+    public void saturatedExecutorRejectsTasks() throws InterruptedException {
+        saturate();
+        try {
+            databaseExecutor.submit(() -> { });
+            Assert.fail("expected the saturated executor to reject the task");
+        } catch (RejectedExecutionException expected) {
+            Assert.assertEquals(1, databaseExecutor.getQueuedCount());
+            Assert.assertEquals(1, databaseExecutor.getActiveCount());
+        }
+    }
+}
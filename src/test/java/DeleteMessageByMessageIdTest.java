@@ -22,6 +22,7 @@ public class DeleteMessageByMessageIdTest {
     HttpClient webClient;
     ObjectMapper objectMapper;
     Javalin app;
+    String baseUrl;
 
     /**
      * Before every test, reset the database, restart the Javalin app, and create a new webClient and ObjectMapper
@@ -35,8 +36,7 @@ public class DeleteMessageByMessageIdTest {
         app = socialMediaController.startAPI();
         webClient = HttpClient.newHttpClient();
         objectMapper = new ObjectMapper();
-        app.start(8080);
-        Thread.sleep(1000);
+        baseUrl = TestServer.start(app);
     }
 
     @After
@@ -55,7 +55,7 @@ public class DeleteMessageByMessageIdTest {
     @Test
     public void deleteMessageGivenMessageIdMessageFound() throws IOException, InterruptedException {
         HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create("http://localhost:8080/messages/1"))
+                .uri(URI.create(baseUrl + "/messages/1"))
                 .DELETE()
                 .build();
         HttpResponse response = webClient.send(request, HttpResponse.BodyHandlers.ofString());
@@ -78,7 +78,7 @@ public class DeleteMessageByMessageIdTest {
     @Test
     public void deleteMessageGivenMessageIdMessageNotFound() throws IOException, InterruptedException {
         HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create("http://localhost:8080/messages/100"))
+                .uri(URI.create(baseUrl + "/messages/100"))
                 .DELETE()
                 .build();
         HttpResponse response = webClient.send(request, HttpResponse.BodyHandlers.ofString());
@@ -87,5 +87,33 @@ public class DeleteMessageByMessageIdTest {
         Assert.assertEquals(200, status);
         Assert.assertTrue(response.body().toString().isEmpty());
     }
-    
+
+    /**
+     * Sending an http request to DELETE localhost:8080/messages/1 twice, then GET localhost:8080/messages/1
+     *
+     * Expected Response:
+     *  Status Code: 200 each time
+     *  Response Body: the deleted message the first time, then empty for the second delete and the lookup
+     */
+    @Test
+    public void deleteMessageRemovesTheRow() throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/messages/1"))
+                .DELETE()
+                .build();
+        HttpResponse<String> first = webClient.send(request, HttpResponse.BodyHandlers.ofString());
+        Assert.assertEquals(200, first.statusCode());
+        Assert.assertFalse(first.body().isEmpty());
+
+        HttpResponse<String> second = webClient.send(request, HttpResponse.BodyHandlers.ofString());
+        Assert.assertEquals(200, second.statusCode());
+        Assert.assertTrue(second.body().isEmpty());
+
+        HttpRequest getRequest = HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/messages/1"))
+                .build();
+        HttpResponse<String> lookup = webClient.send(getRequest, HttpResponse.BodyHandlers.ofString());
+        Assert.assertEquals(200, lookup.statusCode());
+        Assert.assertTrue(lookup.body().isEmpty());
+    }
 }
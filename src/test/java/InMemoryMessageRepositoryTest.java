@@ -0,0 +1,187 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import DAO.InMemoryMessageRepository;
+import DAO.MessageDAO;
+import Model.Message;
+import Util.ConnectionUtil;
+
+public class InMemoryMessageRepositoryTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    Path logPath;
+
+    @Before
+    public void setUp() {
+        ConnectionUtil.resetTestDatabase();
+        logPath = folder.getRoot().toPath().resolve("messages.wal");
+    }
+
+    private InMemoryMessageRepository open() {
+        return new InMemoryMessageRepository(logPath, false, new MessageDAO());
+    }
+
+    /**
+     * A new repository starts from the message table; every later change is replayed from the log by the next one.
+     */
+    @Test
+    public void changesSurviveReopening() {
+        try (InMemoryMessageRepository repository = open()) {
+            Assert.assertEquals(new Message(1, 1, "test message 1", 1669947792),
+                    repository.retrieveMessageById(1));
+            Assert.assertEquals(2, repository.insertMessage(new Message(1, "second", 1669947800)).getMessage_id());
+            Assert.assertEquals(3, repository.insertMessage(new Message(1, "third", 1669947700)).getMessage_id());
+            // a change made on behalf of another poster is refused
+            Assert.assertNull(repository.updateMessageText(2, 7, "not yours"));
+            Assert.assertNull(repository.deleteMessageById(1, 7));
+            Assert.assertEquals("edited", repository.updateMessageText(2, 1, "edited").getMessage_text());
+            Assert.assertEquals("test message 1", repository.deleteMessageById(1).getMessage_text());
+            Assert.assertEquals(4, repository.reserveMessageIds(10));
+        }
+
+        try (InMemoryMessageRepository repository = open()) {
+            Assert.assertNull(repository.retrieveMessageById(1));
+            Assert.assertEquals(Arrays.asList(new Message(2, 1, "edited", 1669947800),
+                    new Message(3, 1, "third", 1669947700)), repository.retrieveAllMessages());
+            // the reserved block is never handed out again
+            Assert.assertEquals(14, repository.insertMessage(new Message(1, "after", 1669947900)).getMessage_id());
+        }
+    }
+
+    /**
+     * A record cut short at the end of the log is dropped, and the records before it are kept.
+     */
+    @Test
+    public void damagedTailIsDropped() throws IOException {
+        try (InMemoryMessageRepository repository = open()) {
+            repository.insertMessage(new Message(1, "kept", 1669947800));
+            repository.insertMessage(new Message(1, "cut short", 1669947801));
+        }
+        try (FileChannel channel = FileChannel.open(logPath, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+
+        try (InMemoryMessageRepository repository = open()) {
+            List<Message> messages = repository.retrieveAllMessages();
+            Assert.assertEquals(2, messages.size());
+            Assert.assertEquals("kept", messages.get(1).getMessage_text());
+            Assert.assertEquals(3, repository.insertMessage(new Message(1, "next", 1669947802)).getMessage_id());
+        }
+        try (InMemoryMessageRepository repository = open()) {
+            Assert.assertEquals("next", repository.retrieveMessageById(3).getMessage_text());
+        }
+    }
+
+    /**
+     * Pages by account come from the secondary index, in message_id order, and only hold that account's messages.
+     */
+    @Test
+    public void pagesByAccount() {
+        try (InMemoryMessageRepository repository = open()) {
+            repository.insertMessages(Arrays.asList(new Message(2, "other account", 1669947800),
+                    new Message(1, "later", 1669947900), new Message(1, "earlier", 1669947000)));
+            List<Message> page = repository.retrieveMessagesByAccountIdAfter(1, 1, 10);
+            Assert.assertEquals(Arrays.asList(new Message(3, 1, "later", 1669947900),
+                    new Message(4, 1, "earlier", 1669947000)), page);
+            Assert.assertEquals(1, repository.retrieveMessagesByAccountIdAfter(1, 0, 1).size());
+            Assert.assertEquals(1, repository.retrieveMessagesByAccountId(2).size());
+        }
+    }
+
+    /**
+     * Compaction rewrites the log down to one record per message while the repository stays usable, and a log
+     * that fills up with dead records is compacted in the background.
+     */
+    @Test
+    public void deadRecordsAreCompacted() throws InterruptedException {
+        try (InMemoryMessageRepository repository = new InMemoryMessageRepository(logPath, false, new MessageDAO(),
+                20)) {
+            for (int i = 0; i < 10; i++) {
+                repository.updateMessageText(1, "edit " + i);
+            }
+            Assert.assertEquals(12, repository.getLogRecordCount());
+            Assert.assertTrue(repository.compact());
+            Assert.assertEquals(2, repository.getLogRecordCount());
+
+            for (int i = 0; i < 30; i++) {
+                repository.updateMessageText(1, "edit " + i);
+            }
+            long deadline = System.nanoTime() + 5_000_000_000L;
+            while (repository.getLogRecordCount() > 20 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertTrue(repository.getLogRecordCount() <= 20);
+            Assert.assertEquals(2, repository.insertMessage(new Message(1, "after", 1669947900)).getMessage_id());
+        }
+        try (InMemoryMessageRepository repository = open()) {
+            Assert.assertEquals(Arrays.asList(new Message(1, 1, "edit 29", 1669947792),
+                    new Message(2, 1, "after", 1669947900)), repository.retrieveAllMessages());
+        }
+    }
+
+    /**
+     * A narrow time window over a large table comes from the time_posted_epoch index: newest first, ties broken by
+     * message_id, continued page by page from the (time_posted_epoch, message_id) of the last message, and without
+     * the messages deleted since they were inserted.
+     */
+    @Test
+    public void narrowTimeWindowOverLargeTable() {
+        long base = 1700000000L;
+        List<Message> inserted = new ArrayList<>();
+        try (InMemoryMessageRepository repository = open()) {
+            List<Message> batch = new ArrayList<>();
+            for (int i = 0; i < 100000; i++) {
+                // two messages per second, posted out of message_id order
+                batch.add(new Message(1 + i % 10, "message " + i, base + i * 7919L % 50000));
+                if (batch.size() == 1000) {
+                    inserted.addAll(repository.insertMessages(batch));
+                    batch.clear();
+                }
+            }
+            Message deleted = inserted.stream().filter(message -> message.getTime_posted_epoch() == base + 102)
+                    .findFirst().get();
+            repository.deleteMessageById(deleted.getMessage_id());
+            inserted.remove(deleted);
+
+            List<Message> expected = inserted.stream()
+                    .filter(message -> message.getTime_posted_epoch() >= base + 100
+                            && message.getTime_posted_epoch() <= base + 104)
+                    .sorted(Comparator.comparingLong(Message::getTime_posted_epoch)
+                            .thenComparingInt(Message::getMessage_id).reversed())
+                    .collect(Collectors.toList());
+            Assert.assertEquals(9, expected.size());
+
+            List<Message> pages = new ArrayList<>();
+            long beforeEpoch = Long.MAX_VALUE;
+            int beforeId = Integer.MAX_VALUE;
+            while (true) {
+                List<Message> page = repository.retrieveMessagesInTimeRange(base + 100, base + 104, beforeEpoch,
+                        beforeId, 4);
+                if (page.isEmpty()) {
+                    break;
+                }
+                Assert.assertTrue(page.size() <= 4);
+                pages.addAll(page);
+                beforeEpoch = page.get(page.size() - 1).getTime_posted_epoch();
+                beforeId = page.get(page.size() - 1).getMessage_id();
+            }
+            Assert.assertEquals(expected, pages);
+            Assert.assertTrue(repository.retrieveMessagesInTimeRange(base + 104, base + 100, Long.MAX_VALUE,
+                    Integer.MAX_VALUE, 4).isEmpty());
+        }
+    }
+}
@@ -0,0 +1,199 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import DAO.MappedLogMessageRepository;
+import DAO.MessageDAO;
+import Model.Message;
+import Util.ConnectionUtil;
+
+public class MappedLogMessageRepositoryTest {
+    /**
+     * Small enough that a few dozen messages fill several segments.
+     */
+    private static final int SEGMENT_SIZE = 4096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    Path directory;
+
+    @Before
+    public void setUp() {
+        ConnectionUtil.resetTestDatabase();
+        directory = folder.getRoot().toPath();
+    }
+
+    private MappedLogMessageRepository open() {
+        return new MappedLogMessageRepository(directory, SEGMENT_SIZE, 50, 0, false, new MessageDAO());
+    }
+
+    private static String text(int i) {
+        StringBuilder text = new StringBuilder("message " + i + " ");
+        while (text.length() < 200) {
+            text.append('x');
+        }
+        return text.toString();
+    }
+
+    private long segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+    /**
+     * Messages spread over several segments are read back by id and in order, before and after reopening.
+     */
+    @Test
+    public void messagesSpanSegmentsAndSurviveReopening() throws IOException {
+        List<Message> expected = new ArrayList<>();
+        try (MappedLogMessageRepository repository = open()) {
+            expected.add(repository.retrieveMessageById(1));
+            for (int i = 2; i <= 60; i++) {
+                expected.add(repository.insertMessage(new Message(1, text(i), 1669947792L + i)));
+            }
+            Assert.assertTrue(repository.getSegmentCount() > 1);
+            Assert.assertEquals(text(30), repository.retrieveMessageById(30).getMessage_text());
+        }
+        Assert.assertTrue(segmentFiles() > 1);
+
+        try (MappedLogMessageRepository repository = open()) {
+            Assert.assertEquals(expected, repository.retrieveAllMessages());
+            Assert.assertEquals(expected.subList(10, 15), repository.retrieveMessagesByAccountIdAfter(1, 10, 5));
+            Assert.assertEquals(61, repository.insertMessage(new Message(1, "next", 1669947900)).getMessage_id());
+        }
+    }
+
+    /**
+     * Updates and deletes leave garbage behind; compaction copies what is still live, deletes the old segments,
+     * and the result reads the same after reopening.
+     */
+    @Test
+    public void compactionReclaimsSupersededRecords() throws IOException {
+        try (MappedLogMessageRepository repository = open()) {
+            for (int i = 2; i <= 40; i++) {
+                repository.insertMessage(new Message(1, text(i), 1669947792L + i));
+            }
+            Assert.assertNull(repository.deleteMessageById(2, 7));
+            Assert.assertNull(repository.updateMessageText(3, 7, "not yours"));
+            for (int i = 2; i <= 40; i += 2) {
+                Assert.assertNotNull(repository.deleteMessageById(i, 1));
+            }
+            for (int i = 3; i <= 40; i += 2) {
+                Assert.assertEquals("edited " + i, repository.updateMessageText(i, "edited " + i).getMessage_text());
+            }
+            Assert.assertEquals(41, repository.reserveMessageIds(5));
+            long segmentsBefore = repository.getSegmentCount();
+
+            int compacted = repository.compact();
+            Assert.assertTrue(compacted > 0);
+            Assert.assertTrue(repository.getSegmentCount() < segmentsBefore);
+            // nothing was reading them, so the compacted segments are unmapped straight away
+            Assert.assertEquals(compacted, repository.getUnmappedSegmentCount());
+            Assert.assertEquals(20, repository.retrieveAllMessages().size());
+            Assert.assertNull(repository.retrieveMessageById(2));
+            Assert.assertEquals("edited 3", repository.retrieveMessageById(3).getMessage_text());
+        }
+
+        try (MappedLogMessageRepository repository = open()) {
+            List<Message> messages = repository.retrieveAllMessages();
+            Assert.assertEquals(20, messages.size());
+            Assert.assertEquals("edited 39", messages.get(19).getMessage_text());
+            Assert.assertNull(repository.retrieveMessageById(40));
+            // the reserved block survived compaction
+            Assert.assertEquals(46, repository.insertMessage(new Message(1, "next", 1669947900)).getMessage_id());
+        }
+    }
+
+    /**
+     * A damaged record at the end of the last segment is dropped, and later records are written after the last
+     * intact one.
+     */
+    @Test
+    public void damagedTailIsDropped() throws IOException {
+        try (MappedLogMessageRepository repository = open()) {
+            repository.insertMessage(new Message(1, "kept", 1669947800));
+            repository.insertMessage(new Message(1, "torn", 1669947801));
+        }
+        Path segment;
+        try (Stream<Path> files = Files.list(directory)) {
+            segment = files.sorted().reduce((first, second) -> second).orElseThrow();
+        }
+        byte[] bytes = Files.readAllBytes(segment);
+        int torn = new String(bytes, StandardCharsets.ISO_8859_1).indexOf("torn");
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap("TORN".getBytes(StandardCharsets.US_ASCII)), torn);
+        }
+
+        try (MappedLogMessageRepository repository = open()) {
+            Assert.assertEquals("kept", repository.retrieveMessageById(2).getMessage_text());
+            Assert.assertNull(repository.retrieveMessageById(3));
+            Assert.assertEquals(3, repository.insertMessage(new Message(1, "next", 1669947802)).getMessage_id());
+        }
+        try (MappedLogMessageRepository repository = open()) {
+            Assert.assertEquals("next", repository.retrieveMessageById(3).getMessage_text());
+        }
+    }
+
+    /**
+     * A narrow time window over a large table comes from the time_posted_epoch index, newest first and without the
+     * messages deleted since, and the index is rebuilt the same when the segments are replayed.
+     */
+    @Test
+    public void narrowTimeWindowOverLargeTable() {
+        long base = 1700000000L;
+        List<Message> inserted = new ArrayList<>();
+        List<Message> expected;
+        try (MappedLogMessageRepository repository = new MappedLogMessageRepository(directory, 1024 * 1024, 50, 0,
+                false, new MessageDAO())) {
+            List<Message> batch = new ArrayList<>();
+            for (int i = 0; i < 100000; i++) {
+                // two messages per second, posted out of message_id order
+                batch.add(new Message(1 + i % 10, "message " + i, base + i * 7919L % 50000));
+                if (batch.size() == 1000) {
+                    inserted.addAll(repository.insertMessages(batch));
+                    batch.clear();
+                }
+            }
+            Message deleted = inserted.stream().filter(message -> message.getTime_posted_epoch() == base + 102)
+                    .findFirst().get();
+            repository.deleteMessageById(deleted.getMessage_id());
+            inserted.remove(deleted);
+
+            expected = inserted.stream()
+                    .filter(message -> message.getTime_posted_epoch() >= base + 100
+                            && message.getTime_posted_epoch() <= base + 104)
+                    .sorted(Comparator.comparingLong(Message::getTime_posted_epoch)
+                            .thenComparingInt(Message::getMessage_id).reversed())
+                    .collect(Collectors.toList());
+            Assert.assertEquals(9, expected.size());
+            Assert.assertEquals(expected, repository.retrieveMessagesInTimeRange(base + 100, base + 104,
+                    Long.MAX_VALUE, Integer.MAX_VALUE, 20));
+            Message fourth = expected.get(3);
+            Assert.assertEquals(expected.subList(4, 8), repository.retrieveMessagesInTimeRange(base + 100,
+                    base + 104, fourth.getTime_posted_epoch(), fourth.getMessage_id(), 4));
+        }
+
+        try (MappedLogMessageRepository repository = new MappedLogMessageRepository(directory, 1024 * 1024, 50, 0,
+                false, new MessageDAO())) {
+            Assert.assertEquals(expected, repository.retrieveMessagesInTimeRange(base + 100, base + 104,
+                    Long.MAX_VALUE, Integer.MAX_VALUE, 20));
+        }
+    }
+}
@@ -0,0 +1,71 @@
+import org.junit.Assert;
+import org.junit.Test;
+
+import DAO.MessageCache;
+import Model.Message;
+
+public class MessageCacheTest {
+
+    /**
+     * A stored message should be returned as an equal copy and counted as a hit; an unknown id as a miss.
+     */
+    @Test
+    public void getCountsHitsAndMisses() {
+        MessageCache cache = new MessageCache(10, 60000);
+        Message message = new Message(1, 1, "test message 1", 1669947792);
+        cache.put(message);
+
+        Message cached = cache.get(1);
+        Assert.assertEquals(message, cached);
+        Assert.assertNotSame(message, cached);
+        Assert.assertNull(cache.get(2));
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(1, cache.getMissCount());
+    }
+
+    /**
+     * A load that started before an invalidation must not put the row it read back into the cache.
+     */
+    @Test
+    public void invalidationDiscardsRacingLoad() {
+        MessageCache cache = new MessageCache(10, 60000);
+        long stamp = cache.loadStamp(1);
+        long otherStamp = cache.loadStamp(2);
+        cache.invalidate(1);
+        cache.putIfNotInvalidated(new Message(1, 1, "stale", 1669947792), stamp);
+        Assert.assertNull(cache.get(1));
+        // a write to one message does not hold back loads of another
+        cache.putIfNotInvalidated(new Message(2, 1, "fresh", 1669947792), otherStamp);
+        Assert.assertEquals("fresh", cache.get(2).getMessage_text());
+    }
+
+    /**
+     * When the cache is full, a frequently read message should survive a stream of messages read only once.
+     */
+    @Test
+    public void frequentlyUsedMessagesSurviveScans() {
+        MessageCache cache = new MessageCache(4, 60000);
+        cache.put(new Message(1, 1, "hot", 1669947792));
+        for (int i = 0; i < 10; i++) {
+            cache.get(1);
+        }
+        for (int id = 2; id <= 100; id++) {
+            cache.get(id);
+            cache.put(new Message(id, 1, "cold " + id, 1669947792));
+        }
+        Assert.assertNotNull(cache.get(1));
+        Assert.assertTrue(cache.size() <= 4);
+        Assert.assertTrue(cache.getEvictionCount() > 0);
+    }
+
+    /**
+     * Messages should not be served once their time to live has passed.
+     */
+    @Test
+    public void expiredMessagesAreMisses() throws InterruptedException {
+        MessageCache cache = new MessageCache(10, 1);
+        cache.put(new Message(1, 1, "test message 1", 1669947792));
+        Thread.sleep(5);
+        Assert.assertNull(cache.get(1));
+    }
+}
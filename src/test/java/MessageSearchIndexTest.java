@@ -0,0 +1,93 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import DAO.MessageSearchIndex;
+
+public class MessageSearchIndexTest {
+    private static List<Integer> ids(List<MessageSearchIndex.Hit> hits) {
+        List<Integer> ids = new ArrayList<>();
+        for (MessageSearchIndex.Hit hit : hits) {
+            ids.add(hit.getMessageId());
+        }
+        return ids;
+    }
+
+    /**
+     * Text is split on anything that is not a letter or digit and lower-cased.
+     */
+    @Test
+    public void tokenizeSplitsAndLowerCases() {
+        Assert.assertEquals(Arrays.asList("hello", "world", "it", "s", "2022"),
+                MessageSearchIndex.tokenize("Hello, WORLD! it's 2022"));
+        Assert.assertTrue(MessageSearchIndex.tokenize(" ?! ").isEmpty());
+    }
+
+    /**
+     * Every query term must match; more occurrences rank higher, and equal scores put the newest message first.
+     * Edits and deletes are reflected straight away.
+     */
+    @Test
+    public void searchRanksAndFollowsChanges() {
+        MessageSearchIndex index = new MessageSearchIndex();
+        index.add(1, "coffee in the morning");
+        index.add(2, "coffee coffee coffee, more coffee");
+        index.add(3, "tea in the morning");
+        index.add(4, "coffee in the morning");
+
+        Assert.assertEquals(Arrays.asList(2, 4, 1), ids(index.search("Coffee", 0, 10)));
+        Assert.assertEquals(Arrays.asList(4, 1), ids(index.search("morning coffee", 0, 10)));
+        Assert.assertEquals(Arrays.asList(4), ids(index.search("coffee", 1, 1)));
+        Assert.assertTrue(index.search("coffee tea", 0, 10).isEmpty());
+        Assert.assertTrue(index.search("juice", 0, 10).isEmpty());
+
+        index.add(4, "tea in the evening");
+        index.remove(2);
+        Assert.assertEquals(Arrays.asList(1), ids(index.search("coffee", 0, 10)));
+        Assert.assertEquals(Arrays.asList(4, 3), ids(index.search("tea", 0, 10)));
+        Assert.assertEquals(3, index.getDocumentCount());
+        Assert.assertEquals(2, index.getDeletedDocumentCount());
+    }
+
+    /**
+     * Intersections over posting lists spanning many skip blocks find exactly the messages a scan finds, whether the
+     * index was built in bulk or one message at a time.
+     */
+    @Test
+    public void intersectionsMatchAScan() {
+        Random random = new Random(7);
+        int count = 20000;
+        int[] ids = new int[count];
+        String[] texts = new String[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = i + 1;
+            StringBuilder text = new StringBuilder("common");
+            for (int word = 0; word < 3; word++) {
+                text.append(" w").append(random.nextInt(40));
+            }
+            texts[i] = text.toString();
+        }
+        MessageSearchIndex bulk = new MessageSearchIndex();
+        bulk.addAll(ids, texts, count);
+        MessageSearchIndex incremental = new MessageSearchIndex();
+        for (int i = 0; i < count; i++) {
+            incremental.add(ids[i], texts[i]);
+        }
+
+        for (String query : new String[] {"w3 w17", "common w5", "w1 w2 w3"}) {
+            int expected = 0;
+            for (String text : texts) {
+                List<String> tokens = MessageSearchIndex.tokenize(text);
+                if (tokens.containsAll(MessageSearchIndex.tokenize(query))) {
+                    expected++;
+                }
+            }
+            Assert.assertEquals(query, expected, bulk.search(query, 0, count).size());
+            Assert.assertEquals(query, ids(bulk.search(query, 0, 50)), ids(incremental.search(query, 0, 50)));
+        }
+    }
+}
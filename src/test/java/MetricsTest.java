@@ -0,0 +1,122 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import Controller.SocialMediaController;
+import Util.ConnectionUtil;
+import Util.LatencyHistogram;
+import io.javalin.Javalin;
+
+public class MetricsTest {
+    SocialMediaController socialMediaController;
+    HttpClient webClient;
+    Javalin app;
+    String baseUrl;
+
+    /**
+     * Before every test, reset the database, restart the Javalin app, and create a new webClient.
+     * @throws InterruptedException
+     */
+    @Before
+    public void setUp() throws InterruptedException {
+        ConnectionUtil.resetTestDatabase();
+        socialMediaController = new SocialMediaController();
+        app = socialMediaController.startAPI();
+        webClient = HttpClient.newHttpClient();
+        baseUrl = TestServer.start(app);
+    }
+
+    @After
+    public void tearDown() {
+        app.stop();
+    }
+
+    private HttpResponse<String> get(String path) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + path))
+                .build();
+        return webClient.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    /**
+     * Sending two requests to GET localhost:8080/messages/1, then GET localhost:8080/metrics
+     *
+     * Expected Response:
+     *  Status Code: 200
+     *  Response Body: Prometheus text counting both requests under the route template, with their latency histogram,
+     *  the DAO query that served them, and the pool, cache and executor gauges
+     */
+    @Test
+    public void metricsCountRequestsByRoute() throws IOException, InterruptedException {
+        get("/messages/1");
+        get("/messages/1");
+        HttpResponse<String> response = get("/metrics");
+        Assert.assertEquals(200, response.statusCode());
+        Assert.assertTrue(response.headers().firstValue("Content-Type").orElse("").startsWith("text/plain"));
+        String body = response.body();
+        Assert.assertTrue(body.contains(
+                "http_requests_total{method=\"GET\",route=\"/messages/{message_id}\",status=\"2xx\"} 2\n"));
+        Assert.assertTrue(body.contains(
+                "http_request_duration_seconds_count{method=\"GET\",route=\"/messages/{message_id}\"} 2\n"));
+        Assert.assertTrue(body.contains(
+                "http_request_errors_total{method=\"GET\",route=\"/messages/{message_id}\"} 0\n"));
+        Assert.assertTrue(body.contains(
+                "db_query_duration_seconds_bucket{dao=\"MessageDAO\",method=\"retrieveMessageById\",le=\"+Inf\"}"));
+        // the second lookup is answered from the cache
+        Assert.assertTrue(body.contains("message_cache_hits_total 1\n"));
+        Assert.assertTrue(body.contains("# TYPE db_pool_active_connections gauge\n"));
+        Assert.assertTrue(body.contains("db_executor_rejected_total 0\n"));
+    }
+
+    /**
+     * Percentiles read back from the histogram are within its bucket precision of the recorded values.
+     */
+    @Test
+    public void histogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long micros = 1; micros <= 1000; micros++) {
+            histogram.record(micros * 1000);
+        }
+        Assert.assertEquals(1000, histogram.getCount());
+        Assert.assertEquals(500_500_000L, histogram.getSum());
+        long p50 = histogram.getValueAtPercentile(50);
+        long p99 = histogram.getValueAtPercentile(99);
+        Assert.assertTrue(p50 >= 500_000 && p50 <= 500_000 * 1.07);
+        Assert.assertTrue(p99 >= 990_000 && p99 <= 990_000 * 1.07);
+        Assert.assertEquals(100, histogram.getCountAtOrBelow(100_000 - 1), 7);
+    }
+
+    /**
+     * Counts at or below a bound are exact at bucket edges, and a bucket that straddles the bound is counted in
+     * proportion to the part of its range below the bound. 1024 to 1087 nanoseconds is one bucket, 64 wide.
+     */
+    @Test
+    public void histogramCountsAtBucketEdges() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long nanos = 1024; nanos <= 1087; nanos++) {
+            histogram.record(nanos);
+        }
+        histogram.record(1088);
+        Assert.assertEquals(0, histogram.getCountAtOrBelow(1023));
+        Assert.assertEquals(64, histogram.getCountAtOrBelow(1087));
+        Assert.assertEquals(65, histogram.getCountAtOrBelow(1151));
+        // inside the bucket: 32 of its 64 values are at or below 1055
+        Assert.assertEquals(32, histogram.getCountAtOrBelow(1055));
+        Assert.assertEquals(1, histogram.getCountAtOrBelow(1024));
+
+        // values bunched at one end of a bucket are spread over it, which is the error the interpolation can make
+        LatencyHistogram bunched = new LatencyHistogram();
+        for (int i = 0; i < 10; i++) {
+            bunched.record(1024);
+        }
+        Assert.assertEquals(5, bunched.getCountAtOrBelow(1055));
+        Assert.assertEquals(10, bunched.getCountAtOrBelow(1087));
+    }
+}
@@ -0,0 +1,176 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import Controller.SocialMediaController;
+import Util.ConnectionUtil;
+import Util.RateLimiter;
+import io.javalin.Javalin;
+
+public class RateLimitTest {
+    SocialMediaController socialMediaController;
+    HttpClient webClient;
+    Javalin app;
+    String baseUrl;
+
+    /**
+     * Before every test, reset the database and restart the Javalin app with a burst of two posts, and of two batched
+     * messages, per account or client.
+     * @throws InterruptedException
+     */
+    @Before
+    public void setUp() throws InterruptedException {
+        ConnectionUtil.resetTestDatabase();
+        System.setProperty("ratelimit.messages.post.perSecond", "1");
+        System.setProperty("ratelimit.messages.post.burst", "2");
+        System.setProperty("ratelimit.messages.batch.perSecond", "1");
+        System.setProperty("ratelimit.messages.batch.burst", "2");
+        socialMediaController = new SocialMediaController();
+        app = socialMediaController.startAPI();
+        webClient = HttpClient.newHttpClient();
+        baseUrl = TestServer.start(app);
+    }
+
+    @After
+    public void tearDown() {
+        app.stop();
+        System.clearProperty("ratelimit.messages.post.perSecond");
+        System.clearProperty("ratelimit.messages.post.burst");
+        System.clearProperty("ratelimit.messages.batch.perSecond");
+        System.clearProperty("ratelimit.messages.batch.burst");
+    }
+
+    private HttpResponse<String> post(String path, String body, String token) throws IOException, InterruptedException {
+        HttpRequest.Builder request = HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + path))
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .header("Content-Type", "application/json");
+        if (token != null) {
+            request.header("Authorization", "Bearer " + token);
+        }
+        return webClient.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private HttpResponse<String> postMessage(int postedBy, String token) throws IOException, InterruptedException {
+        return post("/messages", "{" +
+                "\"posted_by\":" + postedBy + ", " +
+                "\"message_text\": \"hello message\", " +
+                "\"time_posted_epoch\": 1669947792}", token);
+    }
+
+    /**
+     * Sending a third POST localhost:8080/messages from the same client within a second
+     *
+     * Expected Response:
+     *  Status Code: 429
+     *  Retry-After: 1
+     *  Naming another posted_by does not get a client a new bucket; a session token does, for its own account.
+     */
+    @Test
+    public void postsOverTheLimitAreRefused() throws IOException, InterruptedException {
+        Assert.assertEquals(200, postMessage(1, null).statusCode());
+        // account 2 does not exist, so the post is refused by validation, but it is still charged
+        Assert.assertEquals(400, postMessage(2, null).statusCode());
+        HttpResponse<String> response = postMessage(3, null);
+        Assert.assertEquals(429, response.statusCode());
+        Assert.assertEquals("1", response.headers().firstValue("Retry-After").orElse(null));
+
+        HttpResponse<String> login = post("/login", "{\"username\": \"testuser1\", \"password\": \"password\"}",
+                null);
+        String token = login.headers().firstValue("X-Session-Token").orElse(null);
+        Assert.assertEquals(200, postMessage(1, token).statusCode());
+    }
+
+    /**
+     * A batch costs one permit per message, so POST localhost:8080/messages/batch with more messages than the burst
+     * is refused with 429, while a smaller one is accepted.
+     */
+    @Test
+    public void batchesAreChargedPerMessage() throws IOException, InterruptedException {
+        String message = "{\"posted_by\":1, \"message_text\": \"hello message\", \"time_posted_epoch\": 1669947792}";
+        Assert.assertEquals(429, post("/messages/batch", "[" + message + "," + message + "," + message + "]", null)
+                .statusCode());
+        Assert.assertEquals(200, post("/messages/batch", "[" + message + "," + message + "]", null).statusCode());
+        Assert.assertEquals(429, post("/messages/batch", "[" + message + "]", null).statusCode());
+    }
+
+    /**
+     * A request costing several permits is admitted only if its key has all of them.
+     */
+    @Test
+    public void requestsTakeAllTheirPermitsOrNone() {
+        AtomicLong now = new AtomicLong();
+        RateLimiter.Bucket global = new RateLimiter.Bucket(10, 5);
+        RateLimiter limiter = new RateLimiter(10, 4, 1000, global, now::get);
+        Assert.assertTrue(limiter.acquire(1, 5) > 0);
+        Assert.assertEquals(0, limiter.acquire(1, 3));
+        Assert.assertEquals(100_000_000L, limiter.acquire(1, 2));
+        Assert.assertEquals(0, limiter.acquire(1, 1));
+        // the shared bucket has one permit left, so this is refused and refunded
+        Assert.assertTrue(limiter.acquire(2, 2) > 0);
+        Assert.assertEquals(0, limiter.acquire(2, 1));
+    }
+
+    /**
+     * A key gets its burst at once and then one request per interval; its wait is the time to the next token.
+     */
+    @Test
+    public void bucketRefillsAtTheConfiguredRate() {
+        AtomicLong now = new AtomicLong();
+        RateLimiter limiter = new RateLimiter(10, 3, 1000, new RateLimiter.Bucket(0, 0), now::get);
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(0, limiter.acquire(7));
+        }
+        Assert.assertEquals(100_000_000L, limiter.acquire(7));
+        Assert.assertEquals(0, limiter.acquire(8));
+
+        now.addAndGet(100_000_000L);
+        Assert.assertEquals(0, limiter.acquire(7));
+        Assert.assertTrue(limiter.acquire(7) > 0);
+        Assert.assertEquals(5, limiter.getAllowedCount());
+        Assert.assertEquals(2, limiter.getRejectedCount());
+    }
+
+    /**
+     * A request refused by the shared bucket is not charged to its key.
+     */
+    @Test
+    public void sharedBucketRefusalsAreRefunded() {
+        AtomicLong now = new AtomicLong();
+        RateLimiter.Bucket global = new RateLimiter.Bucket(1, 1);
+        RateLimiter limiter = new RateLimiter(1, 1, 1000, global, now::get);
+        Assert.assertEquals(0, limiter.acquire(1));
+        Assert.assertTrue(limiter.acquire(2) > 0);
+        Assert.assertEquals(1, global.getRejectedCount());
+
+        now.addAndGet(1_000_000_000L);
+        Assert.assertEquals(0, limiter.acquire(2));
+    }
+
+    /**
+     * However many distinct keys are seen, buckets that have filled up again are dropped and the tracked keys stay
+     * within maxKeys.
+     */
+    @Test
+    public void idleBucketsAreEvicted() {
+        AtomicLong now = new AtomicLong();
+        RateLimiter limiter = new RateLimiter(100, 1, 4096, new RateLimiter.Bucket(0, 0), now::get);
+        for (long key = 0; key < 1_000_000; key++) {
+            Assert.assertEquals(0, limiter.acquire(key));
+            now.addAndGet(10_000);
+        }
+        Assert.assertTrue(limiter.getKeyCount() <= 4096);
+        Assert.assertTrue(limiter.getEvictedCount() > 900_000);
+        Assert.assertEquals(0, limiter.getUntrackedCount());
+        // a key seen within the last interval still has its bucket
+        Assert.assertTrue(limiter.acquire(999_999) > 0);
+    }
+}
@@ -0,0 +1,145 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import Controller.SocialMediaController;
+import Util.ConnectionUtil;
+import Util.ResponseCompression;
+import io.javalin.Javalin;
+
+public class ResponseCompressionTest {
+    SocialMediaController socialMediaController;
+    HttpClient webClient;
+    Javalin app;
+    String baseUrl;
+
+    /**
+     * Before every test, reset the database, restart the Javalin app, and post enough messages in one batch that the
+     * full list is well above the compression threshold.
+     * @throws InterruptedException
+     */
+    @Before
+    public void setUp() throws InterruptedException, IOException {
+        ConnectionUtil.resetTestDatabase();
+        socialMediaController = new SocialMediaController();
+        app = socialMediaController.startAPI();
+        webClient = HttpClient.newHttpClient();
+        baseUrl = TestServer.start(app);
+        StringBuilder batch = new StringBuilder("[");
+        for (int i = 2; i <= 50; i++) {
+            if (i > 2) {
+                batch.append(',');
+            }
+            batch.append("{\"posted_by\":1, \"message_text\": \"message ").append(i)
+                    .append("\", \"time_posted_epoch\": ").append(1669947792 + i).append('}');
+        }
+        batch.append(']');
+        HttpRequest postBatchRequest = HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/messages/batch"))
+                .POST(HttpRequest.BodyPublishers.ofString(batch.toString()))
+                .header("Content-Type", "application/json")
+                .build();
+        Assert.assertEquals(200, webClient.send(postBatchRequest, HttpResponse.BodyHandlers.ofString()).statusCode());
+    }
+
+    @After
+    public void tearDown() {
+        app.stop();
+    }
+
+    private HttpResponse<byte[]> get(String path, String acceptEncoding) throws IOException, InterruptedException {
+        HttpRequest.Builder request = HttpRequest.newBuilder().uri(URI.create(baseUrl + path));
+        if (acceptEncoding != null) {
+            request.header("Accept-Encoding", acceptEncoding);
+        }
+        return webClient.send(request.build(), HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    private static String decode(HttpResponse<byte[]> response) throws IOException {
+        String encoding = response.headers().firstValue("Content-Encoding").orElse("identity");
+        InputStream in = new ByteArrayInputStream(response.body());
+        if (encoding.equals("gzip")) {
+            in = new GZIPInputStream(in);
+        } else if (encoding.equals("deflate")) {
+            in = new InflaterInputStream(in);
+        }
+        return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Sending GET localhost:8080/messages with and without Accept-Encoding
+     *
+     * Expected Response:
+     *  the same JSON each time, sent as gzip, deflate or identity, each with its own ETag, and a smaller gzip body
+     */
+    @Test
+    public void messageListIsCompressedWhenAccepted() throws IOException, InterruptedException {
+        HttpResponse<byte[]> identity = get("/messages", null);
+        HttpResponse<byte[]> gzip = get("/messages", "gzip, deflate");
+        HttpResponse<byte[]> deflate = get("/messages", "gzip;q=0, deflate");
+
+        Assert.assertFalse(identity.headers().firstValue("Content-Encoding").isPresent());
+        Assert.assertEquals("gzip", gzip.headers().firstValue("Content-Encoding").orElse(null));
+        Assert.assertEquals("deflate", deflate.headers().firstValue("Content-Encoding").orElse(null));
+        Assert.assertTrue(gzip.body().length < identity.body().length / 2);
+
+        String json = decode(identity);
+        Assert.assertEquals(json, decode(gzip));
+        Assert.assertEquals(json, decode(deflate));
+        Assert.assertNotEquals(identity.headers().firstValue("ETag"), gzip.headers().firstValue("ETag"));
+        Assert.assertEquals("Accept-Encoding", gzip.headers().firstValue("Vary").orElse(null));
+    }
+
+    /**
+     * Asking twice for the same version of the list builds its body once; the second response comes from the payload
+     * cache and is byte for byte the same.
+     */
+    @Test
+    public void compressedListIsCachedPerVersion() throws IOException, InterruptedException {
+        HttpResponse<byte[]> first = get("/messages", "gzip");
+        HttpResponse<byte[]> second = get("/messages", "gzip");
+        Assert.assertArrayEquals(first.body(), second.body());
+
+        HttpRequest metricsRequest = HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/metrics"))
+                .build();
+        String metrics = webClient.send(metricsRequest, HttpResponse.BodyHandlers.ofString()).body();
+        Assert.assertTrue(metrics.contains("http_payload_cache_hits_total 1\n"));
+        Assert.assertTrue(metrics.contains("http_payload_cache_misses_total 1\n"));
+    }
+
+    /**
+     * A streamed list is compressed as it is written.
+     */
+    @Test
+    public void streamedListIsCompressed() throws IOException, InterruptedException {
+        HttpResponse<byte[]> streamed = get("/messages?stream=true", "gzip");
+        Assert.assertEquals("gzip", streamed.headers().firstValue("Content-Encoding").orElse(null));
+        Assert.assertEquals(decode(get("/messages", null)), decode(streamed));
+    }
+
+    /**
+     * Codings refused with q=0 are never chosen, and a wildcard admits both.
+     */
+    @Test
+    public void negotiateHonorsQValues() {
+        Assert.assertNull(ResponseCompression.negotiate(null));
+        Assert.assertNull(ResponseCompression.negotiate("identity"));
+        Assert.assertNull(ResponseCompression.negotiate("gzip;q=0, deflate;q=0, *;q=1"));
+        Assert.assertEquals(ResponseCompression.Encoding.GZIP, ResponseCompression.negotiate("br, *"));
+        Assert.assertEquals(ResponseCompression.Encoding.DEFLATE, ResponseCompression.negotiate("gzip;q=0, *"));
+        Assert.assertEquals(ResponseCompression.Encoding.GZIP, ResponseCompression.negotiate("deflate;q=1.0, gzip;q=0.5"));
+    }
+}
@@ -0,0 +1,90 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import Util.ConnectionUtil;
+import Util.SchemaMigrator;
+
+public class SchemaMigrationTest {
+
+    /**
+     * Before every test, reset the database, which re-applies every migration.
+     */
+    @Before
+    public void setUp() {
+        ConnectionUtil.resetTestDatabase();
+    }
+
+    /**
+     * Running the migrator against an up-to-date database should apply nothing and keep the data.
+     */
+    @Test
+    public void migrateIsIdempotent() throws SQLException {
+        SchemaMigrator migrator = new SchemaMigrator(ConnectionUtil.getPool());
+        Assert.assertEquals(0, migrator.migrate());
+        Assert.assertEquals(3, migrator.currentVersion());
+        Assert.assertEquals("1", queryString("SELECT COUNT(*) FROM message"));
+    }
+
+    /**
+     * A database created by SocialMedia.sql before migrations existed should be upgraded in place, keeping its rows.
+     */
+    @Test
+    public void legacyDatabaseIsUpgradedInPlace() throws SQLException {
+        try (Connection connection = ConnectionUtil.getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.execute("DROP TABLE schema_version");
+            statement.execute("DROP INDEX idx_message_posted_by_time");
+            statement.execute("DROP INDEX idx_message_time_posted");
+        }
+        SchemaMigrator migrator = new SchemaMigrator(ConnectionUtil.getPool());
+        Assert.assertEquals(3, migrator.migrate());
+        Assert.assertEquals("1", queryString("SELECT COUNT(*) FROM message"));
+        Assert.assertEquals("1", queryString("SELECT COUNT(*) FROM account"));
+    }
+
+    /**
+     * Per-account timeline windows should be answered from the (posted_by, time_posted_epoch) index.
+     */
+    @Test
+    public void accountTimelineUsesIndex() throws SQLException {
+        String plan = queryString("EXPLAIN SELECT * FROM message WHERE posted_by = 1 "
+                + "AND time_posted_epoch BETWEEN 1 AND 2");
+        Assert.assertTrue(plan, plan.toUpperCase().contains("IDX_MESSAGE_POSTED_BY_TIME"));
+    }
+
+    /**
+     * Time range lookups should be answered from the time_posted_epoch index.
+     */
+    @Test
+    public void timeRangeUsesIndex() throws SQLException {
+        String plan = queryString("EXPLAIN SELECT * FROM message WHERE time_posted_epoch BETWEEN 1 AND 2");
+        Assert.assertTrue(plan, plan.toUpperCase().contains("IDX_MESSAGE_TIME_POSTED"));
+    }
+
+    /**
+     * A page of a time window, as MessageDAO.retrieveMessagesInTimeRange reads it, should be a range scan on the
+     * time_posted_epoch index too.
+     */
+    @Test
+    public void timeRangePageUsesIndex() throws SQLException {
+        String plan = queryString("EXPLAIN SELECT * FROM message WHERE time_posted_epoch BETWEEN 1 AND 2 "
+                + "AND (time_posted_epoch < 2 OR message_id < 5) "
+                + "ORDER BY time_posted_epoch DESC, message_id DESC LIMIT 10");
+        Assert.assertTrue(plan, plan.toUpperCase().contains("IDX_MESSAGE_TIME_POSTED"));
+    }
+
+    private static String queryString(String sql) throws SQLException {
+        try (Connection connection = ConnectionUtil.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet rs = statement.executeQuery(sql)) {
+            rs.next();
+            return rs.getString(1);
+        }
+    }
+}
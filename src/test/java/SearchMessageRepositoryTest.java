@@ -0,0 +1,80 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import DAO.MessageDAO;
+import DAO.MessageRowHandler;
+import DAO.SearchMessageRepository;
+import Model.Message;
+import Util.ConnectionUtil;
+
+public class SearchMessageRepositoryTest {
+    /**
+     * Before every test, reset the database, so the message table holds "test message 1".
+     */
+    @Before
+    public void setUp() {
+        ConnectionUtil.resetTestDatabase();
+    }
+
+    private static List<Integer> ids(List<Message> messages) {
+        List<Integer> ids = new ArrayList<>();
+        for (Message message : messages) {
+            ids.add(message.getMessage_id());
+        }
+        return ids;
+    }
+
+    /**
+     * A rebuild that fails part way leaves nothing behind, and the next search rebuilds the index from the start.
+     */
+    @Test
+    public void failedRebuildIsRetried() {
+        int[] attempts = {0};
+        SearchMessageRepository repository = new SearchMessageRepository(new MessageDAO() {
+            @Override
+            public void streamAllMessages(MessageRowHandler handler) throws IOException {
+                if (attempts[0]++ == 0) {
+                    handler.onRow(2, 1, "half read", 1669947792);
+                    throw new IOException("connection lost");
+                }
+                super.streamAllMessages(handler);
+            }
+        });
+        try {
+            repository.search("message", 0, 10);
+            Assert.fail("expected the failed rebuild to be reported");
+        } catch (CompletionException expected) {
+            Assert.assertEquals(0, repository.getIndex().getDocumentCount());
+        }
+        Assert.assertEquals(List.of(1), ids(repository.search("message", 0, 10)));
+        Assert.assertTrue(repository.search("half", 0, 10).isEmpty());
+        Assert.assertEquals(2, attempts[0]);
+    }
+
+    /**
+     * An insert that reaches the index after its message has already been deleted does not leave a document behind.
+     */
+    @Test
+    public void insertOvertakenByDeleteLeavesNoDocument() {
+        SearchMessageRepository[] repository = new SearchMessageRepository[1];
+        repository[0] = new SearchMessageRepository(new MessageDAO() {
+            @Override
+            public Message insertMessage(Message message) {
+                Message inserted = super.insertMessage(message);
+                // another request deletes the message before this insert has been indexed
+                repository[0].deleteMessageById(inserted.getMessage_id());
+                return inserted;
+            }
+        });
+        repository[0].build().join();
+        Assert.assertNotNull(repository[0].insertMessage(new Message(1, "ghost message", 1669947800)));
+        Assert.assertTrue(repository[0].search("ghost", 0, 10).isEmpty());
+        Assert.assertEquals(1, repository[0].getIndex().getDocumentCount());
+    }
+}
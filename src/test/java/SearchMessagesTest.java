@@ -0,0 +1,130 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import Controller.SocialMediaController;
+import Model.Message;
+import Util.ConnectionUtil;
+import io.javalin.Javalin;
+
+public class SearchMessagesTest {
+    SocialMediaController socialMediaController;
+    HttpClient webClient;
+    ObjectMapper objectMapper;
+    Javalin app;
+    String baseUrl;
+
+    /**
+     * Before every test, reset the database, restart the Javalin app, and post three more messages, so the table
+     * holds "test message 1" and messages 2 to 4.
+     * @throws InterruptedException
+     */
+    @Before
+    public void setUp() throws InterruptedException, IOException {
+        ConnectionUtil.resetTestDatabase();
+        socialMediaController = new SocialMediaController();
+        app = socialMediaController.startAPI();
+        webClient = HttpClient.newHttpClient();
+        objectMapper = new ObjectMapper();
+        baseUrl = TestServer.start(app);
+        String[] texts = {"good morning, coffee time", "coffee! coffee! coffee!", "evening tea"};
+        for (int i = 0; i < texts.length; i++) {
+            HttpRequest postMessageRequest = HttpRequest.newBuilder()
+                    .uri(URI.create(baseUrl + "/messages"))
+                    .POST(HttpRequest.BodyPublishers.ofString("{" +
+                            "\"posted_by\":1, " +
+                            "\"message_text\": \"" + texts[i] + "\", " +
+                            "\"time_posted_epoch\": " + (1669947800 + i) + "}"))
+                    .header("Content-Type", "application/json")
+                    .build();
+            webClient.send(postMessageRequest, HttpResponse.BodyHandlers.ofString());
+        }
+    }
+
+    @After
+    public void tearDown() {
+        app.stop();
+    }
+
+    private HttpResponse<String> search(String query) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/messages/search?" + query))
+                .build();
+        return webClient.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    private List<Integer> ids(HttpResponse<String> response) throws IOException {
+        List<Integer> ids = new ArrayList<>();
+        for (Message message : objectMapper.readValue(response.body(), new TypeReference<List<Message>>(){})) {
+            ids.add(message.getMessage_id());
+        }
+        return ids;
+    }
+
+    /**
+     * Sending GET localhost:8080/messages/search?q=coffee&limit=1 and following X-Next-Cursor
+     *
+     * Expected Response:
+     *  Status Code: 200
+     *  Response Body: message 3, which says coffee most often, then message 2
+     */
+    @Test
+    public void searchRanksAndPages() throws IOException, InterruptedException {
+        HttpResponse<String> response = search("q=COFFEE&limit=1");
+        Assert.assertEquals(200, response.statusCode());
+        Assert.assertEquals(List.of(3), ids(response));
+        Assert.assertEquals("1", response.headers().firstValue("X-Next-Cursor").orElse(null));
+
+        response = search("q=coffee&limit=1&offset=1");
+        Assert.assertEquals(List.of(2), ids(response));
+        Assert.assertFalse(response.headers().firstValue("X-Next-Cursor").isPresent());
+
+        Assert.assertEquals(List.of(1), ids(search("q=test%20message")));
+    }
+
+    /**
+     * Editing and deleting messages changes what a search finds.
+     */
+    @Test
+    public void searchFollowsEditsAndDeletes() throws IOException, InterruptedException {
+        HttpRequest patchRequest = HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/messages/4"))
+                .method("PATCH", HttpRequest.BodyPublishers.ofString("{\"message_text\": \"coffee after all\"}"))
+                .header("Content-Type", "application/json")
+                .build();
+        Assert.assertEquals(200, webClient.send(patchRequest, HttpResponse.BodyHandlers.ofString()).statusCode());
+        HttpRequest deleteRequest = HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/messages/3"))
+                .DELETE()
+                .build();
+        Assert.assertEquals(200, webClient.send(deleteRequest, HttpResponse.BodyHandlers.ofString()).statusCode());
+
+        Assert.assertTrue(ids(search("q=tea")).isEmpty());
+        Assert.assertEquals(List.of(2, 4), ids(search("q=coffee")).stream().sorted().collect(java.util.stream.Collectors.toList()));
+    }
+
+    /**
+     * Sending GET localhost:8080/messages/search without a query, or with one made only of punctuation
+     *
+     * Expected Response:
+     *  Status Code: 400
+     */
+    @Test
+    public void searchWithoutTermsIsRejected() throws IOException, InterruptedException {
+        Assert.assertEquals(400, search("").statusCode());
+        Assert.assertEquals(400, search("q=%3F%21").statusCode());
+        Assert.assertEquals(400, search("q=coffee&limit=0").statusCode());
+    }
+}
@@ -0,0 +1,156 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import Controller.SocialMediaController;
+import Model.Message;
+import Util.ConnectionUtil;
+import Util.SessionTokens;
+import io.javalin.Javalin;
+
+public class SessionTokenTest {
+    SocialMediaController socialMediaController;
+    HttpClient webClient;
+    ObjectMapper objectMapper;
+    Javalin app;
+    String baseUrl;
+
+    /**
+     * Before every test, reset the database, restart the Javalin app, and create a new webClient and ObjectMapper.
+     * @throws InterruptedException
+     */
+    @Before
+    public void setUp() throws InterruptedException {
+        ConnectionUtil.resetTestDatabase();
+        socialMediaController = new SocialMediaController();
+        app = socialMediaController.startAPI();
+        webClient = HttpClient.newHttpClient();
+        objectMapper = new ObjectMapper();
+        baseUrl = TestServer.start(app);
+    }
+
+    @After
+    public void tearDown() {
+        app.stop();
+    }
+
+    private HttpResponse<String> post(String path, String body, String token) throws IOException, InterruptedException {
+        HttpRequest.Builder request = HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + path))
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .header("Content-Type", "application/json");
+        if (token != null) {
+            request.header("Authorization", "Bearer " + token);
+        }
+        return webClient.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private String login(String username, String password) throws IOException, InterruptedException {
+        HttpResponse<String> response = post("/login",
+                "{\"username\": \"" + username + "\", \"password\": \"" + password + "\"}", null);
+        Assert.assertEquals(200, response.statusCode());
+        return response.headers().firstValue("X-Session-Token").orElse(null);
+    }
+
+    /**
+     * Logging in returns a token; a message posted with it belongs to the token's account, and posting as another
+     * account with it is refused.
+     *
+     * Expected Response:
+     *  Status Code: 200 with posted_by 1, then 403
+     */
+    @Test
+    public void tokenPostsAsItsAccount() throws IOException, InterruptedException {
+        String token = login("testuser1", "password");
+        Assert.assertNotNull(token);
+
+        HttpResponse<String> response = post("/messages",
+                "{\"message_text\": \"hello message\", \"time_posted_epoch\": 1669947792}", token);
+        Assert.assertEquals(200, response.statusCode());
+        Message message = objectMapper.readValue(response.body(), Message.class);
+        Assert.assertEquals(1, message.getPosted_by());
+
+        response = post("/messages",
+                "{\"posted_by\": 2, \"message_text\": \"hello message\", \"time_posted_epoch\": 1669947792}", token);
+        Assert.assertEquals(403, response.statusCode());
+    }
+
+    /**
+     * A forged or mangled token is refused with 401, while the same request without a token behaves as before.
+     */
+    @Test
+    public void invalidTokenIsRefused() throws IOException, InterruptedException {
+        String body = "{\"posted_by\": 1, \"message_text\": \"hello message\", \"time_posted_epoch\": 1669947792}";
+        String forged = new SessionTokens("some other secret key".getBytes(StandardCharsets.UTF_8), 60).issue(1);
+        Assert.assertEquals(401, post("/messages", body, forged).statusCode());
+        Assert.assertEquals(401, post("/messages", body, "not-a-token").statusCode());
+        Assert.assertEquals(200, post("/messages", body, null).statusCode());
+    }
+
+    /**
+     * An authenticated account cannot edit or delete another account's message, and the message is left as it was.
+     *
+     * Expected Response:
+     *  Status Code: 403 for account 2, then 200 for account 1
+     */
+    @Test
+    public void deleteRequiresOwnership() throws IOException, InterruptedException {
+        Assert.assertEquals(200, post("/register", "{\"username\": \"user2\", \"password\": \"password\"}", null)
+                .statusCode());
+        String otherToken = login("user2", "password");
+
+        HttpResponse<String> patched = webClient.send(HttpRequest.newBuilder()
+                        .uri(URI.create(baseUrl + "/messages/1"))
+                        .header("Authorization", "Bearer " + otherToken)
+                        .header("Content-Type", "application/json")
+                        .method("PATCH", HttpRequest.BodyPublishers.ofString("{\"message_text\": \"not yours\"}"))
+                        .build(),
+                HttpResponse.BodyHandlers.ofString());
+        Assert.assertEquals(403, patched.statusCode());
+
+        HttpRequest.Builder delete = HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/messages/1"))
+                .DELETE();
+        HttpResponse<String> response = webClient.send(delete.header("Authorization", "Bearer " + otherToken).build(),
+                HttpResponse.BodyHandlers.ofString());
+        Assert.assertEquals(403, response.statusCode());
+
+        String ownerToken = login("testuser1", "password");
+        response = webClient.send(HttpRequest.newBuilder()
+                        .uri(URI.create(baseUrl + "/messages/1"))
+                        .header("Authorization", "Bearer " + ownerToken)
+                        .DELETE().build(),
+                HttpResponse.BodyHandlers.ofString());
+        Assert.assertEquals(200, response.statusCode());
+        Message deleted = objectMapper.readValue(response.body(), Message.class);
+        Assert.assertEquals(1, deleted.getMessage_id());
+        Assert.assertEquals("test message 1", deleted.getMessage_text());
+    }
+
+    /**
+     * Tokens past their expiry time, and tokens whose payload was altered, do not verify.
+     */
+    @Test
+    public void expiredAndTamperedTokensDoNotVerify() {
+        SessionTokens tokens = new SessionTokens("a secret of sixteen bytes".getBytes(StandardCharsets.UTF_8), 60);
+        Assert.assertEquals(Integer.valueOf(7), tokens.verify(tokens.issue(7)));
+        Assert.assertNull(tokens.verify(tokens.issue(7, System.currentTimeMillis() / 1000 - 1)));
+
+        String token = tokens.issue(7);
+        String other = tokens.issue(8);
+        // account 8's payload with account 7's signature
+        String spliced = other.substring(0, other.indexOf('.')) + token.substring(token.indexOf('.'));
+        Assert.assertNull(tokens.verify(spliced));
+        Assert.assertEquals(2, tokens.getRejectedCount());
+    }
+}
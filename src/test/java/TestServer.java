@@ -0,0 +1,31 @@
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.javalin.Javalin;
+
+/**
+ * Starts the app under test on a port the operating system picks, so test classes running in parallel JVMs never
+ * compete for one, and waits for Javalin's serverStarted event instead of sleeping.
+ */
+public class TestServer {
+    private static final long START_TIMEOUT_SECONDS = 30;
+
+    private TestServer() {
+    }
+
+    /**
+     * Starts the app and waits until it accepts requests.
+     * @param app - the app returned by SocialMediaController.startAPI().
+     * @return the base URL of the app, such as http://localhost:41234, to put request paths after.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public static String start(Javalin app) throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        app.events(event -> event.serverStarted(started::countDown));
+        app.start(0);
+        if (!started.await(START_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("The app did not start within " + START_TIMEOUT_SECONDS + " seconds");
+        }
+        return "http://localhost:" + app.port();
+    }
+}
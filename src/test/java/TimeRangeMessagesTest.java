@@ -0,0 +1,133 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import Controller.SocialMediaController;
+import Model.Message;
+import Util.ConnectionUtil;
+import io.javalin.Javalin;
+
+public class TimeRangeMessagesTest {
+    SocialMediaController socialMediaController;
+    HttpClient webClient;
+    ObjectMapper objectMapper;
+    Javalin app;
+    String baseUrl;
+
+    /**
+     * Before every test, reset the database, restart the Javalin app, register a second account and post four more
+     * messages, the third by the second account. Newest first, the messages are then 4, 5, 2, 1, 3: messages 2 and 5
+     * share an epoch and are ordered by id.
+     * @throws InterruptedException
+     */
+    @Before
+    public void setUp() throws InterruptedException, IOException {
+        ConnectionUtil.resetTestDatabase();
+        socialMediaController = new SocialMediaController();
+        app = socialMediaController.startAPI();
+        webClient = HttpClient.newHttpClient();
+        objectMapper = new ObjectMapper();
+        baseUrl = TestServer.start(app);
+        HttpRequest registerRequest = HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/register"))
+                .POST(HttpRequest.BodyPublishers.ofString("{\"username\": \"user2\", \"password\": \"password\"}"))
+                .header("Content-Type", "application/json")
+                .build();
+        webClient.send(registerRequest, HttpResponse.BodyHandlers.ofString());
+        long[] epochs = {1669947800, 1669947790, 1669947810, 1669947800};
+        int[] posters = {1, 1, 2, 1};
+        for (int i = 0; i < epochs.length; i++) {
+            HttpRequest postMessageRequest = HttpRequest.newBuilder()
+                    .uri(URI.create(baseUrl + "/messages"))
+                    .POST(HttpRequest.BodyPublishers.ofString("{" +
+                            "\"posted_by\":" + posters[i] + ", " +
+                            "\"message_text\": \"message " + (i + 2) + "\", " +
+                            "\"time_posted_epoch\": " + epochs[i] + "}"))
+                    .header("Content-Type", "application/json")
+                    .build();
+            webClient.send(postMessageRequest, HttpResponse.BodyHandlers.ofString());
+        }
+    }
+
+    @After
+    public void tearDown() {
+        app.stop();
+    }
+
+    private HttpResponse<String> get(String query) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/messages?" + query))
+                .build();
+        return webClient.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    private List<Integer> ids(HttpResponse<String> response) throws IOException {
+        List<Integer> ids = new ArrayList<>();
+        for (Message message : objectMapper.readValue(response.body(), new TypeReference<List<Message>>(){})) {
+            ids.add(message.getMessage_id());
+        }
+        return ids;
+    }
+
+    /**
+     * Sending GET localhost:8080/messages?since=1669947792&until=1669947800
+     *
+     * Expected Response:
+     *  Status Code: 200
+     *  Response Body: messages 5, 2 and 1, newest first, the window's bounds included
+     */
+    @Test
+    public void timeWindowIsNewestFirst() throws IOException, InterruptedException {
+        HttpResponse<String> response = get("since=1669947792&until=1669947800");
+        Assert.assertEquals(200, response.statusCode());
+        Assert.assertEquals(List.of(5, 2, 1), ids(response));
+        Assert.assertEquals(List.of(4), ids(get("since=1669947801")));
+        Assert.assertEquals(List.of(3), ids(get("until=1669947791")));
+    }
+
+    /**
+     * Following X-Next-Cursor through GET localhost:8080/messages?order=newest&limit=2 should visit every account's
+     * messages newest first, each once, splitting the two messages that share an epoch across pages.
+     */
+    @Test
+    public void cursorWalksAllMessagesNewestFirst() throws IOException, InterruptedException {
+        List<Integer> visited = new ArrayList<>();
+        String query = "order=newest&limit=2";
+        for (int page = 0; page < 10; page++) {
+            HttpResponse<String> response = get(query);
+            Assert.assertEquals(200, response.statusCode());
+            visited.addAll(ids(response));
+            String cursor = response.headers().firstValue("X-Next-Cursor").orElse(null);
+            if (cursor == null) {
+                break;
+            }
+            query = "order=newest&limit=2&before=" + cursor;
+        }
+        Assert.assertEquals(List.of(4, 5, 2, 1, 3), visited);
+    }
+
+    /**
+     * Sending GET localhost:8080/messages with since after until, or a malformed cursor
+     *
+     * Expected Response:
+     *  Status Code: 400
+     */
+    @Test
+    public void invalidWindowIsRejected() throws IOException, InterruptedException {
+        Assert.assertEquals(400, get("since=1669947810&until=1669947800").statusCode());
+        Assert.assertEquals(400, get("before=1669947800").statusCode());
+        Assert.assertEquals(400, get("since=yesterday").statusCode());
+    }
+}
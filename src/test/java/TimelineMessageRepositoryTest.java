@@ -0,0 +1,72 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import DAO.MessageDAO;
+import DAO.MessageRowHandler;
+import DAO.TimelineMessageRepository;
+import Model.Message;
+import Util.ConnectionUtil;
+
+public class TimelineMessageRepositoryTest {
+    /**
+     * Before every test, reset the database, so the message table holds "test message 1" by account 1.
+     */
+    @Before
+    public void setUp() {
+        ConnectionUtil.resetTestDatabase();
+    }
+
+    private static List<Message> timeline(TimelineMessageRepository repository, int accountId) {
+        return repository.retrieveTimeline(accountId, Long.MIN_VALUE, Long.MAX_VALUE, Long.MAX_VALUE,
+                Integer.MAX_VALUE, 10);
+    }
+
+    /**
+     * A message deleted after the build has read it, but before the build has added it, stays deleted.
+     */
+    @Test
+    public void deleteDuringBuildIsNotUndone() {
+        TimelineMessageRepository[] repository = new TimelineMessageRepository[1];
+        repository[0] = new TimelineMessageRepository(new MessageDAO() {
+            @Override
+            public void streamAllMessages(MessageRowHandler handler) throws IOException {
+                List<Message> read = new ArrayList<>();
+                super.streamAllMessages((messageId, postedBy, messageText, timePostedEpoch) ->
+                        read.add(new Message(messageId, postedBy, messageText, timePostedEpoch)));
+                Assert.assertNotNull(repository[0].deleteMessageById(1));
+                for (Message message : read) {
+                    handler.onRow(message.getMessage_id(), message.getPosted_by(), message.getMessage_text(),
+                            message.getTime_posted_epoch());
+                }
+            }
+        });
+        Assert.assertTrue(timeline(repository[0], 1).isEmpty());
+        Assert.assertEquals(0, repository[0].getIndex().getEntryCount());
+    }
+
+    /**
+     * An insert that reaches the index after its message has already been deleted does not leave an entry behind.
+     */
+    @Test
+    public void insertOvertakenByDeleteLeavesNoEntry() {
+        TimelineMessageRepository[] repository = new TimelineMessageRepository[1];
+        repository[0] = new TimelineMessageRepository(new MessageDAO() {
+            @Override
+            public Message insertMessage(Message message) {
+                Message inserted = super.insertMessage(message);
+                // another request deletes the message before this insert has been indexed
+                repository[0].deleteMessageById(inserted.getMessage_id());
+                return inserted;
+            }
+        });
+        repository[0].build().join();
+        Assert.assertNotNull(repository[0].insertMessage(new Message(1, "gone already", 1669947800)));
+        Assert.assertEquals(1, timeline(repository[0], 1).size());
+        Assert.assertEquals(1, repository[0].getIndex().getEntryCount());
+    }
+}
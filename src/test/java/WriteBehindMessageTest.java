@@ -0,0 +1,246 @@
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import Controller.SocialMediaController;
+import DAO.MessageDAO;
+import DAO.MessageRepositories;
+import DAO.MessageRepository;
+import Model.Message;
+import Service.MessageService;
+import Service.MessageWriteBehindQueue;
+import Util.ConnectionUtil;
+import io.javalin.Javalin;
+
+public class WriteBehindMessageTest {
+    SocialMediaController socialMediaController;
+    HttpClient webClient;
+    ObjectMapper objectMapper;
+    Javalin app;
+    String baseUrl;
+
+    /**
+     * Before every test, reset the database, restart the Javalin app, and create a new webClient and ObjectMapper
+     * for interacting locally on the web.
+     * @throws InterruptedException
+     */
+    @Before
+    public void setUp() throws InterruptedException {
+        ConnectionUtil.resetTestDatabase();
+        socialMediaController = new SocialMediaController();
+        app = socialMediaController.startAPI();
+        webClient = HttpClient.newHttpClient();
+        objectMapper = new ObjectMapper();
+        baseUrl = TestServer.start(app);
+    }
+
+    @After
+    public void tearDown() {
+        app.stop();
+    }
+
+    private HttpResponse<String> postMessage(String text, int postedBy, boolean async)
+            throws IOException, InterruptedException {
+        HttpRequest.Builder builder = HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/messages"))
+                .POST(HttpRequest.BodyPublishers.ofString("{" +
+                        "\"posted_by\":" + postedBy + ", " +
+                        "\"message_text\": \"" + text + "\", " +
+                        "\"time_posted_epoch\": 1669947792}"))
+                .header("Content-Type", "application/json");
+        if (async) {
+            builder.header("Prefer", "respond-async");
+        }
+        return webClient.send(builder.build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    /**
+     * Sending POST localhost:8080/messages with Prefer: respond-async, then a normal POST, then stopping the app.
+     *
+     * Expected Response:
+     *  Status Code: 202 with the assigned id, then 200 with a different id
+     *  Every message is in the configured storage engine once the app has stopped
+     */
+    @Test
+    public void postMessagesAsyncAreWrittenByShutdown() throws IOException, InterruptedException {
+        Set<Integer> ids = new HashSet<>();
+        for (int i = 0; i < 20; i++) {
+            HttpResponse<String> response = postMessage("async " + i, 1, true);
+            Assert.assertEquals(202, response.statusCode());
+            Assert.assertEquals("respond-async", response.headers().firstValue("Preference-Applied").orElse(null));
+            Message queued = objectMapper.readValue(response.body(), Message.class);
+            Assert.assertEquals("async " + i, queued.getMessage_text());
+            Assert.assertTrue(ids.add(queued.getMessage_id()));
+        }
+        HttpResponse<String> syncResponse = postMessage("sync", 1, false);
+        Assert.assertEquals(200, syncResponse.statusCode());
+        Assert.assertTrue(ids.add(objectMapper.readValue(syncResponse.body(), Message.class).getMessage_id()));
+
+        app.stop();
+
+        List<Message> stored;
+        try (MessageRepository repository = MessageRepositories.create()) {
+            stored = repository.retrieveAllMessages();
+        }
+        // the message from SocialMedia.sql plus the 21 posted above
+        Assert.assertEquals(22, stored.size());
+        for (Message message : stored) {
+            ids.remove(message.getMessage_id());
+        }
+        Assert.assertTrue(ids.isEmpty());
+    }
+
+    /**
+     * Sending POST localhost:8080/messages with Prefer: respond-async and an unknown poster.
+     *
+     * Expected Response:
+     *  Status Code: 400
+     */
+    @Test
+    public void postMessageAsyncInvalid() throws IOException, InterruptedException {
+        HttpResponse<String> response = postMessage("hello", 42, true);
+        Assert.assertEquals(400, response.statusCode());
+    }
+
+    /**
+     * A full queue rejects new messages instead of blocking, and close() still writes out what was accepted.
+     */
+    @Test
+    public void fullQueueRejects() throws InterruptedException {
+        CountDownLatch writerBlocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        MessageDAO blockingDAO = new MessageDAO() {
+            @Override
+            public boolean insertMessagesWithIds(List<Message> messages) {
+                writerBlocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.insertMessagesWithIds(messages);
+            }
+        };
+        MessageWriteBehindQueue queue = new MessageWriteBehindQueue(blockingDAO, 2, 10, 0, 100);
+        queue.submit(new Message(1, "held by the writer", 1669947792));
+        writerBlocked.await();
+        queue.submit(new Message(1, "queued 1", 1669947792));
+        queue.submit(new Message(1, "queued 2", 1669947792));
+        try {
+            queue.submit(new Message(1, "one too many", 1669947792));
+            Assert.fail("expected the full queue to reject the message");
+        } catch (RejectedExecutionException expected) {
+            Assert.assertEquals(1, queue.getRejectedCount());
+        }
+        release.countDown();
+        queue.close();
+        Assert.assertEquals(3, queue.getWrittenCount());
+        Assert.assertEquals(4, new MessageDAO().retrieveAllMessages().size());
+    }
+
+    /**
+     * A batch that keeps failing is retried, then written one message at a time; the message that cannot be written
+     * at all goes to the dead-letter file instead of being dropped.
+     */
+    @Test
+    public void failedBatchesAreRetriedThenWrittenOneByOne() throws InterruptedException, IOException {
+        AtomicInteger batchAttempts = new AtomicInteger();
+        MessageDAO failingDAO = new MessageDAO() {
+            @Override
+            public boolean insertMessagesWithIds(List<Message> messages) {
+                if (messages.size() > 1) {
+                    batchAttempts.incrementAndGet();
+                    return false;
+                }
+                if (messages.get(0).getMessage_text().equals("poison")) {
+                    throw new IllegalStateException("cannot write poison");
+                }
+                return super.insertMessagesWithIds(messages);
+            }
+        };
+        Path deadLetters = Files.createTempFile("write-behind-dead-letter", ".jsonl");
+        Files.delete(deadLetters);
+        MessageWriteBehindQueue queue = new MessageWriteBehindQueue(failingDAO, 10, 10, 50, 100, batch -> { }, 2, 1,
+                deadLetters);
+        try {
+            queue.submit(new Message(1, "first", 1669947792));
+            Message poison = queue.submit(new Message(1, "poison", 1669947792));
+            queue.submit(new Message(1, "third", 1669947792));
+            queue.close();
+
+            Assert.assertEquals(3, batchAttempts.get());
+            Assert.assertEquals(2, queue.getRetryCount());
+            Assert.assertEquals(2, queue.getWrittenCount());
+            Assert.assertEquals(1, queue.getFailedCount());
+            Assert.assertEquals(0, queue.getLostCount());
+            Assert.assertEquals(3, new MessageDAO().retrieveAllMessages().size());
+            List<String> lines = Files.readAllLines(deadLetters);
+            Assert.assertEquals(1, lines.size());
+            Assert.assertEquals(poison, objectMapper.readValue(lines.get(0), Message.class));
+        } finally {
+            Files.deleteIfExists(deadLetters);
+        }
+    }
+
+    /**
+     * A synchronous post made while an earlier asynchronous one is still queued is numbered after it, and keyset
+     * pages stop before the queued message until it is written, so a client continuing after the last id it was
+     * shown does not skip it.
+     */
+    @Test
+    public void pagesStopBeforeMessagesStillQueued() throws InterruptedException {
+        CountDownLatch writerBlocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        MessageDAO blockingDAO = new MessageDAO() {
+            @Override
+            public boolean insertMessagesWithIds(List<Message> messages) {
+                if (Thread.currentThread().getName().equals("message-write-behind")) {
+                    writerBlocked.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.insertMessagesWithIds(messages);
+            }
+        };
+        MessageService messageService = new MessageService(blockingDAO);
+        try {
+            Message queued = messageService.enqueueMessage(new Message(1, "queued", 1669947792));
+            writerBlocked.await();
+            Message posted = messageService.addMessage(new Message(1, "posted", 1669947793));
+            Assert.assertTrue(posted.getMessage_id() > queued.getMessage_id());
+
+            Assert.assertEquals(1, messageService.getMessagesPage(0, 10).size());
+            Assert.assertEquals(Collections.emptyList(), messageService.getMessagesPage(1, 10));
+            Assert.assertEquals(1, messageService.getMessagesPageByAccountId(1, 0, 10).size());
+
+            release.countDown();
+            messageService.getWriteBehindQueue().flush();
+            Assert.assertEquals(Arrays.asList(queued, posted), messageService.getMessagesPage(1, 10));
+        } finally {
+            release.countDown();
+            messageService.close();
+        }
+    }
+}